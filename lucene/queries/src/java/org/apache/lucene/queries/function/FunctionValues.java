@@ -132,6 +132,19 @@ public abstract class FunctionValues {
   // TODO: should we make a termVal, fills BytesRef[]?
   public void strVal(int doc, String [] vals) { throw new UnsupportedOperationException(); }
 
+  /**
+   * Fills <code>out</code> with the {@link #doubleVal(int)} of the first <code>count</code>
+   * documents of <code>docs</code>.  Sources which can compute their values over a block of
+   * documents, without a call per document and per wrapped function, override it.
+   *
+   * @lucene.experimental
+   */
+  public void fillDoubles(int[] docs, int count, double[] out) {
+    for (int i = 0; i < count; i++) {
+      out[i] = doubleVal(docs[i]);
+    }
+  }
+
   public Explanation explain(int doc) {
     return new Explanation(floatVal(doc), toString(doc));
   }
@@ -163,37 +176,37 @@ public abstract class FunctionValues {
     final float u = upper;
 
     if (includeLower && includeUpper) {
-      return new ValueSourceScorer(reader, this) {
+      return new ValueSourceScorer(reader, this, true) {
         @Override
-        public boolean matchesValue(int doc) {
-          float docVal = floatVal(doc);
+        public boolean matchesValue(double value) {
+          float docVal = (float) value;
           return docVal >= l && docVal <= u;
         }
       };
     }
     else if (includeLower && !includeUpper) {
-       return new ValueSourceScorer(reader, this) {
+       return new ValueSourceScorer(reader, this, true) {
         @Override
-        public boolean matchesValue(int doc) {
-          float docVal = floatVal(doc);
+        public boolean matchesValue(double value) {
+          float docVal = (float) value;
           return docVal >= l && docVal < u;
         }
       };
     }
     else if (!includeLower && includeUpper) {
-       return new ValueSourceScorer(reader, this) {
+       return new ValueSourceScorer(reader, this, true) {
         @Override
-        public boolean matchesValue(int doc) {
-          float docVal = floatVal(doc);
+        public boolean matchesValue(double value) {
+          float docVal = (float) value;
           return docVal > l && docVal <= u;
         }
       };
     }
     else {
-       return new ValueSourceScorer(reader, this) {
+       return new ValueSourceScorer(reader, this, true) {
         @Override
-        public boolean matchesValue(int doc) {
-          float docVal = floatVal(doc);
+        public boolean matchesValue(double value) {
+          float docVal = (float) value;
           return docVal > l && docVal < u;
         }
       };
@@ -27,8 +27,15 @@ import java.io.IOException;
 /**
  * {@link Scorer} which returns the result of {@link FunctionValues#floatVal(int)} as
  * the score for a document.
+ * <p>
+ * A batched scorer matches documents on their value through {@link #matchesValue(double)}:
+ * it fetches the values of blocks of live documents at once with
+ * {@link FunctionValues#fillDoubles(int[], int, double[])}.
  */
 public class ValueSourceScorer extends Scorer {
+  /** The number of documents whose values are fetched at once by a batched scorer */
+  static final int BLOCK_SIZE = 128;
+
   protected final IndexReader reader;
   private int doc = -1;
   protected final int maxDoc;
@@ -36,13 +43,34 @@ public class ValueSourceScorer extends Scorer {
   protected boolean checkDeletes;
   private final Bits liveDocs;
 
+  private final boolean batched;
+  private int[] blockDocs;
+  private double[] blockValues;
+  private int blockPos;
+  private int blockCount;
+  // the first document which is not part of the current block
+  private int blockEnd;
+
   protected ValueSourceScorer(IndexReader reader, FunctionValues values) {
+    this(reader, values, false);
+  }
+
+  /**
+   * @param batched if true, the documents are matched on their value through
+   *                {@link #matchesValue(double)} which must be overridden
+   */
+  protected ValueSourceScorer(IndexReader reader, FunctionValues values, boolean batched) {
     super(null);
     this.reader = reader;
     this.maxDoc = reader.maxDoc();
     this.values = values;
     setCheckDeletes(true);
     this.liveDocs = MultiFields.getLiveDocs(reader);
+    this.batched = batched;
+    if (batched) {
+      blockDocs = new int[BLOCK_SIZE];
+      blockValues = new double[BLOCK_SIZE];
+    }
   }
 
   public IndexReader getReader() {
@@ -58,6 +86,11 @@ public class ValueSourceScorer extends Scorer {
   }
 
   public boolean matchesValue(int doc) {
+    return !batched || matchesValue(values.doubleVal(doc));
+  }
+
+  /** Whether a document with this value matches, only called by batched scorers */
+  public boolean matchesValue(double value) {
     return true;
   }
 
@@ -68,6 +101,7 @@ public class ValueSourceScorer extends Scorer {
 
   @Override
   public int nextDoc() throws IOException {
+    if (batched) return nextBatchedDoc();
     for (; ;) {
       doc++;
       if (doc >= maxDoc) return doc = NO_MORE_DOCS;
@@ -75,8 +109,52 @@ public class ValueSourceScorer extends Scorer {
     }
   }
 
+  private int nextBatchedDoc() {
+    for (; ;) {
+      while (blockPos < blockCount) {
+        int pos = blockPos++;
+        if (matchesValue(blockValues[pos])) return doc = blockDocs[pos];
+      }
+      if (blockEnd >= maxDoc) return doc = NO_MORE_DOCS;
+      fillBlock();
+    }
+  }
+
+  /** Collects the next live documents and fetches their values */
+  private void fillBlock() {
+    int count = 0;
+    int d = blockEnd;
+    for (; d < maxDoc && count < BLOCK_SIZE; d++) {
+      if (!checkDeletes || liveDocs.get(d)) {
+        blockDocs[count++] = d;
+      }
+    }
+    blockEnd = d;
+    blockPos = 0;
+    blockCount = count;
+    if (count > 0) {
+      values.fillDoubles(blockDocs, count, blockValues);
+    }
+  }
+
   @Override
   public int advance(int target) throws IOException {
+    if (batched) {
+      if (target < blockEnd) {
+        // the target is in the current block
+        while (blockPos < blockCount && blockDocs[blockPos] < target) {
+          blockPos++;
+        }
+      } else {
+        // the target alone is evaluated: the caller of advance() may well
+        // jump again rather than read the documents which follow it
+        blockPos = blockCount = 0;
+        if (target >= maxDoc) return doc = NO_MORE_DOCS;
+        blockEnd = target + 1;
+        if (matches(target)) return doc = target;
+      }
+      return nextBatchedDoc();
+    }
     // also works fine when target==NO_MORE_DOCS
     doc = target - 1;
     return nextDoc();
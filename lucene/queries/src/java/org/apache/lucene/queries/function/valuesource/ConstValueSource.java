@@ -22,6 +22,7 @@ import org.apache.lucene.queries.function.FunctionValues;
 import org.apache.lucene.queries.function.docvalues.FloatDocValues;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -61,6 +62,10 @@ public class ConstValueSource extends ConstNumberSource {
         return dv;
       }
       @Override
+      public void fillDoubles(int[] docs, int count, double[] out) {
+        Arrays.fill(out, 0, count, dv);
+      }
+      @Override
       public String toString(int doc) {
         return description();
       }
@@ -40,4 +40,14 @@ public class DivFloatFunction extends DualFloatFunction {
   protected float func(int doc, FunctionValues aVals, FunctionValues bVals) {
     return aVals.floatVal(doc) / bVals.floatVal(doc);
   }
+
+  @Override
+  protected void func(int[] docs, int count, FunctionValues aVals, FunctionValues bVals, double[] out) {
+    double[] bOut = new double[count];
+    aVals.fillDoubles(docs, count, out);
+    bVals.fillDoubles(docs, count, bOut);
+    for (int i = 0; i < count; i++) {
+      out[i] = (float) out[i] / (float) bOut[i];
+    }
+  }
 }
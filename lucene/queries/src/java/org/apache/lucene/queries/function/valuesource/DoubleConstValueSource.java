@@ -22,6 +22,7 @@ import org.apache.lucene.queries.function.FunctionValues;
 import org.apache.lucene.queries.function.docvalues.DoubleDocValues;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -66,6 +67,11 @@ public class DoubleConstValueSource extends ConstNumberSource {
         return constant;
       }
 
+      @Override
+      public void fillDoubles(int[] docs, int count, double[] out) {
+        Arrays.fill(out, 0, count, constant);
+      }
+
       @Override
       public String strVal(int doc) {
         return Double.toString(constant);
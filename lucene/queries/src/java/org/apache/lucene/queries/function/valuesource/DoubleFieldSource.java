@@ -65,6 +65,13 @@ public class DoubleFieldSource extends FieldCacheSource {
         return arr[doc];
       }
 
+      @Override
+      public void fillDoubles(int[] docs, int count, double[] out) {
+        for (int i = 0; i < count; i++) {
+          out[i] = arr[docs[i]];
+        }
+      }
+
       @Override
       public boolean exists(int doc) {
         return valid.get(doc);
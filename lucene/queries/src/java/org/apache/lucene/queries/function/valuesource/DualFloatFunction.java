@@ -46,6 +46,16 @@ public abstract class DualFloatFunction extends ValueSource {
   protected abstract String name();
   protected abstract float func(int doc, FunctionValues aVals, FunctionValues bVals);
 
+  /**
+   * Computes the function for the first <code>count</code> documents of a block, by default one
+   * document at a time with {@link #func(int, FunctionValues, FunctionValues)}.
+   */
+  protected void func(int[] docs, int count, FunctionValues aVals, FunctionValues bVals, double[] out) {
+    for (int i = 0; i < count; i++) {
+      out[i] = func(docs[i], aVals, bVals);
+    }
+  }
+
   @Override
   public String description() {
     return name() + "(" + a.description() + "," + b.description() + ")";
@@ -61,6 +71,11 @@ public abstract class DualFloatFunction extends ValueSource {
         return func(doc, aVals, bVals);
       }
 
+      @Override
+      public void fillDoubles(int[] docs, int count, double[] out) {
+        func(docs, count, aVals, bVals, out);
+      }
+
       @Override
       public String toString(int doc) {
         return name() + '(' + aVals.toString(doc) + ',' + bVals.toString(doc) + ')';
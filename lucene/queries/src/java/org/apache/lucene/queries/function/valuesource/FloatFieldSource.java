@@ -64,6 +64,13 @@ public class FloatFieldSource extends FieldCacheSource {
         return arr[doc];
       }
 
+      @Override
+      public void fillDoubles(int[] docs, int count, double[] out) {
+        for (int i = 0; i < count; i++) {
+          out[i] = arr[docs[i]];
+        }
+      }
+
       @Override
       public Object objectVal(int doc) {
         return valid.get(doc) ? arr[doc] : null;
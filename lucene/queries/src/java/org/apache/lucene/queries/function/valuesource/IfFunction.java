@@ -83,6 +83,38 @@ public class IfFunction extends BoolFunction {
         return ifVals.boolVal(doc) ? trueVals.doubleVal(doc) : falseVals.doubleVal(doc);
       }
 
+      private boolean[] conds;
+      private int[] trueDocs;
+      private int[] falseDocs;
+      private double[] trueOut;
+      private double[] falseOut;
+
+      @Override
+      public void fillDoubles(int[] docs, int count, double[] out) {
+        if (conds == null || conds.length < count) {
+          conds = new boolean[count];
+          trueDocs = new int[count];
+          falseDocs = new int[count];
+          trueOut = new double[count];
+          falseOut = new double[count];
+        }
+        // only evaluate each branch for the documents which take it
+        int numTrue = 0;
+        int numFalse = 0;
+        for (int i = 0; i < count; i++) {
+          if (conds[i] = ifVals.boolVal(docs[i])) {
+            trueDocs[numTrue++] = docs[i];
+          } else {
+            falseDocs[numFalse++] = docs[i];
+          }
+        }
+        trueVals.fillDoubles(trueDocs, numTrue, trueOut);
+        falseVals.fillDoubles(falseDocs, numFalse, falseOut);
+        for (int i = 0, t = 0, f = 0; i < count; i++) {
+          out[i] = conds[i] ? trueOut[t++] : falseOut[f++];
+        }
+      }
+
       @Override
       public String strVal(int doc) {
         return ifVals.boolVal(doc) ? trueVals.strVal(doc) : falseVals.strVal(doc);
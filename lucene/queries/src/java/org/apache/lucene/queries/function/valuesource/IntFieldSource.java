@@ -83,6 +83,13 @@ public class IntFieldSource extends FieldCacheSource {
         return (double)arr[doc];
       }
 
+      @Override
+      public void fillDoubles(int[] docs, int count, double[] out) {
+        for (int i = 0; i < count; i++) {
+          out[i] = arr[docs[i]];
+        }
+      }
+
       @Override
       public String strVal(int doc) {
         return Float.toString(arr[doc]);
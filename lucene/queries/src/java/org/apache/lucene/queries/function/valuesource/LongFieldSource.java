@@ -75,6 +75,13 @@ public class LongFieldSource extends FieldCacheSource {
         return arr[doc];
       }
 
+      @Override
+      public void fillDoubles(int[] docs, int count, double[] out) {
+        for (int i = 0; i < count; i++) {
+          out[i] = arr[docs[i]];
+        }
+      }
+
       @Override
       public boolean exists(int doc) {
         return valid.get(doc);
@@ -41,6 +41,16 @@ public abstract class MultiFloatFunction extends ValueSource {
   abstract protected String name();
   abstract protected float func(int doc, FunctionValues[] valsArr);
 
+  /**
+   * Computes the function for the first <code>count</code> documents of a block, by default one
+   * document at a time with {@link #func(int, FunctionValues[])}.
+   */
+  protected void func(int[] docs, int count, FunctionValues[] valsArr, double[] out) {
+    for (int i = 0; i < count; i++) {
+      out[i] = func(docs[i], valsArr);
+    }
+  }
+
   @Override
   public String description() {
     StringBuilder sb = new StringBuilder();
@@ -70,6 +80,12 @@ public abstract class MultiFloatFunction extends ValueSource {
       public float floatVal(int doc) {
         return func(doc, valsArr);
       }
+
+      @Override
+      public void fillDoubles(int[] docs, int count, double[] out) {
+        func(docs, count, valsArr, out);
+      }
+
        @Override
       public String toString(int doc) {
         StringBuilder sb = new StringBuilder();
@@ -61,6 +61,11 @@ public class NumericIndexDocValueSource extends ValueSource {
         public float floatVal(int doc) {
           return (float) source.getFloat(doc);
         }
+
+        @Override
+        public double doubleVal(int doc) {
+          return source.getFloat(doc);
+        }
       };
 
     case VAR_INTS:
@@ -74,6 +79,11 @@ public class NumericIndexDocValueSource extends ValueSource {
         public float floatVal(int doc) {
           return (float) source.getInt(doc);
         }
+
+        @Override
+        public double doubleVal(int doc) {
+          return source.getInt(doc);
+        }
       };
     default:
       throw new IOException("Type: " + type + "is not numeric");
@@ -20,6 +20,8 @@ package org.apache.lucene.queries.function.valuesource;
 import org.apache.lucene.queries.function.FunctionValues;
 import org.apache.lucene.queries.function.ValueSource;
 
+import java.util.Arrays;
+
 /**
  * <code>ProductFloatFunction</code> returns the product of it's components.
  */
@@ -41,4 +43,17 @@ public class ProductFloatFunction extends MultiFloatFunction {
     }
     return val;
   }
+
+  @Override
+  protected void func(int[] docs, int count, FunctionValues[] valsArr, double[] out) {
+    Arrays.fill(out, 0, count, 1.0);
+    double[] srcVals = new double[count];
+    for (FunctionValues vals : valsArr) {
+      vals.fillDoubles(docs, count, srcVals);
+      for (int i = 0; i < count; i++) {
+        // rounding the double product of two floats gives the float product
+        out[i] = (float) (out[i] * (float) srcVals[i]);
+      }
+    }
+  }
 }
@@ -64,6 +64,14 @@ public class RangeMapFloatFunction extends ValueSource {
         return (val>=min && val<=max) ? target : (defaultVal == null ? val : defaultVal);
       }
       @Override
+      public void fillDoubles(int[] docs, int count, double[] out) {
+        vals.fillDoubles(docs, count, out);
+        for (int i = 0; i < count; i++) {
+          float val = (float) out[i];
+          out[i] = (val>=min && val<=max) ? target : (defaultVal == null ? val : defaultVal);
+        }
+      }
+      @Override
       public String toString(int doc) {
         return "map(" + vals.toString(doc) + ",min=" + min + ",max=" + max + ",target=" + target + ")";
       }
@@ -118,6 +118,13 @@ public class ScaleFloatFunction extends ValueSource {
 	return (vals.floatVal(doc) - minSource) * scale + min;
       }
       @Override
+      public void fillDoubles(int[] docs, int count, double[] out) {
+        vals.fillDoubles(docs, count, out);
+        for (int i = 0; i < count; i++) {
+          out[i] = ((float) out[i] - minSource) * scale + min;
+        }
+      }
+      @Override
       public String toString(int doc) {
 	return "scale(" + vals.toString(doc) + ",toMin=" + min + ",toMax=" + max
                 + ",fromMin=" + minSource
@@ -20,6 +20,8 @@ package org.apache.lucene.queries.function.valuesource;
 import org.apache.lucene.queries.function.FunctionValues;
 import org.apache.lucene.queries.function.ValueSource;
 
+import java.util.Arrays;
+
 /**
  * <code>SumFloatFunction</code> returns the sum of it's components.
  */
@@ -41,4 +43,17 @@ public class SumFloatFunction extends MultiFloatFunction {
     }
     return val;
   }
+
+  @Override
+  protected void func(int[] docs, int count, FunctionValues[] valsArr, double[] out) {
+    Arrays.fill(out, 0, count, 0.0);
+    double[] srcVals = new double[count];
+    for (FunctionValues vals : valsArr) {
+      vals.fillDoubles(docs, count, srcVals);
+      for (int i = 0; i < count; i++) {
+        // rounding the double sum of two floats gives the float sum
+        out[i] = (float) (out[i] + (float) srcVals[i]);
+      }
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,200 @@
+package org.apache.lucene.queries.function;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.valuesource.ConstValueSource;
+import org.apache.lucene.queries.function.valuesource.DivFloatFunction;
+import org.apache.lucene.queries.function.valuesource.DoubleConstValueSource;
+import org.apache.lucene.queries.function.valuesource.DoubleFieldSource;
+import org.apache.lucene.queries.function.valuesource.FloatFieldSource;
+import org.apache.lucene.queries.function.valuesource.IfFunction;
+import org.apache.lucene.queries.function.valuesource.IntFieldSource;
+import org.apache.lucene.queries.function.valuesource.LongFieldSource;
+import org.apache.lucene.queries.function.valuesource.PowFloatFunction;
+import org.apache.lucene.queries.function.valuesource.ProductFloatFunction;
+import org.apache.lucene.queries.function.valuesource.RangeMapFloatFunction;
+import org.apache.lucene.queries.function.valuesource.ScaleFloatFunction;
+import org.apache.lucene.queries.function.valuesource.SumFloatFunction;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.Bits;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Checks that evaluating blocks of documents with {@link FunctionValues#fillDoubles}
+ * gives the same values and range matches as evaluating one document at a time.
+ */
+public class TestFillDoubles extends LuceneTestCase {
+  static Directory dir;
+  static IndexReader reader;
+  static IndexSearcher searcher;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    dir = newDirectory();
+    IndexWriterConfig iwConfig = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+    RandomIndexWriter iw = new RandomIndexWriter(random(), dir, iwConfig);
+    int numDocs = atLeast(500);
+    for (int i = 0; i < numDocs; i++) {
+      Document document = new Document();
+      document.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+      document.add(new StringField("float", Float.toString((random().nextInt(2000) - 1000) / 100f), Field.Store.NO));
+      document.add(new StringField("int", Integer.toString(random().nextInt(7) - 3), Field.Store.NO));
+      document.add(new StringField("long", Long.toString(random().nextLong() >> 20), Field.Store.NO));
+      document.add(new StringField("double", Double.toString(random().nextGaussian() * 100), Field.Store.NO));
+      iw.addDocument(document);
+    }
+    for (int i = 0; i < numDocs / 10; i++) {
+      iw.deleteDocuments(new Term("id", Integer.toString(random().nextInt(numDocs))));
+    }
+    reader = iw.getReader();
+    searcher = newSearcher(reader);
+    iw.close();
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    searcher = null;
+    reader.close();
+    reader = null;
+    dir.close();
+    dir = null;
+  }
+
+  private static ValueSource[] sources() {
+    ValueSource f = new FloatFieldSource("float");
+    ValueSource i = new IntFieldSource("int");
+    ValueSource l = new LongFieldSource("long");
+    ValueSource d = new DoubleFieldSource("double");
+    return new ValueSource[] {
+        f, i, l, d,
+        new ConstValueSource(1.5f),
+        new DoubleConstValueSource(0.1),
+        new SumFloatFunction(new ValueSource[] {f, i, new ConstValueSource(0.3f)}),
+        new ProductFloatFunction(new ValueSource[] {f, d}),
+        new DivFloatFunction(f, i),
+        new PowFloatFunction(f, new ConstValueSource(2f)),
+        new RangeMapFloatFunction(f, -2f, 2f, 100f, null),
+        new RangeMapFloatFunction(i, 0f, 1f, 10f, 5f),
+        new ScaleFloatFunction(d, 0f, 1f),
+        new IfFunction(i, f, new SumFloatFunction(new ValueSource[] {d, new DivFloatFunction(f, d)})),
+    };
+  }
+
+  public void testFillDoubles() throws Exception {
+    for (ValueSource vs : sources()) {
+      for (AtomicReaderContext leaf : reader.leaves()) {
+        FunctionValues vals = vs.getValues(ValueSource.newContext(searcher), leaf);
+        int maxDoc = leaf.reader().maxDoc();
+        int[] docs = new int[maxDoc];
+        double[] out = new double[maxDoc];
+        for (int iter = 0; iter < 5; iter++) {
+          int count = 0;
+          for (int doc = 0; doc < maxDoc; doc++) {
+            if (random().nextInt(3) != 0) {
+              docs[count++] = doc;
+            }
+          }
+          vals.fillDoubles(docs, count, out);
+          for (int j = 0; j < count; j++) {
+            assertEquals(vs + " doc=" + docs[j], vals.doubleVal(docs[j]), out[j], 0.0);
+          }
+        }
+      }
+    }
+  }
+
+  public void testRangeScorer() throws Exception {
+    for (ValueSource vs : sources()) {
+      if (vs instanceof IntFieldSource || vs instanceof LongFieldSource || vs instanceof DoubleFieldSource) {
+        // these have their own range scorers
+        continue;
+      }
+      for (AtomicReaderContext leaf : reader.leaves()) {
+        FunctionValues vals = vs.getValues(ValueSource.newContext(searcher), leaf);
+        for (int iter = 0; iter < 5; iter++) {
+          float lower = (random().nextInt(200) - 100) / 10f;
+          float upper = lower + random().nextInt(100) / 10f;
+          boolean includeLower = random().nextBoolean();
+          boolean includeUpper = random().nextBoolean();
+          assertRange(vs, leaf, vals, lower, upper, includeLower, includeUpper);
+        }
+      }
+    }
+  }
+
+  private void assertRange(ValueSource vs, AtomicReaderContext leaf, FunctionValues vals,
+                           float lower, float upper, boolean includeLower, boolean includeUpper) throws Exception {
+    Bits liveDocs = leaf.reader().getLiveDocs();
+    int maxDoc = leaf.reader().maxDoc();
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int doc = 0; doc < maxDoc; doc++) {
+      float val = vals.floatVal(doc);
+      boolean matches = (includeLower ? val >= lower : val > lower) && (includeUpper ? val <= upper : val < upper);
+      if ((liveDocs == null || liveDocs.get(doc)) && matches) {
+        expected.add(doc);
+      }
+    }
+    String msg = vs + " " + Arrays.asList(lower, upper, includeLower, includeUpper);
+
+    ValueSourceScorer scorer = vals.getRangeScorer(leaf.reader(), Float.toString(lower), Float.toString(upper), includeLower, includeUpper);
+    List<Integer> actual = new ArrayList<Integer>();
+    for (int doc = scorer.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = scorer.nextDoc()) {
+      actual.add(doc);
+      assertTrue(msg, scorer.matches(doc));
+    }
+    assertEquals(msg, expected, actual);
+
+    // advance to random targets, within and across blocks
+    scorer = vals.getRangeScorer(leaf.reader(), Float.toString(lower), Float.toString(upper), includeLower, includeUpper);
+    int doc = -1;
+    while (doc != DocIdSetIterator.NO_MORE_DOCS) {
+      int target = doc + 1;
+      if (random().nextBoolean()) {
+        target += random().nextInt(300);
+        doc = scorer.advance(target);
+      } else {
+        doc = scorer.nextDoc();
+      }
+      assertEquals(msg, nextMatch(expected, target), doc);
+    }
+  }
+
+  private static int nextMatch(List<Integer> expected, int target) {
+    for (int doc : expected) {
+      if (doc >= target) return doc;
+    }
+    return DocIdSetIterator.NO_MORE_DOCS;
+  }
+}
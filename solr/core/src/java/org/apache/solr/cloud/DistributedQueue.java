@@ -18,23 +18,38 @@
 
 package org.apache.solr.cloud;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.solr.common.cloud.SolrZkClient;
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A distributed queue from zk recipes.
+ * <p>
+ * The ordered children of the queue are cached: they are listed again once
+ * the known ones are consumed and the watcher set by the last listing fired,
+ * and whenever the cache may be stale: after a session event, after a failed
+ * request, or when a cached element was removed by another consumer.  The batch
+ * methods send their requests asynchronously, so that a batch costs about a
+ * single round trip to ZooKeeper.  Their callbacks are delivered by the event
+ * thread of the client, so they must not be called while holding a lock which
+ * a watcher of the same client may need.
  */
 public class DistributedQueue {
   private static final Logger LOG = LoggerFactory
@@ -46,6 +61,12 @@ public class DistributedQueue {
   private List<ACL> acl = ZooDefs.Ids.OPEN_ACL_UNSAFE;
   
   private final String prefix = "qn-";
+
+  // the children as last listed, by id, minus the ones consumed since
+  private TreeMap<Long,String> knownChildren = new TreeMap<Long,String>();
+
+  // the watcher set by the last listing, null before the first one
+  private ChildWatcher childWatcher;
   
   public DistributedQueue(SolrZkClient zookeeper, String dir, List<ACL> acl) {
     this.dir = dir;
@@ -69,10 +90,16 @@ public class DistributedQueue {
     TreeMap<Long,String> orderedChildren = new TreeMap<Long,String>();
     
     List<String> childNames = null;
-    try {
-      childNames = zookeeper.getChildren(dir, watcher, true);
-    } catch (KeeperException.NoNodeException e) {
-      throw e;
+    while (childNames == null) {
+      try {
+        childNames = zookeeper.getChildren(dir, watcher, true);
+      } catch (KeeperException.NoNodeException e) {
+        try {
+          zookeeper.create(dir, new byte[0], acl, CreateMode.PERSISTENT, true);
+        } catch (KeeperException.NodeExistsException ne) {
+          // someone created it
+        }
+      }
     }
     
     for (String childName : childNames) {
@@ -93,127 +120,160 @@ public class DistributedQueue {
     
     return orderedChildren;
   }
-  
+
   /**
-   * Return the head of the queue without modifying the queue.
+   * Returns the known children, listing them again if they were all consumed
+   * and the queue changed since the last listing.
+   */
+  private TreeMap<Long,String> knownChildren() throws KeeperException,
+      InterruptedException {
+    if (childWatcher == null || childWatcher.sessionEvent()
+        || (knownChildren.isEmpty() && childWatcher.fired())) {
+      ChildWatcher watcher = new ChildWatcher();
+      knownChildren = orderedChildren(watcher);
+      childWatcher = watcher;
+    }
+    return knownChildren;
+  }
+
+  /**
+   * Forgets the known children, so that they are listed again.
+   */
+  private void invalidate() {
+    knownChildren.clear();
+    childWatcher = null;
+  }
+
+  /**
+   * Reads the head of the queue, listing the children again if the known head
+   * was removed by another consumer.
    * 
-   * @return the data at the head of the queue.
+   * @param remove whether to remove the head
+   * @return the data of the head, or null if the queue is empty
    */
-  public byte[] element() throws NoSuchElementException, KeeperException,
+  private byte[] head(boolean remove) throws KeeperException,
       InterruptedException {
-    TreeMap<Long,String> orderedChildren;
-    
-    // element, take, and remove follow the same pattern.
-    // We want to return the child node with the smallest sequence number.
-    // Since other clients are remove()ing and take()ing nodes concurrently,
-    // the child with the smallest sequence number in orderedChildren might be
-    // gone by the time we check.
-    // We don't call getChildren again until we have tried the rest of the nodes
-    // in sequence order.
     while (true) {
+      TreeMap<Long,String> children = knownChildren();
+      if (children.isEmpty()) return null;
+      Map.Entry<Long,String> head = children.firstEntry();
+      String path = dir + "/" + head.getValue();
       try {
-        orderedChildren = orderedChildren(null);
-      } catch (KeeperException.NoNodeException e) {
-        throw new NoSuchElementException();
-      }
-      if (orderedChildren.size() == 0) throw new NoSuchElementException();
-      
-      for (String headNode : orderedChildren.values()) {
-        if (headNode != null) {
-          try {
-            return zookeeper.getData(dir + "/" + headNode, null, null, true);
-          } catch (KeeperException.NoNodeException e) {
-            // Another client removed the node first, try next
-          }
+        byte[] data = zookeeper.getData(path, null, null, true);
+        if (remove) {
+          zookeeper.delete(path, -1, true);
+          children.remove(head.getKey());
         }
+        return data;
+      } catch (KeeperException.NoNodeException e) {
+        // Another client removed the node first, the others may be gone too
+        invalidate();
+      } catch (KeeperException e) {
+        invalidate();
+        throw e;
       }
     }
   }
   
+  /**
+   * Return the head of the queue without modifying the queue.
+   * 
+   * @return the data at the head of the queue.
+   */
+  public synchronized byte[] element() throws NoSuchElementException,
+      KeeperException, InterruptedException {
+    byte[] data = head(false);
+    if (data == null) throw new NoSuchElementException();
+    return data;
+  }
+  
   /**
    * Attempts to remove the head of the queue and return it.
    * 
    * @return The former head of the queue
    */
-  public byte[] remove() throws NoSuchElementException, KeeperException,
-      InterruptedException {
-    TreeMap<Long,String> orderedChildren;
-    // Same as for element. Should refactor this.
-    while (true) {
-      try {
-        orderedChildren = orderedChildren(null);
-      } catch (KeeperException.NoNodeException e) {
-        throw new NoSuchElementException();
-      }
-      if (orderedChildren.size() == 0) throw new NoSuchElementException();
-      
-      for (String headNode : orderedChildren.values()) {
-        String path = dir + "/" + headNode;
-        try {
-          byte[] data = zookeeper.getData(path, null, null, true);
-          zookeeper.delete(path, -1, true);
-          return data;
-        } catch (KeeperException.NoNodeException e) {
-          // Another client deleted the node first.
-        }
-      }
-      
-    }
+  public synchronized byte[] remove() throws NoSuchElementException,
+      KeeperException, InterruptedException {
+    byte[] data = head(true);
+    if (data == null) throw new NoSuchElementException();
+    return data;
   }
   
-  private class LatchChildWatcher implements Watcher {
+  private class ChildWatcher implements Watcher {
     
     CountDownLatch latch;
+
+    // set by the event thread when the connection state changed
+    volatile boolean sessionEvent;
     
-    public LatchChildWatcher() {
+    public ChildWatcher() {
       latch = new CountDownLatch(1);
     }
     
     public void process(WatchedEvent event) {
       LOG.debug("Watcher fired on path: " + event.getPath() + " state: "
           + event.getState() + " type " + event.getType());
+      if (event.getType() == Watcher.Event.EventType.None) {
+        sessionEvent = true;
+      }
       latch.countDown();
     }
     
     public void await() throws InterruptedException {
       latch.await();
     }
+
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+      return latch.await(timeout, unit);
+    }
+
+    public boolean fired() {
+      return latch.getCount() == 0;
+    }
+
+    public boolean sessionEvent() {
+      return sessionEvent;
+    }
   }
-  
+
   /**
-   * Removes the head of the queue and returns it, blocks until it succeeds.
+   * Reads, and optionally removes, the head of the queue, waiting for an element
+   * to be added if the queue is empty.
    * 
-   * @return The former head of the queue
+   * @param wait how long to wait in ms, negative to wait until an element is added
+   * @return the data of the head, or null if the queue is still empty after wait ms
    */
-  public byte[] take() throws KeeperException, InterruptedException {
-    TreeMap<Long,String> orderedChildren;
-    // Same as for element. Should refactor this.
+  private byte[] waitForHead(boolean remove, long wait) throws KeeperException,
+      InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
     while (true) {
-      LatchChildWatcher childWatcher = new LatchChildWatcher();
-      try {
-        orderedChildren = orderedChildren(childWatcher);
-      } catch (KeeperException.NoNodeException e) {
-        zookeeper.create(dir, new byte[0], acl, CreateMode.PERSISTENT, true);
-        continue;
-      }
-      if (orderedChildren.size() == 0) {
-        childWatcher.await();
-        continue;
+      ChildWatcher watcher;
+      synchronized (this) {
+        byte[] data = head(remove);
+        if (data != null) return data;
+        // the queue is empty, the last listing set this watcher
+        watcher = childWatcher;
       }
-      
-      for (String headNode : orderedChildren.values()) {
-        String path = dir + "/" + headNode;
-        try {
-          byte[] data = zookeeper.getData(path, null, null, true);
-          zookeeper.delete(path, -1, true);
-          return data;
-        } catch (KeeperException.NoNodeException e) {
-          // Another client deleted the node first.
+      if (wait < 0) {
+        watcher.await();
+      } else {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || !watcher.await(remaining, TimeUnit.NANOSECONDS)) {
+          return null;
         }
       }
     }
   }
   
+  /**
+   * Removes the head of the queue and returns it, blocks until it succeeds.
+   * 
+   * @return The former head of the queue
+   */
+  public byte[] take() throws KeeperException, InterruptedException {
+    return waitForHead(true, -1);
+  }
+  
   /**
    * Inserts data into queue.
    * 
@@ -234,9 +294,38 @@ public class DistributedQueue {
         }
       }
     }
+  }
 
-    
-    
+  /**
+   * Inserts several elements into the queue, in order.
+   */
+  public void offerBatch(List<byte[]> batch) throws KeeperException,
+      InterruptedException {
+    final int[] codes = new int[batch.size()];
+    final CountDownLatch done = new CountDownLatch(batch.size());
+    AsyncCallback.StringCallback callback = new AsyncCallback.StringCallback() {
+      @Override
+      public void processResult(int rc, String path, Object ctx, String name) {
+        codes[(Integer) ctx] = rc;
+        done.countDown();
+      }
+    };
+    // a session's requests are processed in order, so are the sequence numbers
+    for (int i = 0; i < codes.length; i++) {
+      zookeeper.getSolrZooKeeper().create(dir + "/" + prefix, batch.get(i), acl,
+          CreateMode.PERSISTENT_SEQUENTIAL, callback, i);
+    }
+    done.await();
+    for (int i = 0; i < codes.length; i++) {
+      if (codes[i] != KeeperException.Code.OK.intValue()) {
+        // the queue does not exist yet, or the connection was lost: add the
+        // rest one by one, the order is kept
+        for (int j = i; j < codes.length; j++) {
+          offer(batch.get(j));
+        }
+        return;
+      }
+    }
   }
   
   /**
@@ -245,12 +334,8 @@ public class DistributedQueue {
    * 
    * @return data at the first element of the queue, or null.
    */
-  public byte[] peek() throws KeeperException, InterruptedException {
-    try {
-      return element();
-    } catch (NoSuchElementException e) {
-      return null;
-    }
+  public synchronized byte[] peek() throws KeeperException, InterruptedException {
+    return head(false);
   }
   
   /**
@@ -263,28 +348,113 @@ public class DistributedQueue {
     if (!block) {
       return peek();
     }
-    
-    TreeMap<Long,String> orderedChildren;
-    while (true) {
-      LatchChildWatcher childWatcher = new LatchChildWatcher();
-      try {
-        orderedChildren = orderedChildren(childWatcher);
-      } catch (KeeperException.NoNodeException e) {
-        zookeeper.create(dir, new byte[0], acl, CreateMode.PERSISTENT, true);
-        continue;
+    return waitForHead(false, -1);
+  }
+
+  /**
+   * Returns the data at the first element of the queue, waiting up to wait ms
+   * for one to be added if the queue is empty.
+   * 
+   * @return data at the first element of the queue, or null.
+   */
+  public byte[] peek(long wait) throws KeeperException, InterruptedException {
+    return waitForHead(false, Math.max(0, wait));
+  }
+
+  /**
+   * Returns the data of up to max elements at the head of the queue, without
+   * removing them.  A consumer which is alone to consume the queue can then
+   * remove them with {@link #removeBatch(int)}.
+   * 
+   * @return the data of the elements, empty if the queue is empty
+   */
+  public synchronized List<byte[]> peekBatch(int max) throws KeeperException,
+      InterruptedException {
+    List<byte[]> batch = new ArrayList<byte[]>();
+    while (batch.isEmpty()) {
+      TreeMap<Long,String> children = knownChildren();
+      if (children.isEmpty()) break;
+
+      final List<Long> ids = new ArrayList<Long>(Math.min(max, children.size()));
+      for (Long id : children.keySet()) {
+        if (ids.size() == max) break;
+        ids.add(id);
+      }
+      final int[] codes = new int[ids.size()];
+      final byte[][] datas = new byte[ids.size()][];
+      final CountDownLatch done = new CountDownLatch(ids.size());
+      AsyncCallback.DataCallback callback = new AsyncCallback.DataCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+          int i = (Integer) ctx;
+          codes[i] = rc;
+          datas[i] = data;
+          done.countDown();
+        }
+      };
+      for (int i = 0; i < codes.length; i++) {
+        zookeeper.getSolrZooKeeper().getData(dir + "/" + children.get(ids.get(i)), false, callback, i);
       }
-      if (orderedChildren.size() == 0) {
-        childWatcher.await();
-        continue;
+      done.await();
+
+      for (int i = 0; i < codes.length; i++) {
+        if (codes[i] != KeeperException.Code.OK.intValue()) {
+          // Another client removed the node first, or the connection was
+          // lost: list the children again and read a new batch
+          invalidate();
+          batch.clear();
+          if (codes[i] != KeeperException.Code.NONODE.intValue()) {
+            // wait for the connection to come back
+            zookeeper.exists(dir, null, true);
+          }
+          break;
+        }
+        batch.add(datas[i]);
       }
-      
-      for (String headNode : orderedChildren.values()) {
-        String path = dir + "/" + headNode;
+    }
+    return batch;
+  }
+
+  /**
+   * Removes the first count elements of the queue, as returned by the last call
+   * to {@link #peekBatch(int)}.
+   */
+  public synchronized void removeBatch(int count) throws KeeperException,
+      InterruptedException {
+    if (count > knownChildren.size()) {
+      throw new IllegalStateException("Can not remove " + count + " elements, "
+          + knownChildren.size() + " were peeked");
+    }
+    final List<String> paths = new ArrayList<String>(count);
+    Iterator<String> it = knownChildren.values().iterator();
+    while (paths.size() < count) {
+      paths.add(dir + "/" + it.next());
+      it.remove();
+    }
+    final int[] codes = new int[count];
+    final CountDownLatch done = new CountDownLatch(count);
+    AsyncCallback.VoidCallback callback = new AsyncCallback.VoidCallback() {
+      @Override
+      public void processResult(int rc, String path, Object ctx) {
+        codes[(Integer) ctx] = rc;
+        done.countDown();
+      }
+    };
+    for (int i = 0; i < count; i++) {
+      zookeeper.getSolrZooKeeper().delete(paths.get(i), -1, callback, i);
+    }
+    done.await();
+    for (int i = 0; i < count; i++) {
+      if (codes[i] != KeeperException.Code.OK.intValue()
+          && codes[i] != KeeperException.Code.NONODE.intValue()) {
+        // the connection was lost, try again with retries
         try {
-          byte[] data = zookeeper.getData(path, null, null, true);
-          return data;
+          zookeeper.delete(paths.get(i), -1, true);
         } catch (KeeperException.NoNodeException e) {
-          // Another client deleted the node first.
+          // removed meanwhile
+        } catch (KeeperException e) {
+          invalidate();
+          throw e;
         }
       }
     }
@@ -296,12 +466,8 @@ public class DistributedQueue {
    * 
    * @return Head of the queue or null.
    */
-  public byte[] poll() throws KeeperException, InterruptedException {
-    try {
-      return remove();
-    } catch (NoSuchElementException e) {
-      return null;
-    }
+  public synchronized byte[] poll() throws KeeperException, InterruptedException {
+    return head(true);
   }
   
 }
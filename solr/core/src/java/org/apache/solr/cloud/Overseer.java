@@ -17,12 +17,14 @@ package org.apache.solr.cloud;
  * the License.
  */
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.noggit.JSONUtil;
 import org.apache.solr.common.SolrException;
@@ -39,6 +41,7 @@ import org.apache.solr.common.cloud.ZooKeeperException;
 import org.apache.solr.handler.component.ShardHandler;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,11 +51,16 @@ import org.slf4j.LoggerFactory;
 public class Overseer {
   public static final String QUEUE_OPERATION = "operation";
 
-  private static final int STATE_UPDATE_DELAY = 500;  // delay between cloud state updates
+  private static final int STATE_UPDATE_DELAY = 500;  // how long to wait for messages before checking leadership again
+
+  private static final int STATE_UPDATE_BATCH_WAIT = 10;  // how long a batch waits for more messages, in ms
+
+  private static final int STATE_UPDATE_MAX_BATCH = 10000;  // max number of messages applied before writing the state
 
   private static Logger log = LoggerFactory.getLogger(Overseer.class);
   
-  private class ClusterStateUpdater implements Runnable, ClosableThread {
+  // package private for tests
+  class ClusterStateUpdater implements Runnable, ClosableThread {
     
     private static final String DELETECORE = "deletecore";
     private final ZkStateReader reader;
@@ -64,6 +72,9 @@ public class Overseer {
     //If Overseer dies while extracting the main queue a new overseer will start from this queue 
     private final DistributedQueue workQueue;
     private volatile boolean isClosed;
+    // what we last wrote to clusterstate.json, as parsed json, and the resulting zk version
+    private Object lastState;
+    private int lastStateVersion = -1;
     
     public ClusterStateUpdater(final ZkStateReader reader, final String myId) {
       this.zkClient = reader.getZkClient();
@@ -117,52 +128,96 @@ public class Overseer {
       
       log.info("Starting to work on the main queue");
       while (!this.isClosed && amILeader()) {
-        synchronized (reader.getUpdateLock()) {
-          try {
-            byte[] head = stateUpdateQueue.peek();
-            
-            if (head != null) {
-              reader.updateClusterState(true);
-              ClusterState clusterState = reader.getClusterState();
-              
-              while (head != null) {
-                final ZkNodeProps message = ZkNodeProps.load(head);
-                final String operation = message.getStr(QUEUE_OPERATION);
-                
-                clusterState = processMessage(clusterState, message, operation);
-                workQueue.offer(head);
-                stateUpdateQueue.remove();
-                head = stateUpdateQueue.peek();
-              }
-              zkClient.setData(ZkStateReader.CLUSTER_STATE,
-                  ZkStateReader.toJSON(clusterState), true);
+        try {
+          // wait for the first message of a batch
+          if (stateUpdateQueue.peek(STATE_UPDATE_DELAY) == null) continue;
+
+          // move messages to the work queue until the queue stays empty for a little while.
+          // The batch operations wait for callbacks delivered by the zk event thread, so this
+          // must not hold the update lock which the cluster state watcher needs.
+          List<ZkNodeProps> batch = new ArrayList<ZkNodeProps>();
+          long batchEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STATE_UPDATE_BATCH_WAIT);
+          while (batch.size() < STATE_UPDATE_MAX_BATCH) {
+            List<byte[]> items = stateUpdateQueue.peekBatch(STATE_UPDATE_MAX_BATCH - batch.size());
+            if (items.isEmpty()) {
+              long wait = TimeUnit.NANOSECONDS.toMillis(batchEnd - System.nanoTime());
+              if (wait <= 0 || stateUpdateQueue.peek(wait) == null) break;
+              continue;
             }
-            // clean work queue
-            while (workQueue.poll() != null);
-            
-          } catch (KeeperException e) {
-            if (e.code() == KeeperException.Code.SESSIONEXPIRED
-                || e.code() == KeeperException.Code.CONNECTIONLOSS) {
-              log.warn("Overseer cannot talk to ZK");
-              return;
+            for (byte[] item : items) {
+              batch.add(ZkNodeProps.load(item));
             }
-            SolrException.log(log, "", e);
-            throw new ZooKeeperException(SolrException.ErrorCode.SERVER_ERROR,
-                "", e);
-          } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            workQueue.offerBatch(items);
+            stateUpdateQueue.removeBatch(items.size());
+          }
+
+          boolean written;
+          synchronized (reader.getUpdateLock()) {
+            // apply the messages and write the state once; the state is written only if
+            // nobody changed it since we read it, otherwise the batch is applied again on
+            // top of the new state
+            do {
+              reader.updateClusterState(true);
+              written = writeClusterState(reader.getClusterState(), batch);
+            } while (!written && amILeader());
+          }
+          if (!written) {
+            // we are no longer the leader, the next Overseer replays the work queue
+            break;
+          }
+
+          // clean work queue
+          List<byte[]> done;
+          while (!(done = workQueue.peekBatch(STATE_UPDATE_MAX_BATCH)).isEmpty()) {
+            workQueue.removeBatch(done.size());
+          }
+        } catch (KeeperException e) {
+          if (e.code() == KeeperException.Code.SESSIONEXPIRED
+              || e.code() == KeeperException.Code.CONNECTIONLOSS) {
+            log.warn("Overseer cannot talk to ZK");
             return;
           }
-        }
-        
-        try {
-          Thread.sleep(STATE_UPDATE_DELAY);
+          SolrException.log(log, "", e);
+          throw new ZooKeeperException(SolrException.ErrorCode.SERVER_ERROR,
+              "", e);
         } catch (InterruptedException e) {
           Thread.currentThread().interrupt();
+          return;
         }
       }
     }
 
+    /**
+     * Applies a batch of messages to the cluster state and writes it, unless it
+     * did not change, so that the watchers are not woken up for nothing.
+     * 
+     * @return false if clusterstate.json was modified since the state was read
+     */
+    boolean writeClusterState(ClusterState clusterState,
+        List<ZkNodeProps> batch) throws KeeperException, InterruptedException {
+      Integer version = clusterState.getZkClusterStateVersion();
+      for (ZkNodeProps message : batch) {
+        clusterState = processMessage(clusterState, message, message.getStr(QUEUE_OPERATION));
+      }
+      byte[] data = ZkStateReader.toJSON(clusterState);
+      // the order of the json maps may differ, compare them as maps
+      Object state = ZkStateReader.fromJSON(data);
+      if (version != null && version == lastStateVersion && state.equals(lastState)) {
+        return true;
+      }
+      try {
+        Stat stat = zkClient.setData(ZkStateReader.CLUSTER_STATE, data,
+            version == null ? -1 : version, true);
+        lastState = state;
+        lastStateVersion = stat.getVersion();
+      } catch (KeeperException.BadVersionException e) {
+        log.warn("The cluster state was changed by somebody else, applying " + batch.size() + " messages again");
+        return false;
+      }
+      log.info("Applied " + batch.size() + " messages to the cluster state");
+      return true;
+    }
+
     private ClusterState processMessage(ClusterState clusterState,
         final ZkNodeProps message, final String operation) {
       if ("state".equals(operation)) {
@@ -0,0 +1,434 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * <p/> Checksums of the fixed size blocks of a file, used for content addressed replication. Every block has a weak
+ * rolling checksum (as used by rsync) and a strong MD5 digest. A slave which holds an older file with similar content
+ * (the basis) scans it with the rolling checksum, at every byte offset, to find the blocks it already has and fetches
+ * only the remaining ones from the master. </p>
+ *
+ * <p/> The checksums are transferred as a single byte[] with 20 bytes per block: the weak checksum as a big endian int
+ * followed by the 16 bytes of the MD5 digest. </p>
+ *
+ * @see SnapPuller
+ */
+public class BlockChecksums {
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * The largest block size a master accepts, every block is read in memory
+   */
+  public static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+  private static final int DIGEST_LEN = 16;
+
+  private static final int ENTRY_LEN = 4 + DIGEST_LEN;
+
+  private final long fileSize;
+
+  private final int blockSize;
+
+  private final byte[] checksums;
+
+  public BlockChecksums(long fileSize, int blockSize, byte[] checksums) {
+    if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+      throw new IllegalArgumentException("Invalid block size: " + blockSize);
+    }
+    this.fileSize = fileSize;
+    this.blockSize = blockSize;
+    this.checksums = checksums;
+    if (checksums.length != ENTRY_LEN * getNumBlocks()) {
+      throw new IllegalArgumentException("Expected checksums of " + getNumBlocks() + " blocks, got "
+          + (checksums.length / ENTRY_LEN));
+    }
+  }
+
+  /**
+   * Computes the checksums of every block of a file, the last block may be shorter than blockSize.
+   */
+  public static BlockChecksums compute(File file, int blockSize) throws IOException {
+    if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+      throw new IllegalArgumentException("Invalid block size: " + blockSize);
+    }
+    long fileSize = file.length();
+    int numBlocks = getNumBlocks(fileSize, blockSize);
+    byte[] checksums = new byte[numBlocks * ENTRY_LEN];
+    byte[] block = new byte[blockSize];
+    MessageDigest md5 = newDigest();
+    InputStream in = new FileInputStream(file);
+    try {
+      for (int i = 0; i < numBlocks; i++) {
+        int len = (int) Math.min(blockSize, fileSize - (long) i * blockSize);
+        if (!readFully(in, block, len)) {
+          throw new IOException("File " + file + " was truncated while computing its checksums");
+        }
+        RollingChecksum rolling = new RollingChecksum(block, 0, len);
+        md5.reset();
+        md5.update(block, 0, len);
+        writeInt(checksums, i * ENTRY_LEN, rolling.getValue());
+        System.arraycopy(md5.digest(), 0, checksums, i * ENTRY_LEN + 4, DIGEST_LEN);
+      }
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+    return new BlockChecksums(fileSize, blockSize, checksums);
+  }
+
+  /**
+   * @return the hex encoded MD5 digest of the whole file
+   */
+  public static String digest(File file) throws IOException {
+    MessageDigest md5 = newDigest();
+    byte[] buf = new byte[1024 * 1024];
+    InputStream in = new FileInputStream(file);
+    try {
+      int read;
+      while ((read = in.read(buf)) >= 0) {
+        md5.update(buf, 0, read);
+      }
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+    byte[] digest = md5.digest();
+    StringBuilder sb = new StringBuilder(2 * digest.length);
+    for (byte b : digest) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  public long getFileSize() {
+    return fileSize;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  public int getNumBlocks() {
+    return getNumBlocks(fileSize, blockSize);
+  }
+
+  public byte[] getBytes() {
+    return checksums;
+  }
+
+  /**
+   * Finds the blocks of this file which are also present, at any offset, in the basis file. Only full blocks are
+   * matched, the last block of the file is always reported as missing if it is shorter than blockSize.
+   *
+   * @return for every block, the offset of the same content in the basis file or -1 if the basis does not contain it
+   */
+  public long[] findMatches(File basis) throws IOException {
+    long[] matches = new long[getNumBlocks()];
+    Arrays.fill(matches, -1L);
+    int fullBlocks = (int) (fileSize / blockSize);
+    if (fullBlocks == 0 || basis.length() < blockSize) return matches;
+
+    // the blocks grouped by a hash of their weak checksum, as in rsync: the blocks of bucket b are
+    // bucketBlocks[bucketStart[b]] to bucketBlocks[bucketStart[b + 1] - 1]
+    int mask = Integer.highestOneBit(fullBlocks) * 2 - 1;
+    int[] weaks = new int[fullBlocks];
+    int[] bucketStart = new int[mask + 2];
+    for (int i = 0; i < fullBlocks; i++) {
+      weaks[i] = readInt(checksums, i * ENTRY_LEN);
+      bucketStart[bucket(weaks[i], mask) + 1]++;
+    }
+    for (int b = 0; b <= mask; b++) {
+      bucketStart[b + 1] += bucketStart[b];
+    }
+    int[] bucketBlocks = new int[fullBlocks];
+    int[] bucketEnd = Arrays.copyOf(bucketStart, mask + 1);
+    for (int i = 0; i < fullBlocks; i++) {
+      bucketBlocks[bucketEnd[bucket(weaks[i], mask)]++] = i;
+    }
+
+    MessageDigest md5 = newDigest();
+    byte[] window = new byte[blockSize];
+    BasisReader in = new BasisReader(new FileInputStream(basis));
+    try {
+      if (!in.readFully(window, blockSize)) return matches;
+      RollingChecksum rolling = new RollingChecksum(window, 0, blockSize);
+      // the window is a circular buffer, head is the offset of its first byte
+      int head = 0;
+      long pos = 0;
+      while (true) {
+        int weak = rolling.getValue();
+        int b = bucket(weak, mask);
+        boolean matched = false;
+        byte[] strong = null;
+        for (int k = bucketStart[b]; k < bucketStart[b + 1]; k++) {
+          int block = bucketBlocks[k];
+          if (weaks[block] != weak || matches[block] != -1) continue;
+          if (strong == null) {
+            md5.reset();
+            md5.update(window, head, blockSize - head);
+            md5.update(window, 0, head);
+            strong = md5.digest();
+          }
+          if (digestEquals(block, strong)) {
+            matches[block] = pos;
+            matched = true;
+          }
+        }
+        if (matched) {
+          // continue right after the matched block
+          if (!in.readFully(window, blockSize)) break;
+          rolling = new RollingChecksum(window, 0, blockSize);
+          head = 0;
+          pos += blockSize;
+          continue;
+        }
+        int next = in.read();
+        if (next < 0) break;
+        rolling.roll(window[head], (byte) next);
+        window[head] = (byte) next;
+        head = head + 1 == blockSize ? 0 : head + 1;
+        pos++;
+      }
+    } finally {
+      IOUtils.closeQuietly(in.in);
+    }
+    return matches;
+  }
+
+  private static int bucket(int weak, int mask) {
+    return (weak ^ (weak >>> 16)) & mask;
+  }
+
+  private boolean digestEquals(int block, byte[] digest) {
+    int offset = block * ENTRY_LEN + 4;
+    for (int i = 0; i < DIGEST_LEN; i++) {
+      if (checksums[offset + i] != digest[i]) return false;
+    }
+    return true;
+  }
+
+  private static int getNumBlocks(long fileSize, int blockSize) {
+    return (int) ((fileSize + blockSize - 1) / blockSize);
+  }
+
+  private static boolean readFully(InputStream in, byte[] buf, int len) throws IOException {
+    int off = 0;
+    while (off < len) {
+      int read = in.read(buf, off, len - off);
+      if (read < 0) return false;
+      off += read;
+    }
+    return true;
+  }
+
+  private static void writeInt(byte[] b, int off, int v) {
+    b[off] = (byte) (v >>> 24);
+    b[off + 1] = (byte) (v >>> 16);
+    b[off + 2] = (byte) (v >>> 8);
+    b[off + 3] = (byte) v;
+  }
+
+  private static int readInt(byte[] b, int off) {
+    return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+        | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Reads the basis file through a buffer, a byte at a time while the window rolls or a block at a time after a match.
+   */
+  private static final class BasisReader {
+    final InputStream in;
+
+    private final byte[] buf = new byte[64 * 1024];
+
+    private int pos, len;
+
+    BasisReader(InputStream in) {
+      this.in = in;
+    }
+
+    int read() throws IOException {
+      if (pos == len && !fill()) return -1;
+      return buf[pos++] & 0xff;
+    }
+
+    boolean readFully(byte[] b, int n) throws IOException {
+      int off = 0;
+      while (off < n) {
+        if (pos == len && !fill()) return false;
+        int count = Math.min(n - off, len - pos);
+        System.arraycopy(buf, pos, b, off, count);
+        pos += count;
+        off += count;
+      }
+      return true;
+    }
+
+    private boolean fill() throws IOException {
+      int read;
+      do {
+        read = in.read(buf);
+      } while (read == 0);
+      pos = 0;
+      len = Math.max(read, 0);
+      return read > 0;
+    }
+  }
+
+  /**
+   * The rsync weak checksum of a window of bytes. It can be moved forward one byte at a time in constant time.
+   */
+  static final class RollingChecksum {
+    private final int len;
+
+    private int a, b;
+
+    RollingChecksum(byte[] buf, int off, int len) {
+      this.len = len;
+      for (int i = 0; i < len; i++) {
+        int x = buf[off + i] & 0xff;
+        a += x;
+        b += (len - i) * x;
+      }
+      a &= 0xffff;
+      b &= 0xffff;
+    }
+
+    /**
+     * Drops the first byte of the window and appends a new one
+     */
+    void roll(byte out, byte in) {
+      a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+      b = (b - len * (out & 0xff) + a) & 0xffff;
+    }
+
+    int getValue() {
+      return a | (b << 16);
+    }
+  }
+
+  /**
+   * Caches the digests of immutable index files. An entry is recomputed if the size or the lastModified time of the
+   * file changes.
+   */
+  static class DigestCache {
+    private final Map<String, Entry> cache;
+
+    /**
+     * The files whose digest is being computed in the background
+     */
+    private final Set<String> pending = new HashSet<String>();
+
+    DigestCache(final int maxSize) {
+      cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > maxSize;
+        }
+      };
+    }
+
+    String getDigest(File file) throws IOException {
+      String key = file.getAbsolutePath();
+      long lastModified = file.lastModified();
+      long size = file.length();
+      synchronized (cache) {
+        Entry entry = cache.get(key);
+        if (entry != null && entry.lastModified == lastModified && entry.size == size) {
+          return entry.digest;
+        }
+      }
+      String digest = digest(file);
+      synchronized (cache) {
+        cache.put(key, new Entry(lastModified, size, digest));
+      }
+      return digest;
+    }
+
+    /**
+     * Returns the digest of a file if it is cached, else computes it with the executor.
+     *
+     * @return the digest, or null if it is not known yet
+     */
+    String getDigest(final File file, Executor executor) {
+      final String key = file.getAbsolutePath();
+      synchronized (cache) {
+        Entry entry = cache.get(key);
+        if (entry != null && entry.lastModified == file.lastModified() && entry.size == file.length()) {
+          return entry.digest;
+        }
+        if (!pending.add(key)) return null;
+      }
+      try {
+        executor.execute(new Runnable() {
+          public void run() {
+            try {
+              getDigest(file);
+            } catch (IOException e) {
+              // the file was deleted, its digest will not be asked for anymore
+            } finally {
+              synchronized (cache) {
+                pending.remove(key);
+              }
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        synchronized (cache) {
+          pending.remove(key);
+        }
+      }
+      return null;
+    }
+
+    private static class Entry {
+      final long lastModified;
+
+      final long size;
+
+      final String digest;
+
+      Entry(long lastModified, long size, String digest) {
+        this.lastModified = lastModified;
+        this.size = size;
+        this.digest = digest;
+      }
+    }
+  }
+}
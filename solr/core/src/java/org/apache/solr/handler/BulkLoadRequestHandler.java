@@ -0,0 +1,382 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.DirectoryFactory;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.loader.CSVBulkLoader;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.MergeIndexesCommand;
+import org.apache.solr.update.SolrIndexConfig;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorChain;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p/> Offline bulk loading of CSV content streams, meant for the initial load of a large index. Every content stream
+ * (e.g. every stream.file or stream.vfs parameter) is a partition of the input. The partitions are loaded in parallel,
+ * each by its own {@link IndexWriter} into a private directory, and the resulting segments are then attached to the
+ * core's index with a single addIndexes. </p>
+ *
+ * <p/> This skips the update handler: no versions are assigned, nothing is written to the update log and documents are
+ * not checked against the existing index, so the uniqueKeys of the input must be new. All the parameters of the CSV
+ * loader apply, in addition to: </p>
+ * <ul>
+ * <li>threads: the number of partitions loaded at the same time, defaults to the number of processors</li>
+ * <li>ramBufferSizeMB: the RAM buffer of every partition writer, defaults to the one of the index config</li>
+ * <li>bulkDir: where the partitions are built, defaults to bulk/ in the data dir</li>
+ * <li>progressInterval: seconds between progress messages in the log, defaults to 30</li>
+ * <li>commit: whether to commit once the partitions are attached, defaults to true</li>
+ * </ul>
+ *
+ * <p/> A partition that was loaded completely is not loaded again if a failed request is repeated with the same
+ * streams, only the failed ones are. The partition directories are removed once they are attached. </p>
+ */
+public class BulkLoadRequestHandler extends RequestHandlerBase {
+  private static final Logger LOG = LoggerFactory.getLogger(BulkLoadRequestHandler.class.getName());
+
+  public static final String THREADS = "threads";
+
+  public static final String RAM_BUFFER_SIZE_MB = "ramBufferSizeMB";
+
+  public static final String BULK_DIR = "bulkDir";
+
+  public static final String PROGRESS_INTERVAL = "progressInterval";
+
+  // commit user data of a completely loaded partition
+  static final String SOURCE_KEY = "bulkLoad.source";
+
+  static final String ROWS_KEY = "bulkLoad.rows";
+
+  private final AtomicBoolean running = new AtomicBoolean();
+
+  @Override
+  public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+    Iterable<ContentStream> streams = req.getContentStreams();
+    if (streams == null) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "missing content stream");
+    }
+    if (!running.compareAndSet(false, true)) {
+      throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "A bulk load is already running");
+    }
+    try {
+      load(req, rsp, streams);
+    } finally {
+      running.set(false);
+    }
+  }
+
+  private void load(SolrQueryRequest req, SolrQueryResponse rsp, Iterable<ContentStream> streams) throws Exception {
+    SolrParams params = req.getParams();
+    SolrCore core = req.getCore();
+    String bulkDir = params.get(BULK_DIR, core.getDataDir() + "bulk");
+
+    final List<Partition> partitions = new ArrayList<Partition>();
+    for (ContentStream stream : streams) {
+      int num = partitions.size();
+      String source = stream.getName() != null ? stream.getName() : stream.getSourceInfo() + "-" + num;
+      partitions.add(new Partition(stream, source, new File(bulkDir, "partition-" + num).getPath()));
+    }
+
+    int threads = params.getInt(THREADS, Runtime.getRuntime().availableProcessors());
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, partitions.size())),
+        new DefaultSolrThreadFactory("bulkLoad"));
+    ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(
+        new DefaultSolrThreadFactory("bulkLoadProgress"));
+    final long start = System.currentTimeMillis();
+    int progressInterval = params.getInt(PROGRESS_INTERVAL, 30);
+    if (progressInterval > 0) {
+      progress.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          logProgress(partitions, start);
+        }
+      }, progressInterval, progressInterval, TimeUnit.SECONDS);
+    }
+
+    List<Partition> failed = new ArrayList<Partition>();
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (final Partition partition : partitions) {
+        futures.add(executor.submit(new LoadTask(req, partition)));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          futures.get(i).get();
+        } catch (Exception e) {
+          LOG.error("Bulk load of " + partitions.get(i).source + " failed", e);
+          failed.add(partitions.get(i));
+        }
+      }
+    } finally {
+      progress.shutdownNow();
+      executor.shutdownNow();
+    }
+
+    NamedList<Object> result = new SimpleOrderedMap<Object>();
+    List<NamedList<Object>> partitionResults = new ArrayList<NamedList<Object>>();
+    long totalRows = 0;
+    for (Partition partition : partitions) {
+      partitionResults.add(partition.toNamedList());
+      totalRows += partition.rows.get();
+    }
+    result.add("partitions", partitionResults);
+    long elapsed = System.currentTimeMillis() - start;
+    result.add("rows", totalRows);
+    result.add("time", elapsed);
+    result.add("rowsPerSec", rowsPerSec(totalRows, elapsed));
+    rsp.add("bulkLoad", result);
+
+    if (!failed.isEmpty()) {
+      releaseAll(core, partitions, false);
+      StringBuilder sb = new StringBuilder("Bulk load failed for partitions:");
+      for (Partition partition : failed) {
+        sb.append(' ').append(partition.source);
+      }
+      sb.append(". Repeat the request to load them, the other partitions are kept.");
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, sb.toString());
+    }
+
+    attach(req, rsp, partitions);
+    LOG.info("Bulk loaded " + totalRows + " rows from " + partitions.size() + " partitions in " + elapsed + "ms ("
+        + rowsPerSec(totalRows, elapsed) + " rows/sec)");
+  }
+
+  /**
+   * Attaches the segments of all partitions to the index of the core, through the update chain.
+   */
+  private void attach(SolrQueryRequest req, SolrQueryResponse rsp, List<Partition> partitions) throws IOException {
+    SolrParams params = req.getParams();
+    Directory[] dirs = new Directory[partitions.size()];
+    for (int i = 0; i < dirs.length; i++) {
+      dirs[i] = partitions.get(i).dir;
+    }
+    UpdateRequestProcessorChain processorChain =
+        req.getCore().getUpdateProcessingChain(params.get(UpdateParams.UPDATE_CHAIN));
+    UpdateRequestProcessor processor = processorChain.createProcessor(req, rsp);
+    boolean success = false;
+    try {
+      processor.processMergeIndexes(new MergeIndexesCommand(dirs, req));
+      if (params.getBool(UpdateParams.COMMIT, true)) {
+        RequestHandlerUtils.handleCommit(req, processor, params, true);
+      }
+      success = true;
+    } finally {
+      processor.finish();
+      releaseAll(req.getCore(), partitions, success);
+    }
+  }
+
+  private void releaseAll(SolrCore core, List<Partition> partitions, boolean remove) {
+    for (Partition partition : partitions) {
+      try {
+        partition.release(core.getDirectoryFactory(), remove);
+      } catch (IOException e) {
+        LOG.warn("Error releasing the directory of bulk load partition " + partition.source, e);
+      }
+    }
+  }
+
+  private void logProgress(List<Partition> partitions, long start) {
+    long rows = 0;
+    int done = 0;
+    for (Partition partition : partitions) {
+      rows += partition.rows.get();
+      if (partition.status != null) done++;
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    LOG.info("Bulk load progress: rows=" + rows + " rowsPerSec=" + rowsPerSec(rows, elapsed)
+        + " partitionsDone=" + done + "/" + partitions.size());
+  }
+
+  private static long rowsPerSec(long rows, long elapsedMillis) {
+    return elapsedMillis > 0 ? rows * 1000 / elapsedMillis : rows;
+  }
+
+  /**
+   * Loads one partition into its directory, unless a previous request loaded it completely already.
+   */
+  private static class LoadTask implements Runnable {
+    private final SolrQueryRequest req;
+
+    private final Partition partition;
+
+    LoadTask(SolrQueryRequest req, Partition partition) {
+      this.req = req;
+      this.partition = partition;
+    }
+
+    @Override
+    public void run() {
+      SolrCore core = req.getCore();
+      long start = System.currentTimeMillis();
+      try {
+        SolrIndexConfig indexConfig = core.getSolrConfig().indexConfig;
+        partition.dir = core.getDirectoryFactory().get(partition.path, indexConfig.lockType);
+
+        Map<String, String> loaded = getCommitData(partition.dir);
+        if (partition.source.equals(loaded.get(SOURCE_KEY))) {
+          partition.rows.set(Long.parseLong(loaded.get(ROWS_KEY)));
+          partition.status = "resumed";
+          LOG.info("Bulk load partition " + partition.source + " was loaded already, " + partition.rows + " rows");
+          return;
+        }
+
+        // start over, removing whatever an earlier failed attempt left behind
+        for (String file : partition.dir.listAll()) {
+          partition.dir.deleteFile(file);
+        }
+        IndexWriterConfig iwc = indexConfig.toIndexWriterConfig(core.getSchema())
+            .setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+            .setCodec(core.getCodec());
+        double ramBufferSizeMB = req.getParams().getDouble(RAM_BUFFER_SIZE_MB, -1);
+        if (ramBufferSizeMB > 0) {
+          iwc.setRAMBufferSizeMB(ramBufferSizeMB);
+        }
+        IndexWriter writer = new IndexWriter(partition.dir, iwc);
+        boolean success = false;
+        try {
+          new CSVBulkLoader(req, writer, partition.rows).load(req, null, partition.stream, null);
+          // the commit data marks the partition as complete
+          Map<String, String> commitData = new HashMap<String, String>();
+          commitData.put(SOURCE_KEY, partition.source);
+          commitData.put(ROWS_KEY, partition.rows.toString());
+          writer.commit(commitData);
+          success = true;
+        } finally {
+          if (success) {
+            writer.close();
+          } else {
+            writer.rollback();
+          }
+        }
+        partition.status = "loaded";
+      } catch (Exception e) {
+        // drop the partial partition, it is loaded from scratch when the request is repeated
+        try {
+          partition.release(core.getDirectoryFactory(), true);
+        } catch (IOException e1) {
+          LOG.warn("Error removing the directory of bulk load partition " + partition.source, e1);
+        }
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+            "Error loading " + partition.source + ": " + e.getMessage(), e);
+      } finally {
+        partition.time = System.currentTimeMillis() - start;
+      }
+    }
+
+    private static Map<String, String> getCommitData(Directory dir) throws IOException {
+      if (!DirectoryReader.indexExists(dir)) {
+        return new HashMap<String, String>();
+      }
+      List<IndexCommit> commits = DirectoryReader.listCommits(dir);
+      return commits.get(commits.size() - 1).getUserData();
+    }
+  }
+
+  private static class Partition {
+    final ContentStream stream;
+
+    final String source;
+
+    final String path;
+
+    final AtomicLong rows = new AtomicLong();
+
+    volatile Directory dir;
+
+    volatile String status;
+
+    volatile long time;
+
+    Partition(ContentStream stream, String source, String path) {
+      this.stream = stream;
+      this.source = source;
+      this.path = path;
+    }
+
+    void release(DirectoryFactory directoryFactory, boolean remove) throws IOException {
+      if (dir == null) return;
+      if (remove) {
+        for (String file : dir.listAll()) {
+          dir.deleteFile(file);
+        }
+        directoryFactory.doneWithDirectory(dir);
+      }
+      directoryFactory.release(dir);
+      dir = null;
+      if (remove) {
+        File file = new File(path);
+        if (file.exists()) {
+          FileUtils.deleteQuietly(file);
+        }
+      }
+    }
+
+    NamedList<Object> toNamedList() {
+      NamedList<Object> result = new SimpleOrderedMap<Object>();
+      result.add("source", source);
+      result.add("status", status == null ? "failed" : status);
+      result.add("rows", rows.get());
+      result.add("time", time);
+      result.add("rowsPerSec", rowsPerSec(rows.get(), time));
+      return result;
+    }
+  }
+
+  //////////////////////// SolrInfoMBeans methods //////////////////////
+
+  @Override
+  public String getDescription() {
+    return "Offline bulk loading of CSV content into parallel built segments";
+  }
+
+  @Override
+  public String getSource() {
+    return "$URL: https://svn.apache.org/repos/asf/lucene/dev/branches/lucene_solr_4_0/solr/core/src/java/org/apache/solr/handler/BulkLoadRequestHandler.java $";
+  }
+}
@@ -32,6 +32,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.Adler32;
@@ -62,6 +64,7 @@ import org.apache.solr.response.BinaryQueryResponseWriter;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.update.SolrIndexWriter;
+import org.apache.solr.util.DefaultSolrThreadFactory;
 import org.apache.solr.util.NumberUtils;
 import org.apache.solr.util.RefCounted;
 import org.apache.solr.util.plugin.SolrCoreAware;
@@ -75,6 +78,8 @@ import org.slf4j.LoggerFactory;
  * (command=filelist&amp;indexversion=&lt;VERSION&gt;)</li> <li>Get full or a part (chunk) of a given index or a config
  * file (command=filecontent&amp;file=&lt;FILE_NAME&gt;) You can optionally specify an offset and length to get that
  * chunk of the file. You can request a configuration file by using "cf" parameter instead of the "file" parameter.</li>
+ * <li>Get the checksums of the fixed size blocks of an index file (command=blockchecksums&amp;file=&lt;FILE_NAME&gt;
+ * &amp;blocksize=&lt;BYTES&gt;)</li>
  * <li>Get status/statistics (command=details)</li> </ol> </p> <p>When running on the slave, it provides the following
  * commands <ol> <li>Perform a snap pull now (command=snappull)</li> <li>Get status/statistics (command=details)</li>
  * <li>Abort a snap pull (command=abort)</li> <li>Enable/Disable polling the master for new versions (command=enablepoll
@@ -112,6 +117,17 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
 
   private final Map<String, FileInfo> confFileInfoCache = new HashMap<String, FileInfo>();
 
+  /**
+   * Digests of index files, for slaves which replicate by content instead of by file name
+   */
+  private final BlockChecksums.DigestCache indexFileDigestCache = new BlockChecksums.DigestCache(10000);
+
+  /**
+   * Computes the digests of index files in the background, so that a file list does not wait for them
+   */
+  private final ExecutorService digestExecutor = Executors.newSingleThreadExecutor(
+      new DefaultSolrThreadFactory("replicationDigest"));
+
   private Integer reserveCommitDuration = SnapPuller.readInterval("00:00:10");
 
   private volatile IndexCommit indexCommitPoint;
@@ -161,6 +177,8 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
       getFileStream(solrParams, rsp);
     } else if (command.equals(CMD_GET_FILE_LIST)) {
       getFileList(solrParams, rsp);
+    } else if (command.equals(CMD_GET_BLOCK_CHECKSUMS)) {
+      getBlockChecksums(solrParams, rsp);
     } else if (command.equalsIgnoreCase(CMD_BACKUP)) {
       doSnapShoot(new ModifiableSolrParams(solrParams), rsp,req);
       rsp.add(STATUS, OK_STATUS);
@@ -371,6 +389,7 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
     }
     // reserve the indexcommit for sometime
     core.getDeletionPolicy().setReserveDuration(gen, reserveCommitDuration);
+    boolean includeDigest = solrParams.getBool(DIGEST, false);
     List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
     try {
       //get all the files in the commit
@@ -380,6 +399,12 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
         if(fileName.endsWith(".lock")) continue;
         File file = new File(core.getIndexDir(), fileName);
         Map<String, Object> fileMeta = getFileInfo(file);
+        if (includeDigest) {
+          // index files never change once written, so the digest is computed only once per file. Until it is
+          // known the file is listed without one, and the slave only compares the checksums of its blocks.
+          String digest = indexFileDigestCache.getDigest(file, digestExecutor);
+          if (digest != null) fileMeta.put(DIGEST, digest);
+        }
         result.add(fileMeta);
       }
     } catch (IOException e) {
@@ -396,6 +421,36 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
     rsp.add(CONF_FILES, getConfFileInfoFromCache(confFileNameAlias, confFileInfoCache));
   }
 
+  /**
+   * Gets the checksums of the blocks of an index file, used by slaves which fetch only the blocks they do not have.
+   */
+  private void getBlockChecksums(SolrParams solrParams, SolrQueryResponse rsp) throws IOException {
+    String fileName = solrParams.get(FILE);
+    String v = solrParams.get(GENERATION);
+    if (fileName == null || v == null) {
+      rsp.add(STATUS, ERR_STATUS);
+      rsp.add("message", "both file and generation must be specified");
+      return;
+    }
+    // reserve the indexcommit for sometime
+    core.getDeletionPolicy().setReserveDuration(Long.parseLong(v), reserveCommitDuration);
+    File file = new File(core.getIndexDir(), fileName);
+    if (!file.exists() || !file.getCanonicalFile().getParentFile().equals(new File(core.getIndexDir()).getCanonicalFile())) {
+      rsp.add(STATUS, ERR_STATUS);
+      rsp.add("message", "no such index file: " + fileName);
+      return;
+    }
+    int blockSize = solrParams.getInt(BLOCK_SIZE, BlockChecksums.DEFAULT_BLOCK_SIZE);
+    if (blockSize <= 0 || blockSize > BlockChecksums.MAX_BLOCK_SIZE) {
+      throw new SolrException(ErrorCode.BAD_REQUEST, BLOCK_SIZE + " must be between 1 and "
+          + BlockChecksums.MAX_BLOCK_SIZE + ", got " + blockSize);
+    }
+    BlockChecksums checksums = BlockChecksums.compute(file, blockSize);
+    rsp.add(SIZE, checksums.getFileSize());
+    rsp.add(BLOCK_SIZE, checksums.getBlockSize());
+    rsp.add(CMD_GET_BLOCK_CHECKSUMS, checksums.getBytes());
+  }
+
   /**
    * For configuration files, checksum of the file is included because, unlike index files, they may have same content
    * but different timestamps.
@@ -669,15 +724,29 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
           if (currentFile != null) {
             currFile = (String) currentFile.get(NAME);
             currFileSize = (Long) currentFile.get(SIZE);
-            if (currentFile.containsKey("bytesDownloaded")) {
-              currFileSizeDownloaded = (Long) currentFile.get("bytesDownloaded");
-              bytesDownloaded += currFileSizeDownloaded;
+            if (currentFile.containsKey(SnapPuller.BYTES_DOWNLOADED)) {
+              currFileSizeDownloaded = (Long) currentFile.get(SnapPuller.BYTES_DOWNLOADED);
               if (currFileSize > 0)
                 percentDownloaded = (currFileSizeDownloaded * 100) / currFileSize;
             }
           }
+
+          //files being downloaded, there is more than one if the slave fetches concurrently
+          List<NamedList<Object>> filesInProgress = new ArrayList<NamedList<Object>>();
+          for (Map<String, Object> file : snapPuller.getFilesInProgress()) {
+            long size = (Long) file.get(SIZE);
+            long downloaded = (Long) file.get(SnapPuller.BYTES_DOWNLOADED);
+            bytesDownloaded += downloaded;
+            NamedList<Object> progress = new SimpleOrderedMap<Object>();
+            progress.add(NAME, file.get(NAME));
+            progress.add(SIZE, NumberUtils.readableSize(size));
+            progress.add(SnapPuller.BYTES_DOWNLOADED, NumberUtils.readableSize(downloaded));
+            progress.add("percent", String.valueOf(size > 0 ? (float) ((downloaded * 100) / size) : 0f));
+            filesInProgress.add(progress);
+          }
           slave.add("filesDownloaded", filesDownloaded);
           slave.add("numFilesDownloaded", String.valueOf(filesDownloaded.size()));
+          slave.add("filesInProgress", filesInProgress);
 
           long estimatedTimeRemaining = 0;
 
@@ -922,6 +991,7 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
         if (snapPuller != null) {
           snapPuller.destroy();
         }
+        digestExecutor.shutdownNow();
       }
 
       @Override
@@ -1040,13 +1110,13 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
       int packetsWritten = 0;
       try {
         long offset = -1;
-        int len = -1;
+        long len = -1;
         //check if checksum is requested
         boolean useChecksum = Boolean.parseBoolean(sChecksum);
         if (sOffset != null)
           offset = Long.parseLong(sOffset);
         if (sLen != null)
-          len = Integer.parseInt(sLen);
+          len = Long.parseLong(sLen);
         if (fileName == null && cfileName == null) {
           //no filename do nothing
           writeNothing();
@@ -1066,7 +1136,9 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
           //if offset is mentioned move the pointer to that point
           if (offset != -1)
             channel.position(offset);
-          byte[] buf = new byte[(len == -1 || len > PACKET_SZ) ? PACKET_SZ : len];
+          byte[] buf = new byte[(len == -1 || len > PACKET_SZ) ? PACKET_SZ : (int) len];
+          //if len is mentioned, stream only that many bytes (a range of the file)
+          long remaining = len == -1 ? Long.MAX_VALUE : len;
           Checksum checksum = null;
           if (useChecksum)
             checksum = new Adler32();
@@ -1074,7 +1146,8 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
 
           while (true) {
             bb.clear();
-            long bytesRead = channel.read(bb);
+            if (remaining < buf.length) bb.limit((int) remaining);
+            long bytesRead = remaining > 0 ? channel.read(bb) : -1;
             if (bytesRead <= 0) {
               writeNothing();
               fos.close();
@@ -1088,6 +1161,7 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
             }
             fos.write(buf, 0, (int) bytesRead);
             fos.flush();
+            remaining -= bytesRead;
             if (indexGen != null && (packetsWritten % 5 == 0)) {
               //after every 5 packets reserve the commitpoint for some time
               delPolicy.setReserveDuration(indexGen, reserveCommitDuration);
@@ -1134,6 +1208,12 @@ public class ReplicationHandler extends RequestHandlerBase implements SolrCoreAw
 
   public static final String CMD_FILE_CHECKSUM = "filechecksum";
 
+  public static final String CMD_GET_BLOCK_CHECKSUMS = "blockchecksums";
+
+  public static final String DIGEST = "digest";
+
+  public static final String BLOCK_SIZE = "blocksize";
+
   public static final String CMD_DISABLE_POLL = "disablepoll";
 
   public static final String CMD_DISABLE_REPL = "disablereplication";
@@ -21,6 +21,7 @@ import org.apache.http.client.HttpClient;
 import org.apache.lucene.index.IndexCommit;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RateLimiter;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpClientUtil;
@@ -54,6 +55,8 @@ import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.Adler32;
@@ -100,8 +103,43 @@ public class SnapPuller {
 
   private volatile ExecutorService fsyncService;
 
+  /**
+   * Files currently being fetched, keyed by the name they are saved as. Used to show per file progress.
+   */
+  private final Map<String, FileFetcher> filesInProgress = Collections.synchronizedMap(new LinkedHashMap<String, FileFetcher>());
+
   private volatile boolean stop = false;
 
+  /**
+   * Set when one of the concurrent fetch tasks failed, so that the remaining ones give up early
+   */
+  private volatile boolean fetchFailed = false;
+
+  /**
+   * Number of index files (or ranges of a file) fetched concurrently. 1 means files are fetched one by one
+   */
+  private final int fetchThreads;
+
+  /**
+   * Files larger than this are fetched as concurrent ranges of this size when fetchThreads &gt; 1
+   */
+  private final long fetchChunkSize;
+
+  /**
+   * Shared by all fetch streams of this puller, null if the download rate is not limited
+   */
+  private final RateLimiter rateLimiter;
+
+  /**
+   * If true, index files are identified by the digest of their content. Files the slave already holds under another
+   * name are copied locally, and files similar to a local file are built from its blocks plus the missing blocks.
+   */
+  private final boolean diffReplication;
+
+  private final int diffBlockSize;
+
+  private final BlockChecksums.DigestCache localDigestCache = new BlockChecksums.DigestCache(10000);
+
   private boolean useInternal = false;
 
   private boolean useExternal = false;
@@ -157,6 +195,13 @@ public class SnapPuller {
     String httpBasicAuthUser = (String) initArgs.get(HttpClientUtil.PROP_BASIC_AUTH_USER);
     String httpBasicAuthPassword = (String) initArgs.get(HttpClientUtil.PROP_BASIC_AUTH_PASS);
     myHttpClient = createHttpClient(connTimeout, readTimeout, httpBasicAuthUser, httpBasicAuthPassword, useExternal);
+    fetchThreads = Math.max(1, params.getInt(FETCH_THREADS, 1));
+    String chunkSize = params.get(FETCH_CHUNK_SIZE);
+    fetchChunkSize = chunkSize == null ? DEFAULT_FETCH_CHUNK_SIZE : Math.max(1L, Long.parseLong(chunkSize));
+    double maxMBPerSec = params.getDouble(MAX_MB_PER_SEC, 0.0);
+    rateLimiter = maxMBPerSec > 0.0 ? new RateLimiter(maxMBPerSec) : null;
+    diffReplication = params.getBool(DIFF_REPLICATION, false);
+    diffBlockSize = params.getInt(DIFF_BLOCK_SIZE, BlockChecksums.DEFAULT_BLOCK_SIZE);
     if (pollInterval != null && pollInterval > 0) {
       startExecutorService();
     } else {
@@ -211,6 +256,9 @@ public class SnapPuller {
     ModifiableSolrParams params = new ModifiableSolrParams();
     params.set(COMMAND,  CMD_GET_FILE_LIST);
     params.set(GENERATION, String.valueOf(gen));
+    if (diffReplication) {
+      params.set(DIGEST, true);
+    }
     params.set(CommonParams.WT, "javabin");
     params.set(CommonParams.QT, "/replication");
     QueryRequest req = new QueryRequest(params);
@@ -411,6 +459,8 @@ public class SnapPuller {
       filesToDownload = filesDownloaded = confFilesDownloaded = confFilesToDownload = null;
       replicationStartTime = 0;
       fileFetcher = null;
+      filesInProgress.clear();
+      fetchFailed = false;
       if (fsyncService != null && !fsyncService.isShutdown()) fsyncService.shutdownNow();
       fsyncService = null;
       stop = false;
@@ -501,12 +551,9 @@ public class SnapPuller {
       bytesDownloaded += (Long) file.get(SIZE);
     }
 
-    //get size from current file being downloaded
-    Map<String, Object> currentFile = snappuller.getCurrentFile();
-    if (currentFile != null) {
-      if (currentFile.containsKey("bytesDownloaded")) {
-        bytesDownloaded += (Long) currentFile.get("bytesDownloaded");
-      }
+    //get size from files being downloaded
+    for (Map<String, Object> file : snappuller.getFilesInProgress()) {
+      bytesDownloaded += (Long) file.get(BYTES_DOWNLOADED);
     }
     return bytesDownloaded;
   }
@@ -622,17 +669,267 @@ public class SnapPuller {
    */
   private void downloadIndexFiles(boolean downloadCompleteIndex, File tmpIdxDir, long latestGeneration) throws Exception {
     String indexDir = solrCore.getIndexDir();
+    List<Map<String, Object>> files = new ArrayList<Map<String, Object>>();
     for (Map<String, Object> file : filesToDownload) {
       File localIndexFile = new File(indexDir, (String) file.get(NAME));
       if (!localIndexFile.exists() || downloadCompleteIndex) {
-        fileFetcher = new FileFetcher(tmpIdxDir, file, (String) file.get(NAME), false, latestGeneration);
-        currentFile = file;
-        fileFetcher.fetchFile();
-        filesDownloaded.add(new HashMap<String, Object>(file));
+        files.add(file);
       } else {
         LOG.info("Skipping download for " + localIndexFile);
       }
     }
+    if (diffReplication) {
+      for (Iterator<Map<String, Object>> it = files.iterator(); it.hasNext();) {
+        if (fetchFileByContent(it.next(), tmpIdxDir, latestGeneration)) it.remove();
+      }
+    }
+    if (fetchThreads > 1) {
+      LOG.info("Fetching " + files.size() + " files using " + fetchThreads + " concurrent streams");
+      downloadIndexFilesConcurrently(files, tmpIdxDir, latestGeneration);
+      return;
+    }
+    for (Map<String, Object> file : files) {
+      fileFetcher = new FileFetcher(tmpIdxDir, file, (String) file.get(NAME), false, latestGeneration);
+      currentFile = file;
+      fileFetcher.fetchFile();
+      filesDownloaded.add(new HashMap<String, Object>(file));
+    }
+  }
+
+  /**
+   * Tries to build an index file from content the slave already has: an identical file held under another name, or
+   * the matching blocks of a similar file (the basis). Only the blocks missing from the basis are fetched from the
+   * master, and the result is verified against the digest of the master's file. If the master did not list the
+   * digest yet, only the blocks are compared: each reused block has the same MD5 digest as the master's.
+   *
+   * @return false if the file still has to be fetched as a whole
+   */
+  private boolean fetchFileByContent(Map<String, Object> file, File tmpIdxDir, long latestGeneration) throws Exception {
+    String digest = (String) file.get(DIGEST);
+    String name = (String) file.get(NAME);
+    long size = (Long) file.get(SIZE);
+    File[] localFiles = new File(solrCore.getIndexDir()).listFiles();
+    if (localFiles == null) return false;
+
+    // identical content, possibly under another name
+    if (digest != null) {
+      for (File local : localFiles) {
+        if (local.isFile() && local.length() == size && digest.equals(localDigestCache.getDigest(local))) {
+          LOG.info("Copying " + name + " from identical local file " + local.getName());
+          if (buildFromBasis(file, local, new long[] {0}, size, tmpIdxDir, latestGeneration)) return true;
+        }
+      }
+    }
+
+    // a file of the same name (a stale copy) or else the closest in size of the same type
+    int dot = name.lastIndexOf('.');
+    if (dot < 0 || size < 2L * diffBlockSize) return false;
+    String ext = name.substring(dot);
+    File basis = null;
+    for (File local : localFiles) {
+      if (!local.isFile()) continue;
+      if (local.getName().equals(name)) {
+        basis = local;
+        break;
+      }
+      if (local.getName().endsWith(ext)
+          && (basis == null || Math.abs(local.length() - size) < Math.abs(basis.length() - size))) {
+        basis = local;
+      }
+    }
+    if (basis == null) return false;
+    BlockChecksums checksums = getBlockChecksums(name, latestGeneration);
+    if (checksums == null || checksums.getFileSize() != size) return false;
+    long[] matches = checksums.findMatches(basis);
+    int matched = 0;
+    for (long match : matches) {
+      if (match >= 0) matched++;
+    }
+    if (matched == 0) return false;
+    LOG.info("Building " + name + " from " + matched + " of " + matches.length + " blocks of local file "
+        + basis.getName());
+    return buildFromBasis(file, basis, matches, checksums.getBlockSize(), tmpIdxDir, latestGeneration);
+  }
+
+  /**
+   * Writes every block found in the basis file from there and fetches the others, then checks the digest if the
+   * master listed it.
+   *
+   * @param matches for each block of the file, its offset in the basis or -1 if it must be fetched
+   */
+  private boolean buildFromBasis(Map<String, Object> file, File basis, long[] matches, long blockSize,
+                                 File tmpIdxDir, long latestGeneration) throws Exception {
+    String name = (String) file.get(NAME);
+    long size = (Long) file.get(SIZE);
+    FileFetcher fetcher = new FileFetcher(tmpIdxDir, file, name, false, latestGeneration);
+    fileFetcher = fetcher;
+    currentFile = file;
+    boolean success = false;
+    RandomAccessFile src = new RandomAccessFile(basis, "r");
+    try {
+      long missingStart = -1;
+      for (int i = 0; i <= matches.length; i++) {
+        long start = Math.min(size, i * blockSize);
+        if (i < matches.length && matches[i] < 0) {
+          if (missingStart < 0) missingStart = start;
+          continue;
+        }
+        if (missingStart >= 0) {
+          fetcher.fetchRange(missingStart, start);
+          missingStart = -1;
+        }
+        if (i < matches.length) {
+          fetcher.copyRange(src.getChannel(), matches[i], start, Math.min(blockSize, size - start));
+        }
+      }
+      String digest = (String) file.get(DIGEST);
+      success = digest == null || digest.equals(BlockChecksums.digest(fetcher.file));
+      if (!success) {
+        LOG.warn("Digest of " + name + " built from local file " + basis.getName() + " does not match the master's");
+      }
+    } finally {
+      IOUtils.closeQuietly(src);
+      if (success) {
+        fetcher.finish();
+      } else {
+        fetcher.abort();
+      }
+    }
+    if (!success) return false;
+    LOG.info("Fetched " + fetcher.bytesDownloaded + " bytes of " + name + ", reused " + fetcher.bytesReused
+        + " bytes of local file " + basis.getName());
+    filesDownloaded.add(new HashMap<String, Object>(file));
+    return true;
+  }
+
+  /**
+   * Gets the checksums of the blocks of an index file from the master.
+   *
+   * @return null if the master cannot compute them
+   */
+  private BlockChecksums getBlockChecksums(String fileName, long gen) throws IOException {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set(COMMAND, CMD_GET_BLOCK_CHECKSUMS);
+    params.set(FILE, fileName);
+    params.set(GENERATION, String.valueOf(gen));
+    params.set(BLOCK_SIZE, diffBlockSize);
+    params.set(CommonParams.WT, "javabin");
+    params.set(CommonParams.QT, "/replication");
+    QueryRequest req = new QueryRequest(params);
+    SolrServer server = new HttpSolrServer(masterUrl, myHttpClient);  //XXX modify to use shardhandler
+    try {
+      NamedList response = server.request(req);
+      byte[] checksums = (byte[]) response.get(CMD_GET_BLOCK_CHECKSUMS);
+      if (checksums == null) return null;
+      return new BlockChecksums((Long) response.get(SIZE), (Integer) response.get(BLOCK_SIZE), checksums);
+    } catch (SolrServerException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Download the index files using up to <code>fetchThreads</code> concurrent streams. Files larger than
+   * <code>fetchChunkSize</code> are split into ranges which are fetched concurrently and written in place.
+   */
+  private void downloadIndexFilesConcurrently(List<Map<String, Object>> files, File tmpIdxDir, long latestGeneration) throws Exception {
+    ExecutorService fetchService = Executors.newFixedThreadPool(fetchThreads, new DefaultSolrThreadFactory("snapPullerFetch"));
+    CompletionService<Object> completionService = new ExecutorCompletionService<Object>(fetchService);
+    List<PendingFile> pendingFiles = new ArrayList<PendingFile>();
+    int pending = 0;
+    Exception failure = null;
+    try {
+      for (final Map<String, Object> file : files) {
+        final PendingFile pendingFile = new PendingFile(tmpIdxDir, file, latestGeneration);
+        pendingFiles.add(pendingFile);
+        List<long[]> ranges = getRanges((Long) file.get(SIZE), fetchChunkSize);
+        pendingFile.rangesPending.set(ranges.size());
+        for (final long[] range : ranges) {
+          completionService.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+              FileFetcher fetcher = pendingFile.open();
+              fetcher.fetchRange(range[0], range[1]);
+              if (pendingFile.rangesPending.decrementAndGet() == 0) {
+                fetcher.finish();
+                filesDownloaded.add(new HashMap<String, Object>(file));
+              }
+              return null;
+            }
+          });
+          pending++;
+        }
+      }
+      // wait for every task, even after a failure, so that no task is left writing to a closed file
+      for (; pending > 0; pending--) {
+        try {
+          completionService.take().get();
+        } catch (ExecutionException e) {
+          fetchFailed = true;
+          if (failure == null || failure instanceof ReplicationHandlerException) {
+            failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+          }
+        }
+      }
+    } finally {
+      fetchService.shutdownNow();
+      if (failure != null || pending > 0) {
+        for (PendingFile pendingFile : pendingFiles) {
+          if (pendingFile.rangesPending.get() > 0) pendingFile.abort();
+        }
+      }
+    }
+    if (failure != null) throw failure;
+  }
+
+  /**
+   * Splits a file in ranges of at most chunkSize bytes.
+   *
+   * @return a list of {start, end} pairs, end being exclusive
+   */
+  static List<long[]> getRanges(long size, long chunkSize) {
+    List<long[]> ranges = new ArrayList<long[]>();
+    long start = 0;
+    do {
+      long end = Math.min(size, start + chunkSize);
+      ranges.add(new long[] {start, end});
+      start = end;
+    } while (start < size);
+    return ranges;
+  }
+
+  /**
+   * A file of a concurrent download. Its {@link FileFetcher}, and so the local file, is only opened when the first
+   * of its ranges starts, so that queued files do not hold a file descriptor.
+   */
+  private class PendingFile {
+    private final File dir;
+
+    private final Map<String, Object> file;
+
+    private final long latestGeneration;
+
+    /**
+     * Number of ranges which are not fetched yet
+     */
+    final AtomicInteger rangesPending = new AtomicInteger();
+
+    private FileFetcher fetcher;
+
+    PendingFile(File dir, Map<String, Object> file, long latestGeneration) {
+      this.dir = dir;
+      this.file = file;
+      this.latestGeneration = latestGeneration;
+    }
+
+    synchronized FileFetcher open() throws IOException {
+      if (fetcher == null) {
+        fetcher = new FileFetcher(dir, file, (String) file.get(NAME), false, latestGeneration);
+      }
+      return fetcher;
+    }
+
+    synchronized void abort() {
+      if (fetcher != null) fetcher.abort();
+    }
   }
 
   /**
@@ -897,10 +1194,29 @@ public class SnapPuller {
       return null;
     tmp = new HashMap<String, Object>(tmp);
     if (tmpFileFetcher != null)
-      tmp.put("bytesDownloaded", tmpFileFetcher.bytesDownloaded);
+      tmp.put(BYTES_DOWNLOADED, tmpFileFetcher.bytesDownloaded.get());
     return tmp;
   }
 
+  /**
+   * @return the details of every file being downloaded right now, including the number of bytes downloaded so far
+   */
+  List<Map<String, Object>> getFilesInProgress() {
+    List<FileFetcher> fetchers;
+    synchronized (filesInProgress) {
+      fetchers = new ArrayList<FileFetcher>(filesInProgress.values());
+    }
+    List<Map<String, Object>> result = new ArrayList<Map<String, Object>>(fetchers.size());
+    for (FileFetcher fetcher : fetchers) {
+      Map<String, Object> file = new HashMap<String, Object>();
+      file.put(NAME, fetcher.fileName);
+      file.put(SIZE, fetcher.size);
+      file.put(BYTES_DOWNLOADED, fetcher.bytesDownloaded.get());
+      result.add(file);
+    }
+    return result;
+  }
+
   boolean isPollingDisabled() {
     return pollDisabled.get();
   }
@@ -920,6 +1236,10 @@ public class SnapPuller {
 
   /**
    * The class acts as a client for ReplicationHandler.FileStream. It understands the protocol of wt=filestream
+   * <p/>
+   * A file is either fetched as a whole with {@link #fetchFile()} or as a number of ranges, each of which can be
+   * fetched by a different thread with {@link #fetchRange(long, long)}. Every range is written at its own position
+   * of the file, so ranges may complete in any order.
    *
    * @see org.apache.solr.handler.ReplicationHandler.FileStream
    */
@@ -934,23 +1254,22 @@ public class SnapPuller {
 
     long size, lastmodified;
 
-    long bytesDownloaded = 0;
+    final AtomicLong bytesDownloaded = new AtomicLong();
 
-    FileChannel fileChannel;
-    
-    private FileOutputStream fileOutputStream;
+    /**
+     * Bytes copied from a local file instead of being downloaded
+     */
+    final AtomicLong bytesReused = new AtomicLong();
 
-    byte[] buf = new byte[1024 * 1024];
+    FileChannel fileChannel;
 
-    Checksum checksum;
+    private RandomAccessFile randomAccessFile;
 
     File file;
 
-    int errorCount = 0;
-
     private boolean isConf;
 
-    private boolean aborted = false;
+    private volatile boolean aborted = false;
 
     private Long indexGen;
 
@@ -967,7 +1286,7 @@ public class SnapPuller {
       indexGen = latestGen;
 
       this.file = new File(copy2Dir, saveAs);
-      
+
       File parentDir = this.file.getParentFile();
       if( ! parentDir.exists() ){
         if ( ! parentDir.mkdirs() ) {
@@ -975,12 +1294,10 @@ public class SnapPuller {
                                   "Failed to create (sub)directory for file: " + saveAs);
         }
       }
-      
-      this.fileOutputStream = new FileOutputStream(file);
-      this.fileChannel = this.fileOutputStream.getChannel();
 
-      if (includeChecksum)
-        checksum = new Adler32();
+      this.randomAccessFile = new RandomAccessFile(file, "rw");
+      this.randomAccessFile.setLength(0);
+      this.fileChannel = this.randomAccessFile.getChannel();
     }
 
     /**
@@ -988,26 +1305,64 @@ public class SnapPuller {
      */
     void fetchFile() throws Exception {
       try {
-        while (true) {
-          final FastInputStream is = getStream();
-          int result;
-          try {
-            //fetch packets one by one in a single request
-            result = fetchPackets(is);
-            if (result == 0 || result == NO_CONTENT) {
-              // if the file is downloaded properly set the
-              //  timestamp same as that in the server
-              if (file.exists() && lastmodified > 0)
-                file.setLastModified(lastmodified);
-              return;
-            }
-            //if there is an error continue. But continue from the point where it got broken
-          } finally {
-            IOUtils.closeQuietly(is);
+        fetchRange(0, size);
+      } finally {
+        finish();
+      }
+    }
+
+    /**
+     * Downloads the bytes in [start, end) of the file. If the stream breaks, the download continues from the point
+     * where it got broken.
+     */
+    void fetchRange(long start, long end) throws Exception {
+      filesInProgress.put(saveAs, this);
+      RangeFetcher range = new RangeFetcher(start, end);
+
+      while (true) {
+        final FastInputStream is = getStream(range.position, end);
+        int result;
+        try {
+          //fetch packets one by one in a single request
+          result = range.fetchPackets(is);
+          if (result == 0 || result == NO_CONTENT) {
+            return;
           }
+          //if there is an error continue. But continue from the point where it got broken
+        } finally {
+          IOUtils.closeQuietly(is);
         }
-      } finally {
+      }
+    }
+
+    /**
+     * Writes len bytes of a local file, starting at srcPosition, at position of this file.
+     */
+    void copyRange(FileChannel src, long srcPosition, long position, long len) throws IOException {
+      filesInProgress.put(saveAs, this);
+      ByteBuffer bb = ByteBuffer.allocate((int) Math.min(len, PACKET_SZ));
+      long copied = 0;
+      while (copied < len) {
+        bb.clear();
+        if (len - copied < bb.capacity()) bb.limit((int) (len - copied));
+        int read = src.read(bb, srcPosition + copied);
+        if (read < 0) throw new EOFException("Unexpected end of local file while copying to " + saveAs);
+        bb.flip();
+        while (bb.hasRemaining()) {
+          fileChannel.write(bb, position + copied + bb.position());
+        }
+        copied += read;
+      }
+      bytesReused.addAndGet(len);
+    }
+
+    /**
+     * Closes the file once all of it is fetched and schedules an fsync.
+     */
+    void finish() {
+      try {
         cleanup();
+      } finally {
         //if cleanup suceeds . The file is downloaded fully. do an fsync
         fsyncService.submit(new Runnable(){
           public void run() {
@@ -1021,99 +1376,30 @@ public class SnapPuller {
       }
     }
 
-    private int fetchPackets(FastInputStream fis) throws Exception {
-      byte[] intbytes = new byte[4];
-      byte[] longbytes = new byte[8];
+    /**
+     * Closes and deletes a partially fetched file without failing.
+     */
+    void abort() {
+      aborted = true;
       try {
-        while (true) {
-          if (stop) {
-            stop = false;
-            aborted = true;
-            throw new ReplicationHandlerException("User aborted replication");
-          }
-          long checkSumServer = -1;
-          fis.readFully(intbytes);
-          //read the size of the packet
-          int packetSize = readInt(intbytes);
-          if (packetSize <= 0) {
-            LOG.warn("No content recieved for file: " + currentFile);
-            return NO_CONTENT;
-          }
-          if (buf.length < packetSize)
-            buf = new byte[packetSize];
-          if (checksum != null) {
-            //read the checksum
-            fis.readFully(longbytes);
-            checkSumServer = readLong(longbytes);
-          }
-          //then read the packet of bytes
-          fis.readFully(buf, 0, packetSize);
-          //compare the checksum as sent from the master
-          if (includeChecksum) {
-            checksum.reset();
-            checksum.update(buf, 0, packetSize);
-            long checkSumClient = checksum.getValue();
-            if (checkSumClient != checkSumServer) {
-              LOG.error("Checksum not matched between client and server for: " + currentFile);
-              //if checksum is wrong it is a problem return for retry
-              return 1;
-            }
-          }
-          //if everything is fine, write down the packet to the file
-          fileChannel.write(ByteBuffer.wrap(buf, 0, packetSize));
-          bytesDownloaded += packetSize;
-          if (bytesDownloaded >= size)
-            return 0;
-          //errorcount is always set to zero after a successful packet
-          errorCount = 0;
-        }
-      } catch (ReplicationHandlerException e) {
-        throw e;
+        cleanup();
       } catch (Exception e) {
-        LOG.warn("Error in fetching packets ", e);
-        //for any failure , increment the error count
-        errorCount++;
-        //if it fails for the same pacaket for   MAX_RETRIES fail and come out
-        if (errorCount > MAX_RETRIES) {
-          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
-                  "Fetch failed for file:" + fileName, e);
-        }
-        return ERR;
+        LOG.error("Error cleaning up partially fetched file: " + saveAs, e);
       }
     }
 
-    /**
-     * The webcontainer flushes the data only after it fills the buffer size. So, all data has to be read as readFully()
-     * other wise it fails. So read everything as bytes and then extract an integer out of it
-     */
-    private int readInt(byte[] b) {
-      return (((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16)
-              | ((b[2] & 0xff) << 8) | (b[3] & 0xff));
-
-    }
-
-    /**
-     * Same as above but to read longs from a byte array
-     */
-    private long readLong(byte[] b) {
-      return (((long) (b[0] & 0xff)) << 56) | (((long) (b[1] & 0xff)) << 48)
-              | (((long) (b[2] & 0xff)) << 40) | (((long) (b[3] & 0xff)) << 32)
-              | (((long) (b[4] & 0xff)) << 24) | ((b[5] & 0xff) << 16)
-              | ((b[6] & 0xff) << 8) | ((b[7] & 0xff));
-
-    }
-
     /**
      * cleanup everything
      */
     private void cleanup() {
+      filesInProgress.remove(saveAs);
       try {
-        //close the FileOutputStream (which also closes the Channel)
-        fileOutputStream.close();
+        //close the RandomAccessFile (which also closes the Channel)
+        randomAccessFile.close();
       } catch (Exception e) {/* noop */
           LOG.error("Error closing the file stream: "+ this.saveAs ,e);
       }
-      if (bytesDownloaded != size) {
+      if (bytesDownloaded.get() + bytesReused.get() != size) {
         //if the download is not complete then
         //delete the file being downloaded
         try {
@@ -1126,13 +1412,18 @@ public class SnapPuller {
           throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
                   "Unable to download " + fileName + " completely. Downloaded "
                           + bytesDownloaded + "!=" + size);
+      } else if (file.exists() && lastmodified > 0) {
+        // if the file is downloaded properly set the
+        //  timestamp same as that in the server
+        file.setLastModified(lastmodified);
       }
     }
 
     /**
-     * Open a new stream using HttpClient
+     * Open a new stream using HttpClient, starting at offset. If end is before the end of the file, the master is
+     * asked to stop streaming there.
      */
-    FastInputStream getStream() throws IOException {
+    FastInputStream getStream(long offset, long end) throws IOException {
       SolrServer s = new HttpSolrServer(masterUrl, myHttpClient, null);  //XXX use shardhandler
       ModifiableSolrParams params = new ModifiableSolrParams();
 
@@ -1148,7 +1439,7 @@ public class SnapPuller {
         params.set(FILE, fileName);
       }
       if (useInternal) {
-        params.set(COMPRESSION, "true"); 
+        params.set(COMPRESSION, "true");
       }
       //use checksum
       if (this.includeChecksum) {
@@ -1158,10 +1449,13 @@ public class SnapPuller {
       params.set(CommonParams.WT, FILE_STREAM);
         // This happen if there is a failure there is a retry. the offset=<sizedownloaded> ensures that
         // the server starts from the offset
-      if (bytesDownloaded > 0) {
-        params.set(OFFSET, Long.toString(bytesDownloaded));
+      if (offset > 0) {
+        params.set(OFFSET, Long.toString(offset));
+      }
+      if (end < size) {
+        params.set(LEN, Long.toString(end - offset));
       }
-      
+
 
       NamedList response;
       InputStream is = null;
@@ -1179,8 +1473,118 @@ public class SnapPuller {
         throw new IOException("Could not download file '" + fileName + "'", t);
       }
     }
+
+    /**
+     * Reads the packets of one range of the file and writes them at their position in the file.
+     */
+    private class RangeFetcher {
+      private final long end;
+
+      long position;
+
+      byte[] buf = new byte[1024 * 1024];
+
+      Checksum checksum;
+
+      int errorCount = 0;
+
+      RangeFetcher(long start, long end) {
+        this.position = start;
+        this.end = end;
+        if (includeChecksum)
+          checksum = new Adler32();
+      }
+
+      private int fetchPackets(FastInputStream fis) throws Exception {
+        byte[] intbytes = new byte[4];
+        byte[] longbytes = new byte[8];
+        try {
+          while (true) {
+            if (stop || fetchFailed) {
+              aborted = true;
+              throw new ReplicationHandlerException("User aborted replication");
+            }
+            long checkSumServer = -1;
+            fis.readFully(intbytes);
+            //read the size of the packet
+            int packetSize = readInt(intbytes);
+            if (packetSize <= 0) {
+              LOG.warn("No content recieved for file: " + fileName);
+              return NO_CONTENT;
+            }
+            if (buf.length < packetSize)
+              buf = new byte[packetSize];
+            if (checksum != null) {
+              //read the checksum
+              fis.readFully(longbytes);
+              checkSumServer = readLong(longbytes);
+            }
+            //then read the packet of bytes
+            fis.readFully(buf, 0, packetSize);
+            //compare the checksum as sent from the master
+            if (includeChecksum) {
+              checksum.reset();
+              checksum.update(buf, 0, packetSize);
+              long checkSumClient = checksum.getValue();
+              if (checkSumClient != checkSumServer) {
+                LOG.error("Checksum not matched between client and server for: " + fileName);
+                //if checksum is wrong it is a problem return for retry
+                return 1;
+              }
+            }
+            // a master which does not understand ranges streams the whole file, never write past the range
+            int len = (int) Math.min(packetSize, end - position);
+            //if everything is fine, write down the packet to the file
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+            while (bb.hasRemaining()) {
+              fileChannel.write(bb, position + bb.position());
+            }
+            if (rateLimiter != null) rateLimiter.pause(len);
+            position += len;
+            bytesDownloaded.addAndGet(len);
+            if (position >= end)
+              return 0;
+            //errorcount is always set to zero after a successful packet
+            errorCount = 0;
+          }
+        } catch (ReplicationHandlerException e) {
+          throw e;
+        } catch (Exception e) {
+          LOG.warn("Error in fetching packets ", e);
+          //for any failure , increment the error count
+          errorCount++;
+          //if it fails for the same pacaket for   MAX_RETRIES fail and come out
+          if (errorCount > MAX_RETRIES) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                    "Fetch failed for file:" + fileName, e);
+          }
+          return ERR;
+        }
+      }
+    }
+
+    /**
+     * The webcontainer flushes the data only after it fills the buffer size. So, all data has to be read as readFully()
+     * other wise it fails. So read everything as bytes and then extract an integer out of it
+     */
+    private int readInt(byte[] b) {
+      return (((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16)
+              | ((b[2] & 0xff) << 8) | (b[3] & 0xff));
+
+    }
+
+    /**
+     * Same as above but to read longs from a byte array
+     */
+    private long readLong(byte[] b) {
+      return (((long) (b[0] & 0xff)) << 56) | (((long) (b[1] & 0xff)) << 48)
+              | (((long) (b[2] & 0xff)) << 40) | (((long) (b[3] & 0xff)) << 32)
+              | (((long) (b[4] & 0xff)) << 24) | ((b[5] & 0xff) << 16)
+              | ((b[6] & 0xff) << 8) | ((b[7] & 0xff));
+
+    }
   }
-  
+
   NamedList getDetails() throws IOException, SolrServerException {
     ModifiableSolrParams params = new ModifiableSolrParams();
     params.set(COMMAND, CMD_DETAILS);
@@ -1241,6 +1645,20 @@ public class SnapPuller {
 
   private static final int ERR = 2;
 
+  private static final long DEFAULT_FETCH_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  static final String BYTES_DOWNLOADED = "bytesDownloaded";
+
+  public static final String DIFF_REPLICATION = "diffReplication";
+
+  public static final String DIFF_BLOCK_SIZE = "diffBlockSize";
+
+  public static final String FETCH_THREADS = "fetchThreads";
+
+  public static final String FETCH_CHUNK_SIZE = "fetchChunkSize";
+
+  public static final String MAX_MB_PER_SEC = "maxMBPerSec";
+
   public static final String REPLICATION_PROPERTIES = "replication.properties";
 
   public static final String POLL_INTERVAL = "pollInterval";
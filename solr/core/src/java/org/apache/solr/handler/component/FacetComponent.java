@@ -102,7 +102,7 @@ public class FacetComponent extends SearchComponent
     if (rb.doFacets) {
       SolrParams params = rb.req.getParams();
       SimpleFacets f = new SimpleFacets(rb.req,
-              rb.getResults().docSet,
+              SamplingHelper.getDocSet(rb),
               params,
               rb );
       
@@ -115,6 +115,14 @@ public class FacetComponent extends SearchComponent
         }
       }
       
+      double rate = SamplingHelper.getRate(params);
+      if (rate < 1) {
+        SamplingHelper.scaleFacetCounts(counts, rate);
+        if (!params.getBool(ShardParams.IS_SHARD, false)) {
+          SamplingHelper.addFacetMargins(rb, counts, rate);
+        }
+      }
+
       // TODO ???? add this directly to the response, or to the builder?
       rb.rsp.add("facet_counts", counts);
     }
@@ -300,6 +308,21 @@ public class FacetComponent extends SearchComponent
     }
   }
   
+  @Override
+  public void handleShardResponse(ResponseBuilder rb, ShardResponse srsp) {
+    if (!rb.doFacets) return;
+
+    int purpose = srsp.getShardRequest().purpose;
+    if ((purpose & ShardRequest.PURPOSE_GET_FACETS) != 0) {
+      countFacets(rb, Collections.singletonList(srsp));
+    } else if ((purpose & ShardRequest.PURPOSE_REFINE_FACETS) != 0) {
+      refineFacets(rb, Collections.singletonList(srsp));
+    } else {
+      return;
+    }
+    rb._facetInfo.merged.add(srsp);
+  }
+
   @Override
   public void handleResponses(ResponseBuilder rb, ShardRequest sreq) {
     if (!rb.doFacets) return;
@@ -314,17 +337,14 @@ public class FacetComponent extends SearchComponent
 
 
 
-  private void countFacets(ResponseBuilder rb, ShardRequest sreq) {
+  /**
+   * Merges the facet counts of the shard responses
+   */
+  private void countFacets(ResponseBuilder rb, List<ShardResponse> responses) {
     FacetInfo fi = rb._facetInfo;    
-    SimpleOrderedMap<Map<Object,NamedList<Object>>> pivotFacetsMap = null;
-    SimpleOrderedMap<Map<Integer,Map<Object,Integer>>> fieldCountsMap = null;
-    boolean pivoting = false;
-    PivotLimitInfo limitInfo = null;
-    List<String> facetLimitIgnoreFieldList = null;
-    SimpleOrderedMap<List<Integer>> facetLimitIgnoreIndexsMap = null;    
-    boolean sortPivotsByCount = true;
+    PivotMerge pm = fi.pivotMerge;
     
-    for (ShardResponse srsp: sreq.responses) {
+    for (ShardResponse srsp: responses) {
       int shardNum = rb.getShardNum(srsp.getShard());
       NamedList facet_counts = null;
       try {
@@ -454,42 +474,42 @@ public class FacetComponent extends SearchComponent
           .get("facet_pivot");
       
       if (facet_pivot != null) {
-        if (pivotFacetsMap == null) {
-          pivoting = true;
+        if (pm.pivotFacetsMap == null) {
+          pm.pivoting = true;
           SolrParams params = rb.req.getParams();
           String facetSort = params.get(FacetParams.FACET_SORT);
           if (facetSort != null
               && facetSort.equals(FacetParams.FACET_SORT_INDEX)) {
-            sortPivotsByCount = false;
+            pm.sortPivotsByCount = false;
           }
-          limitInfo = new PivotLimitInfo();
-          limitInfo.limit = params.getInt(FacetParams.FACET_LIMIT, 0);
+          pm.limitInfo = new PivotLimitInfo();
+          pm.limitInfo.limit = params.getInt(FacetParams.FACET_LIMIT, 0);
           String facetLimitMethod = params
               .get(FacetParams.FACET_PIVOT_LIMIT_METHOD);
           if (facetLimitMethod != null
               && facetLimitMethod
                   .equals(FacetParams.COMBINED_PIVOT_FACET_LIMIT)) {
-            limitInfo.combinedPivotLimit = true;
-            fieldCountsMap = new SimpleOrderedMap<Map<Integer,Map<Object,Integer>>>();
-            facetLimitIgnoreIndexsMap = new SimpleOrderedMap<List<Integer>>();
+            pm.limitInfo.combinedPivotLimit = true;
+            pm.fieldCountsMap = new SimpleOrderedMap<Map<Integer,Map<Object,Integer>>>();
+            pm.facetLimitIgnoreIndexsMap = new SimpleOrderedMap<List<Integer>>();
           }
           String facetLimitIgnores = params
               .get(FacetParams.FACET_PIVOT_LIMIT_IGNORE);
           if (facetLimitIgnores != null) {
-            facetLimitIgnoreFieldList = Arrays.asList(facetLimitIgnores
+            pm.facetLimitIgnoreFieldList = Arrays.asList(facetLimitIgnores
                 .split(","));
           }
-          pivotFacetsMap = new SimpleOrderedMap<Map<Object,NamedList<Object>>>();
+          pm.pivotFacetsMap = new SimpleOrderedMap<Map<Object,NamedList<Object>>>();
         }
         
         // go through each facet_pivot
         for (Map.Entry<String,List<NamedList<Object>>> pivot : facet_pivot) {
           final String pivotName = pivot.getKey();
           final Integer numberOfPivots;
-          if (facetLimitIgnoreFieldList != null) {
+          if (pm.facetLimitIgnoreFieldList != null) {
             List<Integer> facetLimitIgnoreIndexList = new ArrayList<Integer>();
             List<String> pivotFields = Arrays.asList(pivotName.split(","));
-            for (String facetLimitIgnore : facetLimitIgnoreFieldList) {
+            for (String facetLimitIgnore : pm.facetLimitIgnoreFieldList) {
               int thisIndex = pivotFields.indexOf(facetLimitIgnore);
               if (thisIndex > -1) {
                 // Add one here because pivots start from 1, whereas list indexs
@@ -497,24 +517,24 @@ public class FacetComponent extends SearchComponent
                 facetLimitIgnoreIndexList.add(thisIndex + 1);
               }
             }
-            facetLimitIgnoreIndexsMap.add(pivotName, facetLimitIgnoreIndexList);
+            pm.facetLimitIgnoreIndexsMap.add(pivotName, facetLimitIgnoreIndexList);
             numberOfPivots = pivotFields.size();
           } else {
             numberOfPivots = 1 + StringUtils.countMatches(pivotName, ",");
           }
           Map<Integer,Map<Object,Integer>> fieldCounts = null;
-          if (limitInfo.combinedPivotLimit) {
-            fieldCounts = fieldCountsMap.get(pivotName);
+          if (pm.limitInfo.combinedPivotLimit) {
+            fieldCounts = pm.fieldCountsMap.get(pivotName);
             if (fieldCounts == null) {
               fieldCounts = new HashMap<Integer,Map<Object,Integer>>();
-              fieldCountsMap.add(pivotName, fieldCounts);
+              pm.fieldCountsMap.add(pivotName, fieldCounts);
             }
           }
-          Map<Object,NamedList<Object>> pivotValues = pivotFacetsMap
+          Map<Object,NamedList<Object>> pivotValues = pm.pivotFacetsMap
               .get(pivotName);
           if (pivotValues == null) {
             // first time we've seen this pivot, no merging
-            pivotFacetsMap.add(pivotName, pivotHelper.convertPivotsToMaps(
+            pm.pivotFacetsMap.add(pivotName, pivotHelper.convertPivotsToMaps(
                 pivot.getValue(), 1, numberOfPivots, fieldCounts));
             
           } else {
@@ -530,16 +550,30 @@ public class FacetComponent extends SearchComponent
         }
       }
       
+      // the counts are merged, they can be garbage collected while the other shards answer
+      srsp.getSolrResponse().getResponse().remove("facet_counts");
     }
+  }
+
+  private void countFacets(ResponseBuilder rb, ShardRequest sreq) {
+    FacetInfo fi = rb._facetInfo;
+    List<ShardResponse> responses = new ArrayList<ShardResponse>();
+    for (ShardResponse srsp: sreq.responses) {
+      // the responses seen by handleShardResponse are already merged
+      if (!fi.merged.remove(srsp)) responses.add(srsp);
+    }
+    countFacets(rb, responses);
+
+    PivotMerge pm = fi.pivotMerge;
     
     // set pivot facets from map
     
-    if (pivoting) {
-      if (limitInfo.combinedPivotLimit) {
+    if (pm.pivoting) {
+      if (pm.limitInfo.combinedPivotLimit) {
         Comparator<Entry<Object,Integer>> entryCountComparator = new EntryCountComparator();
-        limitInfo.fieldLimitsMap = new SimpleOrderedMap<List<List<Object>>>();
-        for (Entry<String,Map<Integer,Map<Object,Integer>>> fieldCountsEntry : fieldCountsMap) {
-          List<Integer> facetLimitIgnoreIndexs = facetLimitIgnoreIndexsMap
+        pm.limitInfo.fieldLimitsMap = new SimpleOrderedMap<List<List<Object>>>();
+        for (Entry<String,Map<Integer,Map<Object,Integer>>> fieldCountsEntry : pm.fieldCountsMap) {
+          List<Integer> facetLimitIgnoreIndexs = pm.facetLimitIgnoreIndexsMap
               .get(fieldCountsEntry.getKey());
           List<List<Object>> limitedValuesForPivot = new ArrayList<List<Object>>();
           Integer pivot = 1;
@@ -549,12 +583,12 @@ public class FacetComponent extends SearchComponent
             List<Object> limitedValuesForField = null;
             if ((facetLimitIgnoreIndexs == null || !facetLimitIgnoreIndexs
                 .contains(pivot))
-                && fieldCountsForPivot.size() > limitInfo.limit) {
+                && fieldCountsForPivot.size() > pm.limitInfo.limit) {
               limitedValuesForField = new ArrayList<Object>();
               List<Entry<Object,Integer>> fieldCountsForPivotList = new ArrayList<Map.Entry<Object,Integer>>(
                   fieldCountsForPivot.entrySet());
               Collections.sort(fieldCountsForPivotList, entryCountComparator);
-              for (int valueIndex = 0; valueIndex < limitInfo.limit; valueIndex++) {
+              for (int valueIndex = 0; valueIndex < pm.limitInfo.limit; valueIndex++) {
                 limitedValuesForField.add(fieldCountsForPivotList.get(
                     valueIndex).getKey());
               }
@@ -562,12 +596,12 @@ public class FacetComponent extends SearchComponent
             limitedValuesForPivot.add(limitedValuesForField);
             fieldCountsForPivot = fieldCountsEntry.getValue().get(++pivot);
           }
-          limitInfo.fieldLimitsMap.add(fieldCountsEntry.getKey(),
+          pm.limitInfo.fieldLimitsMap.add(fieldCountsEntry.getKey(),
               limitedValuesForPivot);
         }
       }
-      fi.pivotFacets = pivotHelper.convertPivotMapsToList(pivotFacetsMap,
-          limitInfo, sortPivotsByCount);
+      fi.pivotFacets = pivotHelper.convertPivotMapsToList(pm.pivotFacetsMap,
+          pm.limitInfo, pm.sortPivotsByCount);
     }    
     //
     // This code currently assumes that there will be only a single
@@ -796,8 +830,18 @@ public class FacetComponent extends SearchComponent
 
   private void refineFacets(ResponseBuilder rb, ShardRequest sreq) {
     FacetInfo fi = rb._facetInfo;
-    
+    List<ShardResponse> responses = new ArrayList<ShardResponse>();
     for (ShardResponse srsp : sreq.responses) {
+      if (!fi.merged.remove(srsp)) responses.add(srsp);
+    }
+    refineFacets(rb, responses);
+  }
+
+  private void refineFacets(ResponseBuilder rb, List<ShardResponse> responses) {
+    FacetInfo fi = rb._facetInfo;
+    
+    for (ShardResponse srsp : responses) {
+      ShardRequest sreq = srsp.getShardRequest();
       // int shardNum = rb.getShardNum(srsp.shard);
       NamedList facet_counts = (NamedList)srsp.getSolrResponse().getResponse().get("facet_counts");
       NamedList facet_fields = (NamedList) facet_counts.get("facet_fields");
@@ -827,6 +871,7 @@ public class FacetComponent extends SearchComponent
           sfc.count += count;
         }
       }
+      srsp.getSolrResponse().getResponse().remove("facet_counts");
     }
   }
   
@@ -911,6 +956,10 @@ public class FacetComponent extends SearchComponent
     }
 
     rb.rsp.add("facet_counts", facet_counts);
+    double rate = SamplingHelper.getRate(rb.req.getParams());
+    if (rate < 1) {
+      SamplingHelper.addFacetMargins(rb, facet_counts, rate);
+    }
 
     rb._facetInfo = null;  // could be big, so release asap
   }
@@ -1041,6 +1090,10 @@ public class FacetComponent extends SearchComponent
       = new SimpleOrderedMap<SimpleOrderedMap<Object>>();
     public SimpleOrderedMap<List<NamedList<Object>>> pivotFacets = new SimpleOrderedMap<List<NamedList<Object>>>();
 
+    // the shard responses merged as soon as they were received
+    Set<ShardResponse> merged = new HashSet<ShardResponse>();
+    PivotMerge pivotMerge = new PivotMerge();
+
     void parse(SolrParams params, ResponseBuilder rb) {
       queryFacets = new LinkedHashMap<String,QueryFacet>();
       facets = new LinkedHashMap<String,DistribFieldFacet>();
@@ -1063,6 +1116,19 @@ public class FacetComponent extends SearchComponent
       }
     }
   }
+
+  /**
+   * The state of the merge of the pivot facets, across the shard responses
+   */
+  static class PivotMerge {
+    SimpleOrderedMap<Map<Object,NamedList<Object>>> pivotFacetsMap = null;
+    SimpleOrderedMap<Map<Integer,Map<Object,Integer>>> fieldCountsMap = null;
+    boolean pivoting = false;
+    PivotLimitInfo limitInfo = null;
+    List<String> facetLimitIgnoreFieldList = null;
+    SimpleOrderedMap<List<Integer>> facetLimitIgnoreIndexsMap = null;
+    boolean sortPivotsByCount = true;
+  }
   
   /**
    * <b>This API is experimental and subject to change</b>
@@ -18,12 +18,14 @@ package org.apache.solr.handler.component;
 
 import org.apache.lucene.search.FieldCache;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRef;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.util.LongCountTable;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 
@@ -32,6 +34,10 @@ import java.util.Map;
  * FieldFacetStats is a utility to accumulate statistics on a set of values in one field,
  * for facet values present in another field.
  * <p/>
+ * The statistics are accumulated in arrays indexed by the ordinal of the facet value
+ * (primitive arrays when the stats field is numeric), the ordinals are only converted
+ * to readable values once, by {@link #getFacetStatsValues()}.
+ * <p/>
  * @see org.apache.solr.handler.component.StatsComponent
  *
  */
@@ -48,11 +54,32 @@ public class FieldFacetStats {
 
   final int numStatsTerms;
 
-  public final Map<String, StatsValues> facetStatsValues;
+  /**
+   * @deprecated use {@link #getFacetStatsValues()}, which fills this map
+   */
+  @Deprecated
+  public final Map<String, StatsValues> facetStatsValues = new HashMap<String, StatsValues>();
+
+  /** true if the stats field is numeric, and accumulated in the primitive arrays */
+  private final boolean numeric;
 
-  final List<HashMap<String, Integer>> facetStatsTerms;
+  // the numeric statistics, by facet ordinal
+  private int[] counts;
+  private int[] missings;
+  private double[] mins;
+  private double[] maxs;
+  private double[] sums;
+  private double[] sumsOfSquares;
 
-  private final BytesRef tempBR = new BytesRef();
+  // the statistics of non numeric fields, by facet ordinal
+  private StatsValues[] values;
+
+  // for mv stats fields which are numeric, the value of every stats term
+  private double[] statsTermValues;
+  // for the other mv stats fields, the number of documents of every (stats term, facet ordinal)
+  // pair, keyed by statsTermNum << 32 | ordinal
+  private LongCountTable statsTermOrdCounts;
+  private long[] statsTermOrdKeys;
 
   public FieldFacetStats(String name, FieldCache.DocTermsIndex si, SchemaField field_sf, SchemaField facet_sf, int numStatsTerms) {
     this.name = name;
@@ -65,15 +92,37 @@ public class FieldFacetStats {
     endTermIndex = si.numOrd();
     nTerms = endTermIndex - startTermIndex;
 
-    facetStatsValues = new HashMap<String, StatsValues>();
-
-    // for mv stats field, we'll want to keep track of terms
-    facetStatsTerms = new ArrayList<HashMap<String, Integer>>();
-    if (numStatsTerms == 0) return;
-    int i = 0;
-    for (; i < numStatsTerms; i++) {
-      facetStatsTerms.add(new HashMap<String, Integer>());
+    numeric = StatsValuesFactory.createStatsValues(field_sf) instanceof NumericStatsValues;
+    if (numeric) {
+      counts = new int[nTerms];
+      missings = new int[nTerms];
+      mins = new double[nTerms];
+      maxs = new double[nTerms];
+      Arrays.fill(mins, Double.POSITIVE_INFINITY);
+      Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+      sums = new double[nTerms];
+      sumsOfSquares = new double[nTerms];
+    } else {
+      values = new StatsValues[nTerms];
     }
+
+    if (numStatsTerms == 0 || numeric) return;
+    statsTermOrdCounts = new LongCountTable();
+  }
+
+  /**
+   * @return true if the stats field is numeric: the values of its terms must then be
+   *         set with {@link #setStatsTermValues} before {@link #facetTermNum} is called
+   */
+  public boolean isNumeric() {
+    return numeric;
+  }
+
+  /**
+   * @param statsTermValues the numeric value of every term of a mv stats field, by term number
+   */
+  public void setStatsTermValues(double[] statsTermValues) {
+    this.statsTermValues = statsTermValues;
   }
 
   BytesRef getTermText(int docID, BytesRef ret) {
@@ -85,71 +134,136 @@ public class FieldFacetStats {
     }
   }
 
+  /**
+   * @return the index of the facet value of a document in the arrays, or -1 if it has none
+   */
+  private int getIndex(int docID) {
+    int arrIdx = si.getOrd(docID) - startTermIndex;
+    return arrIdx >= 0 && arrIdx < nTerms ? arrIdx : -1;
+  }
+
+  private StatsValues getValues(int arrIdx) {
+    StatsValues stats = values[arrIdx];
+    if (stats == null) {
+      stats = values[arrIdx] = StatsValuesFactory.createStatsValues(field_sf);
+    }
+    return stats;
+  }
+
   public boolean facet(int docID, BytesRef v) {
-    int term = si.getOrd(docID);
-    int arrIdx = term - startTermIndex;
-    if (arrIdx >= 0 && arrIdx < nTerms) {
-      final BytesRef br = si.lookup(term, tempBR);
-      String key = (br == null)?null:facet_sf.getType().indexedToReadable(br.utf8ToString());
-      StatsValues stats = facetStatsValues.get(key);
-      if (stats == null) {
-        stats = StatsValuesFactory.createStatsValues(field_sf);
-        facetStatsValues.put(key, stats);
-      }
+    int arrIdx = getIndex(docID);
+    if (arrIdx < 0) return false;
+    if (v == null || v.length == 0) {
+      addMissing(arrIdx);
+      return false;
+    }
+    if (numeric) {
+      accumulate(arrIdx, ((Number) field_sf.getType().toObject(field_sf, v)).doubleValue(), 1);
+    } else {
+      getValues(arrIdx).accumulate(v);
+    }
+    return true;
+  }
 
-      if (v != null && v.length>0) {
-        stats.accumulate(v);
-      } else {
-        stats.missing();
-        return false;
-      }
-      return true;
+  /**
+   * Accumulates the value of a function for a document, see {@link StatsValuesFactory#createStatsValues}
+   */
+  public boolean facet(int docID, double value) {
+    int arrIdx = getIndex(docID);
+    if (arrIdx < 0) return false;
+    accumulate(arrIdx, value, 1);
+    return true;
+  }
+
+  /**
+   * Counts a document which has a facet value but no value in the stats field
+   */
+  public boolean missing(int docID) {
+    int arrIdx = getIndex(docID);
+    if (arrIdx < 0) return false;
+    addMissing(arrIdx);
+    return true;
+  }
+
+  private void addMissing(int arrIdx) {
+    if (numeric) {
+      missings[arrIdx]++;
+    } else {
+      getValues(arrIdx).missing();
     }
-    return false;
+  }
+
+  private void accumulate(int arrIdx, double value, int count) {
+    counts[arrIdx] += count;
+    if (value < mins[arrIdx]) mins[arrIdx] = value;
+    if (value > maxs[arrIdx]) maxs[arrIdx] = value;
+    sums[arrIdx] += value * count;
+    sumsOfSquares[arrIdx] += value * value * count;
   }
 
 
   // Function to keep track of facet counts for term number.
   // Currently only used by UnInvertedField stats
   public boolean facetTermNum(int docID, int statsTermNum) {
-
-    int term = si.getOrd(docID);
-    int arrIdx = term - startTermIndex;
-    if (arrIdx >= 0 && arrIdx < nTerms) {
-      final BytesRef br = si.lookup(term, tempBR);
-      String key = br == null ? null : br.utf8ToString();
-      HashMap<String, Integer> statsTermCounts = facetStatsTerms.get(statsTermNum);
-      Integer statsTermCount = statsTermCounts.get(key);
-      if (statsTermCount == null) {
-        statsTermCounts.put(key, 1);
-      } else {
-        statsTermCounts.put(key, statsTermCount + 1);
-      }
-      return true;
+    int arrIdx = getIndex(docID);
+    if (arrIdx < 0) return false;
+    if (numeric) {
+      accumulate(arrIdx, statsTermValues[statsTermNum], 1);
+    } else {
+      statsTermOrdCounts.add(((long) statsTermNum << 32) | arrIdx);
     }
-    return false;
+    return true;
   }
 
 
   //function to accumulate counts for statsTermNum to specified value
   public boolean accumulateTermNum(int statsTermNum, BytesRef value) {
     if (value == null) return false;
-    for (Map.Entry<String, Integer> stringIntegerEntry : facetStatsTerms.get(statsTermNum).entrySet()) {
-      Map.Entry pairs = (Map.Entry) stringIntegerEntry;
-      String key = (String) pairs.getKey();
-      StatsValues facetStats = facetStatsValues.get(key);
-      if (facetStats == null) {
-        facetStats = StatsValuesFactory.createStatsValues(field_sf);
-        facetStatsValues.put(key, facetStats);
-      }
-      Integer count = (Integer) pairs.getValue();
-      if (count != null) {
-        facetStats.accumulate(value, count);
-      }
+    // numeric values are accumulated as the terms are counted
+    if (numeric) return true;
+    if (statsTermOrdKeys == null) {
+      // the pairs grouped by stats term
+      statsTermOrdKeys = statsTermOrdCounts.keys();
+      Arrays.sort(statsTermOrdKeys);
+    }
+    long[] keys = statsTermOrdKeys;
+    int pos = Arrays.binarySearch(keys, (long) statsTermNum << 32);
+    if (pos < 0) pos = -pos - 1;
+    for (; pos < keys.length && (int) (keys[pos] >>> 32) == statsTermNum; pos++) {
+      getValues((int) keys[pos]).accumulate(value, statsTermOrdCounts.get(keys[pos]));
     }
     return true;
   }
 
-}
-
+  /**
+   * @return the statistics of every facet value which has documents, by readable facet value
+   */
+  public Map<String, StatsValues> getFacetStatsValues() {
+    facetStatsValues.clear();
+    FieldType ft = facet_sf.getType();
+    BytesRef br = new BytesRef();
+    CharsRef spare = new CharsRef();
+    for (int i = 0; i < nTerms; i++) {
+      StatsValues stats;
+      if (numeric) {
+        if (counts[i] == 0 && missings[i] == 0) continue;
+        NamedList<Object> stv = new NamedList<Object>();
+        stv.add("count", (long) counts[i]);
+        stv.add("missing", (long) missings[i]);
+        stv.add("min", mins[i]);
+        stv.add("max", maxs[i]);
+        stv.add("sum", sums[i]);
+        stv.add("sumOfSquares", sumsOfSquares[i]);
+        stats = StatsValuesFactory.createStatsValues(field_sf);
+        stats.accumulate(stv);
+      } else {
+        stats = values[i];
+        if (stats == null) continue;
+      }
+      BytesRef term = si.lookup(i + startTermIndex, br);
+      facetStatsValues.put(ft.indexedToReadable(term, spare).toString(), stats);
+    }
+    return facetStatsValues;
+  }
 
+}
@@ -17,9 +17,11 @@ package org.apache.solr.handler.component;
  */
 
 import java.net.ConnectException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -28,6 +30,8 @@ import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.client.HttpClient;
 import org.apache.solr.client.solrj.SolrRequest;
@@ -64,7 +68,9 @@ public class HttpShardHandler extends ShardHandler {
   private Map<String,List<String>> shardToURLs;
   private HttpClient httpClient;
 
-
+  // requests which may get a duplicate sent to another replica if they take too long
+  private Map<Future<ShardResponse>,HedgedRequest> hedged;
+  private List<HedgedRequest> armed;
 
   public HttpShardHandler(HttpShardHandlerFactory httpShardHandlerFactory, HttpClient httpClient) {
     this.httpClient = httpClient;
@@ -77,6 +83,31 @@ public class HttpShardHandler extends ShardHandler {
       // so that we use the same replica for all phases of a distributed request.
     shardToURLs = new HashMap<String,List<String>>();
 
+    hedged = new HashMap<Future<ShardResponse>,HedgedRequest>();
+    armed = new ArrayList<HedgedRequest>();
+  }
+
+  /**
+   * A request to a shard, whose first replica did not answer within its usual
+   * latency, and which is then sent to a second replica as well.  The first
+   * successful response is kept.
+   */
+  private static class HedgedRequest {
+    final ShardRequest sreq;
+    final String shard;
+    final ModifiableSolrParams params;
+    final List<String> urls;
+    final long deadline; // System.nanoTime() at which the duplicate is sent
+    final List<Future<ShardResponse>> attempts = new ArrayList<Future<ShardResponse>>(2);
+    boolean answered;
+
+    HedgedRequest(ShardRequest sreq, String shard, ModifiableSolrParams params, List<String> urls, long deadline) {
+      this.sreq = sreq;
+      this.shard = shard;
+      this.params = params;
+      this.urls = urls;
+      this.deadline = deadline;
+    }
   }
 
 
@@ -117,9 +148,13 @@ public class HttpShardHandler extends ShardHandler {
       // Shuffle the list instead of use round-robin by default.
       // This prevents accidental synchronization where multiple shards could get in sync
       // and query the same replica at the same time.
+      // With latency aware selection, the fastest replicas come first.
       //
-      if (urls.size() > 1)
+      if (httpShardHandlerFactory.replicaSelector != null) {
+        httpShardHandlerFactory.replicaSelector.sortURLs(shard, urls);
+      } else if (urls.size() > 1) {
         Collections.shuffle(urls, httpShardHandlerFactory.r);
+      }
       shardToURLs.put(shard, urls);
     }
     return urls;
@@ -130,7 +165,31 @@ public class HttpShardHandler extends ShardHandler {
     // do this outside of the callable for thread safety reasons
     final List<String> urls = getURLs(shard);
 
-    Callable<ShardResponse> task = new Callable<ShardResponse>() {
+    HedgedRequest hedge = null;
+    ReplicaSelector selector = httpShardHandlerFactory.replicaSelector;
+    if (selector != null && httpShardHandlerFactory.hedgePercentile > 0 && urls.size() > 1) {
+      long latency = selector.getStats(urls.get(0)).getPercentile(httpShardHandlerFactory.hedgePercentile);
+      if (latency >= 0) {
+        long delay = Math.max(latency, httpShardHandlerFactory.hedgeMinDelay);
+        hedge = new HedgedRequest(sreq, shard, new ModifiableSolrParams(params), urls,
+            System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+      }
+    }
+
+    Future<ShardResponse> future = completionService.submit(createTask(sreq, shard, params, urls));
+    pending.add(future);
+    if (hedge != null) {
+      hedge.attempts.add(future);
+      hedged.put(future, hedge);
+      armed.add(hedge);
+    }
+  }
+
+  private Callable<ShardResponse> createTask(final ShardRequest sreq, final String shard,
+      final ModifiableSolrParams params, final List<String> urls) {
+    final ReplicaSelector selector = httpShardHandlerFactory.replicaSelector;
+
+    return new Callable<ShardResponse>() {
       public ShardResponse call() throws Exception {
 
         ShardResponse srsp = new ShardResponse();
@@ -140,6 +199,12 @@ public class HttpShardHandler extends ShardHandler {
         srsp.setSolrResponse(ssr);
         long startTime = System.currentTimeMillis();
 
+        ReplicaSelector.ReplicaStats first = null;
+        if (selector != null && urls.size() > 0) {
+          first = selector.getStats(urls.get(0));
+          first.start();
+        }
+
         try {
           params.remove(CommonParams.WT); // use default (currently javabin)
           params.remove(CommonParams.VERSION);
@@ -183,11 +248,84 @@ public class HttpShardHandler extends ShardHandler {
 
         ssr.elapsedTime = System.currentTimeMillis() - startTime;
 
+        if (first != null) {
+          // a response from another replica means the first one failed
+          String address = srsp.getShardAddress();
+          boolean firstAnswered = srsp.getException() == null
+              && (address == null || LBHttpSolrServer.normalize(address).equals(LBHttpSolrServer.normalize(urls.get(0))));
+
+          first.end(ssr.elapsedTime, !firstAnswered);
+          if (srsp.getException() == null && !firstAnswered) {
+            ReplicaSelector.ReplicaStats other = selector.getStats(address);
+            other.start();
+            other.end(ssr.elapsedTime, false);
+          }
+        }
+
         return srsp;
       }
     };
+  }
+
+  /**
+   * Sends a duplicate of a request which takes too long to the next replica of its shard.
+   */
+  private void sendHedge(HedgedRequest hedge) {
+    Future<ShardResponse> future;
+    try {
+      future = completionService.submit(createTask(hedge.sreq, hedge.shard,
+          new ModifiableSolrParams(hedge.params), Collections.singletonList(hedge.urls.get(1))));
+    } catch (RejectedExecutionException e) {
+      // the executor is busy, don't make things worse
+      return;
+    }
+    httpShardHandlerFactory.replicaSelector.getStats(hedge.urls.get(0)).hedged();
+    pending.add(future);
+    hedge.attempts.add(future);
+    hedged.put(future, hedge);
+  }
+
+  /**
+   * Waits for the next completed request, sending the duplicates of the hedged
+   * requests which reach their deadline meanwhile.
+   */
+  private Future<ShardResponse> next() throws InterruptedException {
+    while (!armed.isEmpty()) {
+      long now = System.nanoTime();
+      long deadline = Long.MAX_VALUE;
+      for (Iterator<HedgedRequest> it = armed.iterator(); it.hasNext();) {
+        HedgedRequest hedge = it.next();
+        if (hedge.deadline - now <= 0) {
+          it.remove();
+          sendHedge(hedge);
+        } else {
+          deadline = Math.min(deadline, hedge.deadline);
+        }
+      }
+      if (deadline == Long.MAX_VALUE) break;
+      Future<ShardResponse> future = completionService.poll(deadline - now, TimeUnit.NANOSECONDS);
+      if (future != null) return future;
+    }
+    return completionService.take();
+  }
 
-    pending.add( completionService.submit(task) );
+  /**
+   * @return true if the response of a hedged request is the one to keep: the
+   *         first successful one, or the last failure
+   */
+  private boolean accept(HedgedRequest hedge, Future<ShardResponse> future, ShardResponse rsp) {
+    hedge.attempts.remove(future);
+    if (hedge.answered) return false;
+    if (rsp.getException() != null && !hedge.attempts.isEmpty()) return false;
+    hedge.answered = true;
+    armed.remove(hedge);
+    for (Future<ShardResponse> other : hedge.attempts) {
+      // let it complete, its response is ignored
+      other.cancel(false);
+      pending.remove(other);
+      hedged.remove(other);
+    }
+    return true;
   }
 
   /** returns a ShardResponse of the last response correlated with a ShardRequest.  This won't 
@@ -209,15 +347,20 @@ public class HttpShardHandler extends ShardHandler {
     
     while (pending.size() > 0) {
       try {
-        Future<ShardResponse> future = completionService.take();
-        pending.remove(future);
+        Future<ShardResponse> future = next();
+        if (!pending.remove(future)) continue; // cancelled
         ShardResponse rsp = future.get();
+        HedgedRequest hedge = hedged.remove(future);
+        if (hedge != null && !accept(hedge, future, rsp)) continue;
         if (bailOnError && rsp.getException() != null) return rsp; // if exception, return immediately
         // add response to the response list... we do this after the take() and
         // not after the completion of "call" so we know when the last response
         // for a request was received.  Otherwise we might return the same
         // request more than once.
         rsp.getShardRequest().responses.add(rsp);
+        if (responseListener != null && rsp.getException() == null) {
+          responseListener.onResponse(rsp);
+        }
         if (rsp.getShardRequest().responses.size() == rsp.getShardRequest().actualShards.length) {
           return rsp;
         }
@@ -234,6 +377,7 @@ public class HttpShardHandler extends ShardHandler {
 
 
   public void cancelAll() {
+    armed.clear();
     for (Future<ShardResponse> future : pending) {
       // TODO: any issues with interrupting?  shouldn't be if
       // there are finally blocks to release connections.
@@ -61,6 +61,11 @@ public class HttpShardHandlerFactory extends ShardHandlerFactory implements Plug
   int keepAliveTime = 5;
   int queueSize = -1;
   boolean accessPolicy = false;
+  // null for random replica selection
+  ReplicaSelector replicaSelector;
+  double hedgePercentile = 0;
+  long hedgeMinDelay = 10;
+  long probeInterval = 10000;
 
   public String scheme = "http://"; //current default values
 
@@ -84,6 +89,19 @@ public class HttpShardHandlerFactory extends ShardHandlerFactory implements Plug
   // Configure if the threadpool favours fairness over throughput
   static final String INIT_FAIRNESS_POLICY = "fairnessPolicy";
 
+  // How the replica of a shard is chosen: "random" (the default) shuffles them, "latency" favours the fastest ones
+  static final String INIT_REPLICA_SELECTION = "replicaSelection";
+
+  // With latency selection, the percentile of the latency of a replica after which a duplicate request is sent
+  // to another replica of the shard, 0 (the default) disables hedged requests
+  static final String INIT_HEDGE_PERCENTILE = "hedgePercentile";
+
+  // The minimum delay in ms before sending a duplicate request
+  static final String INIT_HEDGE_MIN_DELAY = "hedgeMinDelay";
+
+  // A replica which was not queried for that many ms is tried again to refresh its latency
+  static final String INIT_PROBE_INTERVAL = "replicaProbeInterval";
+
   /**
    * Get {@link ShardHandler} that uses the default http client.
    */
@@ -110,6 +128,18 @@ public class HttpShardHandlerFactory extends ShardHandlerFactory implements Plug
     this.keepAliveTime = getParameter(args, MAX_THREAD_IDLE_TIME, keepAliveTime);
     this.queueSize = getParameter(args, INIT_SIZE_OF_QUEUE, queueSize);
     this.accessPolicy = getParameter(args, INIT_FAIRNESS_POLICY, accessPolicy);
+    String replicaSelection = getParameter(args, INIT_REPLICA_SELECTION, "random");
+    this.hedgePercentile = getParameter(args, INIT_HEDGE_PERCENTILE, (Number) hedgePercentile).doubleValue();
+    this.hedgeMinDelay = getParameter(args, INIT_HEDGE_MIN_DELAY, (Number) hedgeMinDelay).longValue();
+    this.probeInterval = getParameter(args, INIT_PROBE_INTERVAL, (Number) probeInterval).longValue();
+    if ("latency".equals(replicaSelection)) {
+      this.replicaSelector = new ReplicaSelector(probeInterval, r);
+    } else if ("random".equals(replicaSelection)) {
+      this.replicaSelector = null;
+    } else {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "Unknown " + INIT_REPLICA_SELECTION + ": " + replicaSelection);
+    }
 
     BlockingQueue<Runnable> blockingQueue = (this.queueSize == -1) ?
         new SynchronousQueue<Runnable>(this.accessPolicy) :
@@ -140,6 +170,14 @@ public class HttpShardHandlerFactory extends ShardHandlerFactory implements Plug
 
   }
 
+  /**
+   * @return the latency statistics of the replicas of each shard, empty with random replica selection
+   */
+  public NamedList<Object> getReplicaStatistics() {
+    ReplicaSelector selector = replicaSelector;
+    return selector == null ? new NamedList<Object>() : selector.getStatistics();
+  }
+
   private <T> T getParameter(NamedList initArgs, String configKey, T defaultValue) {
     T toReturn = defaultValue;
     if (initArgs != null) {
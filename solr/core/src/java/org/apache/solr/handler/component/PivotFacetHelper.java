@@ -42,6 +42,7 @@ import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.request.SimpleFacets;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.TimeBudget;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.DocSet;
@@ -96,14 +97,14 @@ public class PivotFacetHelper
             "Pivot Facet needs at least two fields: "+pivot );
       }
       
-      DocSet docs = rb.getResults().docSet;
+      DocSet docs = SamplingHelper.getDocSet(rb);
       String field = fields[0];      
       Deque<String> fnames = new LinkedList<String>();
       for( int i=fields.length-1; i>1; i-- ) {
         fnames.push(fields[i]);
       }
       
-      SimpleFacets sf = getFacetImplementation(rb.req, rb.getResults().docSet, params);
+      SimpleFacets sf = getFacetImplementation(rb.req, docs, params);
       NamedList<Integer> superFacets = sf.getTermCounts(field);
       
       if(fields.length > 1) {
@@ -141,7 +142,9 @@ public class PivotFacetHelper
     
     List<NamedList<Object>> values = new ArrayList<NamedList<Object>>( superFacets.size() );
     
+    TimeBudget budget = TimeBudget.get(rb.req);
     for (Map.Entry<String, Integer> kv : superFacets) {
+      if (budget.isSpent("facet_pivot")) break;
       // Only sub-facet if parent facet has positive count - still may not be any values for the sub-field though
       if (kv.getValue() >= minMatch ) {
         // don't reuse the same BytesRef  each time since we will be constructing Term
@@ -1,7 +1,10 @@
 package org.apache.solr.handler.component;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -15,6 +18,7 @@ import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.params.StatsParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.request.TimeBudget;
 import org.apache.solr.search.DocSet;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.QParserPlugin;
@@ -121,6 +125,9 @@ public class RatiosComponent extends SearchComponent {
         stopwatch.reset();
         
         // ====== stats for 2nd
+        if (TimeBudget.get(rb.req).isSpent(RatiosParams.RATIOS)) {
+          return;
+        }
         stopwatch.start();
         SimpleStats stats2 = new SimpleStats(rb.req, set2, xp);
         NamedList<?> map2 = stats2.getFieldCacheStats(measure, new String[] { dimension });
@@ -242,13 +249,29 @@ public class RatiosComponent extends SearchComponent {
     }
   }
   
+  @Override
+  public void handleShardResponse(ResponseBuilder rb, ShardResponse srsp) {
+    if (!rb.doRatios || (srsp.getShardRequest().purpose & ShardRequest.PURPOSE_GET_RATIOS) == 0) return;
+
+    accumulate(rb._statsInfo, Collections.singletonList(srsp));
+    rb._statsInfo.mergedRatios.add(srsp);
+  }
+
   @Override
   public void handleResponses(ResponseBuilder rb, ShardRequest sreq) {
     if (!rb.doRatios || (sreq.purpose & ShardRequest.PURPOSE_GET_RATIOS) == 0) return;
 
     StatsInfo si = rb._statsInfo;
 
+    List<ShardResponse> responses = new ArrayList<ShardResponse>();
     for (ShardResponse srsp : sreq.responses) {
+      if (!si.mergedRatios.remove(srsp)) responses.add(srsp);
+    }
+    accumulate(si, responses);
+  }
+
+  private void accumulate(StatsInfo si, List<ShardResponse> responses) {
+    for (ShardResponse srsp : responses) {
       NamedList<?> stats = (NamedList<?>) srsp.getSolrResponse().getResponse().get(RatiosParams.RATIOS);
 
       NamedList<?> stats_fields = (NamedList<?>) stats.get("stats_fields");
@@ -260,6 +283,7 @@ public class RatiosComponent extends SearchComponent {
           stv.accumulate(shardStv);
         }
       }
+      srsp.getSolrResponse().getResponse().remove(RatiosParams.RATIOS);
     }
   }
   
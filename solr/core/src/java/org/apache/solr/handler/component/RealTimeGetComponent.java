@@ -65,6 +65,9 @@ public class RealTimeGetComponent extends SearchComponent
   public static Logger log = LoggerFactory.getLogger(UpdateLog.class);
   public static final String COMPONENT_NAME = "get";
 
+  /** Separates the low and high end of a range of versions in the getUpdates parameter */
+  public static final String VERSION_RANGE_SEPARATOR = "...";
+
   @Override
   public void prepare(ResponseBuilder rb) throws IOException {
     // Set field flags
@@ -524,6 +527,8 @@ public class RealTimeGetComponent extends SearchComponent
     boolean cantReachIsSuccess = rb.req.getParams().getBool("cantReachIsSuccess", false);
     
     PeerSync peerSync = new PeerSync(rb.req.getCore(), replicas, nVersions, cantReachIsSuccess);
+    peerSync.setUpdatesPerRequest(rb.req.getParams().getInt("updatesPerRequest", PeerSync.DEFAULT_UPDATES_PER_REQUEST));
+
     boolean success = peerSync.sync();
     
     // TODO: more complex response?
@@ -547,7 +552,18 @@ public class RealTimeGetComponent extends SearchComponent
     UpdateLog ulog = req.getCore().getUpdateHandler().getUpdateLog();
     if (ulog == null) return;
 
-    List<String> versions = StrUtils.splitSmart(versionsStr, ",", true);
+    // the list contains single versions and ranges of absolute versions written as low...high
+    List<Long> versions = new ArrayList<Long>();
+    List<long[]> ranges = new ArrayList<long[]>();
+    for (String versionStr : StrUtils.splitSmart(versionsStr, ",", true)) {
+      int sep = versionStr.indexOf(VERSION_RANGE_SEPARATOR);
+      if (sep > 0) {
+        ranges.add(new long[] {Long.parseLong(versionStr.substring(0, sep)),
+            Long.parseLong(versionStr.substring(sep + VERSION_RANGE_SEPARATOR.length()))});
+      } else {
+        versions.add(Long.parseLong(versionStr));
+      }
+    }
 
     // TODO: get this from cache instead of rebuilding?
     UpdateLog.RecentUpdates recentUpdates = ulog.getRecentUpdates();
@@ -557,12 +573,9 @@ public class RealTimeGetComponent extends SearchComponent
     long minVersion = Long.MAX_VALUE;
     
     try {
-      for (String versionStr : versions) {
-        long version = Long.parseLong(versionStr);
+      for (Object o : recentUpdates.lookup(versions, ranges)) {
         try {
-          Object o = recentUpdates.lookup(version);
-          if (o == null) continue;
-
+          long version = (Long) ((List) o).get(1);
           if (version > 0) {
             minVersion = Math.min(minVersion, version);
           }
@@ -570,8 +583,6 @@ public class RealTimeGetComponent extends SearchComponent
           // TODO: do any kind of validation here?
           updates.add(o);
 
-        } catch (SolrException e) {
-          log.warn("Exception reading log for updates", e);
         } catch (ClassCastException e) {
           log.warn("Exception reading log for updates", e);
         }
@@ -0,0 +1,235 @@
+package org.apache.solr.handler.component;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * Orders the replicas of a shard for {@link HttpShardHandler} by their expected
+ * response time: the exponentially weighted moving average of their latency,
+ * scaled by their number of outstanding requests.  Replicas without any
+ * statistics, or which were not queried for a while, come first so that their
+ * statistics do not go stale.  Ties are broken randomly.
+ */
+public class ReplicaSelector {
+
+  /** weight of the latest response in the moving average */
+  static final double ALPHA = 0.3;
+
+  /** number of recent latencies kept, per replica, for the percentiles */
+  static final int WINDOW = 128;
+
+  /** percentiles are only computed with at least that many latencies */
+  static final int MIN_SAMPLES = 16;
+
+  private final Map<String,ReplicaStats> stats = new ConcurrentHashMap<String,ReplicaStats>();
+  private final Map<String,Set<String>> shards = new ConcurrentHashMap<String,Set<String>>();
+  private final long probeIntervalNs;
+  private final Random r;
+
+  /**
+   * @param probeInterval a replica which did not answer for that many ms is tried again
+   */
+  public ReplicaSelector(long probeInterval, Random r) {
+    this.probeIntervalNs = probeInterval * 1000000L;
+    this.r = r;
+  }
+
+  public ReplicaStats getStats(String url) {
+    ReplicaStats replica = stats.get(url);
+    if (replica == null) {
+      synchronized (stats) {
+        replica = stats.get(url);
+        if (replica == null) {
+          replica = new ReplicaStats();
+          stats.put(url, replica);
+        }
+      }
+    }
+    return replica;
+  }
+
+  /**
+   * Sorts the urls of a shard, the most likely to answer first comes first.
+   */
+  public void sortURLs(String shard, List<String> urls) {
+    Set<String> known = shards.get(shard);
+    if (known == null || known.size() != urls.size() || !known.containsAll(urls)) {
+      updateReplicas(shard, urls);
+    }
+    if (urls.size() <= 1) return;
+
+    Collections.shuffle(urls, r);
+    long now = System.nanoTime();
+    final double[] scores = new double[urls.size()];
+    Integer[] order = new Integer[urls.size()];
+    for (int i = 0; i < scores.length; i++) {
+      scores[i] = getStats(urls.get(i)).score(now, probeIntervalNs);
+      order[i] = i;
+    }
+    // the sort is stable, equal scores keep their shuffled order
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Double.compare(scores[a], scores[b]);
+      }
+    });
+    List<String> sorted = new ArrayList<String>(urls.size());
+    for (int i : order) {
+      sorted.add(urls.get(i));
+    }
+    for (int i = 0; i < sorted.size(); i++) {
+      urls.set(i, sorted.get(i));
+    }
+  }
+
+  /**
+   * Registers the current replicas of a shard and drops the statistics of
+   * the replicas which are gone.
+   */
+  private synchronized void updateReplicas(String shard, List<String> urls) {
+    Set<String> previous = shards.put(shard, new CopyOnWriteArraySet<String>(urls));
+    if (previous == null) return;
+    for (String url : previous) {
+      if (!urls.contains(url) && !isReplica(url)) {
+        stats.remove(url);
+      }
+    }
+  }
+
+  private boolean isReplica(String url) {
+    for (Set<String> replicas : shards.values()) {
+      if (replicas.contains(url)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the statistics of the replicas, by shard
+   */
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> lst = new SimpleOrderedMap<Object>();
+    for (Map.Entry<String,Set<String>> shard : shards.entrySet()) {
+      NamedList<Object> replicas = new SimpleOrderedMap<Object>();
+      for (String url : shard.getValue()) {
+        ReplicaStats replica = stats.get(url);
+        if (replica != null) {
+          replicas.add(url, replica.getStatistics());
+        }
+      }
+      lst.add(shard.getKey(), replicas);
+    }
+    return lst;
+  }
+
+  /**
+   * Latency statistics of a single replica.
+   */
+  public static class ReplicaStats {
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final long[] window = new long[WINDOW];
+    private int windowPos;
+    private int windowSize;
+    private double ewma = -1;
+    private long lastResponse;
+    private long requests;
+    private long errors;
+    private long hedges;
+
+    /** Called when a request is sent to the replica */
+    public void start() {
+      outstanding.incrementAndGet();
+    }
+
+    /**
+     * Called when the request completes.
+     * @param latency elapsed time in ms
+     * @param error true if the replica failed to answer, the latency is then
+     *        not used but the replica is penalized
+     */
+    public synchronized void end(long latency, boolean error) {
+      outstanding.decrementAndGet();
+      requests++;
+      lastResponse = System.nanoTime();
+      if (error) {
+        errors++;
+        ewma = Math.max(2 * Math.max(ewma, 1), latency);
+        return;
+      }
+      ewma = ewma < 0 ? latency : ALPHA * latency + (1 - ALPHA) * ewma;
+      window[windowPos] = latency;
+      windowPos = (windowPos + 1) % WINDOW;
+      windowSize = Math.min(windowSize + 1, WINDOW);
+    }
+
+    /** Called when a duplicate request was sent because this replica was slow */
+    public synchronized void hedged() {
+      hedges++;
+    }
+
+    synchronized double score(long now, long probeIntervalNs) {
+      if (ewma < 0 || now - lastResponse > probeIntervalNs) return 0;
+      return ewma * (1 + outstanding.get());
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the percentile of the recent latencies, in ms, or -1 if there are
+     *         not enough of them
+     */
+    public synchronized long getPercentile(double percentile) {
+      if (windowSize < MIN_SAMPLES) return -1;
+      long[] sorted = Arrays.copyOf(window, windowSize);
+      Arrays.sort(sorted);
+      int idx = (int) Math.ceil(percentile / 100 * windowSize) - 1;
+      return sorted[Math.max(0, Math.min(windowSize - 1, idx))];
+    }
+
+    public int getOutstanding() {
+      return outstanding.get();
+    }
+
+    public synchronized double getAverageLatency() {
+      return ewma;
+    }
+
+    synchronized NamedList<Object> getStatistics() {
+      NamedList<Object> lst = new SimpleOrderedMap<Object>();
+      lst.add("requests", requests);
+      lst.add("errors", errors);
+      lst.add("hedges", hedges);
+      lst.add("outstanding", outstanding.get());
+      lst.add("avgLatency", (float) ewma);
+      lst.add("p50", getPercentile(50));
+      lst.add("p99", getPercentile(99));
+      return lst;
+    }
+  }
+}
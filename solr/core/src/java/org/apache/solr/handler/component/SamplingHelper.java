@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.handler.component;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.SamplingParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.DocSetSampler;
+
+/**
+ * Computes the facets, percentiles and stats of a request on a sample of the
+ * matching documents when the <code>sample</code> parameter is set.  The
+ * counts, sums and totals are scaled to estimates for all the documents (the
+ * shards scale their own results, which the coordinator adds up as usual), and
+ * the margins of error of the estimates, at a 95% confidence, are returned in
+ * the <code>sampling</code> section of the response.  Note that facet.mincount
+ * and the facet limits apply to the counts of the sample.
+ *
+ * @see DocSetSampler
+ */
+public class SamplingHelper {
+  public static final String SAMPLING = "sampling";
+
+  /** the z-score of a 95% confidence */
+  static final double Z = 1.96;
+
+  private static final String CONTEXT_KEY = "sampledDocSet";
+
+  /**
+   * @return the fraction of the documents which are sampled, 1 if the request is not sampled
+   */
+  public static double getRate(SolrParams params) {
+    double rate = params.getDouble(SamplingParams.SAMPLE, 1d);
+    if (!(rate > 0 && rate <= 1)) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+          SamplingParams.SAMPLE + " must be in (0, 1]: " + rate);
+    }
+    return rate;
+  }
+
+  /**
+   * @return the documents to compute the facets and stats on: a sample of the
+   *         results, or all of them
+   */
+  public static DocSet getDocSet(ResponseBuilder rb) throws IOException {
+    DocSet docs = rb.getResults().docSet;
+    double rate = getRate(rb.req.getParams());
+    if (rate == 1) return docs;
+
+    // the facets, pivots and stats share the same sample
+    Map<Object,Object> context = rb.req.getContext();
+    DocSet sample = (DocSet) context.get(CONTEXT_KEY);
+    if (sample == null) {
+      sample = sample(rb.req, docs);
+      context.put(CONTEXT_KEY, sample);
+    }
+    return sample;
+  }
+
+  /**
+   * @return the sample of docs at the rate and seed of the request, such as the
+   *         base of a facet which excludes some filters
+   */
+  public static DocSet sample(SolrQueryRequest req, DocSet docs) throws IOException {
+    double rate = getRate(req.getParams());
+    if (rate == 1) return docs;
+    int seed = req.getParams().getInt(SamplingParams.SAMPLE_SEED, DocSetSampler.DEFAULT_SEED);
+    return DocSetSampler.sample(req.getSearcher(), docs, rate, seed);
+  }
+
+  static int scale(int count, double rate) {
+    return (int) Math.min(Integer.MAX_VALUE, Math.round(count / rate));
+  }
+
+  /**
+   * @return the margin of error of a count estimated from a sample
+   */
+  static double countMargin(long count, double rate) {
+    // the sample has count * rate documents, with a binomial variance
+    return Z * Math.sqrt(count * (1 - rate) / rate);
+  }
+
+  /**
+   * Scales the facet counts computed on a sample
+   */
+  @SuppressWarnings("unchecked")
+  public static void scaleFacetCounts(NamedList<Object> counts, double rate) {
+    scaleCounts((NamedList<Object>) counts.get("facet_queries"), rate);
+    NamedList<Object> fields = (NamedList<Object>) counts.get("facet_fields");
+    if (fields != null) {
+      for (int i = 0; i < fields.size(); i++) {
+        scaleCounts((NamedList<Object>) fields.getVal(i), rate);
+      }
+    }
+    NamedList<Object> dates = (NamedList<Object>) counts.get("facet_dates");
+    if (dates != null) {
+      for (int i = 0; i < dates.size(); i++) {
+        // the counts of the dates are next to their gap, start and end
+        scaleCounts((NamedList<Object>) dates.getVal(i), rate);
+      }
+    }
+    NamedList<Object> ranges = (NamedList<Object>) counts.get("facet_ranges");
+    if (ranges != null) {
+      for (int i = 0; i < ranges.size(); i++) {
+        NamedList<Object> range = (NamedList<Object>) ranges.getVal(i);
+        scaleCounts((NamedList<Object>) range.get("counts"), rate);
+        for (String other : new String[] {"before", "after", "between"}) {
+          scaleCount(range, other, rate);
+        }
+      }
+    }
+    scalePercentiles((NamedList<Object>) counts.get("facet_statistics"), rate);
+    NamedList<Object> pivots = (NamedList<Object>) counts.get(FacetComponent.PIVOT_KEY);
+    if (pivots != null) {
+      for (int i = 0; i < pivots.size(); i++) {
+        scalePivots((List<NamedList<Object>>) pivots.getVal(i), rate);
+      }
+    }
+  }
+
+  /** scales all the Integer values of a list */
+  private static void scaleCounts(NamedList<Object> counts, double rate) {
+    if (counts == null) return;
+    for (int i = 0; i < counts.size(); i++) {
+      if (counts.getVal(i) instanceof Integer) {
+        counts.setVal(i, scale((Integer) counts.getVal(i), rate));
+      }
+    }
+  }
+
+  private static void scaleCount(NamedList<Object> list, String name, double rate) {
+    int idx = list.indexOf(name, 0);
+    if (idx >= 0 && list.getVal(idx) instanceof Integer) {
+      list.setVal(idx, scale((Integer) list.getVal(idx), rate));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void scalePercentiles(NamedList<Object> statistics, double rate) {
+    if (statistics == null) return;
+    for (int i = 0; i < statistics.size(); i++) {
+      NamedList<Object> field = (NamedList<Object>) statistics.getVal(i);
+      if (field == null) continue;
+      // the percentiles do not change, only the counts of the buckets and the totals
+      scaleCounts((NamedList<Object>) field.get(FacetParams.PERCENTILE_BUCKETS), rate);
+      scaleCount(field, FacetParams.PERCENTILE_SHARD_TOTAL_COUNT, rate);
+      scaleCount(field, "percentiles_count", rate);
+      int idx = field.indexOf("percentiles_sum", 0);
+      if (idx >= 0) {
+        field.setVal(idx, ((Number) field.getVal(idx)).doubleValue() / rate);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void scalePivots(List<NamedList<Object>> pivots, double rate) {
+    if (pivots == null) return;
+    for (NamedList<Object> pivot : pivots) {
+      scaleCount(pivot, "count", rate);
+      scalePercentiles((NamedList<Object>) pivot.get("statistics"), rate);
+      Object sub = pivot.get("pivot");
+      if (sub instanceof List) {
+        scalePivots((List<NamedList<Object>>) sub, rate);
+      }
+    }
+  }
+
+  /**
+   * Scales the counts and sums of the stats computed on a sample
+   */
+  @SuppressWarnings("unchecked")
+  public static void scaleStats(NamedList<Object> statsFields, double rate) {
+    if (statsFields == null) return;
+    for (int i = 0; i < statsFields.size(); i++) {
+      NamedList<Object> stats = (NamedList<Object>) statsFields.getVal(i);
+      if (stats == null) continue;
+      for (int j = 0; j < stats.size(); j++) {
+        String name = stats.getName(j);
+        Object val = stats.getVal(j);
+        if (val instanceof Long && ("count".equals(name) || "missing".equals(name))) {
+          stats.setVal(j, Math.round((Long) val / rate));
+        } else if (val instanceof Double && ("sum".equals(name) || "sumOfSquares".equals(name))) {
+          stats.setVal(j, (Double) val / rate);
+        }
+      }
+      NamedList<Object> facets = (NamedList<Object>) stats.get("facets");
+      if (facets != null) {
+        for (int j = 0; j < facets.size(); j++) {
+          scaleStats((NamedList<Object>) facets.getVal(j), rate);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the sampling section of the response
+   */
+  @SuppressWarnings("unchecked")
+  private static NamedList<Object> getSection(ResponseBuilder rb, double rate) {
+    NamedList<Object> section = (NamedList<Object>) rb.rsp.getValues().get(SAMPLING);
+    if (section == null) {
+      section = new SimpleOrderedMap<Object>();
+      section.add("rate", rate);
+      section.add("confidence", 0.95);
+      rb.rsp.add(SAMPLING, section);
+    }
+    return section;
+  }
+
+  /**
+   * Adds the margins of error of the final facet counts to the response
+   */
+  @SuppressWarnings("unchecked")
+  public static void addFacetMargins(ResponseBuilder rb, NamedList<Object> counts, double rate) {
+    NamedList<Object> margins = new SimpleOrderedMap<Object>();
+    NamedList<Object> queries = (NamedList<Object>) counts.get("facet_queries");
+    if (queries != null && queries.size() > 0) {
+      margins.add("facet_queries", countMargins(queries, rate));
+    }
+    NamedList<Object> fields = (NamedList<Object>) counts.get("facet_fields");
+    if (fields != null && fields.size() > 0) {
+      NamedList<Object> fieldMargins = new SimpleOrderedMap<Object>();
+      for (int i = 0; i < fields.size(); i++) {
+        fieldMargins.add(fields.getName(i), countMargins((NamedList<Object>) fields.getVal(i), rate));
+      }
+      margins.add("facet_fields", fieldMargins);
+    }
+    NamedList<Object> ranges = (NamedList<Object>) counts.get("facet_ranges");
+    if (ranges != null && ranges.size() > 0) {
+      NamedList<Object> rangeMargins = new SimpleOrderedMap<Object>();
+      for (int i = 0; i < ranges.size(); i++) {
+        NamedList<Object> range = (NamedList<Object>) ranges.getVal(i);
+        rangeMargins.add(ranges.getName(i), countMargins((NamedList<Object>) range.get("counts"), rate));
+      }
+      margins.add("facet_ranges", rangeMargins);
+    }
+    getSection(rb, rate).add("facet_counts", margins);
+  }
+
+  private static NamedList<Object> countMargins(NamedList<Object> counts, double rate) {
+    NamedList<Object> margins = new NamedList<Object>();
+    if (counts == null) return margins;
+    for (int i = 0; i < counts.size(); i++) {
+      if (counts.getVal(i) instanceof Number) {
+        margins.add(counts.getName(i), countMargin(((Number) counts.getVal(i)).longValue(), rate));
+      }
+    }
+    return margins;
+  }
+
+  /**
+   * Adds the margins of error of the final means and sums to the response
+   */
+  @SuppressWarnings("unchecked")
+  public static void addStatsMargins(ResponseBuilder rb, NamedList<Object> statsFields, double rate) {
+    NamedList<Object> margins = new SimpleOrderedMap<Object>();
+    for (int i = 0; i < statsFields.size(); i++) {
+      NamedList<Object> stats = (NamedList<Object>) statsFields.getVal(i);
+      if (stats == null || !(stats.get("stddev") instanceof Number)) continue;
+      long count = ((Number) stats.get("count")).longValue();
+      double stddev = ((Number) stats.get("stddev")).doubleValue();
+      // the mean of the sample has a standard error of stddev / sqrt(sample size)
+      double mean = count == 0 ? 0 : Z * stddev / Math.sqrt(Math.max(1, count * rate));
+      NamedList<Object> field = new SimpleOrderedMap<Object>();
+      field.add("count", countMargin(count, rate));
+      field.add("mean", mean);
+      field.add("sum", mean * count);
+      margins.add(statsFields.getName(i), field);
+    }
+    getSection(rb, rate).add("stats_fields", margins);
+  }
+}
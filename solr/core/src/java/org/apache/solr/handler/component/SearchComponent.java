@@ -62,6 +62,16 @@ public abstract class SearchComponent implements SolrInfoMBean, NamedListInitial
   public void modifyRequest(ResponseBuilder rb, SearchComponent who, ShardRequest sreq) {
   }
 
+  /**
+   * Called with every shard response as soon as it is received, before
+   * {@link #handleResponses} is called with all the responses of its request.
+   * Components which merge the shard responses incrementally do it here, and
+   * remove the merged part from the response so that it does not stay in
+   * memory while the other shards answer.
+   */
+  public void handleShardResponse(ResponseBuilder rb, ShardResponse srsp) {
+  }
+
   /** Called after all responses for a single request were received */
   public void handleResponses(ResponseBuilder rb, ShardRequest sreq) {
   }
@@ -21,12 +21,15 @@ import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.util.RTimer;
 import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.PluginInfo;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.RequestHandlerBase;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.TimeBudget;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.util.SolrPluginUtils;
 import org.apache.solr.util.plugin.PluginInfoInitialized;
@@ -35,6 +38,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -223,6 +227,8 @@ public class SearchHandler extends RequestHandlerBase implements SolrCoreAware ,
         }
       }
 
+      TimeBudget.addPartialResults(req, rsp);
+
     } else {
       // a distributed request
 
@@ -231,6 +237,24 @@ public class SearchHandler extends RequestHandlerBase implements SolrCoreAware ,
       }
       rb.finished = new ArrayList<ShardRequest>();
 
+      // the shards which ran out of time, with the parts they truncated
+      final NamedList<Object> truncatedShards = new SimpleOrderedMap<Object>();
+
+      // let the components merge the responses as they arrive
+      final ResponseBuilder builder = rb;
+      shardHandler1.setResponseListener(new ShardHandler.ResponseListener() {
+        public void onResponse(ShardResponse srsp) {
+          NamedList<?> header = (NamedList<?>) srsp.getSolrResponse().getResponse().get("responseHeader");
+          if (header != null && Boolean.TRUE.equals(header.get("partialResults"))) {
+            Object truncated = header.get("truncated");
+            truncatedShards.add(srsp.getShard(), truncated != null ? truncated : Collections.singletonList("query"));
+          }
+          for (SearchComponent c : components) {
+            c.handleShardResponse(builder, srsp);
+          }
+        }
+      });
+
       int nextStage = 0;
       do {
         rb.stage = nextStage;
@@ -317,6 +341,14 @@ public class SearchHandler extends RequestHandlerBase implements SolrCoreAware ,
 
         // we are done when the next stage is MAX_VALUE
       } while (nextStage != Integer.MAX_VALUE);
+
+      if (truncatedShards.size() > 0) {
+        NamedList<Object> header = rsp.getResponseHeader();
+        if (header.get("partialResults") == null) {
+          header.add("partialResults", Boolean.TRUE);
+        }
+        header.add("truncatedShards", truncatedShards);
+      }
     }
   }
 
@@ -335,6 +367,18 @@ public class SearchHandler extends RequestHandlerBase implements SolrCoreAware ,
     return sb.toString();
   }
 
+  @Override
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> lst = super.getStatistics();
+    if (shardHandlerFactory instanceof HttpShardHandlerFactory) {
+      NamedList<Object> replicas = ((HttpShardHandlerFactory) shardHandlerFactory).getReplicaStatistics();
+      if (replicas.size() > 0) {
+        lst.add("shardReplicas", replicas);
+      }
+    }
+    return lst;
+  }
+
   @Override
   public String getSource() {
     return "$URL: https://svn.apache.org/repos/asf/lucene/dev/branches/lucene_solr_4_0/solr/core/src/java/org/apache/solr/handler/component/SearchHandler.java $";
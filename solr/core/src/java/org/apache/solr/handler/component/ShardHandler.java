@@ -20,6 +20,17 @@ package org.apache.solr.handler.component;
 import org.apache.solr.common.params.ModifiableSolrParams;
 
 public abstract class ShardHandler {
+  /** Receives every successful shard response as soon as it is taken */
+  public static interface ResponseListener {
+    public void onResponse(ShardResponse srsp);
+  }
+
+  protected ResponseListener responseListener;
+
+  public void setResponseListener(ResponseListener responseListener) {
+    this.responseListener = responseListener;
+  }
+
   public abstract void checkDistributed(ResponseBuilder rb);
   public abstract void submit(ShardRequest sreq, String shard, ModifiableSolrParams params) ;
   public abstract ShardResponse takeCompletedIncludingErrors();
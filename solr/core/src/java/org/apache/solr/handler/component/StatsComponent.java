@@ -19,30 +19,53 @@ package org.apache.solr.handler.component;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.queries.function.FunctionQuery;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.valuesource.QueryValueSource;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.params.StatsParams;
 import org.apache.solr.common.params.ShardParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.TimeBudget;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.schema.TrieField;
 import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocSet;
+import org.apache.solr.search.FunctionQParserPlugin;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QueryParsing;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.request.UnInvertedField;
 
 /**
  * Stats component calculates simple statistics on numeric field values
- * 
+ * <p/>
+ * A stats.field can also be a function, such as
+ * <code>stats.field={!func key=revenue}product(price,qty)</code>: its values
+ * are computed per segment in a single pass over the documents, and its stats
+ * can be faceted with <code>f.revenue.stats.facet</code>.
  *
  * @since solr 1.4
  */
@@ -63,11 +86,20 @@ public class StatsComponent extends SearchComponent {
     if (rb.doStats) {
       SolrParams params = rb.req.getParams();
       SimpleStats s = new SimpleStats(rb.req,
-              rb.getResults().docSet,
+              SamplingHelper.getDocSet(rb),
               params );
+      NamedList<Object> stats = s.getStatsCounts();
+      double rate = SamplingHelper.getRate(params);
+      if (rate < 1) {
+        NamedList<Object> stats_fields = (NamedList<Object>) stats.get("stats_fields");
+        SamplingHelper.scaleStats(stats_fields, rate);
+        if (!params.getBool(ShardParams.IS_SHARD, false)) {
+          SamplingHelper.addStatsMargins(rb, stats_fields, rate);
+        }
+      }
 
       // TODO ???? add this directly to the response, or to the builder?
-      rb.rsp.add( "stats", s.getStatsCounts() );
+      rb.rsp.add( "stats", stats );
     }
   }
 
@@ -97,13 +129,29 @@ public class StatsComponent extends SearchComponent {
     }
   }
 
+  @Override
+  public void handleShardResponse(ResponseBuilder rb, ShardResponse srsp) {
+    if (!rb.doStats || (srsp.getShardRequest().purpose & ShardRequest.PURPOSE_GET_STATS) == 0) return;
+
+    accumulate(rb._statsInfo, Collections.singletonList(srsp));
+    rb._statsInfo.merged.add(srsp);
+  }
+
   @Override
   public void handleResponses(ResponseBuilder rb, ShardRequest sreq) {
     if (!rb.doStats || (sreq.purpose & ShardRequest.PURPOSE_GET_STATS) == 0) return;
 
     StatsInfo si = rb._statsInfo;
 
+    List<ShardResponse> responses = new ArrayList<ShardResponse>();
     for (ShardResponse srsp : sreq.responses) {
+      if (!si.merged.remove(srsp)) responses.add(srsp);
+    }
+    accumulate(si, responses);
+  }
+
+  private void accumulate(StatsInfo si, List<ShardResponse> responses) {
+    for (ShardResponse srsp : responses) {
       NamedList stats = (NamedList) srsp.getSolrResponse().getResponse().get("stats");
 
       NamedList stats_fields = (NamedList) stats.get("stats_fields");
@@ -115,6 +163,8 @@ public class StatsComponent extends SearchComponent {
           stv.accumulate(shardStv);
         }
       }
+      // release the shard stats while the other shards answer
+      srsp.getSolrResponse().getResponse().remove("stats");
     }
   }
 
@@ -139,6 +189,10 @@ public class StatsComponent extends SearchComponent {
     }
 
     rb.rsp.add("stats", stats);
+    double rate = SamplingHelper.getRate(rb.req.getParams());
+    if (rate < 1) {
+      SamplingHelper.addStatsMargins(rb, stats_fields, rate);
+    }
 
     rb._statsInfo = null;
   }
@@ -163,17 +217,52 @@ public class StatsComponent extends SearchComponent {
 class StatsInfo {
   Map<String, StatsValues> statsFields;
 
+  // the shard responses merged as soon as they were received, by the stats
+  // and the ratios components
+  Set<ShardResponse> merged = new HashSet<ShardResponse>();
+  Set<ShardResponse> mergedRatios = new HashSet<ShardResponse>();
+
   void parse(SolrParams params, ResponseBuilder rb) {
     statsFields = new HashMap<String, StatsValues>();
 
     String[] statsFs = params.getParams(StatsParams.STATS_FIELD);
     if (statsFs != null) {
       for (String field : statsFs) {
-        SchemaField sf = rb.req.getSchema().getField(field);
-        statsFields.put(field, StatsValuesFactory.createStatsValues(sf));
+        SolrParams localParams = getFunctionParams(field, params);
+        if (localParams != null) {
+          statsFields.put(getFunctionKey(localParams), StatsValuesFactory.createStatsValues(null));
+        } else {
+          SchemaField sf = rb.req.getSchema().getField(field);
+          statsFields.put(field, StatsValuesFactory.createStatsValues(sf));
+        }
       }
     }
   }
+
+  /**
+   * @return the local params of a stats.field which is a function, null if it is a field
+   */
+  static SolrParams getFunctionParams(String statsField, SolrParams params) {
+    if (!statsField.startsWith(QueryParsing.LOCALPARAM_START)) return null;
+    SolrParams localParams;
+    try {
+      localParams = QueryParsing.getLocalParams(statsField, params);
+    } catch (ParseException e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e);
+    }
+    if (localParams == null || !FunctionQParserPlugin.NAME.equals(localParams.get(QueryParsing.TYPE))) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+          "Only functions are supported as local params of stats.field: " + statsField);
+    }
+    return localParams;
+  }
+
+  /**
+   * @return the name of the stats of a function, the function itself unless a key is given
+   */
+  static String getFunctionKey(SolrParams localParams) {
+    return localParams.get(CommonParams.OUTPUT_KEY, localParams.get(QueryParsing.V));
+  }
 }
 
 
@@ -186,6 +275,8 @@ class SimpleStats {
   /** Searcher to use for all calculations */
   protected SolrIndexSearcher searcher;
   protected SolrQueryRequest req;
+  /** Bounds the time spent on the stats, see {@link TimeBudget} */
+  protected TimeBudget budget;
 
   public SimpleStats(SolrQueryRequest req,
                       DocSet docs,
@@ -194,6 +285,7 @@ class SimpleStats {
     this.searcher = req.getSearcher();
     this.docs = docs;
     this.params = params;
+    this.budget = TimeBudget.get(req);
   }
 
   public NamedList<Object> getStatsCounts() throws IOException {
@@ -208,6 +300,15 @@ class SimpleStats {
     boolean isShard = params.getBool(ShardParams.IS_SHARD, false);
     if (null != statsFs) {
       for (String f : statsFs) {
+        if (budget.isSpent("stats")) break;
+        SolrParams localParams = StatsInfo.getFunctionParams(f, params);
+        if (localParams != null) {
+          String key = StatsInfo.getFunctionKey(localParams);
+          String[] facets = params.getFieldParams(key, StatsParams.STATS_FACET);
+          NamedList<?> stv = getFunctionStats(f, facets == null ? new String[0] : facets);
+          res.add(key, isShard || (Long) stv.get("count") > 0 ? stv : null);
+          continue;
+        }
         String[] facets = params.getFieldParams(f, StatsParams.STATS_FACET);
         if (facets == null) {
           facets = new String[0]; // make sure it is something...
@@ -222,7 +323,7 @@ class SimpleStats {
         if (sf.multiValued() || ft.multiValuedFieldCache() || prefix!=null) {
           //use UnInvertedField for multivalued fields
           UnInvertedField uif = UnInvertedField.getUnInvertedField(f, searcher);
-          stv = uif.getStats(searcher, docs, facets).getStatsValues();
+          stv = uif.getStats(searcher, docs, facets, budget).getStatsValues();
         } else {
           stv = getFieldCacheStats(f, facets);
         }
@@ -252,6 +353,57 @@ class SimpleStats {
     if ( nTerms <= 0 || docs.size() <= 0 ) return allstats.getStatsValues();
 
     // don't worry about faceting if no documents match...
+    List<FieldFacetStats> facetStats = getFacetStats(sf, facet, nTerms);
+
+    // the numeric value of every term, resolved the first time a document has it
+    double[] termValues = null;
+    FixedBitSet resolved = null;
+    if (!facetStats.isEmpty() && facetStats.get(0).isNumeric()) {
+      termValues = new double[nTerms];
+      resolved = new FixedBitSet(nTerms);
+    }
+
+    final BytesRef tempBR = new BytesRef();
+    DocIterator iter = docs.iterator();
+    int n = 0;
+    while (iter.hasNext()) {
+      // checking the clock for every document would be too costly
+      if ((++n & 0xfff) == 0 && budget.isSpent("stats")) break;
+      int docID = iter.nextDoc();
+      int ord = si.getOrd(docID);
+      BytesRef raw = si.lookup(ord, tempBR);
+      if( raw.length > 0 ) {
+        allstats.accumulate(raw);
+      } else {
+        allstats.missing();
+      }
+
+      // now update the facets
+      if (termValues != null && raw.length > 0) {
+        if (!resolved.getAndSet(ord)) {
+          termValues[ord] = ((Number) sf.getType().toObject(sf, raw)).doubleValue();
+        }
+        for (FieldFacetStats f : facetStats) {
+          f.facet(docID, termValues[ord]);
+        }
+      } else {
+        for (FieldFacetStats f : facetStats) {
+          f.facet(docID, raw);
+        }
+      }
+    }
+
+    for (FieldFacetStats f : facetStats) {
+      allstats.addFacet(f.name, f.getFacetStatsValues());
+    }
+    return allstats.getStatsValues();
+  }
+
+  /**
+   * @param numStatsTerms the number of terms of a multi valued stats field, 0 otherwise
+   * @return the stats of sf, or of a function if sf is null, by value of every facet field
+   */
+  private List<FieldFacetStats> getFacetStats(SchemaField sf, String[] facet, int numStatsTerms) {
     List<FieldFacetStats> facetStats = new ArrayList<FieldFacetStats>();
     FieldCache.DocTermsIndex facetTermsIndex;
     for( String facetField : facet ) {
@@ -269,28 +421,82 @@ class SimpleStats {
         throw new RuntimeException( "failed to open field cache for: "
           + facetField, e );
       }
-      facetStats.add(new FieldFacetStats(facetField, facetTermsIndex, sf, fsf, nTerms));
+      facetStats.add(new FieldFacetStats(facetField, facetTermsIndex, sf, fsf, numStatsTerms));
     }
-    
-    final BytesRef tempBR = new BytesRef();
-    DocIterator iter = docs.iterator();
-    while (iter.hasNext()) {
-      int docID = iter.nextDoc();
-      BytesRef raw = si.lookup(si.getOrd(docID), tempBR);
-      if( raw.length > 0 ) {
-        allstats.accumulate(raw);
-      } else {
-        allstats.missing();
-      }
+    return facetStats;
+  }
 
-      // now update the facets
-      for (FieldFacetStats f : facetStats) {
-        f.facet(docID, raw);
+  /**
+   * Computes the stats of a function, segment by segment.  Documents for which
+   * the function has no value are counted as missing.
+   *
+   * @param statsField the function, with its local params
+   */
+  public NamedList<?> getFunctionStats(String statsField, String[] facet) throws IOException {
+    ValueSource vs;
+    try {
+      Query q = QParser.getParser(statsField, FunctionQParserPlugin.NAME, req).getQuery();
+      vs = q instanceof FunctionQuery ? ((FunctionQuery) q).getValueSource() : new QueryValueSource(q, 0.0f);
+    } catch (ParseException e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e);
+    }
+
+    StatsValues allstats = StatsValuesFactory.createStatsValues(null);
+    if (docs.size() <= 0) return allstats.getStatsValues();
+    List<FieldFacetStats> facetStats = getFacetStats(null, facet, 0);
+
+    // accumulated in primitives, then merged into allstats once
+    long count = 0;
+    long missing = 0;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    double sum = 0;
+    double sumOfSquares = 0;
+
+    Map context = ValueSource.newContext(searcher);
+    vs.createWeight(context, searcher);
+    Filter filter = docs.getTopFilter();
+    int n = 0;
+    segments:
+    for (AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+      DocIdSet idSet = filter.getDocIdSet(leaf, null);  // this set only includes live docs
+      DocIdSetIterator iter = idSet == null ? null : idSet.iterator();
+      if (iter == null) continue;
+      FunctionValues values = vs.getValues(context, leaf);
+      int doc;
+      while ((doc = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        // checking the clock for every document would be too costly
+        if ((++n & 0xfff) == 0 && budget.isSpent("stats")) break segments;
+        int docID = leaf.docBase + doc;
+        if (values.exists(doc)) {
+          double v = values.doubleVal(doc);
+          count++;
+          if (v < min) min = v;
+          if (v > max) max = v;
+          sum += v;
+          sumOfSquares += v * v;
+          for (FieldFacetStats f : facetStats) {
+            f.facet(docID, v);
+          }
+        } else {
+          missing++;
+          for (FieldFacetStats f : facetStats) {
+            f.missing(docID);
+          }
+        }
       }
     }
 
+    NamedList<Object> stv = new NamedList<Object>();
+    stv.add("count", count);
+    stv.add("missing", missing);
+    stv.add("min", min);
+    stv.add("max", max);
+    stv.add("sum", sum);
+    stv.add("sumOfSquares", sumOfSquares);
+    allstats.accumulate(stv);
     for (FieldFacetStats f : facetStats) {
-      allstats.addFacet(f.name, f.facetStatsValues);
+      allstats.addFacet(f.name, f.getFacetStatsValues());
     }
     return allstats.getStatsValues();
   }
@@ -35,10 +35,14 @@ public class StatsValuesFactory {
   /**
    * Creates an instance of StatsValues which supports values from a field of the given FieldType
    *
-   * @param sf SchemaField for the field whose statistics will be created by the resulting StatsValues
+   * @param sf SchemaField for the field whose statistics will be created by the resulting StatsValues,
+   *           or null for the values of a function, which are numeric
    * @return Instance of StatsValues that will create statistics from values from a field of the given type
    */
   public static StatsValues createStatsValues(SchemaField sf) {
+    if (sf == null) {
+      return new NumericStatsValues(null);
+    }
     FieldType fieldType = sf.getType();
     if (DoubleField.class.isInstance(fieldType) ||
         IntField.class.isInstance(fieldType) ||
@@ -83,7 +87,7 @@ abstract class AbstractStatsValues<T> implements StatsValues {
 
   protected AbstractStatsValues(SchemaField sf) {
     this.sf = sf;
-    this.ft = sf.getType();
+    this.ft = sf == null ? null : sf.getType();
   }
 
   /**
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.handler.loader;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+
+/**
+ * Loads CSV rows straight into an {@link IndexWriter}, bypassing the update
+ * handler: no versions are assigned, nothing is written to the update log and
+ * existing documents with the same uniqueKey are not overwritten.  All the
+ * parameters of the regular CSV loader apply.
+ *
+ * @see org.apache.solr.handler.BulkLoadRequestHandler
+ */
+public class CSVBulkLoader extends CSVLoaderBase {
+
+  /**
+   * @param writer the writer to add the documents to
+   * @param rows incremented for every row that is added
+   */
+  public CSVBulkLoader(SolrQueryRequest req, IndexWriter writer, AtomicLong rows) {
+    super(req, new IndexWriterProcessor(writer, req.getSchema(), rows));
+  }
+
+  @Override
+  void addDoc(int line, String[] vals) throws IOException {
+    templateAdd.clear();
+    doAdd(line, vals, new SolrInputDocument(), templateAdd);
+  }
+
+  /** The end of the line: adds the documents to the writer */
+  private static class IndexWriterProcessor extends UpdateRequestProcessor {
+    private final IndexWriter writer;
+    private final IndexSchema schema;
+    private final AtomicLong rows;
+
+    IndexWriterProcessor(IndexWriter writer, IndexSchema schema, AtomicLong rows) {
+      super(null);
+      this.writer = writer;
+      this.schema = schema;
+      this.rows = rows;
+    }
+
+    @Override
+    public void processAdd(AddUpdateCommand cmd) throws IOException {
+      writer.addDocument(cmd.getLuceneDocument(), schema.getAnalyzer());
+      rows.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Query;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Regenerator of the user cache which holds the per-segment term counts of
+ * <code>facet.method=fcs</code>, for a field and the queries which define the
+ * base set of documents.  The counts of a segment only depend on its documents
+ * and deletions, so autowarming carries them over as they are for every segment
+ * which is unchanged in the new searcher: a repeated facet request then only
+ * counts the new segments and merges the counts.
+ *
+ * <pre>
+ * &lt;cache name="facetCountCache"
+ *        class="solr.LRUCache"
+ *        size="512"
+ *        autowarmCount="512"
+ *        regenerator="solr.FacetCountCache"/&gt;
+ * </pre>
+ *
+ * @see PerSegmentSingleValuedFaceting
+ */
+public class FacetCountCache implements CacheRegenerator {
+
+  /** The name of the user cache */
+  public static final String NAME = "facetCountCache";
+
+  public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
+    Object segmentKey = ((Key) oldKey).segmentKey;
+    for (AtomicReaderContext leaf : newSearcher.getTopReaderContext().leaves()) {
+      if (leaf.reader().getCombinedCoreAndDeletesKey() == segmentKey) {
+        newCache.put(oldKey, oldVal);
+        break;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The key of the counts of a segment, which changes with the deleted
+   * documents of the segment
+   */
+  static final class Key {
+    final Object segmentKey;
+    final String field;
+    final List<Query> queries;
+    private final int hash;
+
+    Key(AtomicReader reader, String field, List<Query> queries) {
+      this.segmentKey = reader.getCombinedCoreAndDeletesKey();
+      this.field = field;
+      this.queries = queries;
+      this.hash = (System.identityHashCode(segmentKey) * 31 + field.hashCode()) * 31 + queries.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return segmentKey == other.segmentKey && hash == other.hash
+          && field.equals(other.field) && queries.equals(other.queries);
+    }
+  }
+}
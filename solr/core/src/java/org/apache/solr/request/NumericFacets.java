@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TrieField;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.LongCountTable;
+
+/**
+ * Computes the facet counts of a single valued trie field with facet.method=fcs.
+ * The values of the matching documents are read from the per-segment field
+ * cache and counted in an open addressing hash table: nothing is un-inverted,
+ * as the {@link UnInvertedField} otherwise required for trie fields which
+ * index several precisions, and the memory is proportional to the number of
+ * distinct values of the matching documents.
+ */
+class NumericFacets {
+
+  /**
+   * Only for the fields which {@link NumericRangeCounter#supports}.  Once the
+   * budget is spent, the counts are those of the documents seen so far.
+   */
+  static NamedList<Integer> getCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName,
+                                      int offset, int limit, int mincount, boolean missing, String sort,
+                                      TimeBudget budget) throws IOException {
+    SchemaField sf = searcher.getSchema().getField(fieldName);
+    FieldType ft = sf.getType();
+    TrieField.TrieTypes type = NumericRangeCounter.getTrieType(sf);
+    // ints and floats are counted as ints, the others as longs
+    boolean ints = type == TrieField.TrieTypes.INTEGER || type == TrieField.TrieTypes.FLOAT;
+
+    // count the values, floats and doubles in their sortable form
+    LongCountTable table = new LongCountTable();
+    int missingCount = 0;
+    int counted = 0;
+    Filter filter = docs.getTopFilter();
+    for (AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+      DocIdSet set = filter.getDocIdSet(leaf, null);
+      DocIdSetIterator it = set == null ? null : set.iterator();
+      if (it == null) continue;
+      AtomicReader reader = leaf.reader();
+      int doc;
+      switch (type) {
+        case INTEGER: {
+          int[] values = FieldCache.DEFAULT.getInts(reader, fieldName, FieldCache.NUMERIC_UTILS_INT_PARSER, true);
+          Bits docsWithField = FieldCache.DEFAULT.getDocsWithField(reader, fieldName);
+          while ((doc = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS && !budget.isSpent("facet_fields", ++counted)) {
+            if (docsWithField.get(doc)) table.add(values[doc]); else missingCount++;
+          }
+          break;
+        }
+        case FLOAT: {
+          float[] values = FieldCache.DEFAULT.getFloats(reader, fieldName, FieldCache.NUMERIC_UTILS_FLOAT_PARSER, true);
+          Bits docsWithField = FieldCache.DEFAULT.getDocsWithField(reader, fieldName);
+          while ((doc = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS && !budget.isSpent("facet_fields", ++counted)) {
+            if (docsWithField.get(doc)) table.add(NumericUtils.floatToSortableInt(values[doc])); else missingCount++;
+          }
+          break;
+        }
+        case DOUBLE: {
+          double[] values = FieldCache.DEFAULT.getDoubles(reader, fieldName, FieldCache.NUMERIC_UTILS_DOUBLE_PARSER, true);
+          Bits docsWithField = FieldCache.DEFAULT.getDocsWithField(reader, fieldName);
+          while ((doc = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS && !budget.isSpent("facet_fields", ++counted)) {
+            if (docsWithField.get(doc)) table.add(NumericUtils.doubleToSortableLong(values[doc])); else missingCount++;
+          }
+          break;
+        }
+        default: {
+          long[] values = FieldCache.DEFAULT.getLongs(reader, fieldName, FieldCache.NUMERIC_UTILS_LONG_PARSER, true);
+          Bits docsWithField = FieldCache.DEFAULT.getDocsWithField(reader, fieldName);
+          while ((doc = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS && !budget.isSpent("facet_fields", ++counted)) {
+            if (docsWithField.get(doc)) table.add(values[doc]); else missingCount++;
+          }
+        }
+      }
+    }
+
+    // the counted values in index order
+    final long[] keys = table.keys();
+    Arrays.sort(keys);
+    final int[] counts = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      counts[i] = table.get(keys[i]);
+    }
+
+    NamedList<Integer> res = new NamedList<Integer>();
+    BytesRef br = new BytesRef();
+    CharsRef charsRef = new CharsRef(10);
+    int off = offset;
+    int lim = limit >= 0 ? limit : Integer.MAX_VALUE;
+
+    if (sort.equals(FacetParams.FACET_SORT_COUNT) || sort.equals(FacetParams.FACET_SORT_COUNT_LEGACY)) {
+      TopCountSelector selector = new TopCountSelector(offset, limit, Math.max(mincount, 1), keys.length);
+      for (int i = 0; i < keys.length; i++) {
+        selector.collect(i, counts[i]);
+      }
+      int selected = selector.size();
+      selector.select(off);
+      for (int i = 0, n = selector.size(); i < n; i++) {
+        res.add(toReadable(ft, keys[selector.getOrd(i)], ints, br, charsRef), selector.getCount(i));
+      }
+
+      if (mincount <= 0 && res.size() < lim) {
+        // then the values of the field which no matching document has, in index order
+        off = Math.max(0, off - selected);
+        TermsEnum te = getTermsEnum(searcher, fieldName);
+        BytesRef term;
+        while (te != null && res.size() < lim && (term = te.next()) != null && isFullPrecision(term, ints)) {
+          long key = ints ? NumericUtils.prefixCodedToInt(term) : NumericUtils.prefixCodedToLong(term);
+          if (table.get(key) != 0) continue;
+          if (--off >= 0) continue;
+          res.add(toReadable(ft, key, ints, br, charsRef), 0);
+        }
+      }
+    } else if (mincount <= 0) {
+      // all the values of the field, in index order
+      TermsEnum te = getTermsEnum(searcher, fieldName);
+      BytesRef term;
+      while (te != null && res.size() < lim && (term = te.next()) != null && isFullPrecision(term, ints)) {
+        if (--off >= 0) continue;
+        long key = ints ? NumericUtils.prefixCodedToInt(term) : NumericUtils.prefixCodedToLong(term);
+        res.add(toReadable(ft, key, ints, br, charsRef), table.get(key));
+      }
+    } else {
+      for (int i = 0; i < keys.length && res.size() < lim; i++) {
+        if (counts[i] < mincount) continue;
+        if (--off >= 0) continue;
+        res.add(toReadable(ft, keys[i], ints, br, charsRef), counts[i]);
+      }
+    }
+
+    if (missing) {
+      res.add(null, missingCount);
+    }
+    return res;
+  }
+
+  private static TermsEnum getTermsEnum(SolrIndexSearcher searcher, String fieldName) throws IOException {
+    Terms terms = MultiFields.getTerms(searcher.getIndexReader(), fieldName);
+    return terms == null ? null : terms.iterator(null);
+  }
+
+  /**
+   * The terms of the full precision values come first, before the lower precisions of the trie
+   */
+  private static boolean isFullPrecision(BytesRef term, boolean ints) {
+    return term.length > 0
+        && term.bytes[term.offset] == (ints ? NumericUtils.SHIFT_START_INT : NumericUtils.SHIFT_START_LONG);
+  }
+
+  private static String toReadable(FieldType ft, long key, boolean ints, BytesRef br, CharsRef charsRef) {
+    if (ints) {
+      NumericUtils.intToPrefixCoded((int) key, 0, br);
+    } else {
+      NumericUtils.longToPrefixCoded(key, 0, br);
+    }
+    return ft.indexedToReadable(br, charsRef).toString();
+  }
+}
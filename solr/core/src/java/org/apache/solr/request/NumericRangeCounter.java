@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TrieDateField;
+import org.apache.solr.schema.TrieField;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Counts the documents of a DocSet in many ranges of a single valued trie
+ * field with one pass over the values of the field in the field cache, instead
+ * of one range query per range: the cost depends on the number of documents
+ * rather than on the number of ranges.
+ * <p/>
+ * The buckets of a range facet are contiguous, the range of a value is found
+ * with a binary search on their lower bounds, which also works with the
+ * uneven gaps of the date math.  The other ranges (before, after, between...)
+ * may be anything, every value is checked against each of them.
+ *
+ * @see org.apache.solr.common.params.FacetParams#FACET_RANGE_METHOD
+ */
+public class NumericRangeCounter {
+  private final String field;
+  private final TrieField.TrieTypes type;
+
+  // the buckets, sorted and contiguous
+  private long[] lows = new long[16];
+  private long[] highs = new long[16];
+  private boolean[] includeLowers = new boolean[16];
+  private boolean[] includeUppers = new boolean[16];
+  private int numBuckets;
+  private int[] bucketCounts;
+
+  // the other ranges
+  private long[] rangeLows = new long[3];
+  private long[] rangeHighs = new long[3];
+  private boolean[] rangeIncludeLowers = new boolean[3];
+  private boolean[] rangeIncludeUppers = new boolean[3];
+  private int numRanges;
+  private int[] rangeCounts;
+
+  /**
+   * @see #supports
+   */
+  public NumericRangeCounter(SchemaField sf) {
+    this.field = sf.getName();
+    this.type = getTrieType(sf);
+  }
+
+  /**
+   * @return true if the field is a single valued trie field, whose values can
+   *         be read from the field cache to count its ranges or its facet values
+   */
+  public static boolean supports(SchemaField sf) {
+    FieldType ft = sf.getType();
+    return sf.indexed() && !sf.multiValued() && (ft instanceof TrieField || ft instanceof TrieDateField);
+  }
+
+  /**
+   * @return the type of the values of a field which this class {@link #supports}
+   */
+  static TrieField.TrieTypes getTrieType(SchemaField sf) {
+    FieldType ft = sf.getType();
+    return ft instanceof TrieDateField ? TrieField.TrieTypes.DATE : ((TrieField) ft).getType();
+  }
+
+  /**
+   * Adds the next bucket of the facet, its lower bound is the upper bound of the previous one
+   *
+   * @return the index of the bucket
+   */
+  public int addBucket(Object low, Object high, boolean includeLower, boolean includeUpper) {
+    if (numBuckets == lows.length) {
+      int size = numBuckets * 2;
+      lows = Arrays.copyOf(lows, size);
+      highs = Arrays.copyOf(highs, size);
+      includeLowers = Arrays.copyOf(includeLowers, size);
+      includeUppers = Arrays.copyOf(includeUppers, size);
+    }
+    lows[numBuckets] = toSortableLong(low);
+    highs[numBuckets] = toSortableLong(high);
+    includeLowers[numBuckets] = includeLower;
+    includeUppers[numBuckets] = includeUpper;
+    return numBuckets++;
+  }
+
+  /**
+   * Adds a range which is not one of the buckets
+   *
+   * @param low the lower bound, or null for no lower bound
+   * @param high the upper bound, or null for no upper bound
+   * @return the index of the range
+   */
+  public int addRange(Object low, Object high, boolean includeLower, boolean includeUpper) {
+    if (numRanges == rangeLows.length) {
+      int size = numRanges * 2;
+      rangeLows = Arrays.copyOf(rangeLows, size);
+      rangeHighs = Arrays.copyOf(rangeHighs, size);
+      rangeIncludeLowers = Arrays.copyOf(rangeIncludeLowers, size);
+      rangeIncludeUppers = Arrays.copyOf(rangeIncludeUppers, size);
+    }
+    rangeLows[numRanges] = low == null ? Long.MIN_VALUE : toSortableLong(low);
+    rangeHighs[numRanges] = high == null ? Long.MAX_VALUE : toSortableLong(high);
+    rangeIncludeLowers[numRanges] = includeLower || low == null;
+    rangeIncludeUppers[numRanges] = includeUpper || high == null;
+    return numRanges++;
+  }
+
+  public int getBucketCount(int bucket) {
+    return bucketCounts[bucket];
+  }
+
+  public int getRangeCount(int range) {
+    return rangeCounts[range];
+  }
+
+  /**
+   * Counts the documents in every bucket and range
+   */
+  public void count(SolrIndexSearcher searcher, DocSet base) throws IOException {
+    bucketCounts = new int[numBuckets];
+    rangeCounts = new int[numRanges];
+    Filter filter = base.getTopFilter();
+    for (AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+      DocIdSet set = filter.getDocIdSet(leaf, null);
+      DocIdSetIterator it = set == null ? null : set.iterator();
+      if (it == null) continue;
+      AtomicReader reader = leaf.reader();
+      int doc;
+      switch (type) {
+        case INTEGER: {
+          int[] values = FieldCache.DEFAULT.getInts(reader, field, FieldCache.NUMERIC_UTILS_INT_PARSER, true);
+          Bits docsWithField = FieldCache.DEFAULT.getDocsWithField(reader, field);
+          while ((doc = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            if (docsWithField.get(doc)) collect(values[doc]);
+          }
+          break;
+        }
+        case FLOAT: {
+          float[] values = FieldCache.DEFAULT.getFloats(reader, field, FieldCache.NUMERIC_UTILS_FLOAT_PARSER, true);
+          Bits docsWithField = FieldCache.DEFAULT.getDocsWithField(reader, field);
+          while ((doc = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            if (docsWithField.get(doc)) collect(NumericUtils.doubleToSortableLong(values[doc]));
+          }
+          break;
+        }
+        case DOUBLE: {
+          double[] values = FieldCache.DEFAULT.getDoubles(reader, field, FieldCache.NUMERIC_UTILS_DOUBLE_PARSER, true);
+          Bits docsWithField = FieldCache.DEFAULT.getDocsWithField(reader, field);
+          while ((doc = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            if (docsWithField.get(doc)) collect(NumericUtils.doubleToSortableLong(values[doc]));
+          }
+          break;
+        }
+        default: {
+          // longs and dates
+          long[] values = FieldCache.DEFAULT.getLongs(reader, field, FieldCache.NUMERIC_UTILS_LONG_PARSER, true);
+          Bits docsWithField = FieldCache.DEFAULT.getDocsWithField(reader, field);
+          while ((doc = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            if (docsWithField.get(doc)) collect(values[doc]);
+          }
+        }
+      }
+    }
+  }
+
+  private void collect(long value) {
+    // the last bucket which starts at or before the value
+    int lo = 0;
+    int hi = numBuckets - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (lows[mid] <= value) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    int bucket = hi;
+    if (bucket >= 0) {
+      if (matches(value, lows[bucket], highs[bucket], includeLowers[bucket], includeUppers[bucket])) {
+        bucketCounts[bucket]++;
+      }
+      // a value on the lower bound is also on the upper bound of the previous bucket
+      if (bucket > 0 && value == lows[bucket]
+          && matches(value, lows[bucket - 1], highs[bucket - 1], includeLowers[bucket - 1], includeUppers[bucket - 1])) {
+        bucketCounts[bucket - 1]++;
+      }
+    }
+    for (int i = 0; i < numRanges; i++) {
+      if (matches(value, rangeLows[i], rangeHighs[i], rangeIncludeLowers[i], rangeIncludeUppers[i])) {
+        rangeCounts[i]++;
+      }
+    }
+  }
+
+  private static boolean matches(long value, long low, long high, boolean includeLower, boolean includeUpper) {
+    return (value > low || (includeLower && value == low)) && (value < high || (includeUpper && value == high));
+  }
+
+  /**
+   * @return the value as a long with the same order, as in the field cache
+   */
+  private long toSortableLong(Object value) {
+    switch (type) {
+      case FLOAT:
+      case DOUBLE:
+        return NumericUtils.doubleToSortableLong(((Number) value).doubleValue());
+      case DATE:
+        return ((Date) value).getTime();
+      default:
+        return ((Number) value).longValue();
+    }
+  }
+}
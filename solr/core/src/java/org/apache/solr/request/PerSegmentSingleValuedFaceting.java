@@ -32,9 +32,10 @@ import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.schema.FieldType;
+import org.apache.lucene.search.Query;
 import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
 import org.apache.solr.search.SolrIndexSearcher;
-import org.apache.solr.util.BoundedTreeSet;
 
 import java.io.IOException;
 import java.util.*;
@@ -58,6 +59,11 @@ class PerSegmentSingleValuedFaceting {
 
   int nThreads;
 
+  SolrCache countCache;
+  List<Query> baseQueries;
+
+  TimeBudget budget = TimeBudget.UNLIMITED;
+
   public PerSegmentSingleValuedFaceting(SolrIndexSearcher searcher, DocSet docs, String fieldName, int offset, int limit, int mincount, boolean missing, String sort, String prefix) {
     this.searcher = searcher;
     this.docs = docs;
@@ -74,6 +80,24 @@ class PerSegmentSingleValuedFaceting {
     nThreads = threads;
   }
 
+  /**
+   * Stops counting once the budget is spent: the counts are then those of the documents seen so far
+   */
+  public void setTimeBudget(TimeBudget budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Looks up and stores the term counts of every segment in a cache.
+   *
+   * @param countCache the cache, see {@link FacetCountCache}
+   * @param baseQueries the queries which match exactly the documents to count
+   */
+  public void setCountCache(SolrCache countCache, List<Query> baseQueries) {
+    this.countCache = countCache;
+    this.baseQueries = baseQueries;
+  }
+
 
   NamedList<Integer> getFacetCounts(Executor executor) throws IOException {
 
@@ -228,6 +252,7 @@ class PerSegmentSingleValuedFaceting {
     int endTermIndex;
     int[] counts;
 
+    boolean truncated; // the counts are partial, see TimeBudget
     int pos; // only used when merging
     TermsEnum tenum; // only used when merging
 
@@ -253,79 +278,99 @@ class PerSegmentSingleValuedFaceting {
 
       final int nTerms=endTermIndex-startTermIndex;
       if (nTerms>0) {
-        // count collection array only needs to be as big as the number of terms we are
-        // going to collect counts for.
-        final int[] counts = this.counts = new int[nTerms];
-        DocIdSet idSet = baseSet.getDocIdSet(context, null);  // this set only includes live docs
-        DocIdSetIterator iter = idSet.iterator();
+        if (countCache != null) {
+          // the counts of all the terms of the segment are cached, whatever the prefix
+          FacetCountCache.Key key = new FacetCountCache.Key(context.reader(), fieldName, baseQueries);
+          int[] allCounts = (int[]) countCache.get(key);
+          if (allCounts == null) {
+            allCounts = count(0, si.numOrd());
+            if (!truncated) countCache.put(key, allCounts);
+          }
+          counts = nTerms == allCounts.length ? allCounts : Arrays.copyOfRange(allCounts, startTermIndex, endTermIndex);
+        } else {
+          counts = count(startTermIndex, endTermIndex);
+        }
+      }
+    }
+
+    private int[] count(int startTermIndex, int endTermIndex) throws IOException {
+      final boolean allTerms = startTermIndex == 0 && endTermIndex == si.numOrd();
+      final int nTerms=endTermIndex-startTermIndex;
+      // count collection array only needs to be as big as the number of terms we are
+      // going to collect counts for.
+      final int[] counts = new int[nTerms];
+      DocIdSet idSet = baseSet.getDocIdSet(context, null);  // this set only includes live docs
+      DocIdSetIterator iter = idSet.iterator();
+      int counted = 0;
+
 
+      ////
+      PackedInts.Reader ordReader = si.getDocToOrd();
+      int doc;
 
-        ////
-        PackedInts.Reader ordReader = si.getDocToOrd();
-        int doc;
+      final Object arr;
+      if (ordReader.hasArray()) {
+        arr = ordReader.getArray();
+      } else {
+        arr = null;
+      }
 
-        final Object arr;
-        if (ordReader.hasArray()) {
-          arr = ordReader.getArray();
+      if (arr instanceof int[]) {
+        int[] ords = (int[]) arr;
+        if (allTerms) {
+          while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS && !budget.isSpent("facet_fields", ++counted)) {
+            counts[ords[doc]]++;
+          }
         } else {
-          arr = null;
+          while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS && !budget.isSpent("facet_fields", ++counted)) {
+            int term = ords[doc];
+            int arrIdx = term-startTermIndex;
+            if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
+          }
         }
-
-        if (arr instanceof int[]) {
-          int[] ords = (int[]) arr;
-          if (prefix==null) {
-            while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS) {
-              counts[ords[doc]]++;
-            }
-          } else {
-            while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS) {
-              int term = ords[doc];
-              int arrIdx = term-startTermIndex;
-              if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
-            }
+      } else if (arr instanceof short[]) {
+        short[] ords = (short[]) arr;
+        if (allTerms) {
+          while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS && !budget.isSpent("facet_fields", ++counted)) {
+            counts[ords[doc] & 0xffff]++;
+          }
+        } else {
+          while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS && !budget.isSpent("facet_fields", ++counted)) {
+            int term = ords[doc] & 0xffff;
+            int arrIdx = term-startTermIndex;
+            if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
+          }
+        }
+      } else if (arr instanceof byte[]) {
+        byte[] ords = (byte[]) arr;
+        if (allTerms) {
+          while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS && !budget.isSpent("facet_fields", ++counted)) {
+            counts[ords[doc] & 0xff]++;
           }
-        } else if (arr instanceof short[]) {
-          short[] ords = (short[]) arr;
-          if (prefix==null) {
-            while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS) {
-              counts[ords[doc] & 0xffff]++;
-            }
-          } else {
-            while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS) {
-              int term = ords[doc] & 0xffff;
-              int arrIdx = term-startTermIndex;
-              if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
-            }
+        } else {
+          while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS && !budget.isSpent("facet_fields", ++counted)) {
+            int term = ords[doc] & 0xff;
+            int arrIdx = term-startTermIndex;
+            if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
           }
-        } else if (arr instanceof byte[]) {
-          byte[] ords = (byte[]) arr;
-          if (prefix==null) {
-            while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS) {
-              counts[ords[doc] & 0xff]++;
-            }
-          } else {
-            while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS) {
-              int term = ords[doc] & 0xff;
-              int arrIdx = term-startTermIndex;
-              if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
-            }
+        }
+      } else {
+        if (allTerms) {
+          // specialized version when collecting counts for all terms
+          while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS && !budget.isSpent("facet_fields", ++counted)) {
+            counts[si.getOrd(doc)]++;
           }
         } else {
-          if (prefix==null) {
-            // specialized version when collecting counts for all terms
-            while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS) {
-              counts[si.getOrd(doc)]++;
-            }
-          } else {
-            // version that adjusts term numbers because we aren't collecting the full range
-            while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS) {
-              int term = si.getOrd(doc);
-              int arrIdx = term-startTermIndex;
-              if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
-            }
+          // version that adjusts term numbers because we aren't collecting the full range
+          while ((doc = iter.nextDoc()) < DocIdSetIterator.NO_MORE_DOCS && !budget.isSpent("facet_fields", ++counted)) {
+            int term = si.getOrd(doc);
+            int arrIdx = term-startTermIndex;
+            if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
           }
         }
       }
+      truncated = doc != DocIdSetIterator.NO_MORE_DOCS;
+      return counts;
     }
   }
 
@@ -345,29 +390,26 @@ class CountSortedFacetCollector extends FacetCollector {
   private final CharsRef spare = new CharsRef();
 
   final int offset;
-  final int limit;
-  final int maxsize;
-  final BoundedTreeSet<SimpleFacets.CountPair<String,Integer>> queue;
-
-  int min;  // the smallest value in the top 'N' values
+  final TopCountSelector selector;
+  // the candidate terms, by slot of the selector
+  final List<BytesRef> selected = new ArrayList<BytesRef>();
+  int ord;  // the number of the term, in index order
 
   public CountSortedFacetCollector(int offset, int limit, int mincount) {
     this.offset = offset;
-    this.limit = limit;
-    maxsize = limit>0 ? offset+limit : Integer.MAX_VALUE-1;
-    queue = new BoundedTreeSet<SimpleFacets.CountPair<String,Integer>>(maxsize);
-    min=mincount-1;  // the smallest value in the top 'N' values
+    selector = new TopCountSelector(offset, limit, mincount, Integer.MAX_VALUE-1);
   }
 
   @Override
   public boolean collect(BytesRef term, int count) {
-    if (count > min) {
-      // NOTE: we use c>min rather than c>=min as an optimization because we are going in
-      // index order, so we already know that the keys are ordered.  This can be very
-      // important if a lot of the counts are repeated (like zero counts would be).
-      UnicodeUtil.UTF8toUTF16(term, spare);
-      queue.add(new SimpleFacets.CountPair<String,Integer>(spare.toString(), count));
-      if (queue.size()>=maxsize) min=queue.last().val;
+    int slot = selector.collect(ord++, count);
+    if (slot >= 0) {
+      // the term of a displaced entry is overwritten
+      if (slot == selected.size()) {
+        selected.add(BytesRef.deepCopyOf(term));
+      } else {
+        selected.get(slot).copyBytes(term);
+      }
     }
     return false;
   }
@@ -375,14 +417,12 @@ class CountSortedFacetCollector extends FacetCollector {
   @Override
   public NamedList<Integer> getFacetCounts() {
     NamedList<Integer> res = new NamedList<Integer>();
-    int off=offset;
-    int lim=limit>=0 ? limit : Integer.MAX_VALUE;
-     // now select the right page from the results
-     for (SimpleFacets.CountPair<String,Integer> p : queue) {
-       if (--off>=0) continue;
-       if (--lim<0) break;
-       res.add(p.key, p.val);
-     }
+    // now select the right page from the results
+    selector.select(offset);
+    for (int i=0, n=selector.size(); i<n; i++) {
+      UnicodeUtil.UTF8toUTF16(selected.get(selector.getSlot(i)), spare);
+      res.add(spare.toString(), selector.getCount(i));
+    }
     return res;
   }
 }
@@ -1,6 +1,8 @@
 package org.apache.solr.request;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.lucene.search.Query;
 import org.apache.solr.common.SolrException;
@@ -29,6 +31,11 @@ public class RangeCounter {
 	public boolean includeUpper = false;
 	public boolean includeEdge = false;
 	
+	// when the ranges are counted by a NumericRangeCounter, their formatted lower bounds
+	private NumericRangeCounter numericCounter;
+	private List<String> numericLows;
+	private int next;
+	
 	
 	public RangeCounter(RangeEndpointCalculator<?> calc, Comparable<?> start, Comparable<?> end, String gap,
 			 Comparable<?> low, SolrIndexSearcher searcher, DocSet base, SchemaField sf) {
@@ -46,6 +53,38 @@ public class RangeCounter {
 
 	public CountPair<String, Integer> getNextCount() throws IOException { 
 		this.checkForCounts();
+		if (numericCounter != null) {
+			int bucket = next++;
+			return new CountPair<String, Integer>(numericLows.get(bucket), numericCounter.getBucketCount(bucket));
+		}
+		Comparable high = nextHigh();
+	      final String lowS = calc.formatValue(low);
+	      final String highS = calc.formatValue(high);
+
+	      final int count = rangeCount(sf, lowS, highS,
+	                                   includeLower(),includeUpper(high));
+	      this.low = high;
+	      return new CountPair<String, Integer>(lowS, count);
+	}
+	
+	/**
+	 * Adds all the ranges to a NumericRangeCounter, which counts them in one pass.
+	 * Once the counter has counted them, getNextCount() returns their counts.
+	 * This also fixes the end of the ranges.
+	 */
+	public void addRangesTo(NumericRangeCounter counter) {
+		numericCounter = counter;
+		numericLows = new ArrayList<String>();
+		while (low.compareTo(end) < 0) {
+			Comparable high = nextHigh();
+			counter.addBucket(low, high, includeLower(), includeUpper(high));
+			numericLows.add(calc.formatValue(low));
+			low = high;
+		}
+	}
+	
+	/** @return the upper bound of the next range, moves the end if it is not a hard end */
+	private Comparable nextHigh() {
 		Comparable high = calc.addGap(low, gap);
 	      if (end.compareTo(high) < 0) {
 	        if (rangeHardEnd) {
@@ -59,23 +98,20 @@ public class RangeCounter {
 	          (SolrException.ErrorCode.BAD_REQUEST,
 	           "range facet infinite loop (is gap negative? did the math overflow?)");
 	      }
-	      
-	      final boolean includeLower = 
-	        (  this.includeLower ||
-	          (this.includeEdge && 0 == low.compareTo(start))
-	        );
-	      final boolean includeUpper = 
-	        (  this.includeUpper ||
-	           (this.includeEdge && 0 == high.compareTo(end))
-	        );
-	      
-	      final String lowS = calc.formatValue(low);
-	      final String highS = calc.formatValue(high);
-
-	      final int count = rangeCount(sf, lowS, highS,
-	                                   includeLower,includeUpper);
-	      this.low = high;
-	      return new CountPair<String, Integer>(lowS, count);
+	      if (high.compareTo(low) == 0) {
+	        throw new SolrException
+	          (SolrException.ErrorCode.BAD_REQUEST,
+	           "range facet infinite loop: gap is either zero, or too small relative start/end and caused underflow: " + low + " + " + gap + " = " + high);
+	      }
+	      return high;
+	}
+	
+	private boolean includeLower() {
+		return this.includeLower || (this.includeEdge && 0 == low.compareTo(start));
+	}
+	
+	private boolean includeUpper(Comparable high) {
+		return this.includeUpper || (this.includeEdge && 0 == high.compareTo(end));
 	}
 	
 	private void checkForCounts() {
@@ -87,6 +123,7 @@ public class RangeCounter {
 	}
 	
 	public boolean hasMoreCounts() {
+		if (numericCounter != null) return next < numericLows.size();
 		return (low.compareTo(end) < 0);
 	}
 	
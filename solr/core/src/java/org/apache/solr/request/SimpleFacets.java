@@ -36,15 +36,19 @@ import org.apache.solr.common.util.StrUtils;
 import org.apache.solr.schema.*;
 import org.apache.solr.search.*;
 import org.apache.solr.search.grouping.GroupingSpecification;
-import org.apache.solr.util.BoundedTreeSet;
 import org.apache.solr.util.DateMathParser;
 import org.apache.solr.util.DefaultSolrThreadFactory;
 import org.apache.solr.handler.component.ResponseBuilder;
-import org.apache.solr.util.LongPriorityQueue;
+import org.apache.solr.handler.component.SamplingHelper;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -66,6 +70,8 @@ public class SimpleFacets {
   protected SolrIndexSearcher searcher;
   protected SolrQueryRequest req;
   protected ResponseBuilder rb;
+  /** Bounds the time spent on the facets, see {@link TimeBudget} */
+  protected TimeBudget budget;
 
   protected SimpleOrderedMap<Object> facetResponse;
 
@@ -73,6 +79,7 @@ public class SimpleFacets {
   SolrParams localParams; // localParams on this particular facet command
   String facetValue;      // the field to or query to facet on (minus local params)
   DocSet base;            // the base docset for this particular facet
+  List<Query> baseQueries; // the queries matching the base docset, or null if unknown
   String key;             // what name should the results be stored under
   int threads;
 
@@ -92,12 +99,39 @@ public class SimpleFacets {
     this.params = params;
     this.required = new RequiredSolrParams(params);
     this.rb = rb;
+    this.budget = TimeBudget.get(req);
+  }
+
+  /**
+   * @return the query and filters of the request if they match exactly the
+   *         main set of documents, null otherwise
+   */
+  private List<Query> getDocsQueries() {
+    if (rb == null || rb.getResults() == null || rb.getResults().docSet != docs) return null;
+    // the main set of documents was truncated by timeAllowed
+    NamedList<Object> header = rb.rsp.getResponseHeader();
+    if (header != null && Boolean.TRUE.equals(header.get("partialResults"))) return null;
+    // the results are restricted to the group heads
+    if (rb.grouping() && rb.getGroupingSpec().isTruncateGroups()) return null;
+    List<Query> qlist = new ArrayList<Query>();
+    qlist.add(rb.getQuery());
+    if (rb.getFilters() != null) qlist.addAll(rb.getFilters());
+    return qlist;
+  }
+
+  /**
+   * @return a copy which shares everything but the per-facet values, to
+   *         compute a facet command in another thread
+   */
+  protected SimpleFacets copy() {
+    return new SimpleFacets(req, docs, params, rb);
   }
 
 
   void parseParams(String type, String param) throws ParseException, IOException {
     localParams = QueryParsing.getLocalParams(param, req.getParams());
     base = docs;
+    baseQueries = getDocsQueries();
     facetValue = param;
     key = param;
     threads = -1;
@@ -166,7 +200,7 @@ public class SimpleFacets {
         } else if (rb.getGroupingSpec().getFunctions().length > 0) {
           grouping.addFunctionCommand(rb.getGroupingSpec().getFunctions()[0], req);
         } else {
-          this.base = base;
+          setBase(base, qlist);
           return;
         }
         AbstractAllGroupHeadsCollector allGroupHeadsCollector = grouping.getCommands().get(0).createAllGroupCollector();
@@ -174,14 +208,24 @@ public class SimpleFacets {
         int maxDoc = searcher.maxDoc();
         FixedBitSet fixedBitSet = allGroupHeadsCollector.retrieveGroupHeads(maxDoc);
         long[] bits = fixedBitSet.getBits();
-        this.base = new BitDocSet(new OpenBitSet(bits, bits.length));
+        setBase(new BitDocSet(new OpenBitSet(bits, bits.length)), null);
       } else {
-        this.base = base;
+        setBase(base, qlist);
       }
     }
 
   }
 
+  /**
+   * Sets the base docset of a facet which excludes filters, sampled like the
+   * main docset when the request is sampled, so that its counts are scaled
+   * alike.
+   */
+  private void setBase(DocSet base, List<Query> queries) throws IOException {
+    this.base = SamplingHelper.sample(req, base);
+    this.baseQueries = this.base == base ? queries : null;
+  }
+
 
   /**
    * Looks at various Params to determing if any simple Facet Constraint count
@@ -202,6 +246,11 @@ public class SimpleFacets {
     }
     facetResponse = new SimpleOrderedMap<Object>();
     try {
+      int maxThreads = params.getInt(FacetParams.FACET_THREADS, 0);
+      if (maxThreads != 0) {
+        getConcurrentFacetCounts(maxThreads);
+        return facetResponse;
+      }
       facetResponse.add("facet_queries", getFacetQueryCounts());
       facetResponse.add("facet_fields", getFacetFieldCounts());
       facetResponse.add("facet_dates", getFacetDateCounts());
@@ -218,6 +267,104 @@ public class SimpleFacets {
     return facetResponse;
   }
 
+  /** The kinds of facet commands, and how to compute one of them */
+  private enum FacetCommand {
+    QUERY(FacetParams.FACET_QUERY, "facet_queries"),
+    FIELD(FacetParams.FACET_FIELD, "facet_fields"),
+    DATE(FacetParams.FACET_DATE, "facet_dates"),
+    RANGE(FacetParams.FACET_RANGE, "facet_ranges"),
+    PERCENTILE(FacetParams.PERCENTILE_FIELD, "facet_statistics");
+
+    final String param;
+    final String section;
+
+    FacetCommand(String param, String section) {
+      this.param = param;
+      this.section = section;
+    }
+
+    @SuppressWarnings("deprecation")
+    void compute(SimpleFacets facets, String value, NamedList<Object> res) throws IOException, ParseException {
+      switch (this) {
+        case QUERY: facets.getFacetQueryCount(value, res); break;
+        case FIELD: facets.getFacetFieldCounts(value, res); break;
+        case DATE: facets.getFacetDateCounts(value, res); break;
+        case RANGE: facets.getFacetRangeCounts(value, res); break;
+        case PERCENTILE: facets.getFacetPercentileCounts(value, res); break;
+      }
+    }
+  }
+
+  /**
+   * Computes every facet command in its own task on the {@link #facetExecutor},
+   * at most maxThreads at a time, and adds their results to the response in
+   * the order of the params, as {@link #getFacetCounts} would.
+   */
+  private void getConcurrentFacetCounts(int maxThreads) throws IOException, ParseException {
+    final Semaphore permits = new Semaphore(maxThreads < 0 ? Integer.MAX_VALUE : maxThreads);
+    final SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+    boolean percentiles = params.getBool(FacetParams.PERCENTILE, false);
+
+    Map<FacetCommand, List<Future<NamedList<Object>>>> futures =
+        new EnumMap<FacetCommand, List<Future<NamedList<Object>>>>(FacetCommand.class);
+    try {
+      for (final FacetCommand command : FacetCommand.values()) {
+        if (command == FacetCommand.PERCENTILE && !percentiles) continue;
+        List<Future<NamedList<Object>>> list = new ArrayList<Future<NamedList<Object>>>();
+        futures.put(command, list);
+        String[] values = params.getParams(command.param);
+        if (values == null) continue;
+        for (final String value : values) {
+          FutureTask<NamedList<Object>> task = new FutureTask<NamedList<Object>>(new Callable<NamedList<Object>>() {
+            public NamedList<Object> call() throws Exception {
+              // some facets rely on the request info, such as the NOW of the date math
+              SolrRequestInfo.threadLocal.set(requestInfo);
+              try {
+                NamedList<Object> res = new SimpleOrderedMap<Object>();
+                if (!budget.isSpent(command.section)) {
+                  command.compute(copy(), value, res);
+                }
+                return res;
+              } finally {
+                SolrRequestInfo.threadLocal.remove();
+                permits.release();
+              }
+            }
+          });
+          permits.acquire();
+          facetExecutor.execute(task);
+          list.add(task);
+        }
+      }
+
+      for (Map.Entry<FacetCommand, List<Future<NamedList<Object>>>> entry : futures.entrySet()) {
+        NamedList<Object> res = new SimpleOrderedMap<Object>();
+        for (Future<NamedList<Object>> future : entry.getValue()) {
+          res.addAll(future.get());
+        }
+        boolean none = entry.getKey() == FacetCommand.PERCENTILE && entry.getValue().isEmpty();
+        facetResponse.add(entry.getKey().section, none ? null : res);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SolrException(ErrorCode.SERVER_ERROR, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof ParseException) throw (ParseException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new SolrException(ErrorCode.SERVER_ERROR, cause);
+    } finally {
+      // do not leave tasks running after a failure
+      for (List<Future<NamedList<Object>>> list : futures.values()) {
+        for (Future<NamedList<Object>> future : list) {
+          future.cancel(false);
+        }
+      }
+    }
+  }
+
   public NamedList<Object> getFacetPercentileCounts() throws IOException {  
     final NamedList<Object> resOuter = new SimpleOrderedMap<Object>();
     final String[] fields = params.getParams(FacetParams.PERCENTILE_FIELD);
@@ -225,6 +372,7 @@ public class SimpleFacets {
     if (null == fields || 0 == fields.length) return null;	  
     
     for (String f : fields) {
+      if (budget.isSpent("facet_statistics")) break;
       getFacetPercentileCounts(f, resOuter);	    
     }
     
@@ -268,12 +416,22 @@ public class SimpleFacets {
     
     final String startS = calc.formatValue(start);
     final String endS = calc.formatValue(end);
-    int totalCount = this.rangeCount(sf, startS, endS, rangeCounter.includeLower, rangeCounter.includeUpper);
+    int totalCount;
+    NumericRangeCounter numeric = getNumericRangeCounter(sf);
+    if (numeric != null) {
+      rangeCounter.addRangesTo(numeric);
+      int total = numeric.addRange(start, end, rangeCounter.includeLower, rangeCounter.includeUpper);
+      numeric.count(searcher, base);
+      totalCount = numeric.getRangeCount(total);
+    } else {
+      totalCount = this.rangeCount(sf, startS, endS, rangeCounter.includeLower, rangeCounter.includeUpper);
+    }
     FacetPercentiles percentiles = new FacetPercentiles(required.getFieldParams(f, FacetParams.PERCENTILE_REQUESTED_PERCENTILES), totalCount);
     boolean shouldReturnBucketsInsteadOfCalculatingPercentiles = params.getBool(FacetParams.PERCENTILE_DISTRIBUTED, false);
     boolean shouldCalculateAverages = params.getBool(FacetParams.PERCENTILE_AVERAGES, false);
     boolean fieldIsADateField = sf.getType() instanceof DateField;
     while(rangeCounter.hasMoreCounts() && (percentiles.stillLookingForPercentiles() || shouldCalculateAverages)) {
+      if (budget.isSpent("facet_statistics")) break;
       CountPair<String, Integer> currentCount = rangeCounter.getNextCount();
       if(currentCount.val != 0) {
         T midpointOfRangeBucket = calc.findMiddle(calc.getValue(currentCount.key), gapAsString);
@@ -339,21 +497,26 @@ public class SimpleFacets {
     
     if (null != facetQs && 0 != facetQs.length) {
       for (String q : facetQs) {
-        parseParams(FacetParams.FACET_QUERY, q);
-
-        // TODO: slight optimization would prevent double-parsing of any localParams
-        Query qobj = QParser.getParser(q, null, req).getQuery();
-
-        if (params.getBool(GroupParams.GROUP_FACET, false)) {
-          res.add(key, getGroupedFacetQueryCount(qobj));
-        } else {
-          res.add(key, searcher.numDocs(qobj, base));
-        }
+        if (budget.isSpent("facet_queries")) break;
+        getFacetQueryCount(q, res);
       }
     }
 
     return res;
   }
+
+  private void getFacetQueryCount(String q, NamedList<? super Integer> res) throws IOException, ParseException {
+    parseParams(FacetParams.FACET_QUERY, q);
+
+    // TODO: slight optimization would prevent double-parsing of any localParams
+    Query qobj = QParser.getParser(q, null, req).getQuery();
+
+    if (params.getBool(GroupParams.GROUP_FACET, false)) {
+      res.add(key, getGroupedFacetQueryCount(qobj));
+    } else {
+      res.add(key, searcher.numDocs(qobj, base));
+    }
+  }
   
   /**
    * Returns a grouped facet count for the facet query
@@ -423,10 +586,13 @@ public class SimpleFacets {
       // unless the enum method is explicitly specified, use a counting method.
       if (enumMethod) {
         counts = getFacetTermEnumCounts(searcher, base, field, offset, limit, mincount,missing,sort,prefix);
+      } else if (per_segment && prefix == null && NumericRangeCounter.supports(sf)) {
+        // no need to un-invert single valued trie fields, their values are in the field cache
+        counts = NumericFacets.getCounts(searcher, base, field, offset, limit, mincount, missing, sort, budget);
       } else {
         if (multiToken) {
           UnInvertedField uif = UnInvertedField.getUnInvertedField(field, searcher);
-          counts = uif.getCounts(searcher, base, offset, limit, mincount,missing,sort,prefix);
+          counts = uif.getCounts(searcher, base, offset, limit, mincount,missing,sort,prefix,budget);
         } else {
           // TODO: future logic could use filters instead of the fieldcache if
           // the number of terms in the field is small enough.
@@ -434,9 +600,14 @@ public class SimpleFacets {
             PerSegmentSingleValuedFaceting ps = new PerSegmentSingleValuedFaceting(searcher, base, field, offset,limit, mincount, missing, sort, prefix);
             Executor executor = threads == 0 ? directExecutor : facetExecutor;
             ps.setNumThreads(threads);
+            ps.setTimeBudget(budget);
+            SolrCache countCache = baseQueries == null ? null : searcher.getCache(FacetCountCache.NAME);
+            if (countCache != null) {
+              ps.setCountCache(countCache, baseQueries);
+            }
             counts = ps.getFacetCounts(executor);
           } else {
-            counts = getFieldCacheCounts(searcher, base, field, offset,limit, mincount, missing, sort, prefix);
+            counts = getFieldCacheCounts(searcher, base, field, offset,limit, mincount, missing, sort, prefix, budget);
           }
 
         }
@@ -517,18 +688,23 @@ public class SimpleFacets {
     String[] facetFs = params.getParams(FacetParams.FACET_FIELD);
     if (null != facetFs) {
       for (String f : facetFs) {
-        parseParams(FacetParams.FACET_FIELD, f);
-        String termList = localParams == null ? null : localParams.get(CommonParams.TERMS);
-        if (termList != null) {
-          res.add(key, getListedTermCounts(facetValue, termList));
-        } else {
-          res.add(key, getTermCounts(facetValue));
-        }
+        if (budget.isSpent("facet_fields")) break;
+        getFacetFieldCounts(f, res);
       }
     }
     return res;
   }
 
+  private void getFacetFieldCounts(String f, NamedList<Object> res) throws IOException, ParseException {
+    parseParams(FacetParams.FACET_FIELD, f);
+    String termList = localParams == null ? null : localParams.get(CommonParams.TERMS);
+    if (termList != null) {
+      res.add(key, getListedTermCounts(facetValue, termList));
+    } else {
+      res.add(key, getTermCounts(facetValue));
+    }
+  }
+
 
   private NamedList<Integer> getListedTermCounts(String field, String termList) throws IOException {
     FieldType ft = searcher.getSchema().getFieldType(field);
@@ -563,6 +739,14 @@ public class SimpleFacets {
    * The field must have at most one indexed token per document.
    */
   public static NamedList<Integer> getFieldCacheCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, int offset, int limit, int mincount, boolean missing, String sort, String prefix) throws IOException {
+    return getFieldCacheCounts(searcher, docs, fieldName, offset, limit, mincount, missing, sort, prefix, TimeBudget.UNLIMITED);
+  }
+
+  /**
+   * Like {@link #getFieldCacheCounts(SolrIndexSearcher, DocSet, String, int, int, int, boolean, String, String)},
+   * but stops counting once the budget is spent and returns the counts of the documents seen so far
+   */
+  public static NamedList<Integer> getFieldCacheCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, int offset, int limit, int mincount, boolean missing, String sort, String prefix, TimeBudget budget) throws IOException {
     // TODO: If the number of terms is high compared to docs.size(), and zeros==false,
     //  we should use an alternate strategy to avoid
     //  1) creating another huge int[] for the counts
@@ -616,6 +800,7 @@ public class SimpleFacets {
       final int[] counts = new int[nTerms];
 
       DocIterator iter = docs.iterator();
+      int counted = 0;
 
       PackedInts.Reader ordReader = si.getDocToOrd();
       final Object arr;
@@ -628,11 +813,11 @@ public class SimpleFacets {
       if (arr instanceof int[]) {
         int[] ords = (int[]) arr;
         if (prefix==null) {
-          while (iter.hasNext()) {
+          while (iter.hasNext() && !budget.isSpent("facet_fields", ++counted)) {
             counts[ords[iter.nextDoc()]]++;
           }
         } else {
-          while (iter.hasNext()) {
+          while (iter.hasNext() && !budget.isSpent("facet_fields", ++counted)) {
             int term = ords[iter.nextDoc()];
             int arrIdx = term-startTermIndex;
             if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
@@ -641,11 +826,11 @@ public class SimpleFacets {
       } else if (arr instanceof short[]) {
         short[] ords = (short[]) arr;
         if (prefix==null) {
-          while (iter.hasNext()) {
+          while (iter.hasNext() && !budget.isSpent("facet_fields", ++counted)) {
             counts[ords[iter.nextDoc()] & 0xffff]++;
           }
         } else {
-          while (iter.hasNext()) {
+          while (iter.hasNext() && !budget.isSpent("facet_fields", ++counted)) {
             int term = ords[iter.nextDoc()] & 0xffff;
             int arrIdx = term-startTermIndex;
             if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
@@ -654,18 +839,18 @@ public class SimpleFacets {
       } else if (arr instanceof byte[]) {
         byte[] ords = (byte[]) arr;
         if (prefix==null) {
-          while (iter.hasNext()) {
+          while (iter.hasNext() && !budget.isSpent("facet_fields", ++counted)) {
             counts[ords[iter.nextDoc()] & 0xff]++;
           }
         } else {
-          while (iter.hasNext()) {
+          while (iter.hasNext() && !budget.isSpent("facet_fields", ++counted)) {
             int term = ords[iter.nextDoc()] & 0xff;
             int arrIdx = term-startTermIndex;
             if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
           }
         }
       } else {
-        while (iter.hasNext()) {
+        while (iter.hasNext() && !budget.isSpent("facet_fields", ++counted)) {
           int term = si.getOrd(iter.nextDoc());
           int arrIdx = term-startTermIndex;
           if (arrIdx>=0 && arrIdx<nTerms) counts[arrIdx]++;
@@ -683,40 +868,16 @@ public class SimpleFacets {
       int lim=limit>=0 ? limit : Integer.MAX_VALUE;
 
       if (sort.equals(FacetParams.FACET_SORT_COUNT) || sort.equals(FacetParams.FACET_SORT_COUNT_LEGACY)) {
-        int maxsize = limit>0 ? offset+limit : Integer.MAX_VALUE-1;
-        maxsize = Math.min(maxsize, nTerms);
-        LongPriorityQueue queue = new LongPriorityQueue(Math.min(maxsize,1000), maxsize, Long.MIN_VALUE);
-
-        int min=mincount-1;  // the smallest value in the top 'N' values
+        TopCountSelector selector = new TopCountSelector(offset, limit, mincount, nTerms);
         for (int i=(startTermIndex==0)?1:0; i<nTerms; i++) {
-          int c = counts[i];
-          if (c>min) {
-            // NOTE: we use c>min rather than c>=min as an optimization because we are going in
-            // index order, so we already know that the keys are ordered.  This can be very
-            // important if a lot of the counts are repeated (like zero counts would be).
-
-            // smaller term numbers sort higher, so subtract the term number instead
-            long pair = (((long)c)<<32) + (Integer.MAX_VALUE - i);
-            boolean displaced = queue.insert(pair);
-            if (displaced) min=(int)(queue.top() >>> 32);
-          }
+          selector.collect(i, counts[i]);
         }
 
         // if we are deep paging, we don't have to order the highest "offset" counts.
-        int collectCount = Math.max(0, queue.size() - off);
-        assert collectCount <= lim;
-
-        // the start and end indexes of our list "sorted" (starting with the highest value)
-        int sortedIdxStart = queue.size() - (collectCount - 1);
-        int sortedIdxEnd = queue.size() + 1;
-        final long[] sorted = queue.sort(collectCount);
-
-        for (int i=sortedIdxStart; i<sortedIdxEnd; i++) {
-          long pair = sorted[i];
-          int c = (int)(pair >>> 32);
-          int tnum = Integer.MAX_VALUE - (int)pair;
-          ft.indexedToReadable(si.lookup(startTermIndex+tnum, br), charsRef);
-          res.add(charsRef.toString(), c);
+        selector.select(off);
+        for (int i=0, n=selector.size(); i<n; i++) {
+          ft.indexedToReadable(si.lookup(startTermIndex+selector.getOrd(i), br), charsRef);
+          res.add(charsRef.toString(), selector.getCount(i));
         }
       
       } else {
@@ -784,11 +945,13 @@ public class SimpleFacets {
     FieldType ft = schema.getFieldType(field);
 
     boolean sortByCount = sort.equals("count") || sort.equals("true");
-    final int maxsize = limit>=0 ? offset+limit : Integer.MAX_VALUE-1;
-    final BoundedTreeSet<CountPair<BytesRef,Integer>> queue = sortByCount ? new BoundedTreeSet<CountPair<BytesRef,Integer>>(maxsize) : null;
+    final TopCountSelector selector = sortByCount ? new TopCountSelector(offset, limit, mincount, Integer.MAX_VALUE - 1) : null;
+    // the candidate terms, by slot of the selector
+    final List<BytesRef> selected = new ArrayList<BytesRef>();
     final NamedList<Integer> res = new NamedList<Integer>();
 
     int min=mincount-1;  // the smallest value in the top 'N' values    
+    int ord=0;  // the number of the term, for the selector
     int off=offset;
     int lim=limit>=0 ? limit : Integer.MAX_VALUE;
 
@@ -830,6 +993,8 @@ public class SimpleFacets {
         if (startTermBytes != null && !StringHelper.startsWith(term, startTermBytes))
           break;
 
+        if (budget.isSpent("facet_fields")) break;
+
         int df = termsEnum.docFreq();
 
         // If we are sorting, we can use df>min (rather than >=) since we
@@ -884,10 +1049,14 @@ public class SimpleFacets {
           }
 
           if (sortByCount) {
-            if (c>min) {
-              BytesRef termCopy = BytesRef.deepCopyOf(term);
-              queue.add(new CountPair<BytesRef,Integer>(termCopy, c));
-              if (queue.size()>=maxsize) min=queue.last().val;
+            int slot = selector.collect(ord++, c);
+            if (slot >= 0) {
+              if (slot == selected.size()) {
+                selected.add(BytesRef.deepCopyOf(term));
+              } else {
+                selected.get(slot).copyBytes(term);
+              }
+              min = selector.getMin();
             }
           } else {
             if (c >= mincount && --off<0) {
@@ -903,11 +1072,10 @@ public class SimpleFacets {
     }
 
     if (sortByCount) {
-      for (CountPair<BytesRef,Integer> p : queue) {
-        if (--off>=0) continue;
-        if (--lim<0) break;
-        ft.indexedToReadable(p.key, charsRef);
-        res.add(charsRef.toString(), p.val);
+      selector.select(off);
+      for (int i=0, n=selector.size(); i<n; i++) {
+        ft.indexedToReadable(selected.get(selector.getSlot(i)), charsRef);
+        res.add(charsRef.toString(), selector.getCount(i));
       }
     }
 
@@ -936,6 +1104,7 @@ public class SimpleFacets {
     if (null == fields || 0 == fields.length) return resOuter;
 
     for (String f : fields) {
+      if (budget.isSpent("facet_dates")) break;
       getFacetDateCounts(f, resOuter);
     }
 
@@ -1007,9 +1176,13 @@ public class SimpleFacets {
                  FacetRangeInclude.EDGE)
       : FacetRangeInclude.parseParam(iStrs);
 
+    // with the field cache, the ranges are only counted once they are all known
+    final NumericRangeCounter numeric = getNumericRangeCounter(sf);
+    final List<String> labels = new ArrayList<String>();
     try {
       Date low = start;
       while (low.before(end)) {
+        if (numeric == null && budget.isSpent("facet_dates")) break;
         dmp.setNow(low);
         String label = ft.toExternal(low);
 
@@ -1038,9 +1211,14 @@ public class SimpleFacets {
             (include.contains(FacetRangeInclude.UPPER) ||
                 (include.contains(FacetRangeInclude.EDGE) && high.equals(end)));
 
-        final int count = rangeCount(sf,low,high,includeLower,includeUpper);
-        if (count >= minCount) {
-          resInner.add(label, count);
+        if (numeric != null) {
+          numeric.addBucket(low, high, includeLower, includeUpper);
+          labels.add(label);
+        } else {
+          final int count = rangeCount(sf,low,high,includeLower,includeUpper);
+          if (count >= minCount) {
+            resInner.add(label, count);
+          }
         }
         low = high;
       }
@@ -1050,6 +1228,21 @@ public class SimpleFacets {
               "date facet 'gap' is not a valid Date Math string: " + gap, e);
     }
 
+    final List<OtherRange> others =
+        getOtherRanges(params.getFieldParams(f,FacetParams.FACET_DATE_OTHER), include, start, end);
+    if (numeric != null) {
+      for (OtherRange other : others) {
+        other.index = numeric.addRange(other.low, other.high, other.includeLower, other.includeUpper);
+      }
+      numeric.count(searcher, base);
+      for (int i = 0; i < labels.size(); i++) {
+        final int count = numeric.getBucketCount(i);
+        if (count >= minCount) {
+          resInner.add(labels.get(i), count);
+        }
+      }
+    }
+
     // explicitly return the gap and end so all the counts
     // (including before/after/between) are meaningful - even if mincount
     // has removed the neighboring ranges
@@ -1057,47 +1250,10 @@ public class SimpleFacets {
     resInner.add("start", start);
     resInner.add("end", end);
 
-    final String[] othersP =
-        params.getFieldParams(f,FacetParams.FACET_DATE_OTHER);
-    if (null != othersP && 0 < othersP.length ) {
-      final Set<FacetRangeOther> others = EnumSet.noneOf(FacetRangeOther.class);
-
-      for (final String o : othersP) {
-        others.add(FacetRangeOther.get(o));
-      }
-
-      // no matter what other values are listed, we don't do
-      // anything if "none" is specified.
-      if (! others.contains(FacetRangeOther.NONE) ) {
-        boolean all = others.contains(FacetRangeOther.ALL);
-
-        if (all || others.contains(FacetRangeOther.BEFORE)) {
-          // include upper bound if "outer" or if first gap doesn't already include it
-          resInner.add(FacetRangeOther.BEFORE.toString(),
-              rangeCount(sf,null,start,
-                  false,
-                  (include.contains(FacetRangeInclude.OUTER) ||
-                      (! (include.contains(FacetRangeInclude.LOWER) ||
-                          include.contains(FacetRangeInclude.EDGE))))));
-        }
-        if (all || others.contains(FacetRangeOther.AFTER)) {
-          // include lower bound if "outer" or if last gap doesn't already include it
-          resInner.add(FacetRangeOther.AFTER.toString(),
-              rangeCount(sf,end,null,
-                  (include.contains(FacetRangeInclude.OUTER) ||
-                      (! (include.contains(FacetRangeInclude.UPPER) ||
-                          include.contains(FacetRangeInclude.EDGE)))),
-                  false));
-        }
-        if (all || others.contains(FacetRangeOther.BETWEEN)) {
-          resInner.add(FacetRangeOther.BETWEEN.toString(),
-              rangeCount(sf,start,end,
-                  (include.contains(FacetRangeInclude.LOWER) ||
-                      include.contains(FacetRangeInclude.EDGE)),
-                  (include.contains(FacetRangeInclude.UPPER) ||
-                      include.contains(FacetRangeInclude.EDGE))));
-        }
-      }
+    for (OtherRange other : others) {
+      resInner.add(other.type.toString(), numeric != null
+          ? numeric.getRangeCount(other.index)
+          : rangeCount(sf, (Date) other.low, (Date) other.high, other.includeLower, other.includeUpper));
     }
   }
 
@@ -1117,6 +1273,7 @@ public class SimpleFacets {
     if (null == fields || 0 == fields.length) return resOuter;
 
     for (String f : fields) {
+      if (budget.isSpent("facet_ranges")) break;
       getFacetRangeCounts(f, resOuter);
     }
 
@@ -1214,7 +1371,22 @@ public class SimpleFacets {
     rangeCounter.includeLower = include.contains(FacetRangeInclude.LOWER);
     rangeCounter.includeUpper = include.contains(FacetRangeInclude.UPPER);
     rangeCounter.rangeHardEnd = params.getBool(FacetParams.FACET_RANGE_HARD_END, false);
+
+    final String[] othersP =
+      params.getFieldParams(f,FacetParams.FACET_RANGE_OTHER);
+    List<OtherRange> others = null;
+    NumericRangeCounter numeric = getNumericRangeCounter(sf);
+    if (numeric != null) {
+      // all the ranges are counted at once, before the loop
+      rangeCounter.addRangesTo(numeric);
+      others = getOtherRanges(othersP, include, start, rangeCounter.getEnd());
+      for (OtherRange other : others) {
+        other.index = numeric.addRange(other.low, other.high, other.includeLower, other.includeUpper);
+      }
+      numeric.count(searcher, base);
+    }
     while (rangeCounter.hasMoreCounts()) {
+      if (budget.isSpent("facet_ranges")) break;
       CountPair<String, Integer> currentCount = rangeCounter.getNextCount();
       final int count = currentCount.val;
       if (count >= minCount) {
@@ -1229,55 +1401,99 @@ public class SimpleFacets {
     res.add("start", start);
     res.add("end", end);
     
-    final String[] othersP =
-      params.getFieldParams(f,FacetParams.FACET_RANGE_OTHER);
-    if (null != othersP && 0 < othersP.length ) {
-      Set<FacetRangeOther> others = EnumSet.noneOf(FacetRangeOther.class);
-      
-      for (final String o : othersP) {
-        others.add(FacetRangeOther.get(o));
-      }
-      
-      // no matter what other values are listed, we don't do
-      // anything if "none" is specified.
-      if (! others.contains(FacetRangeOther.NONE) ) {
-        
-        boolean all = others.contains(FacetRangeOther.ALL);
-        final String startS = calc.formatValue(start);
-        final String endS = calc.formatValue(end);
-
-        if (all || others.contains(FacetRangeOther.BEFORE)) {
-          // include upper bound if "outer" or if first gap doesn't already include it
-          res.add(FacetRangeOther.BEFORE.toString(),
-                  rangeCount(sf,null,startS,
+    if (others == null) {
+      others = getOtherRanges(othersP, include, start, end);
+    }
+    for (OtherRange other : others) {
+      res.add(other.type.toString(), numeric != null
+          ? numeric.getRangeCount(other.index)
+          : rangeCount(sf,
+                       other.low == null ? null : calc.formatValue((T) other.low),
+                       other.high == null ? null : calc.formatValue((T) other.high),
+                       other.includeLower, other.includeUpper));
+    }
+    return res;
+  }  
+
+  /**
+   * One of the before, after and between ranges of a range or date facet
+   */
+  private static class OtherRange {
+    final FacetRangeOther type;
+    final Object low;
+    final Object high;
+    final boolean includeLower;
+    final boolean includeUpper;
+    int index;
+
+    OtherRange(FacetRangeOther type, Object low, Object high, boolean includeLower, boolean includeUpper) {
+      this.type = type;
+      this.low = low;
+      this.high = high;
+      this.includeLower = includeLower;
+      this.includeUpper = includeUpper;
+    }
+  }
+
+  /**
+   * @return the ranges requested by the "other" param of a range or date facet
+   */
+  private static List<OtherRange> getOtherRanges(String[] othersP, EnumSet<FacetRangeInclude> include,
+                                                 Object start, Object end) {
+    List<OtherRange> res = new ArrayList<OtherRange>();
+    if (null == othersP || 0 == othersP.length) return res;
+
+    Set<FacetRangeOther> others = EnumSet.noneOf(FacetRangeOther.class);
+    for (final String o : othersP) {
+      others.add(FacetRangeOther.get(o));
+    }
+
+    // no matter what other values are listed, we don't do
+    // anything if "none" is specified.
+    if (others.contains(FacetRangeOther.NONE)) return res;
+
+    boolean all = others.contains(FacetRangeOther.ALL);
+    if (all || others.contains(FacetRangeOther.BEFORE)) {
+      // include upper bound if "outer" or if first gap doesn't already include it
+      res.add(new OtherRange(FacetRangeOther.BEFORE, null, start,
                              false,
                              (include.contains(FacetRangeInclude.OUTER) ||
                               (! (include.contains(FacetRangeInclude.LOWER) ||
                                   include.contains(FacetRangeInclude.EDGE))))));
-          
-        }
-        if (all || others.contains(FacetRangeOther.AFTER)) {
-          // include lower bound if "outer" or if last gap doesn't already include it
-          res.add(FacetRangeOther.AFTER.toString(),
-                  rangeCount(sf,endS,null,
+    }
+    if (all || others.contains(FacetRangeOther.AFTER)) {
+      // include lower bound if "outer" or if last gap doesn't already include it
+      res.add(new OtherRange(FacetRangeOther.AFTER, end, null,
                              (include.contains(FacetRangeInclude.OUTER) ||
                               (! (include.contains(FacetRangeInclude.UPPER) ||
-                                  include.contains(FacetRangeInclude.EDGE)))),  
+                                  include.contains(FacetRangeInclude.EDGE)))),
                              false));
-        }
-        if (all || others.contains(FacetRangeOther.BETWEEN)) {
-         res.add(FacetRangeOther.BETWEEN.toString(),
-                 rangeCount(sf,startS,endS,
-                            (include.contains(FacetRangeInclude.LOWER) ||
-                             include.contains(FacetRangeInclude.EDGE)),
-                            (include.contains(FacetRangeInclude.UPPER) ||
-                             include.contains(FacetRangeInclude.EDGE))));
-         
-        }
-      }
+    }
+    if (all || others.contains(FacetRangeOther.BETWEEN)) {
+      res.add(new OtherRange(FacetRangeOther.BETWEEN, start, end,
+                             (include.contains(FacetRangeInclude.LOWER) ||
+                              include.contains(FacetRangeInclude.EDGE)),
+                             (include.contains(FacetRangeInclude.UPPER) ||
+                              include.contains(FacetRangeInclude.EDGE))));
     }
     return res;
-  }  
+  }
+
+  /**
+   * @return a counter of all the ranges of a facet in one pass over the field
+   *         cache, or null to count each range with a range query
+   * @see FacetParams#FACET_RANGE_METHOD
+   */
+  private NumericRangeCounter getNumericRangeCounter(SchemaField sf) {
+    String method = params.getFieldParam(sf.getName(), FacetParams.FACET_RANGE_METHOD,
+        FacetParams.FACET_RANGE_METHOD_filter);
+    if (!FacetParams.FACET_RANGE_METHOD_fc.equals(method)
+        || params.getBool(GroupParams.GROUP_FACET, false)
+        || !NumericRangeCounter.supports(sf)) {
+      return null;
+    }
+    return new NumericRangeCounter(sf);
+  }
   
   /**
    * Macro for getting the numDocs of range over docs
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.response.SolrQueryResponse;
+
+/**
+ * The time a request may spend on its analytics (facets, pivots, stats...),
+ * bounded by the timeAllowed parameter like the main query.  The components
+ * check it in their loops and, once it is spent, stop and keep what they
+ * computed so far: the response header then has <code>partialResults</code>
+ * and the list of the <code>truncated</code> parts of the response.
+ */
+public class TimeBudget {
+  private static final String CONTEXT_KEY = "timeBudget";
+
+  /** A budget which is never spent, for the requests without timeAllowed */
+  static final TimeBudget UNLIMITED = new TimeBudget(Long.MAX_VALUE);
+
+  private final long deadline;
+  private final Set<String> truncated = new LinkedHashSet<String>();
+  private volatile boolean spent;
+
+  TimeBudget(long deadline) {
+    this.deadline = deadline;
+  }
+
+  /**
+   * @return the budget of the request, which starts with the request
+   */
+  public static TimeBudget get(SolrQueryRequest req) {
+    Map<Object,Object> context = req.getContext();
+    TimeBudget budget = (TimeBudget) context.get(CONTEXT_KEY);
+    if (budget == null) {
+      int timeAllowed = req.getParams().getInt(CommonParams.TIME_ALLOWED, -1);
+      budget = timeAllowed > 0 ? new TimeBudget(req.getStartTime() + timeAllowed) : UNLIMITED;
+      context.put(CONTEXT_KEY, budget);
+    }
+    return budget;
+  }
+
+  /**
+   * @param part the part of the response computed by the caller, reported as
+   *        truncated if the budget is spent
+   * @return true if the caller should stop
+   */
+  public boolean isSpent(String part) {
+    if (!spent) {
+      if (deadline == Long.MAX_VALUE || System.currentTimeMillis() < deadline) return false;
+      spent = true;
+    }
+    synchronized (truncated) {
+      truncated.add(part);
+    }
+    return true;
+  }
+
+  /**
+   * Like {@link #isSpent(String)}, but only reads the clock every 4096 calls,
+   * for the loops over the documents or the terms
+   * @param count the number of documents or terms processed so far
+   */
+  public boolean isSpent(String part, int count) {
+    return (count & 0xfff) == 0 && isSpent(part);
+  }
+
+  /**
+   * @return the parts of the response which were truncated
+   */
+  public List<String> getTruncated() {
+    synchronized (truncated) {
+      return new ArrayList<String>(truncated);
+    }
+  }
+
+  /**
+   * Flags the response as partial if the budget of the request was spent
+   */
+  public static void addPartialResults(SolrQueryRequest req, SolrQueryResponse rsp) {
+    TimeBudget budget = (TimeBudget) req.getContext().get(CONTEXT_KEY);
+    if (budget == null || !budget.spent) return;
+    NamedList<Object> header = rsp.getResponseHeader();
+    if (header == null) return;
+    if (header.get("partialResults") == null) {
+      header.add("partialResults", Boolean.TRUE);
+    }
+    header.add("truncated", budget.getTruncated());
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import java.util.Arrays;
+
+/**
+ * Selects the highest counts of a facet without boxing them.  Every candidate
+ * is a long, with the count in the upper 32 bits and
+ * <code>Integer.MAX_VALUE - ord</code> in the lower ones so that equal counts
+ * are ordered by ordinal, kept in a min-heap of at most
+ * <code>offset+limit</code> entries.  The candidates must be collected in
+ * increasing ordinal order.
+ *
+ * <p>Every entry of the heap also has a slot, in <code>[0, maxSize)</code>,
+ * which is reused by the entry which displaces it: a caller which does not
+ * have ordinals to look up the selected values with can keep them in an array
+ * indexed by slot.
+ */
+final class TopCountSelector {
+  private final int maxSize;
+  private long[] heap;   // 1-based, heap[1] is the smallest entry
+  private int[] slots;   // the slot of every entry of the heap
+  private int size;
+  private int min;       // only counts > min are selected
+
+  private int start = 1; // the first entry of the selected page, see select()
+
+  /**
+   * @param maxSize the maximum number of entries to select, usually offset+limit
+   * @param mincount the minimum count of a selected entry
+   */
+  TopCountSelector(int maxSize, int mincount) {
+    this.maxSize = Math.max(maxSize, 0);
+    int initialSize = Math.min(this.maxSize, 1000) + 1;
+    this.heap = new long[initialSize];
+    this.slots = new int[initialSize];
+    // nothing can be selected without room for it
+    this.min = this.maxSize == 0 ? Integer.MAX_VALUE : mincount - 1;
+  }
+
+  /** Creates a selector for the first offset+limit entries, a negative limit meaning all of them */
+  TopCountSelector(int offset, int limit, int mincount, int maxEntries) {
+    this(Math.min(limit >= 0 ? offset + limit : Integer.MAX_VALUE - 1, maxEntries), mincount);
+  }
+
+  /** @return the smallest count which can still be selected, minus one */
+  int getMin() {
+    return min;
+  }
+
+  /**
+   * Collects the count of an ordinal, which must be greater than the
+   * ordinals collected before.
+   *
+   * @return the slot of the entry if it was selected, -1 otherwise
+   */
+  int collect(int ord, int count) {
+    // NOTE: we use count>min rather than count>=min because we are going in
+    // index order, so a later ordinal with the same count sorts lower.
+    if (count <= min) return -1;
+    long entry = (((long) count) << 32) | (Integer.MAX_VALUE - ord);
+    int slot;
+    if (size < maxSize) {
+      if (size + 1 == heap.length) {
+        int newLength = (int) Math.min((long) heap.length << 1, (long) maxSize + 1);
+        heap = Arrays.copyOf(heap, newLength);
+        slots = Arrays.copyOf(slots, newLength);
+      }
+      slot = size++;
+      upHeap(size, entry, slot);
+    } else {
+      slot = slots[1];
+      downHeap(entry, slot);
+    }
+    if (size == maxSize) min = (int) (heap[1] >>> 32);
+    return slot;
+  }
+
+  /**
+   * Sorts the selected entries by decreasing count and skips the first
+   * <code>offset</code> ones.  No entry can be collected afterwards.
+   */
+  void select(int offset) {
+    int n = size;
+    while (size > 1) {
+      long entry = heap[1];
+      int slot = slots[1];
+      long last = heap[size];
+      int lastSlot = slots[size];
+      heap[size] = entry;
+      slots[size] = slot;
+      size--;
+      downHeap(last, lastSlot);
+    }
+    // the highest count is now at 1 and the lowest at n
+    size = n;
+    start = 1 + Math.min(offset, n);
+  }
+
+  /** @return the number of collected entries, or of the entries of the selected page once selected */
+  int size() {
+    return size + 1 - start;
+  }
+
+  /** @return the ordinal of the i-th entry of the selected page */
+  int getOrd(int i) {
+    return Integer.MAX_VALUE - (int) heap[start + i];
+  }
+
+  /** @return the count of the i-th entry of the selected page */
+  int getCount(int i) {
+    return (int) (heap[start + i] >>> 32);
+  }
+
+  /** @return the slot of the i-th entry of the selected page */
+  int getSlot(int i) {
+    return slots[start + i];
+  }
+
+  private void upHeap(int i, long entry, int slot) {
+    int j = i >>> 1;
+    while (j > 0 && entry < heap[j]) {
+      heap[i] = heap[j];
+      slots[i] = slots[j];
+      i = j;
+      j = i >>> 1;
+    }
+    heap[i] = entry;
+    slots[i] = slot;
+  }
+
+  /** Replaces the smallest entry */
+  private void downHeap(long entry, int slot) {
+    int i = 1;
+    int j = 2;
+    while (j <= size) {
+      if (j < size && heap[j + 1] < heap[j]) j++;
+      if (heap[j] >= entry) break;
+      heap[i] = heap[j];
+      slots[i] = slots[j];
+      i = j;
+      j = i << 1;
+    }
+    heap[i] = entry;
+    slots[i] = slot;
+  }
+}
@@ -32,7 +32,6 @@ import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.schema.TrieField;
 import org.apache.solr.search.*;
-import org.apache.solr.util.LongPriorityQueue;
 import org.apache.solr.util.PrimUtils;
 import org.apache.solr.handler.component.StatsValues;
 import org.apache.solr.handler.component.StatsValuesFactory;
@@ -43,6 +42,7 @@ import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.UnicodeUtil;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -203,6 +203,14 @@ public class UnInvertedField extends DocTermOrds {
   }
 
   public NamedList<Integer> getCounts(SolrIndexSearcher searcher, DocSet baseDocs, int offset, int limit, Integer mincount, boolean missing, String sort, String prefix) throws IOException {
+    return getCounts(searcher, baseDocs, offset, limit, mincount, missing, sort, prefix, TimeBudget.UNLIMITED);
+  }
+
+  /**
+   * Like {@link #getCounts(SolrIndexSearcher, DocSet, int, int, Integer, boolean, String, String)},
+   * but stops counting once the budget is spent and returns the counts of the documents seen so far
+   */
+  public NamedList<Integer> getCounts(SolrIndexSearcher searcher, DocSet baseDocs, int offset, int limit, Integer mincount, boolean missing, String sort, String prefix, TimeBudget budget) throws IOException {
     use.incrementAndGet();
 
     FieldType ft = searcher.getSchema().getFieldType(field);
@@ -269,8 +277,14 @@ public class UnInvertedField extends DocTermOrds {
         //System.out.println("  NEG");
       }
 
+      boolean truncated = false;
+
       // For the biggest terms, do straight set intersections
       for (TopTerm tt : bigTerms.values()) {
+        if (budget.isSpent("facet_fields")) {
+          truncated = true;
+          break;
+        }
         //System.out.println("  do big termNum=" + tt.termNum + " term=" + tt.term.utf8ToString());
         // TODO: counts could be deferred if sorted==false
         if (tt.termNum >= startTerm && tt.termNum < endTerm) {
@@ -290,9 +304,14 @@ public class UnInvertedField extends DocTermOrds {
       // they would be predictable for the non-prefix case).
       // Perhaps a different copy of the code would be warranted.
 
-      if (termInstances > 0) {
+      if (termInstances > 0 && !truncated) {
         DocIterator iter = docs.iterator();
+        int n = 0;
         while (iter.hasNext()) {
+          if (budget.isSpent("facet_fields", ++n)) {
+            truncated = true;
+            break;
+          }
           int doc = iter.nextDoc();
           //System.out.println("iter doc=" + doc);
           int code = index[doc];
@@ -333,85 +352,69 @@ public class UnInvertedField extends DocTermOrds {
           }
         }
       }
+
+      if (truncated && doNegative) {
+        // the counts of the other documents tell nothing about the matching ones
+        Arrays.fill(counts, 0);
+        doNegative = false;
+      }
+
       final CharsRef charsRef = new CharsRef();
 
       int off=offset;
       int lim=limit>=0 ? limit : Integer.MAX_VALUE;
 
       if (sort.equals(FacetParams.FACET_SORT_COUNT) || sort.equals(FacetParams.FACET_SORT_COUNT_LEGACY)) {
-        int maxsize = limit>0 ? offset+limit : Integer.MAX_VALUE-1;
-        maxsize = Math.min(maxsize, numTermsInField);
-        LongPriorityQueue queue = new LongPriorityQueue(Math.min(maxsize,1000), maxsize, Long.MIN_VALUE);
-
-        int min=mincount-1;  // the smallest value in the top 'N' values
+        TopCountSelector selector = new TopCountSelector(offset, limit, mincount, numTermsInField);
         //System.out.println("START=" + startTerm + " END=" + endTerm);
         for (int i=startTerm; i<endTerm; i++) {
-          int c = doNegative ? maxTermCounts[i] - counts[i] : counts[i];
-          if (c>min) {
-            // NOTE: we use c>min rather than c>=min as an optimization because we are going in
-            // index order, so we already know that the keys are ordered.  This can be very
-            // important if a lot of the counts are repeated (like zero counts would be).
-
-            // smaller term numbers sort higher, so subtract the term number instead
-            long pair = (((long)c)<<32) + (Integer.MAX_VALUE - i);
-            boolean displaced = queue.insert(pair);
-            if (displaced) min=(int)(queue.top() >>> 32);
-          }
+          selector.collect(i, doNegative ? maxTermCounts[i] - counts[i] : counts[i]);
         }
 
         // now select the right page from the results
 
         // if we are deep paging, we don't have to order the highest "offset" counts.
-        int collectCount = Math.max(0, queue.size() - off);
+        selector.select(off);
+        final int collectCount = selector.size();
         assert collectCount <= lim;
 
-        // the start and end indexes of our list "sorted" (starting with the highest value)
-        int sortedIdxStart = queue.size() - (collectCount - 1);
-        int sortedIdxEnd = queue.size() + 1;
-        final long[] sorted = queue.sort(collectCount);
-
-        final int[] indirect = counts;  // reuse the counts array for the index into the tnums array
-        assert indirect.length >= sortedIdxEnd;
-
-        for (int i=sortedIdxStart; i<sortedIdxEnd; i++) {
-          long pair = sorted[i];
-          int c = (int)(pair >>> 32);
-          int tnum = Integer.MAX_VALUE - (int)pair;
+        final int[] indirect = counts;  // reuse the counts array for the index into the selected entries
+        assert indirect.length >= collectCount;
 
+        for (int i=0; i<collectCount; i++) {
           indirect[i] = i;   // store the index for indirect sorting
-          sorted[i] = tnum;  // reuse the "sorted" array to store the term numbers for indirect sorting
 
           // add a null label for now... we'll fill it in later.
-          res.add(null, c);
+          res.add(null, selector.getCount(i));
         }
 
         // now sort the indexes by the term numbers
-        PrimUtils.sort(sortedIdxStart, sortedIdxEnd, indirect, new PrimUtils.IntComparator() {
+        final TopCountSelector sorted = selector;
+        PrimUtils.sort(0, collectCount, indirect, new PrimUtils.IntComparator() {
           @Override
           public int compare(int a, int b) {
-            return (int)sorted[a] - (int)sorted[b];
+            return sorted.getOrd(a) - sorted.getOrd(b);
           }
 
           @Override
           public boolean lessThan(int a, int b) {
-            return sorted[a] < sorted[b];
+            return sorted.getOrd(a) < sorted.getOrd(b);
           }
 
           @Override
           public boolean equals(int a, int b) {
-            return sorted[a] == sorted[b];
+            return sorted.getOrd(a) == sorted.getOrd(b);
           }
         });
 
         // convert the term numbers to term values and set
         // as the label
-        //System.out.println("sortStart=" + sortedIdxStart + " end=" + sortedIdxEnd);
-        for (int i=sortedIdxStart; i<sortedIdxEnd; i++) {
+        for (int i=0; i<collectCount; i++) {
           int idx = indirect[i];
-          int tnum = (int)sorted[idx];
+          int tnum = selector.getOrd(idx);
           final String label = getReadableValue(getTermValue(te, tnum), ft, charsRef);
           //System.out.println("  label=" + label);
-          res.setName(idx - sortedIdxStart, label);
+          res.setName(idx, label);
         }
 
       } else {
@@ -459,6 +462,14 @@ public class UnInvertedField extends DocTermOrds {
    * @throws IOException If there is a low-level I/O error.
    */
   public StatsValues getStats(SolrIndexSearcher searcher, DocSet baseDocs, String[] facet) throws IOException {
+    return getStats(searcher, baseDocs, facet, TimeBudget.UNLIMITED);
+  }
+
+  /**
+   * Like {@link #getStats(SolrIndexSearcher, DocSet, String[])}, but stops once
+   * the budget is spent and returns the statistics of the documents seen so far
+   */
+  public StatsValues getStats(SolrIndexSearcher searcher, DocSet baseDocs, String[] facet, TimeBudget budget) throws IOException {
     //this function is ripped off nearly wholesale from the getCounts function to use
     //for multiValued fields within the StatsComponent.  may be useful to find common
     //functionality between the two and refactor code somewhat
@@ -499,6 +510,19 @@ public class UnInvertedField extends DocTermOrds {
 
     TermsEnum te = getOrdTermsEnum(searcher.getAtomicReader());
 
+    if (finfo.length > 0 && finfo[0].isNumeric()) {
+      // the facet stats accumulate the value of every term as they count it
+      double[] termValues = new double[numTermsInField];
+      FieldType ft = sf.getType();
+      for (i = 0; i < numTermsInField; i++) {
+        if (budget.isSpent("stats", i + 1)) return allstats;
+        termValues[i] = ((Number) ft.toObject(sf, getTermValue(te, i))).doubleValue();
+      }
+      for (FieldFacetStats f : finfo) {
+        f.setStatsTermValues(termValues);
+      }
+    }
+
     boolean doNegative = false;
     if (finfo.length == 0) {
       //if we're collecting statistics with a facet field, can't do inverted counting
@@ -516,8 +540,15 @@ public class UnInvertedField extends DocTermOrds {
       // that should be OK, as their entries in our table should be empty.
     }
 
+    boolean truncated = false;
+    int n = 0;
+
     // For the biggest terms, do straight set intersections
     for (TopTerm tt : bigTerms.values()) {
+      if (budget.isSpent("stats")) {
+        truncated = true;
+        break;
+      }
       // TODO: counts could be deferred if sorted==false
       if (tt.termNum >= 0 && tt.termNum < numTermsInField) {
         final Term t = new Term(field, tt.term);
@@ -529,6 +560,10 @@ public class UnInvertedField extends DocTermOrds {
           DocSet bigTermDocSet = searcher.getDocSet(new TermQuery(t)).intersection(docs);
           DocIterator iter = bigTermDocSet.iterator();
           while (iter.hasNext()) {
+            if (budget.isSpent("stats", ++n)) {
+              truncated = true;
+              break;
+            }
             int doc = iter.nextDoc();
             counts[tt.termNum]++;
             for (FieldFacetStats f : finfo) {
@@ -540,9 +575,13 @@ public class UnInvertedField extends DocTermOrds {
     }
 
 
-    if (termInstances > 0) {
+    if (termInstances > 0 && !truncated) {
       DocIterator iter = docs.iterator();
       while (iter.hasNext()) {
+        if (budget.isSpent("stats", ++n)) {
+          truncated = true;
+          break;
+        }
         int doc = iter.nextDoc();
         int code = index[doc];
 
@@ -584,7 +623,13 @@ public class UnInvertedField extends DocTermOrds {
         }
       }
     }
-    
+
+    if (truncated && doNegative) {
+      // the counts of the other documents tell nothing about the matching ones
+      Arrays.fill(counts, 0);
+      doNegative = false;
+    }
+
     // add results in index order
     for (i = 0; i < numTermsInField; i++) {
       int c = doNegative ? maxTermCounts[i] - counts[i] : counts[i];
@@ -602,15 +647,15 @@ public class UnInvertedField extends DocTermOrds {
     allstats.addMissing(c);
 
     if (finfo.length > 0) {
-      for (FieldFacetStats f : finfo) {
-        Map<String, StatsValues> facetStatsValues = f.facetStatsValues;
-        FieldType facetType = searcher.getSchema().getFieldType(f.name);
-        for (Map.Entry<String,StatsValues> entry : facetStatsValues.entrySet()) {
-          String termLabel = entry.getKey();
-          int missingCount = searcher.numDocs(new TermQuery(new Term(f.name, facetType.toInternal(termLabel))), missing);
-          entry.getValue().addMissing(missingCount);
+      DocIterator iter = missing.iterator();
+      while (iter.hasNext()) {
+        int doc = iter.nextDoc();
+        for (FieldFacetStats f : finfo) {
+          f.missing(doc);
         }
-        allstats.addFacet(f.name, facetStatsValues);
+      }
+      for (FieldFacetStats f : finfo) {
+        allstats.addFacet(f.name, f.getFacetStatsValues());
       }
     }
 
@@ -24,6 +24,7 @@ import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.util.BytesRef;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.util.DocumentColumns;
 import org.apache.solr.common.util.JavaBinCodec;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
@@ -87,6 +88,12 @@ public class BinaryResponseWriter implements BinaryQueryResponseWriter {
         writeResults(ctx, codec);
         return null; // null means we completely handled it
       }
+      if (o instanceof BytesRef) {
+        // written as is, like the text writers do
+        BytesRef bytes = (BytesRef) o;
+        codec.writeByteArray(bytes.bytes, bytes.offset, bytes.length);
+        return null;
+      }
       if( o instanceof IndexableField ) {
         if(schema == null) schema = solrQueryRequest.getSchema(); 
         
@@ -117,10 +124,18 @@ public class BinaryResponseWriter implements BinaryQueryResponseWriter {
     }
 
     protected void writeResultsBody( ResultContext res, JavaBinCodec codec ) throws IOException 
+    {
+      writeDocs( res, codec, null );
+    }
+
+    /**
+     * Writes the documents to the codec, or collects them by field in columns if it is not null
+     */
+    private void writeDocs( ResultContext res, JavaBinCodec codec, DocumentColumns columns ) throws IOException
     {
       DocList ids = res.docs;
       int sz = ids.size();
-      codec.writeTag(JavaBinCodec.ARR, sz);
+      if (columns == null) codec.writeTag(JavaBinCodec.ARR, sz);
       if(searcher == null) searcher = solrQueryRequest.getSearcher();
       if(schema == null) schema = solrQueryRequest.getSchema();
 
@@ -143,7 +158,11 @@ public class BinaryResponseWriter implements BinaryQueryResponseWriter {
         if( transformer != null ) {
           transformer.transform(sdoc, id);
         }
-        codec.writeSolrDocument(sdoc);
+        if (columns == null) {
+          codec.writeSolrDocument(sdoc);
+        } else {
+          columns.add(sdoc);
+        }
       }
       if( transformer != null ) {
         transformer.setContext( null );
@@ -151,7 +170,6 @@ public class BinaryResponseWriter implements BinaryQueryResponseWriter {
     }
     
     public void writeResults(ResultContext ctx, JavaBinCodec codec) throws IOException {
-      codec.writeTag(JavaBinCodec.SOLRDOCLST);
       boolean wantsScores = returnFields.wantsScore() && ctx.docs.hasScores();
       List l = new ArrayList(3);
       l.add((long) ctx.docs.matches());
@@ -162,12 +180,28 @@ public class BinaryResponseWriter implements BinaryQueryResponseWriter {
         maxScore = ctx.docs.maxScore();
       }
       l.add(maxScore);
+
+      if (solrQueryRequest.getParams().getBool(CommonParams.JAVABIN_COLUMNAR, false)) {
+        codec.writeDocumentColumns((Long) l.get(0), (Long) l.get(1), maxScore, getColumns(ctx));
+        return;
+      }
+
+      codec.writeTag(JavaBinCodec.SOLRDOCLST);
       codec.writeArray(l);
       
       // this is a seprate function so that streaming responses can use just that part
       writeResultsBody( ctx, codec );
     }
 
+    /**
+     * Collects the values of the documents by field, the numeric ones in primitive arrays
+     */
+    protected DocumentColumns getColumns(ResultContext res) throws IOException {
+      DocumentColumns columns = new DocumentColumns();
+      writeDocs(res, null, columns);
+      return columns;
+    }
+
     public SolrDocument getDoc(Document doc) {
       SolrDocument solrDoc = new SolrDocument();
       for (IndexableField f : doc) {
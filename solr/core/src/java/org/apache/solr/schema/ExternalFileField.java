@@ -51,6 +51,8 @@ import java.io.IOException;
  * This is to help support systems where one may not be able to overwrite a file (like Windows, if the file is in use).
  * <p/>If the external file has already been loaded, and it is changed, those changes will not be visible until a commit has been done.
  * <p/>The external file may be sorted or unsorted by the key field, but it will be substantially slower (untested) if it isn't sorted.
+ * <p/>Large files which change often can instead be kept in the binary format of {@link org.apache.solr.search.function.BinaryExternalFile},
+ * which is updated incrementally and whose values are resolved per segment.
  * <p/>Fields of this type may currently only be used as a ValueSource in a FunctionQuery.
  *
  *
@@ -92,9 +94,13 @@ public class ExternalFileField extends FieldType {
 
   @Override
   public ValueSource getValueSource(SchemaField field, QParser parser) {
+    return new FileFloatSource(field, getKeyField(), defVal, parser);
+  }
+
+  /** The field whose values are the keys of the external file */
+  public SchemaField getKeyField() {
     // default key field to unique key
-    SchemaField keyField = keyFieldName==null ? schema.getUniqueKeyField() : schema.getField(keyFieldName);
-    return new FileFloatSource(field, keyField, defVal, parser);
+    return keyFieldName==null ? schema.getUniqueKeyField() : schema.getField(keyFieldName);
   }
 
 
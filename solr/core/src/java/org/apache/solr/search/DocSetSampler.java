@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.Hash;
+import org.apache.solr.schema.SchemaField;
+
+/**
+ * Draws a deterministic sample of a {@link DocSet}: a document is kept if the
+ * murmur hash of its unique key is below <code>rate * 2^32</code>.  The same
+ * documents are kept whatever the shard or the segment which holds them, so
+ * the samples are repeatable and consistent across the shards of a collection.
+ */
+public class DocSetSampler {
+  /**
+   * The default seed of the hash.  It must differ from the seed used to route
+   * the documents to the shards, or the sample would be made of whole shards.
+   */
+  public static final int DEFAULT_SEED = 0x5eed;
+
+  /**
+   * @param rate the fraction of the documents to keep, in (0, 1]
+   * @return the sampled documents
+   */
+  public static DocSet sample(SolrIndexSearcher searcher, DocSet docs, double rate, int seed) throws IOException {
+    if (rate >= 1) return docs;
+    SchemaField uniqueKey = searcher.getSchema().getUniqueKeyField();
+    if (uniqueKey == null) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Sampling requires a uniqueKey field");
+    }
+
+    long threshold = (long) (rate * (1L << 32));
+    OpenBitSet bits = new OpenBitSet(searcher.maxDoc());
+    Filter filter = docs.getTopFilter();
+    BytesRef key = new BytesRef();
+    for (AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+      DocIdSet set = filter.getDocIdSet(leaf, null);
+      DocIdSetIterator it = set == null ? null : set.iterator();
+      if (it == null) continue;
+      FieldCache.DocTerms keys = FieldCache.DEFAULT.getTerms(leaf.reader(), uniqueKey.getName());
+      int doc;
+      while ((doc = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        if (isSampled(keys.getTerm(doc, key), threshold, seed)) {
+          bits.fastSet(leaf.docBase + doc);
+        }
+      }
+    }
+    return new BitDocSet(bits);
+  }
+
+  static boolean isSampled(BytesRef key, long threshold, int seed) {
+    int hash = Hash.murmurhash3_x86_32(key.bytes, key.offset, key.length, seed);
+    return (hash & 0xffffffffL) < threshold;
+  }
+}
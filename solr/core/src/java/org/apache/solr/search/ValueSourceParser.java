@@ -42,6 +42,7 @@ import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.schema.*;
 
+import org.apache.solr.search.function.CachedValueSource;
 import org.apache.solr.search.function.distance.*;
 import org.apache.solr.util.plugin.NamedListInitializedPlugin;
 
@@ -164,7 +165,8 @@ public abstract class ValueSourceParser implements NamedListInitializedPlugin {
         ValueSource source = fp.parseValueSource();
         float min = fp.parseFloat();
         float max = fp.parseFloat();
-        return new ScaleFloatFunction(source, min, max);
+        // scale() scans the values of all the documents of the index
+        return new CachedValueSource(new ScaleFloatFunction(source, min, max));
       }
     });
     addParser("div", new ValueSourceParser() {
@@ -272,7 +274,7 @@ public abstract class ValueSourceParser implements NamedListInitializedPlugin {
         if (fp.hasMoreArguments()) {
           defVal = fp.parseFloat();
         }
-        return new QueryValueSource(q, defVal);
+        return new CachedValueSource(new QueryValueSource(q, defVal));
       }
     });
     addParser("boost", new ValueSourceParser() {
@@ -0,0 +1,659 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.search.function;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.suggest.fst.Sort;
+import org.apache.lucene.search.suggest.fst.Sort.BufferSize;
+import org.apache.lucene.search.suggest.fst.Sort.ByteSequencesReader;
+import org.apache.lucene.search.suggest.fst.Sort.ByteSequencesWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.util.VersionedFile;
+
+/**
+ * A generation of the binary external file of an {@link org.apache.solr.schema.ExternalFileField},
+ * named <code>external_&lt;fieldname&gt;.bin.&lt;generation&gt;</code> in the data directory.  When
+ * such a file exists, it is used instead of the text external file.
+ *
+ * <p/>The file holds the entries sorted by the indexed form of their key, and is memory mapped:
+ * the values of a segment are resolved by walking the terms of its key field along the sorted
+ * keys, so that only the segments which are new to a searcher need key lookups.  A generation
+ * also records the entries which changed since the previous one, the values of the segments
+ * which were resolved for the previous generation are then updated with these changes only.
+ *
+ * <p/>A new generation is written by {@link #update} with the changed entries, which can be
+ * posted in the <code>key=value</code> format of the text file to the
+ * {@link FileFloatSource.ReloadCacheRequestHandler} with a <code>field</code> parameter.  The
+ * text file of a field is converted to a binary file by {@link #convert}, with the
+ * additional <code>convert=true</code> parameter.  Neither holds the entries in memory.
+ */
+public class BinaryExternalFile {
+  static final String CODEC = "ExternalFileValues";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  private static final Object updateLock = new Object();
+
+  final String name;
+  final long generation;
+  final long baseGeneration;
+  final int numEntries;
+
+  private final IndexInput in;
+  private final long keysStart;
+  private final long offsetsStart;
+  private final long valuesStart;
+  private final long changesStart;
+
+  /** The values of every segment core, which are evicted with the segments */
+  private final Map<Object, float[]> segmentValues = new WeakHashMap<Object, float[]>();
+
+  /** The previous generation, whose resolved segments can be updated with the changes */
+  private volatile BinaryExternalFile previous;
+
+  private BinaryExternalFile(String name, IndexInput in) throws IOException {
+    this.name = name;
+    this.in = in;
+    CodecUtil.checkHeader(in, CODEC, VERSION_START, VERSION_CURRENT);
+    generation = in.readLong();
+    baseGeneration = in.readLong();
+    keysStart = in.getFilePointer();
+
+    in.seek(in.length() - 32);
+    numEntries = (int) in.readLong();
+    offsetsStart = in.readLong();
+    valuesStart = in.readLong();
+    changesStart = in.readLong();
+  }
+
+  private static String prefix(String field) {
+    return "external_" + field + ".bin.";
+  }
+
+  /** The name of the latest generation of the binary file of a field, or null */
+  private static String getLatestName(String dataDir, String field) {
+    final String prefix = prefix(field);
+    String[] names = new File(dataDir).list(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith(prefix);
+      }
+    });
+    if (names == null || names.length == 0) return null;
+    Arrays.sort(names);
+    return names[names.length - 1];
+  }
+
+  private static BinaryExternalFile open(String dataDir, String name) throws IOException {
+    MMapDirectory dir = new MMapDirectory(new File(dataDir));
+    // the file may still be read by the searchers of the previous generation: let the GC release it
+    dir.setUseUnmap(false);
+    try {
+      IndexInput in = dir.openInput(name, IOContext.READ);
+      boolean success = false;
+      try {
+        BinaryExternalFile file = new BinaryExternalFile(name, in);
+        success = true;
+        return file;
+      } finally {
+        if (!success) {
+          IOUtils.closeWhileHandlingException(in);
+        }
+      }
+    } finally {
+      dir.close();
+    }
+  }
+
+  /**
+   * Opens the latest generation of the binary file of a field.
+   *
+   * @param last the generation which was opened last, or null
+   * @return <code>last</code> if it is still the latest generation, or null if there is no binary file
+   */
+  static BinaryExternalFile openLatest(String dataDir, String field, BinaryExternalFile last) throws IOException {
+    String name = getLatestName(dataDir, field);
+    if (name == null) return null;
+    if (last != null && last.name.equals(name)) return last;
+    BinaryExternalFile file = open(dataDir, name);
+    if (last != null && last.generation == file.baseGeneration) {
+      file.previous = last;
+      // only keep one generation back
+      last.previous = null;
+    }
+    return file;
+  }
+
+  /**
+   * The values of the documents of a segment, <code>defVal</code> for the documents whose key is
+   * not in the file.
+   */
+  float[] getValues(AtomicReader reader, String keyField, float defVal) throws IOException {
+    Object coreKey = reader.getCoreCacheKey();
+    synchronized (segmentValues) {
+      float[] vals = segmentValues.get(coreKey);
+      if (vals != null) return vals;
+    }
+
+    float[] vals = null;
+    BinaryExternalFile prev = previous;
+    if (prev != null) {
+      float[] prevVals;
+      synchronized (prev.segmentValues) {
+        prevVals = prev.segmentValues.get(coreKey);
+      }
+      if (prevVals != null) {
+        vals = prevVals.clone();
+        applyChanges(reader, keyField, vals);
+      }
+    }
+    if (vals == null) {
+      vals = resolve(reader, keyField, defVal);
+    }
+
+    synchronized (segmentValues) {
+      segmentValues.put(coreKey, vals);
+    }
+    return vals;
+  }
+
+  private float[] resolve(AtomicReader reader, String keyField, float defVal) throws IOException {
+    float[] vals = new float[reader.maxDoc()];
+    if (defVal != 0) {
+      Arrays.fill(vals, defVal);
+    }
+    Terms terms = reader.terms(keyField);
+    if (terms == null || numEntries == 0) return vals;
+
+    IndexInput input = in.clone();
+    BytesRef key = new BytesRef();
+    TermsEnum termsEnum = terms.iterator(null);
+    DocsEnum docsEnum = null;
+    // both the terms and the keys are sorted, pos only moves forward
+    int pos = 0;
+    for (BytesRef term; (term = termsEnum.next()) != null;) {
+      pos = ceil(input, term, pos, key);
+      if (pos == numEntries) break;
+      if (!key.bytesEquals(term)) continue;
+
+      float val = readValue(input, pos++);
+      docsEnum = termsEnum.docs(null, docsEnum, 0);
+      int doc;
+      while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        vals[doc] = val;
+      }
+    }
+    return vals;
+  }
+
+  private void applyChanges(AtomicReader reader, String keyField, float[] vals) throws IOException {
+    Terms terms = reader.terms(keyField);
+    if (terms == null) return;
+    TermsEnum termsEnum = terms.iterator(null);
+    DocsEnum docsEnum = null;
+    // the changes are read from the file as they are applied
+    IndexInput input = in.clone();
+    input.seek(changesStart);
+    int numChanges = input.readVInt();
+    BytesRef key = new BytesRef();
+    for (int i = 0; i < numChanges; i++) {
+      key.length = input.readVInt();
+      key.grow(key.length);
+      input.readBytes(key.bytes, 0, key.length);
+      float val = Float.intBitsToFloat(input.readInt());
+      if (!termsEnum.seekExact(key, false)) continue;
+      docsEnum = termsEnum.docs(null, docsEnum, 0);
+      int doc;
+      while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        vals[doc] = val;
+      }
+    }
+  }
+
+  /**
+   * Finds the first entry whose key is not less than target, starting from an entry
+   * whose key is known to be not greater than target.
+   *
+   * @param key filled with the key of the entry which is found, if any
+   * @return the entry, or numEntries if all the keys are less than target
+   */
+  private int ceil(IndexInput input, BytesRef target, int from, BytesRef key) throws IOException {
+    // gallop to an upper bound: the keys of the entries before lo are less than target
+    int lo = from;
+    int hi = from;
+    int step = 1;
+    while (hi < numEntries && readKey(input, hi, key).compareTo(target) < 0) {
+      lo = hi + 1;
+      hi = lo + step;
+      step <<= 1;
+    }
+    hi = Math.min(hi, numEntries);
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (readKey(input, mid, key).compareTo(target) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    if (lo < numEntries) {
+      readKey(input, lo, key);
+    }
+    return lo;
+  }
+
+  private BytesRef readKey(IndexInput input, int i, BytesRef key) throws IOException {
+    input.seek(offsetsStart + 8L * i);
+    long start = input.readLong();
+    int length = (int) (input.readLong() - start);
+    key.grow(length);
+    input.seek(keysStart + start);
+    input.readBytes(key.bytes, 0, length);
+    key.offset = 0;
+    key.length = length;
+    return key;
+  }
+
+  private float readValue(IndexInput input, int i) throws IOException {
+    input.seek(valuesStart + 4L * i);
+    return Float.intBitsToFloat(input.readInt());
+  }
+
+  /**
+   * Orders the encoded changes by key, then in the order they were added
+   */
+  private static final Comparator<BytesRef> CHANGE_ORDER = new Comparator<BytesRef>() {
+    public int compare(BytesRef a, BytesRef b) {
+      int aLen = a.length - 8;
+      int bLen = b.length - 8;
+      for (int i = 0, n = Math.min(aLen, bLen); i < n; i++) {
+        int cmp = (a.bytes[a.offset + i] & 0xff) - (b.bytes[b.offset + i] & 0xff);
+        if (cmp != 0) return cmp;
+      }
+      if (aLen != bLen) return aLen - bLen;
+      int aSeq = readInt(a.bytes, a.offset + aLen);
+      int bSeq = readInt(b.bytes, b.offset + bLen);
+      return aSeq < bSeq ? -1 : (aSeq == bSeq ? 0 : 1);
+    }
+  };
+
+  private static int readInt(byte[] b, int off) {
+    return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+        | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+  }
+
+  private static void writeInt(byte[] b, int off, int v) {
+    b[off] = (byte) (v >>> 24);
+    b[off + 1] = (byte) (v >>> 16);
+    b[off + 2] = (byte) (v >>> 8);
+    b[off + 3] = (byte) v;
+  }
+
+  /**
+   * The changed entries of an update, parsed from lines in the <code>key=value</code> format of
+   * the text external file.  They are buffered in a temporary file of the data directory and
+   * sorted on disk, so that their number is not bounded by the heap.  If a key is changed
+   * several times, its last value wins.
+   */
+  public static final class Changes implements Closeable {
+    private final File dir;
+    private final File unsorted;
+    private final ByteSequencesWriter writer;
+    private final BytesRef scratch = new BytesRef();
+    private int count;
+
+    public Changes(String dataDir) throws IOException {
+      dir = new File(dataDir);
+      unsorted = File.createTempFile("external", ".changes", dir);
+      writer = new ByteSequencesWriter(unsorted);
+    }
+
+    /**
+     * @param keyType the type of the key field, which converts the keys to their indexed form
+     */
+    public void parse(Reader reader, FieldType keyType) throws IOException {
+      BufferedReader r = new BufferedReader(reader);
+      BytesRef internalKey = new BytesRef();
+      int lineNumber = 0;
+      for (String line; (line = r.readLine()) != null;) {
+        lineNumber++;
+        int delimIndex = line.lastIndexOf('=');
+        if (delimIndex < 0) continue;
+        String key = line.substring(0, delimIndex);
+        String val = line.substring(delimIndex + 1);
+        float fval;
+        try {
+          keyType.readableToIndexed(key, internalKey);
+          fval = Float.parseFloat(val);
+        } catch (Exception e) {
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Invalid external value at line " + lineNumber + ": " + line, e);
+        }
+        add(internalKey, fval);
+      }
+    }
+
+    /** Adds a change, the key in its indexed form */
+    public void add(BytesRef key, float value) throws IOException {
+      // the key, then the order of the change and the value
+      scratch.grow(key.length + 8);
+      System.arraycopy(key.bytes, key.offset, scratch.bytes, 0, key.length);
+      writeInt(scratch.bytes, key.length, count++);
+      writeInt(scratch.bytes, key.length + 4, Float.floatToRawIntBits(value));
+      scratch.length = key.length + 8;
+      writer.write(scratch);
+    }
+
+    /** @return the changes sorted by key, with one change per key */
+    SortedChanges sort() throws IOException {
+      writer.close();
+      File sorted = File.createTempFile("external", ".sorted", dir);
+      try {
+        new Sort(CHANGE_ORDER, BufferSize.megabytes(Sort.MIN_BUFFER_SIZE_MB), dir, Sort.MAX_TEMPFILES)
+            .sort(unsorted, sorted);
+        return new SortedChanges(sorted);
+      } catch (IOException e) {
+        sorted.delete();
+        throw e;
+      }
+    }
+
+    public void close() throws IOException {
+      IOUtils.closeWhileHandlingException(writer);
+      unsorted.delete();
+    }
+  }
+
+  /**
+   * Reads the sorted changes, the last value of every key only.
+   */
+  static final class SortedChanges implements Closeable {
+    private final File file;
+    private final ByteSequencesReader reader;
+    private final BytesRef next = new BytesRef();
+    private boolean hasNext;
+
+    /** The key of the current change */
+    final BytesRef key = new BytesRef();
+    /** The value of the current change */
+    float value;
+
+    SortedChanges(File file) throws IOException {
+      this.file = file;
+      reader = new ByteSequencesReader(file);
+      hasNext = reader.read(next);
+    }
+
+    /** Moves to the next key, false if there is none */
+    boolean next() throws IOException {
+      if (!hasNext) return false;
+      key.copyBytes(next);
+      key.length -= 8;
+      do {
+        value = Float.intBitsToFloat(readInt(next.bytes, next.offset + next.length - 4));
+        hasNext = reader.read(next);
+      } while (hasNext && next.length - 8 == key.length && sameKey(next, key));
+      return true;
+    }
+
+    private static boolean sameKey(BytesRef change, BytesRef key) {
+      for (int i = 0; i < key.length; i++) {
+        if (change.bytes[change.offset + i] != key.bytes[key.offset + i]) return false;
+      }
+      return true;
+    }
+
+    public void close() throws IOException {
+      IOUtils.closeWhileHandlingException(reader);
+      file.delete();
+    }
+  }
+
+  /**
+   * Writes the next generation of the binary file of a field: the entries of the latest
+   * generation, if any, updated with the given changes.  The sorted changes are merged as they
+   * are read with the entries of the previous generation, neither is loaded as a whole.
+   * Generations older than the previous one are deleted.
+   *
+   * @return the new generation
+   */
+  public static long update(String dataDir, String field, Changes changes) throws IOException {
+    return write(dataDir, field, changes, false);
+  }
+
+  /**
+   * Converts the text external file of a field to a new generation of its binary file, which
+   * replaces all the entries of the previous generation.  The text file is read a line at a
+   * time and sorted on disk.
+   *
+   * @param keyType the type of the key field
+   * @return the new generation
+   */
+  public static long convert(String dataDir, String field, FieldType keyType) throws IOException {
+    InputStream is = VersionedFile.getLatestFile(dataDir, "external_" + field);
+    Changes changes = new Changes(dataDir);
+    try {
+      Reader reader = new InputStreamReader(is, IOUtils.CHARSET_UTF_8);
+      try {
+        changes.parse(reader, keyType);
+      } finally {
+        reader.close();
+      }
+      return write(dataDir, field, changes, true);
+    } finally {
+      changes.close();
+    }
+  }
+
+  /**
+   * @param replace if the changes are all the entries of the new generation
+   */
+  private static long write(String dataDir, String field, Changes changes, boolean replace) throws IOException {
+    synchronized (updateLock) {
+      String baseName = getLatestName(dataDir, field);
+      BinaryExternalFile base = baseName == null ? null : open(dataDir, baseName);
+      SortedChanges sorted = changes.sort();
+      try {
+        long generation = base == null ? 1 : base.generation + 1;
+        String name = prefix(field) + String.format(Locale.ROOT, "%019d", generation);
+        String tmpName = "tmp_" + name;
+        // the values of a converted file are resolved again, a first generation has nothing to update
+        boolean incremental = base != null && !replace;
+
+        Directory dir = FSDirectory.open(new File(dataDir));
+        try {
+          Writer writer = new Writer(dir, tmpName, generation, incremental ? base.generation : 0);
+          boolean success = false;
+          try {
+            boolean hasChange = sorted.next();
+            if (incremental) {
+              IndexInput input = base.in.clone();
+              BytesRef key = new BytesRef();
+              for (int i = 0; i < base.numEntries; i++) {
+                base.readKey(input, i, key);
+                while (hasChange && sorted.key.compareTo(key) < 0) {
+                  writer.add(sorted.key, sorted.value, true);
+                  hasChange = sorted.next();
+                }
+                if (hasChange && sorted.key.bytesEquals(key)) {
+                  writer.add(sorted.key, sorted.value, true);
+                  hasChange = sorted.next();
+                } else {
+                  writer.add(key, base.readValue(input, i), false);
+                }
+              }
+            }
+            while (hasChange) {
+              writer.add(sorted.key, sorted.value, incremental);
+              hasChange = sorted.next();
+            }
+            writer.finish();
+            success = true;
+          } finally {
+            if (success) {
+              writer.close();
+            } else {
+              writer.abort();
+            }
+          }
+        } finally {
+          dir.close();
+        }
+
+        File file = new File(dataDir, name);
+        if (!new File(dataDir, tmpName).renameTo(file)) {
+          throw new IOException("Could not rename " + tmpName + " to " + file);
+        }
+
+        if (base != null) {
+          // keep the previous generation for the searchers which still use it
+          final String prefix = prefix(field);
+          final String keep = baseName;
+          String[] old = new File(dataDir).list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+              return name.startsWith(prefix) && name.compareTo(keep) < 0;
+            }
+          });
+          for (String oldName : old) {
+            new File(dataDir, oldName).delete();
+          }
+        }
+        return generation;
+      } finally {
+        sorted.close();
+        if (base != null) {
+          base.in.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the keys in order, while the offsets of the keys, the values and the changes go to
+   * temporary files which are appended to the keys at the end.
+   */
+  private static final class Writer {
+    private final Directory dir;
+    private final String name;
+    private final IndexOutput out;
+    private final IndexOutput offsets;
+    private final IndexOutput values;
+    private final IndexOutput changes;
+    private long keysLength;
+    private long numEntries;
+    private int numChanges;
+
+    Writer(Directory dir, String name, long generation, long baseGeneration) throws IOException {
+      this.dir = dir;
+      this.name = name;
+      out = dir.createOutput(name, IOContext.DEFAULT);
+      offsets = dir.createOutput(name + ".offsets", IOContext.DEFAULT);
+      values = dir.createOutput(name + ".values", IOContext.DEFAULT);
+      changes = dir.createOutput(name + ".changes", IOContext.DEFAULT);
+      CodecUtil.writeHeader(out, CODEC, VERSION_CURRENT);
+      out.writeLong(generation);
+      out.writeLong(baseGeneration);
+      offsets.writeLong(0);
+    }
+
+    /**
+     * @param changed if the entry is also recorded as a change since the base generation
+     */
+    void add(BytesRef key, float value, boolean changed) throws IOException {
+      out.writeBytes(key.bytes, key.offset, key.length);
+      keysLength += key.length;
+      offsets.writeLong(keysLength);
+      values.writeInt(Float.floatToRawIntBits(value));
+      numEntries++;
+      if (changed) {
+        changes.writeVInt(key.length);
+        changes.writeBytes(key.bytes, key.offset, key.length);
+        changes.writeInt(Float.floatToRawIntBits(value));
+        numChanges++;
+      }
+    }
+
+    void finish() throws IOException {
+      offsets.close();
+      values.close();
+      changes.close();
+      long offsetsStart = out.getFilePointer();
+      append(name + ".offsets");
+      long valuesStart = out.getFilePointer();
+      append(name + ".values");
+      long changesStart = out.getFilePointer();
+      out.writeVInt(numChanges);
+      append(name + ".changes");
+      out.writeLong(numEntries);
+      out.writeLong(offsetsStart);
+      out.writeLong(valuesStart);
+      out.writeLong(changesStart);
+    }
+
+    private void append(String tmpName) throws IOException {
+      IndexInput input = dir.openInput(tmpName, IOContext.READONCE);
+      try {
+        out.copyBytes(input, input.length());
+      } finally {
+        input.close();
+      }
+      dir.deleteFile(tmpName);
+    }
+
+    void close() throws IOException {
+      out.close();
+    }
+
+    void abort() {
+      IOUtils.closeWhileHandlingException(out, offsets, values, changes);
+      for (String tmpName : new String[] {name, name + ".offsets", name + ".values", name + ".changes"}) {
+        try {
+          dir.deleteFile(tmpName);
+        } catch (IOException e) {
+          // ignore, the file may not exist
+        }
+      }
+    }
+  }
+}
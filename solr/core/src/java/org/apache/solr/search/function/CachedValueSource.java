@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.search.function;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.FloatDocValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Wraps a function which is expensive to evaluate, such as <code>scale()</code>
+ * or <code>query()</code>.  When the {@link ValueSourceCache} is configured,
+ * the values of the function are computed once per segment and searcher, then
+ * read from the cache; otherwise the wrapped function is used as is.
+ */
+public class CachedValueSource extends ValueSource {
+  private final ValueSource source;
+
+  public CachedValueSource(ValueSource source) {
+    this.source = source;
+  }
+
+  public ValueSource getSource() {
+    return source;
+  }
+
+  @Override
+  public String description() {
+    return source.description();
+  }
+
+  @Override
+  public FunctionValues getValues(Map context, AtomicReaderContext readerContext) throws IOException {
+    SolrCache cache = getCache(context, readerContext);
+    if (cache == null) {
+      return source.getValues(context, readerContext);
+    }
+
+    ValueSourceCache.Key key = new ValueSourceCache.Key(source, readerContext.reader());
+    ValueSourceCache.Values values = (ValueSourceCache.Values) cache.get(key);
+    if (values == null) {
+      values = ValueSourceCache.materialize(source, context, readerContext);
+      cache.put(key, values);
+    }
+    final float[] arr = values.vals;
+    final FixedBitSet exists = values.exists;
+
+    return new FloatDocValues(this) {
+      @Override
+      public float floatVal(int doc) {
+        return arr[doc];
+      }
+
+      @Override
+      public void fillDoubles(int[] docs, int count, double[] out) {
+        for (int i = 0; i < count; i++) {
+          out[i] = arr[docs[i]];
+        }
+      }
+
+      @Override
+      public boolean exists(int doc) {
+        return exists == null || exists.get(doc);
+      }
+
+      @Override
+      public Object objectVal(int doc) {
+        return exists(doc) ? arr[doc] : null;
+      }
+    };
+  }
+
+  /** The cache of the searcher the values are requested for, or null */
+  private static SolrCache getCache(Map context, AtomicReaderContext readerContext) {
+    Object searcher = context == null ? null : context.get("searcher");
+    if (!(searcher instanceof SolrIndexSearcher)) return null;
+    SolrIndexSearcher solrSearcher = (SolrIndexSearcher) searcher;
+    // the values depend on the whole index: only cache the segments of this searcher
+    if (ReaderUtil.getTopLevelContext(readerContext).reader() != solrSearcher.getIndexReader()) return null;
+    return solrSearcher.getCache(ValueSourceCache.NAME);
+  }
+
+  @Override
+  public void createWeight(Map context, IndexSearcher searcher) throws IOException {
+    source.createWeight(context, searcher);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof CachedValueSource)) return false;
+    return source.equals(((CachedValueSource) o).source);
+  }
+
+  @Override
+  public int hashCode() {
+    return source.hashCode() ^ 0x5f3a9c17;
+  }
+}
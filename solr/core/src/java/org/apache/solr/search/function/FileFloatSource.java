@@ -20,6 +20,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -40,11 +41,14 @@ import org.apache.lucene.queries.function.docvalues.FloatDocValues;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IOUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.ContentStream;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.RequestHandlerBase;
 import org.apache.solr.handler.RequestHandlerUtils;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.ExternalFileField;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.QParser;
@@ -79,10 +83,19 @@ public class FileFloatSource extends ValueSource {
 
   @Override
   public FunctionValues getValues(Map context, AtomicReaderContext readerContext) throws IOException {
-    final int off = readerContext.docBase;
     IndexReaderContext topLevelContext = ReaderUtil.getTopLevelContext(readerContext);
 
-    final float[] arr = getCachedFloats(topLevelContext.reader());
+    Object cached = getCachedValues(topLevelContext.reader());
+    final float[] arr;
+    final int off;
+    if (cached instanceof BinaryExternalFile) {
+      // the binary file is resolved per segment
+      arr = ((BinaryExternalFile) cached).getValues(readerContext.reader(), keyField.getName(), defVal);
+      off = 0;
+    } else {
+      arr = (float[]) cached;
+      off = readerContext.docBase;
+    }
     return new FloatDocValues(this) {
       @Override
       public float floatVal(int doc) {
@@ -122,17 +135,57 @@ public class FileFloatSource extends ValueSource {
     floatCache.resetCache();
   }
 
-  private final float[] getCachedFloats(IndexReader reader) {
-    return (float[])floatCache.get(reader, new Entry(this));
+  /** @return the values of the whole reader, or the {@link BinaryExternalFile} to read them from */
+  private final Object getCachedValues(IndexReader reader) {
+    return floatCache.get(reader, new Entry(this));
   }
 
   static Cache floatCache = new Cache() {
     @Override
     protected Object createValue(IndexReader reader, Object key) {
-      return getFloats(((Entry)key).ffs, reader);
+      Object binary = getBinaryFile((Entry)key, reader);
+      return binary != null ? binary : getFloats(((Entry)key).ffs, reader);
     }
   };
 
+  /**
+   * The binary file opened last for every source.  It is kept over resetCache(),
+   * so that the segments which were resolved are reused as long as the file does not change.
+   * The files are held by the field type of the schema, and released with it when the core
+   * is closed; the inner keys are strings, which do not hold on to the field type.
+   */
+  private static final Map<FieldType,Map<String,BinaryExternalFile>> binaryFiles = new WeakHashMap<FieldType,Map<String,BinaryExternalFile>>();
+
+  /** @return the latest binary file of the source, or null if there is none */
+  private static Object getBinaryFile(Entry entry, IndexReader reader) {
+    FileFloatSource ffs = entry.ffs;
+    String key = ffs.dataDir + '|' + ffs.field.getName() + '|' + ffs.keyField.getName() + '|' + ffs.defVal;
+    synchronized (binaryFiles) {
+      try {
+        Map<String,BinaryExternalFile> files = binaryFiles.get(ffs.field.getType());
+        if (files == null) {
+          files = new HashMap<String,BinaryExternalFile>();
+          binaryFiles.put(ffs.field.getType(), files);
+        }
+        BinaryExternalFile file = BinaryExternalFile.openLatest(ffs.dataDir, ffs.field.getName(), files.get(key));
+        if (file == null) {
+          files.remove(key);
+        } else {
+          files.put(key, file);
+        }
+        return file;
+      } catch (IOException e) {
+        // log, use defaults
+        SolrCore.log.error("Error opening binary external value source file: " + e);
+        float[] vals = new float[reader.maxDoc()];
+        if (ffs.defVal != 0) {
+          Arrays.fill(vals, ffs.defVal);
+        }
+        return vals;
+      }
+    }
+  }
+
   /** Internal cache. (from lucene FieldCache) */
   abstract static class Cache {
     private final Map readerCache = new WeakHashMap();
@@ -308,6 +361,39 @@ public class FileFloatSource extends ValueSource {
     @Override
     public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp)
         throws Exception {
+      String field = req.getParams().get("field");
+      Iterable<ContentStream> streams = req.getContentStreams();
+      boolean convert = req.getParams().getBool("convert", false);
+      if (field != null && (convert || streams != null)) {
+        SchemaField sf = req.getSchema().getField(field);
+        if (!(sf.getType() instanceof ExternalFileField)) {
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Not an external file field: " + field);
+        }
+        FieldType keyType = ((ExternalFileField) sf.getType()).getKeyField().getType();
+        String dataDir = req.getCore().getDataDir();
+        long generation;
+        if (convert) {
+          // the text file, written as a new generation of the binary file
+          generation = BinaryExternalFile.convert(dataDir, field, keyType);
+        } else {
+          // the changed key=value lines, written as a new generation of the binary file
+          BinaryExternalFile.Changes changes = new BinaryExternalFile.Changes(dataDir);
+          try {
+            for (ContentStream stream : streams) {
+              Reader reader = stream.getReader();
+              try {
+                changes.parse(reader, keyType);
+              } finally {
+                reader.close();
+              }
+            }
+            generation = BinaryExternalFile.update(dataDir, field, changes);
+          } finally {
+            changes.close();
+          }
+        }
+        rsp.add("generation", generation);
+      }
       FileFloatSource.resetCache();
       log.debug("readerCache has been reset.");
 
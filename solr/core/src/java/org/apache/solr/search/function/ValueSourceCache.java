@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.search.function;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Regenerator of the user cache which holds the values of expensive functions,
+ * such as <code>scale()</code> and <code>query()</code>, materialized into a
+ * float[] for every segment.  A cached function is evaluated over all the
+ * documents of a segment the first time a searcher needs it, later requests
+ * read its values from the array.
+ *
+ * <pre>
+ * &lt;cache name="valueSourceCache"
+ *        class="solr.LRUCache"
+ *        size="64"
+ *        autowarmCount="64"
+ *        regenerator="org.apache.solr.search.function.ValueSourceCache"/&gt;
+ * </pre>
+ *
+ * The values of these functions depend on the whole index (the range of the
+ * values of all the segments for <code>scale()</code>, the term statistics
+ * for <code>query()</code>), so autowarming evaluates the functions again over
+ * the segments of the new searcher rather than copying the old values, and drops
+ * the entries of the segments which were merged away.  A function is evaluated
+ * over all the segments of the new searcher at once, so that the values it
+ * derives from the whole index are computed only once.
+ *
+ * @see CachedValueSource
+ */
+public class ValueSourceCache implements CacheRegenerator {
+
+  /** The name of the user cache */
+  public static final String NAME = "valueSourceCache";
+
+  public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
+    ValueSource source = ((Key) oldKey).source;
+    List<AtomicReaderContext> leaves = newSearcher.getTopReaderContext().leaves();
+    // the function was already evaluated for the entry of another segment
+    if (leaves.isEmpty() || newCache.get(new Key(source, leaves.get(0).reader())) != null) return true;
+
+    // one context for all the segments, like a request
+    Map context = ValueSource.newContext(newSearcher);
+    source.createWeight(context, newSearcher);
+    for (AtomicReaderContext leaf : leaves) {
+      newCache.put(new Key(source, leaf.reader()), materialize(source, context, leaf));
+    }
+    return true;
+  }
+
+  /**
+   * Evaluates a function over all the documents of a segment
+   */
+  static Values materialize(ValueSource source, Map context, AtomicReaderContext readerContext) throws IOException {
+    FunctionValues vals = source.getValues(context, readerContext);
+    int maxDoc = readerContext.reader().maxDoc();
+    float[] arr = new float[maxDoc];
+    FixedBitSet exists = null;
+    for (int doc = 0; doc < maxDoc; doc++) {
+      arr[doc] = vals.floatVal(doc);
+      if (!vals.exists(doc)) {
+        if (exists == null) {
+          exists = new FixedBitSet(maxDoc);
+          exists.set(0, maxDoc);
+        }
+        exists.clear(doc);
+      }
+    }
+    return new Values(arr, exists);
+  }
+
+  /** The values of a function for the documents of a segment */
+  static final class Values {
+    final float[] vals;
+    /** null if every document has a value */
+    final FixedBitSet exists;
+
+    Values(float[] vals, FixedBitSet exists) {
+      this.vals = vals;
+      this.exists = exists;
+    }
+  }
+
+  /** The key of the values of a function for a segment */
+  static final class Key {
+    final ValueSource source;
+    final Object segmentKey;
+    private final int hash;
+
+    Key(ValueSource source, AtomicReader reader) {
+      this.source = source;
+      this.segmentKey = reader.getCoreCacheKey();
+      this.hash = source.hashCode() * 31 + System.identityHashCode(segmentKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return segmentKey == other.segmentKey && hash == other.hash && source.equals(other.source);
+    }
+  }
+}
@@ -36,6 +36,7 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.queries.function.ValueSource;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.BooleanClause;
@@ -422,10 +423,16 @@ public class DirectUpdateHandler2 extends UpdateHandler implements SolrCoreState
     log.info("start " + cmd);
     
     IndexReader[] readers = cmd.readers;
-    if (readers != null && readers.length > 0) {
+    Directory[] dirs = cmd.dirs;
+    if ((readers != null && readers.length > 0) || (dirs != null && dirs.length > 0)) {
       RefCounted<IndexWriter> iw = solrCoreState.getIndexWriter(core);
       try {
-        iw.get().addIndexes(readers);
+        if (readers != null && readers.length > 0) {
+          iw.get().addIndexes(readers);
+        }
+        if (dirs != null && dirs.length > 0) {
+          iw.get().addIndexes(dirs);
+        }
       } finally {
         iw.decref();
       }
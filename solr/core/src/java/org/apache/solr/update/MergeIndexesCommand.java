@@ -18,6 +18,7 @@
 package org.apache.solr.update;
 
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
 import org.apache.solr.request.SolrQueryRequest;
 
 /**
@@ -29,11 +30,19 @@ import org.apache.solr.request.SolrQueryRequest;
 public class MergeIndexesCommand extends UpdateCommand {
   public DirectoryReader[] readers;
 
+  /** whole indexes to add by copying their segments, without merging them */
+  public Directory[] dirs;
+
   public MergeIndexesCommand(DirectoryReader[] readers, SolrQueryRequest req) {
     super(req);
     this.readers = readers;
   }
 
+  public MergeIndexesCommand(Directory[] dirs, SolrQueryRequest req) {
+    super(req);
+    this.dirs = dirs;
+  }
+
   @Override
   public String name() {
     return "mergeIndexes";
@@ -48,6 +57,12 @@ public class MergeIndexesCommand extends UpdateCommand {
         sb.append(",").append(readers[i].directory());
       }
     }
+    if (dirs != null && dirs.length > 0) {
+      sb.append(dirs[0]);
+      for (int i = 1; i < dirs.length; i++) {
+        sb.append(",").append(dirs[i]);
+      }
+    }
     sb.append('}');
     return sb.toString();
   }
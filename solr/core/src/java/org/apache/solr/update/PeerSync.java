@@ -23,8 +23,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.HttpClient;
@@ -40,6 +43,7 @@ import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.StrUtils;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.HttpShardHandlerFactory;
+import org.apache.solr.handler.component.RealTimeGetComponent;
 import org.apache.solr.handler.component.ShardHandler;
 import org.apache.solr.handler.component.ShardHandlerFactory;
 import org.apache.solr.handler.component.ShardRequest;
@@ -79,6 +83,12 @@ public class PeerSync  {
   private long ourLowThreshold;  // 20th percentile
   private long ourHighThreshold; // 80th percentile
   private boolean cantReachIsSuccess;
+  private int updatesPerRequest = DEFAULT_UPDATES_PER_REQUEST;
+
+  /** Default for the maximum number of updates requested from a replica with a single request */
+  public static final int DEFAULT_UPDATES_PER_REQUEST = 1000;
+  // runs of at least this many adjacent missing versions are requested as a range
+  private static final int MIN_RANGE_SIZE = 3;
   private static final HttpClient client;
   static {
     ModifiableSolrParams params = new ModifiableSolrParams();
@@ -126,6 +136,16 @@ public class PeerSync  {
     List<Long> reportedVersions;
     List<Long> requestedUpdates;
     Exception updateException;
+    long maxRequestedVersion;  // highest absolute version of requestedUpdates
+    UpdateBatches batches;
+  }
+
+  /** The batches of updates requested from a single replica, which are fetched and applied oldest first. */
+  private static class UpdateBatches {
+    final LinkedList<SyncShardRequest> pending = new LinkedList<SyncShardRequest>();
+    // delete by queries newer than the batches applied so far, by absolute version
+    final TreeMap<Long,Object> heldDeleteByQueries = new TreeMap<Long,Object>();
+    final Set<Long> appliedDeleteByQueries = new HashSet<Long>();
   }
 
   public PeerSync(SolrCore core, List<String> replicas, int nUpdates) {
@@ -146,6 +166,12 @@ public class PeerSync  {
     shardHandler = shardHandlerFactory.getShardHandler(client);
   }
 
+  /** maximum number of updates to request from a replica at once, larger sets of updates are fetched in
+   * batches and each batch is applied while the next one is being fetched */
+  public void setUpdatesPerRequest(int updatesPerRequest) {
+    this.updatesPerRequest = Math.max(1, updatesPerRequest);
+  }
+
   /** optional list of updates we had before possibly receiving new updates */
   public void setStartingVersions(List<Long> startingVersions) {
     this.startingVersions = startingVersions;
@@ -370,6 +396,9 @@ public class PeerSync  {
     }
     
     List<Long> toRequest = new ArrayList<Long>();
+    // runs of versions that are adjacent in the replica's list, each can be requested as a range of versions
+    List<List<Long>> runs = new ArrayList<List<Long>>();
+    List<Long> run = null;
     for (Long otherVersion : otherVersions) {
       // stop when the entries get old enough that reorders may lead us to see updates we don't need
       if (!completeList && Math.abs(otherVersion) < ourLowThreshold) break;
@@ -378,9 +407,15 @@ public class PeerSync  {
         // we either have this update, or already requested it
         // TODO: what if the shard we previously requested this from returns failure (because it goes
         // down)
+        run = null;
         continue;
       }
 
+      if (run == null) {
+        run = new ArrayList<Long>();
+        runs.add(run);
+      }
+      run.add(otherVersion);
       toRequest.add(otherVersion);
       requestedUpdateSet.add(otherVersion);
     }
@@ -399,27 +434,84 @@ public class PeerSync  {
       return false;
     }
 
-    return requestUpdates(srsp, toRequest);
+    return requestUpdates(srsp, runs, toRequest.size());
   }
 
-  private boolean requestUpdates(ShardResponse srsp, List<Long> toRequest) {
-    String replica = srsp.getShardRequest().shards[0];
+  private boolean requestUpdates(ShardResponse srsp, List<List<Long>> runs, int numUpdates) {
+    // reuse our original request object for the first batch
+    SyncShardRequest sreq = (SyncShardRequest) srsp.getShardRequest();
+    String replica = sreq.shards[0];
+
+    // split the runs (newest first) in batches of at most updatesPerRequest updates, oldest first
+    UpdateBatches batches = new UpdateBatches();
+    List<Long> batch = new ArrayList<Long>();
+    List<String> batchParam = new ArrayList<String>();
+    for (int i = runs.size() - 1; i >= 0; i--) {
+      List<Long> run = runs.get(i);
+      int end = run.size();
+      while (end > 0) {
+        int start = Math.max(0, end - (updatesPerRequest - batch.size()));
+        List<Long> piece = run.subList(start, end);
+        batch.addAll(piece);
+        addVersions(batchParam, piece);
+        end = start;
+        if (batch.size() >= updatesPerRequest) {
+          batches.pending.add(newUpdateRequest(batches.pending.isEmpty() ? sreq : null, replica, batch, batchParam, batches));
+          batch = new ArrayList<Long>();
+          batchParam = new ArrayList<String>();
+        }
+      }
+    }
+    if (!batch.isEmpty()) {
+      batches.pending.add(newUpdateRequest(batches.pending.isEmpty() ? sreq : null, replica, batch, batchParam, batches));
+    }
 
-    log.info(msg() + "Requesting updates from " + replica + "n=" + toRequest.size() + " versions=" + toRequest);
+    log.info(msg() + "Requesting updates from " + replica + " n=" + numUpdates + " in " + batches.pending.size() + " requests");
 
-    // reuse our original request object
-    ShardRequest sreq = srsp.getShardRequest();
+    submitUpdateRequest(batches.pending.poll());
+    return true;
+  }
+
+  /** Adds a run of adjacent versions, sorted newest first, to the getUpdates parameter */
+  private void addVersions(List<String> param, List<Long> piece) {
+    if (piece.size() >= MIN_RANGE_SIZE) {
+      // the replica has no versions between the ends of the run that we are not requesting
+      param.add(Math.abs(piece.get(piece.size() - 1)) + RealTimeGetComponent.VERSION_RANGE_SEPARATOR
+          + Math.abs(piece.get(0)));
+    } else {
+      for (Long version : piece) {
+        param.add(version.toString());
+      }
+    }
+  }
 
+  private SyncShardRequest newUpdateRequest(SyncShardRequest sreq, String replica, List<Long> versions,
+                                            List<String> param, UpdateBatches batches) {
+    if (sreq == null) {
+      sreq = new SyncShardRequest();
+      sreq.shards = new String[]{replica};
+      sreq.actualShards = sreq.shards;
+    }
     sreq.purpose = 0;
+    sreq.requestedUpdates = versions;
+    sreq.maxRequestedVersion = 0;
+    for (Long version : versions) {
+      sreq.maxRequestedVersion = Math.max(sreq.maxRequestedVersion, Math.abs(version));
+    }
+    sreq.batches = batches;
     sreq.params = new ModifiableSolrParams();
     sreq.params.set("qt","/get");
     sreq.params.set("distrib",false);
-    sreq.params.set("getUpdates", StrUtils.join(toRequest, ','));
-    sreq.responses.clear();  // needs to be zeroed for correct correlation to occur
+    sreq.params.set("getUpdates", StrUtils.join(param, ','));
+    return sreq;
+  }
 
+  private void submitUpdateRequest(SyncShardRequest sreq) {
+    if (debug) {
+      log.debug(msg() + "Requesting updates from " + sreq.shards[0] + " getUpdates=" + sreq.params.get("getUpdates"));
+    }
+    sreq.responses.clear();  // needs to be zeroed for correct correlation to occur
     shardHandler.submit(sreq, sreq.shards[0], sreq.params);
-
-    return true;
   }
 
 
@@ -433,6 +525,50 @@ public class PeerSync  {
       return false;
     }
 
+    // fetch the next batch while this one is being applied
+    SyncShardRequest nextBatch = sreq.batches.pending.poll();
+    if (nextBatch != null) {
+      submitUpdateRequest(nextBatch);
+    }
+
+    // ranges of versions may return updates we did not ask for, only apply the requested ones
+    Set<Long> requested = new HashSet<Long>(sreq.requestedUpdates);
+    Set<Long> received = new HashSet<Long>();
+    List<Object> toApply = new ArrayList<Object>(updates.size());
+    for (Object obj : updates) {
+      if (!(obj instanceof List)) {
+        toApply.add(obj);  // fails below
+        continue;
+      }
+      List<Object> entry = (List<Object>)obj;
+      int oper = (Integer)entry.get(0) & UpdateLog.OPERATION_MASK;
+      long version = (Long) entry.get(1);
+      if (requested.contains(version)) {
+        received.add(version);
+      }
+      if (oper == UpdateLog.DELETE_BY_QUERY) {
+        if (!sreq.batches.appliedDeleteByQueries.contains(Math.abs(version))) {
+          sreq.batches.heldDeleteByQueries.put(Math.abs(version), obj);
+        }
+      } else if (requested.contains(version)) {
+        toApply.add(obj);
+      }
+    }
+
+    if (received.size() < requested.size()) {
+      log.error(msg() + " Requested " + requested.size() + " updates from " + sreq.shards[0] + " but retrieved " + received.size());
+      return false;
+    }
+
+    // delete by queries must be applied in version order with the updates they may affect, those newer than this
+    // batch are held back until the batch they fall into
+    SortedMap<Long,Object> deleteByQueries = nextBatch == null ? sreq.batches.heldDeleteByQueries
+        : sreq.batches.heldDeleteByQueries.headMap(sreq.maxRequestedVersion, true);
+    sreq.batches.appliedDeleteByQueries.addAll(deleteByQueries.keySet());
+    toApply.addAll(deleteByQueries.values());
+    deleteByQueries.clear();
+    updates = toApply;
+
     ModifiableSolrParams params = new ModifiableSolrParams();
     params.set(DISTRIB_UPDATE_PARAM, FROMLEADER.toString());
     // params.set("peersync",true); // debugging
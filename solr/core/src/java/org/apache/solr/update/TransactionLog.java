@@ -486,6 +486,39 @@ public class TransactionLog {
     }
   }
 
+  /**
+   * Reads the records at the given positions, which must be in increasing order. The log is flushed once and all
+   * records are read through a single buffered stream, so runs of adjacent records are read sequentially instead of
+   * with a separate read per record. Negative positions result in a null entry.
+   * This method is thread safe
+   */
+  public List<Object> lookup(long[] positions) {
+    List<Object> result = new ArrayList<Object>(positions.length);
+    try {
+      synchronized (this) {
+        fos.flushBuffer();
+      }
+
+      ChannelFastInputStream fis = null;
+      LogCodec codec = new LogCodec();
+      for (long pos : positions) {
+        if (pos < 0) {
+          result.add(null);
+          continue;
+        }
+        if (fis == null) {
+          fis = new ChannelFastInputStream(channel, pos);
+        } else {
+          fis.seek(pos);
+        }
+        result.add(codec.readVal(fis));
+      }
+      return result;
+    } catch (IOException e) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+    }
+  }
+
   public void incref() {
     int result = refcount.incrementAndGet();
     if (result <= 1) {
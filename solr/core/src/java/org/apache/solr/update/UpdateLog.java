@@ -871,6 +871,78 @@ public class UpdateLog implements PluginInfoInitialized {
       return update.log.lookup(update.pointer);
     }
 
+    /**
+     * Returns the updates with one of the given versions, or with an absolute version inside one of the given
+     * ranges (each an inclusive {low, high} pair of absolute versions). The records are read log by log in file
+     * order, which makes fetching a large number of updates mostly sequential I/O.
+     */
+    public List<Object> lookup(Collection<Long> versions, List<long[]> ranges) {
+      Set<Update> selected = new LinkedHashSet<Update>();
+      for (Long version : versions) {
+        Update update = updates.get(version);
+        if (update != null) selected.add(update);
+      }
+
+      if (!ranges.isEmpty()) {
+        long[][] sortedRanges = ranges.toArray(new long[ranges.size()][]);
+        Arrays.sort(sortedRanges, new Comparator<long[]>() {
+          @Override
+          public int compare(long[] r1, long[] r2) {
+            return r1[0] < r2[0] ? -1 : (r1[0] > r2[0] ? 1 : 0);
+          }
+        });
+        for (List<Update> singleList : updateList) {
+          for (Update update : singleList) {
+            if (inRange(sortedRanges, Math.abs(update.version))) {
+              selected.add(update);
+            }
+          }
+        }
+      }
+
+      Map<TransactionLog, List<Update>> byLog = new LinkedHashMap<TransactionLog, List<Update>>();
+      for (Update update : selected) {
+        List<Update> forLog = byLog.get(update.log);
+        if (forLog == null) {
+          forLog = new ArrayList<Update>();
+          byLog.put(update.log, forLog);
+        }
+        forLog.add(update);
+      }
+
+      List<Object> result = new ArrayList<Object>(selected.size());
+      for (Map.Entry<TransactionLog, List<Update>> entry : byLog.entrySet()) {
+        List<Update> forLog = entry.getValue();
+        Collections.sort(forLog, new Comparator<Update>() {
+          @Override
+          public int compare(Update u1, Update u2) {
+            return u1.pointer < u2.pointer ? -1 : (u1.pointer > u2.pointer ? 1 : 0);
+          }
+        });
+        long[] positions = new long[forLog.size()];
+        for (int i = 0; i < positions.length; i++) {
+          positions[i] = forLog.get(i).pointer;
+        }
+        try {
+          for (Object o : entry.getKey().lookup(positions)) {
+            if (o != null) result.add(o);
+          }
+        } catch (SolrException e) {
+          log.warn("Exception reading log for updates", e);
+        }
+      }
+      return result;
+    }
+
+    // ranges are sorted by their low end and do not need to be disjoint
+    private boolean inRange(long[][] ranges, long version) {
+      for (long[] range : ranges) {
+        if (range[0] > version) return false;
+        if (version <= range[1]) return true;
+      }
+      return false;
+    }
+
     /** Returns the list of deleteByQueries that happened after the given version */
     public List<Object> getDeleteByQuery(long afterVersion) {
       List<Object> result = new ArrayList<Object>(deleteByQueryList.size());
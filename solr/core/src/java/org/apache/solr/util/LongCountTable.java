@@ -0,0 +1,81 @@
+package org.apache.solr.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Counts of long values, with linear probing. A count of 0 marks an empty slot.
+ *
+ * @lucene.internal
+ */
+public final class LongCountTable {
+  private long[] keys = new long[64];
+  private int[] counts = new int[64];
+  private int mask = 63;
+  private int size;
+
+  private int slot(long key) {
+    int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    while (counts[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  public void add(long key) {
+    int slot = slot(key);
+    if (counts[slot]++ == 0) {
+      keys[slot] = key;
+      if (++size > (mask + 1) >>> 1) {
+        rehash();
+      }
+    }
+  }
+
+  public int get(long key) {
+    return counts[slot(key)];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** @return the keys, in no particular order */
+  public long[] keys() {
+    long[] res = new long[size];
+    int n = 0;
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] != 0) res[n++] = keys[i];
+    }
+    return res;
+  }
+
+  private void rehash() {
+    long[] oldKeys = keys;
+    int[] oldCounts = counts;
+    keys = new long[oldKeys.length * 2];
+    counts = new int[oldCounts.length * 2];
+    mask = keys.length - 1;
+    for (int i = 0; i < oldCounts.length; i++) {
+      if (oldCounts[i] != 0) {
+        int slot = slot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        counts[slot] = oldCounts[i];
+      }
+    }
+  }
+}
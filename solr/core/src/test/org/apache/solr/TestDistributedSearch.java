@@ -263,6 +263,11 @@ public class TestDistributedSearch extends BaseDistributedSearchTestCase {
     query("q","*:*", "rows",100, "facet","true", "facet.field",oddField, "facet.mincount",2);
 
     query("q","*:*", "sort",i1+" desc", "stats", "true", "stats.field", i1);
+    // the stats of a function, by facet value in no particular order
+    handle.put(i1, UNORDERED);
+    query("q","*:*", "sort",i1+" desc", "stats", "true", "stats.field", "{!func key=f}product(" + tlong + ",2)",
+        "f.f.stats.facet", i1);
+    handle.remove(i1);
 
     /*** TODO: the failure may come back in "exception"
     try {
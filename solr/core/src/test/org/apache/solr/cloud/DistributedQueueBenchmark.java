@@ -0,0 +1,106 @@
+package org.apache.solr.cloud;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.common.cloud.SolrZkClient;
+
+/**
+ * Compares consuming a {@link DistributedQueue} one element at a time with
+ * consuming it in batches, against an embedded {@link SolrZkServer}.
+ * <p>
+ * Usage: DistributedQueueBenchmark [messages] [batchSize] [port]
+ */
+public class DistributedQueueBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int port = args.length > 2 ? Integer.parseInt(args[2]) : 9983;
+
+    File home = new File(System.getProperty("java.io.tmpdir"), "DistributedQueueBenchmark-" + System.nanoTime());
+    home.mkdirs();
+    FileWriter cfg = new FileWriter(new File(home, "zoo.cfg"));
+    try {
+      cfg.write("tickTime=2000\nclientPort=" + port + "\n");
+    } finally {
+      cfg.close();
+    }
+
+    // the embedded server runs in a daemon thread, it dies with the jvm
+    SolrZkServer zkServer = new SolrZkServer("true", null, new File(home, "data").getAbsolutePath(),
+        home.getAbsolutePath(), Integer.toString(port - 1000));
+    zkServer.parseConfig();
+    zkServer.start();
+
+    SolrZkClient zkClient = new SolrZkClient(zkServer.getClientString(), 30000);
+    try {
+      List<byte[]> items = new ArrayList<byte[]>(messages);
+      for (int i = 0; i < messages; i++) {
+        items.add(("message-" + i).getBytes("UTF-8"));
+      }
+
+      for (int run = 0; run < 3; run++) {
+        DistributedQueue queue = new DistributedQueue(zkClient, "/queue-" + run, null);
+
+        long start = System.nanoTime();
+        for (byte[] item : items) {
+          queue.offer(item);
+        }
+        long offer = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        while (queue.peek() != null) {
+          queue.remove();
+        }
+        long remove = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < messages; i += batchSize) {
+          queue.offerBatch(items.subList(i, Math.min(messages, i + batchSize)));
+        }
+        long offerBatch = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<byte[]> batch;
+        int consumed = 0;
+        while (!(batch = queue.peekBatch(batchSize)).isEmpty()) {
+          queue.removeBatch(batch.size());
+          consumed += batch.size();
+        }
+        long removeBatch = System.nanoTime() - start;
+        if (consumed != messages) {
+          throw new RuntimeException("consumed " + consumed + " of " + messages + " messages");
+        }
+
+        System.out.println("run " + run + ": " + messages + " messages,"
+            + " offer " + offer / 1000000 + "ms, peek+remove " + remove / 1000000 + "ms,"
+            + " offerBatch " + offerBatch / 1000000 + "ms, peekBatch+removeBatch " + removeBatch / 1000000 + "ms");
+      }
+    } finally {
+      zkClient.close();
+      FileUtils.deleteQuietly(home);
+    }
+    System.exit(0);
+  }
+}
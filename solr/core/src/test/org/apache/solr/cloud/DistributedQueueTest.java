@@ -0,0 +1,198 @@
+package org.apache.solr.cloud;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.solr.common.cloud.SolrZkClient;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.apache.zookeeper.KeeperException;
+
+public class DistributedQueueTest extends AbstractSolrTestCase {
+
+  private ZkTestServer server;
+
+  private SolrZkClient zkClient;
+
+  private SolrZkClient otherClient;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    String zkDir = dataDir.getAbsolutePath() + File.separator
+        + "zookeeper/server1/data";
+    server = new ZkTestServer(zkDir);
+    server.run();
+    AbstractZkTestCase.tryCleanSolrZkNode(server.getZkHost());
+    AbstractZkTestCase.makeSolrZkNode(server.getZkHost());
+    zkClient = new SolrZkClient(server.getZkAddress(), AbstractZkTestCase.TIMEOUT);
+    otherClient = new SolrZkClient(server.getZkAddress(), AbstractZkTestCase.TIMEOUT);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    zkClient.close();
+    otherClient.close();
+    server.shutdown();
+    super.tearDown();
+  }
+
+  private static byte[] bytes(int i) {
+    return Integer.toString(i).getBytes();
+  }
+
+  private static int value(byte[] data) {
+    return Integer.parseInt(new String(data));
+  }
+
+  public void testOrder() throws Exception {
+    DistributedQueue queue = new DistributedQueue(zkClient, "/queue", null);
+    assertNull(queue.peek());
+    assertNull(queue.poll());
+    try {
+      queue.element();
+      fail();
+    } catch (NoSuchElementException e) {
+      // expected
+    }
+
+    for (int i = 0; i < 5; i++) {
+      queue.offer(bytes(i));
+    }
+    assertEquals(0, value(queue.element()));
+    assertEquals(0, value(queue.remove()));
+    assertEquals(1, value(queue.peek()));
+    assertEquals(1, value(queue.take()));
+    assertEquals(2, value(queue.poll()));
+
+    // elements offered once the cached ones are read are seen too
+    DistributedQueue producer = new DistributedQueue(otherClient, "/queue", null);
+    producer.offer(bytes(5));
+    for (int i = 3; i < 6; i++) {
+      assertEquals(i, value(queue.poll()));
+    }
+    assertNull(queue.poll());
+    producer.offer(bytes(6));
+    assertEquals(6, value(queue.peek(1000L)));
+    assertEquals(6, value(queue.peek(true)));
+    assertEquals(6, value(queue.remove()));
+
+    long start = System.currentTimeMillis();
+    assertNull(queue.peek(200L));
+    assertTrue(System.currentTimeMillis() - start >= 150);
+  }
+
+  public void testBatch() throws Exception {
+    DistributedQueue queue = new DistributedQueue(zkClient, "/queue", null);
+    assertTrue(queue.peekBatch(10).isEmpty());
+
+    List<byte[]> items = new ArrayList<byte[]>();
+    for (int i = 0; i < 25; i++) {
+      items.add(bytes(i));
+    }
+    queue.offerBatch(items);
+
+    int next = 0;
+    List<byte[]> batch;
+    while (!(batch = queue.peekBatch(10)).isEmpty()) {
+      assertTrue(batch.size() <= 10);
+      for (byte[] data : batch) {
+        assertEquals(next++, value(data));
+      }
+      queue.removeBatch(batch.size());
+    }
+    assertEquals(25, next);
+    assertNull(queue.peek());
+    assertTrue(zkClient.getChildren("/queue", null, true).isEmpty());
+
+    try {
+      queue.removeBatch(1);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  public void testRemovedByOtherConsumer() throws Exception {
+    DistributedQueue queue = new DistributedQueue(zkClient, "/queue", null);
+    DistributedQueue other = new DistributedQueue(otherClient, "/queue", null);
+    queue.offerBatch(Arrays.asList(bytes(0), bytes(1), bytes(2), bytes(3)));
+
+    // both consumers cache the children
+    assertEquals(0, value(queue.peek()));
+    assertEquals(0, value(other.remove()));
+    assertEquals(1, value(other.remove()));
+
+    // the first one skips what the other one removed
+    assertEquals(2, value(queue.peek()));
+    assertEquals(1, other.peekBatch(1).size());
+    List<byte[]> batch = queue.peekBatch(10);
+    assertEquals(2, batch.size());
+    assertEquals(2, value(batch.get(0)));
+    other.removeBatch(1);
+    queue.removeBatch(batch.size());
+    assertNull(queue.peek());
+    assertNull(other.peek());
+  }
+
+  public void testSessionExpired() throws Exception {
+    DistributedQueue queue = new DistributedQueue(zkClient, "/queue", null);
+    DistributedQueue other = new DistributedQueue(otherClient, "/queue", null);
+    queue.offerBatch(Arrays.asList(bytes(0), bytes(1)));
+    assertEquals(0, value(queue.peek()));
+
+    server.expire(zkClient.getSolrZooKeeper().getSessionId());
+
+    // the cached children are replaced while the session is gone
+    assertEquals(0, value(other.remove()));
+    assertEquals(1, value(other.remove()));
+    other.offer(bytes(2));
+
+    byte[] data = null;
+    for (int i = 0; i < 30 && data == null; i++) {
+      try {
+        data = queue.peek(1000L);
+      } catch (KeeperException.SessionExpiredException e) {
+        Thread.sleep(500); // pause for reconnect
+      } catch (KeeperException.ConnectionLossException e) {
+        Thread.sleep(500);
+      }
+    }
+    assertNotNull(data);
+    assertEquals(2, value(data));
+    assertEquals(2, value(queue.remove()));
+
+    // the queue is watched again by the new session
+    other.offer(bytes(3));
+    assertEquals(3, value(queue.peek(10000L)));
+  }
+
+  @Override
+  public String getSchemaFile() {
+    return null;
+  }
+
+  @Override
+  public String getSolrConfigFile() {
+    return null;
+  }
+}
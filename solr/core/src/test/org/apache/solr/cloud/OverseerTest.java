@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
@@ -847,6 +848,141 @@ public class OverseerTest extends SolrTestCaseJ4 {
     }
   }
 
+  @Test
+  public void testBatchedUpdates() throws Exception {
+    String zkDir = dataDir.getAbsolutePath() + File.separator
+        + "zookeeper/server1/data";
+    ZkTestServer server = new ZkTestServer(zkDir);
+    SolrZkClient zkClient = null;
+    SolrZkClient overseerClient = null;
+    ZkStateReader reader = null;
+    
+    try {
+      server.run();
+      zkClient = new SolrZkClient(server.getZkAddress(), TIMEOUT);
+      AbstractZkTestCase.tryCleanSolrZkNode(server.getZkHost());
+      AbstractZkTestCase.makeSolrZkNode(server.getZkHost());
+      zkClient.makePath(ZkStateReader.LIVE_NODES_ZKNODE, true);
+
+      reader = new ZkStateReader(zkClient);
+      reader.createClusterStateWatchersAndUpdate();
+      int version = getClusterStateVersion(zkClient);
+
+      // the messages queued before the overseer starts are applied in a single batch
+      DistributedQueue queue = Overseer.getInQueue(zkClient);
+      final int cores = 50;
+      ZkNodeProps m = null;
+      for (int i = 0; i < cores; i++) {
+        m = new ZkNodeProps(Overseer.QUEUE_OPERATION, "state",
+            ZkStateReader.BASE_URL_PROP, "http://127.0.0.1/solr",
+            ZkStateReader.NODE_NAME_PROP, "node1",
+            ZkStateReader.SHARD_ID_PROP, "s1",
+            ZkStateReader.COLLECTION_PROP, "collection1",
+            ZkStateReader.CORE_NAME_PROP, "core" + i,
+            ZkStateReader.ROLES_PROP, "",
+            ZkStateReader.STATE_PROP, ZkStateReader.RECOVERING);
+        queue.offer(ZkStateReader.toJSON(m));
+      }
+
+      overseerClient = electNewOverseer(server.getZkAddress());
+
+      for (int i = 0; i < 100; i++) {
+        Slice s = reader.getClusterState().getSlice("collection1", "s1");
+        if (s != null && s.getReplicasMap().size() == cores) break;
+        Thread.sleep(100);
+      }
+      assertEquals(cores, reader.getClusterState().getSlice("collection1", "s1").getReplicasMap().size());
+      int batchedVersion = getClusterStateVersion(zkClient);
+      assertEquals(version + 1, batchedVersion);
+
+      // a message which does not change anything is not written
+      queue.offer(ZkStateReader.toJSON(m));
+      DistributedQueue workQueue = Overseer.getInternalQueue(zkClient);
+      for (int i = 0; i < 100 && (queue.peek() != null || workQueue.peek() != null); i++) {
+        Thread.sleep(100);
+      }
+      assertNull(queue.peek());
+      assertNull(workQueue.peek());
+      assertEquals(batchedVersion, getClusterStateVersion(zkClient));
+    } finally {
+      close(overseerClient);
+      close(zkClient);
+      close(reader);
+      server.shutdown();
+    }
+  }
+
+  @Test
+  public void testLeadershipLostDuringBatch() throws Exception {
+    String zkDir = dataDir.getAbsolutePath() + File.separator
+        + "zookeeper/server1/data";
+    ZkTestServer server = new ZkTestServer(zkDir);
+    SolrZkClient zkClient = null;
+    SolrZkClient overseerClient = null;
+    ZkStateReader reader = null;
+    
+    try {
+      server.run();
+      zkClient = new SolrZkClient(server.getZkAddress(), TIMEOUT);
+      AbstractZkTestCase.tryCleanSolrZkNode(server.getZkHost());
+      AbstractZkTestCase.makeSolrZkNode(server.getZkHost());
+      zkClient.makePath(ZkStateReader.LIVE_NODES_ZKNODE, true);
+
+      reader = new ZkStateReader(zkClient);
+      reader.createClusterStateWatchersAndUpdate();
+
+      final int cores = 3;
+      DistributedQueue queue = Overseer.getInQueue(zkClient);
+      for (int i = 0; i < cores; i++) {
+        ZkNodeProps m = new ZkNodeProps(Overseer.QUEUE_OPERATION, "state",
+            ZkStateReader.BASE_URL_PROP, "http://127.0.0.1/solr",
+            ZkStateReader.NODE_NAME_PROP, "node1",
+            ZkStateReader.SHARD_ID_PROP, "s1",
+            ZkStateReader.COLLECTION_PROP, "collection1",
+            ZkStateReader.CORE_NAME_PROP, "core" + i,
+            ZkStateReader.ROLES_PROP, "",
+            ZkStateReader.STATE_PROP, ZkStateReader.RECOVERING);
+        queue.offer(ZkStateReader.toJSON(m));
+      }
+
+      // an overseer loses its leadership while its write of the batch fails
+      final String leaderPath = "/overseer_elect/leader";
+      zkClient.makePath(leaderPath, ZkStateReader.toJSON(new ZkNodeProps("id", "old")), CreateMode.PERSISTENT, true);
+      final SolrZkClient client = zkClient;
+      Overseer overseer = new Overseer(new HttpShardHandlerFactory().getShardHandler(), "/admin/cores", reader);
+      Overseer.ClusterStateUpdater updater = overseer.new ClusterStateUpdater(reader, "old") {
+        @Override
+        boolean writeClusterState(ClusterState clusterState, List<ZkNodeProps> batch)
+            throws KeeperException, InterruptedException {
+          client.setData(leaderPath, ZkStateReader.toJSON(new ZkNodeProps("id", "new")), true);
+          return false;
+        }
+      };
+      updater.run();
+
+      // the batch was taken from the main queue, it must be left in the work queue
+      assertNull(queue.peek());
+      assertEquals(cores, Overseer.getInternalQueue(zkClient).peekBatch(cores + 1).size());
+      assertNull(reader.getClusterState().getSlice("collection1", "s1"));
+
+      // and the next overseer applies it
+      zkClient.delete(leaderPath, -1, true);
+      overseerClient = electNewOverseer(server.getZkAddress());
+      for (int i = 0; i < 100; i++) {
+        Slice s = reader.getClusterState().getSlice("collection1", "s1");
+        if (s != null && s.getReplicasMap().size() == cores) break;
+        Thread.sleep(100);
+      }
+      assertNotNull(reader.getClusterState().getSlice("collection1", "s1"));
+      assertEquals(cores, reader.getClusterState().getSlice("collection1", "s1").getReplicasMap().size());
+    } finally {
+      close(overseerClient);
+      close(zkClient);
+      close(reader);
+      server.shutdown();
+    }
+  }
+
   private void close(ZkStateReader reader) {
     if (reader != null) {
       reader.close();
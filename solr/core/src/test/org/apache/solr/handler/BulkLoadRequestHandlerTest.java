@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.handler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class BulkLoadRequestHandlerTest extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml","schema12.xml");
+  }
+
+  private BulkLoadRequestHandler handler;
+
+  private File dir;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    assertU(delQ("*:*"));
+    assertU(commit());
+    handler = new BulkLoadRequestHandler();
+    handler.init(new NamedList());
+    dir = new File(TEMP_DIR, getClass().getSimpleName() + "-" + random().nextInt(Integer.MAX_VALUE));
+    dir.mkdirs();
+  }
+
+  private File makeFile(String name, int first, int count) throws Exception {
+    StringBuilder sb = new StringBuilder("id,val_i\n");
+    for (int i = first; i < first + count; i++) {
+      sb.append(i).append(',').append(i % 7).append('\n');
+    }
+    File file = new File(dir, name);
+    FileUtils.writeStringToFile(file, sb.toString(), "UTF-8");
+    return file;
+  }
+
+  private SolrQueryResponse load(File... files) throws Exception {
+    LocalSolrQueryRequest req = (LocalSolrQueryRequest) req("threads", Integer.toString(1 + random().nextInt(3)),
+        "ramBufferSizeMB", "1");
+    List<ContentStream> streams = new ArrayList<ContentStream>();
+    for (File file : files) {
+      ContentStreamBase stream = new ContentStreamBase.FileStream(file);
+      stream.setContentType("text/csv");
+      streams.add(stream);
+    }
+    req.setContentStreams(streams);
+    SolrQueryResponse rsp = new SolrQueryResponse();
+    try {
+      handler.handleRequestBody(req, rsp);
+    } finally {
+      req.close();
+    }
+    return rsp;
+  }
+
+  @Test
+  public void testLoad() throws Exception {
+    SolrQueryResponse rsp = load(makeFile("a.csv", 0, 500), makeFile("b.csv", 500, 700), makeFile("c.csv", 1200, 1));
+    NamedList result = (NamedList) rsp.getValues().get("bulkLoad");
+    assertEquals(1201L, result.get("rows"));
+    assertEquals(3, ((List) result.get("partitions")).size());
+
+    assertQ(req("*:*"), "//*[@numFound='1201']");
+    assertQ(req("id:1200"), "//int[@name='val_i'][.='3']");
+    assertQ(req("val_i:0"), "//*[@numFound='172']");
+
+    // the partitions are removed once attached
+    assertFalse(new File(h.getCore().getDataDir(), "bulk/partition-0").exists());
+  }
+
+  @Test
+  public void testResume() throws Exception {
+    File a = makeFile("a.csv", 0, 100);
+    File b = new File(dir, "b.csv");
+    FileUtils.writeStringToFile(b, "id,val_i\n100,1\n101,1,1\n", "UTF-8");
+    try {
+      load(a, b);
+      fail("the second partition has a bad line");
+    } catch (SolrException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("b.csv"));
+    }
+    assertU(commit());
+    assertQ(req("*:*"), "//*[@numFound='0']");
+
+    makeFile("b.csv", 100, 50);
+    SolrQueryResponse rsp = load(a, b);
+    List partitions = (List) ((NamedList) rsp.getValues().get("bulkLoad")).get("partitions");
+    assertEquals("resumed", ((NamedList) partitions.get(0)).get("status"));
+    assertEquals(100L, ((NamedList) partitions.get(0)).get("rows"));
+    assertEquals("loaded", ((NamedList) partitions.get(1)).get("status"));
+    assertQ(req("*:*"), "//*[@numFound='150']");
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util._TestUtil;
+
+public class TestBlockChecksums extends LuceneTestCase {
+
+  public void testRollingChecksum() {
+    byte[] data = new byte[1000];
+    random().nextBytes(data);
+    int len = 64;
+    BlockChecksums.RollingChecksum rolling = new BlockChecksums.RollingChecksum(data, 0, len);
+    for (int i = 1; i + len <= data.length; i++) {
+      rolling.roll(data[i - 1], data[i + len - 1]);
+      assertEquals(new BlockChecksums.RollingChecksum(data, i, len).getValue(), rolling.getValue());
+    }
+  }
+
+  public void testFindShiftedBlocks() throws IOException {
+    File dir = _TestUtil.getTempDir("blockchecksums");
+    dir.mkdirs();
+    // large blocks make the basis larger than the read buffer
+    int blockSize = random().nextBoolean() ? 256 : 4096;
+    byte[] basisData = new byte[blockSize * (10 + random().nextInt(20))];
+    random().nextBytes(basisData);
+
+    // the new file inserts a few bytes in the middle of the old content and changes its last bytes
+    int insertAt = blockSize * 3 + random().nextInt(blockSize);
+    byte[] inserted = new byte[1 + random().nextInt(50)];
+    random().nextBytes(inserted);
+    byte[] data = new byte[basisData.length + inserted.length];
+    System.arraycopy(basisData, 0, data, 0, insertAt);
+    System.arraycopy(inserted, 0, data, insertAt, inserted.length);
+    System.arraycopy(basisData, insertAt, data, insertAt + inserted.length, basisData.length - insertAt);
+    data[data.length - 1]++;
+
+    File basis = write(new File(dir, "basis"), basisData);
+    File file = write(new File(dir, "file"), data);
+
+    BlockChecksums checksums = BlockChecksums.compute(file, blockSize);
+    assertEquals((data.length + blockSize - 1) / blockSize, checksums.getNumBlocks());
+    checksums = new BlockChecksums(checksums.getFileSize(), blockSize, checksums.getBytes());
+
+    long[] matches = checksums.findMatches(basis);
+    int matched = 0;
+    for (int i = 0; i < matches.length; i++) {
+      if (matches[i] < 0) continue;
+      matched++;
+      int start = i * blockSize;
+      for (int j = 0; j < blockSize; j++) {
+        assertEquals(data[start + j], basisData[(int) matches[i] + j]);
+      }
+    }
+    // only the blocks around the insertion and the last ones can be missing
+    assertTrue("matched " + matched + " of " + matches.length, matched >= matches.length - 4);
+    assertTrue(matches[0] == 0);
+    assertTrue(matches[matches.length - 1] == -1);
+  }
+
+  public void testInvalidBlockSize() throws IOException {
+    File dir = _TestUtil.getTempDir("blockchecksums");
+    dir.mkdirs();
+    File file = write(new File(dir, "file"), new byte[10]);
+    for (int blockSize : new int[] {0, -1, BlockChecksums.MAX_BLOCK_SIZE + 1}) {
+      try {
+        BlockChecksums.compute(file, blockSize);
+        fail("block size " + blockSize + " was accepted");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  public void testDigest() throws IOException {
+    File dir = _TestUtil.getTempDir("blockchecksums");
+    dir.mkdirs();
+    byte[] data = new byte[random().nextInt(10000)];
+    random().nextBytes(data);
+    File a = write(new File(dir, "a"), data);
+    File b = write(new File(dir, "b"), data);
+    assertEquals(BlockChecksums.digest(a), BlockChecksums.digest(b));
+    assertEquals(32, BlockChecksums.digest(a).length());
+
+    BlockChecksums.DigestCache cache = new BlockChecksums.DigestCache(10);
+    assertEquals(BlockChecksums.digest(a), cache.getDigest(a));
+    assertEquals(BlockChecksums.digest(b), cache.getDigest(b));
+    // a file which changed size is digested again
+    RandomAccessFile raf = new RandomAccessFile(b, "rw");
+    raf.seek(raf.length());
+    raf.write(1);
+    raf.close();
+    assertEquals(BlockChecksums.digest(b), cache.getDigest(b));
+
+    // digests which are not cached yet are computed by the executor
+    File c = write(new File(dir, "c"), data);
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    Executor executor = new Executor() {
+      public void execute(Runnable command) {
+        tasks.add(command);
+      }
+    };
+    assertNull(cache.getDigest(c, executor));
+    assertNull(cache.getDigest(c, executor));
+    assertEquals("the pending digest is computed once", 1, tasks.size());
+    tasks.get(0).run();
+    assertEquals(BlockChecksums.digest(a), cache.getDigest(c, executor));
+    assertEquals(1, tasks.size());
+  }
+
+  private static File write(File file, byte[] data) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+}
@@ -940,13 +940,14 @@ public class TestReplicationHandler extends SolrTestCaseJ4 {
 
   /* character copy of file using UTF-8 */
   private static void copyFile(File src, File dst) throws IOException {
-    copyFile(src, dst, null, false);
+    copyFile(src, dst, null, false, 1, false);
   }
 
   /**
    * character copy of file using UTF-8. If port is non-null, will be substituted any time "TEST_PORT" is found.
    */
-  private static void copyFile(File src, File dst, Integer port, boolean internalCompression) throws IOException {
+  private static void copyFile(File src, File dst, Integer port, boolean internalCompression, int fetchThreads,
+                               boolean diffReplication) throws IOException {
     BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(src), "UTF-8"));
     Writer out = new OutputStreamWriter(new FileOutputStream(dst), "UTF-8");
 
@@ -956,6 +957,8 @@ public class TestReplicationHandler extends SolrTestCaseJ4 {
         line = line.replace("TEST_PORT", port.toString());
       
       line = line.replace("COMPRESSION", internalCompression?"internal":"false");
+      line = line.replace("FETCH_THREADS", Integer.toString(fetchThreads));
+      line = line.replace("DIFF_REPLICATION", Boolean.toString(diffReplication));
 
       out.write(line);
     }
@@ -1037,7 +1040,7 @@ public class TestReplicationHandler extends SolrTestCaseJ4 {
       throws IOException {
       copyFile(getFile(srcFile), 
                new File(confDir, destFile),
-               testPort, random().nextBoolean());
+               testPort, random().nextBoolean(), 1 + random().nextInt(4), random().nextBoolean());
     }
 
   }
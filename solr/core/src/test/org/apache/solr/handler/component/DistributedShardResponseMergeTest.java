@@ -0,0 +1,69 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.solr.BaseDistributedSearchTestCase;
+
+/**
+ * Test the merge of the facets and stats of each shard response as soon as it
+ * is received, through {@link SearchComponent#handleShardResponse}
+ */
+public class DistributedShardResponseMergeTest extends BaseDistributedSearchTestCase {
+
+  public DistributedShardResponseMergeTest() {
+    fixShardCount = true;
+    shardCount = 3;
+  }
+
+  @Override
+  public void doTest() throws Exception {
+    del("*:*");
+    // each shard has its own top terms, so that the top terms have to be refined
+    int id = 0;
+    for (int shard = 0; shard < 3; shard++) {
+      for (int i = 0; i < 10; i++) {
+        String cat = i < 6 ? "top" + shard : "other" + (i % 3);
+        index_specific(shard, "id", id, "cat_s1", cat, "a_si", id % 7, "other_tl1", id * 10);
+        id++;
+      }
+    }
+    commit();
+
+    handle.clear();
+    handle.put("QTime", SKIPVAL);
+    handle.put("timestamp", SKIPVAL);
+    handle.put("maxScore", SKIPVAL);
+
+    query("q", "*:*", "rows", 0, "facet", "true", "facet.field", "cat_s1");
+    query("q", "*:*", "rows", 0, "facet", "true", "facet.field", "cat_s1", "facet.limit", 2);
+    query("q", "*:*", "rows", 0, "facet", "true", "facet.field", "cat_s1", "facet.limit", 4,
+        "facet.mincount", 3, "facet.sort", "count");
+    query("q", "*:*", "rows", 0, "facet", "true", "facet.query", "cat_s1:top1",
+        "facet.query", "a_si:[0 TO 3]");
+    query("q", "*:*", "rows", 0, "facet", "true", "facet.range", "other_tl1",
+        "facet.range.start", 0, "facet.range.end", 300, "facet.range.gap", 50);
+    query("q", "*:*", "rows", 0, "stats", "true", "stats.field", "a_si");
+    query("q", "*:*", "rows", 0, "stats", "true", "stats.field", "other_tl1");
+
+    // everything at once, in several stages
+    query("q", "cat_s1:top*", "rows", 5, "sort", "id asc", "fl", "id",
+        "facet", "true", "facet.field", "cat_s1", "facet.limit", 1,
+        "facet.query", "a_si:[4 TO *]",
+        "stats", "true", "stats.field", "a_si");
+  }
+}
@@ -0,0 +1,124 @@
+package org.apache.solr.handler.component;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.solr.common.util.NamedList;
+
+public class ReplicaSelectorTest extends LuceneTestCase {
+
+  public void testFastestFirst() {
+    ReplicaSelector selector = new ReplicaSelector(60000, random());
+    List<String> urls = Arrays.asList("http://a", "http://b", "http://c");
+    for (int i = 0; i < 20; i++) {
+      record(selector, "http://a", 50);
+      record(selector, "http://b", 5);
+      record(selector, "http://c", 20);
+    }
+    List<String> sorted = new ArrayList<String>(urls);
+    selector.sortURLs("a|b|c", sorted);
+    assertEquals(Arrays.asList("http://b", "http://c", "http://a"), sorted);
+
+    // outstanding requests make a replica less attractive
+    for (int i = 0; i < 10; i++) {
+      selector.getStats("http://b").start();
+    }
+    selector.sortURLs("a|b|c", sorted);
+    assertEquals("http://c", sorted.get(0));
+
+    // errors too
+    selector.getStats("http://c").start();
+    selector.getStats("http://c").end(1000, true);
+    selector.sortURLs("a|b|c", sorted);
+    assertEquals("http://c", sorted.get(2));
+
+    NamedList<Object> stats = selector.getStatistics();
+    NamedList<?> c = (NamedList<?>) ((NamedList<?>) stats.get("a|b|c")).get("http://c");
+    assertEquals(21L, c.get("requests"));
+    assertEquals(1L, c.get("errors"));
+    assertEquals(20L, c.get("p50"));
+  }
+
+  public void testUnknownAndStaleFirst() throws Exception {
+    ReplicaSelector selector = new ReplicaSelector(60000, random());
+    record(selector, "http://a", 10);
+    List<String> urls = new ArrayList<String>(Arrays.asList("http://a", "http://b"));
+    selector.sortURLs("a|b", urls);
+    assertEquals("http://b", urls.get(0));
+
+    selector = new ReplicaSelector(0, random());
+    record(selector, "http://a", 10);
+    record(selector, "http://b", 1000);
+    Thread.sleep(5);
+    // both are stale, the order is random
+    int bFirst = 0;
+    for (int i = 0; i < 100; i++) {
+      selector.sortURLs("a|b", urls);
+      if (urls.get(0).equals("http://b")) bFirst++;
+    }
+    assertTrue(bFirst > 0 && bFirst < 100);
+  }
+
+  public void testReplicasChange() {
+    ReplicaSelector selector = new ReplicaSelector(60000, random());
+    record(selector, "http://a", 10);
+    record(selector, "http://b", 20);
+    List<String> urls = new ArrayList<String>(Arrays.asList("http://a", "http://b"));
+    selector.sortURLs("shard1", urls);
+
+    // b was removed and c added
+    urls = new ArrayList<String>(Arrays.asList("http://a", "http://c"));
+    selector.sortURLs("shard1", urls);
+    NamedList<?> shard = (NamedList<?>) selector.getStatistics().get("shard1");
+    assertNotNull(shard.get("http://a"));
+    assertNull(shard.get("http://b"));
+    assertEquals(10.0, selector.getStats("http://a").getAverageLatency(), 0.0);
+    assertEquals(-1.0, selector.getStats("http://b").getAverageLatency(), 0.0);
+
+    record(selector, "http://c", 5);
+    assertNotNull(((NamedList<?>) selector.getStatistics().get("shard1")).get("http://c"));
+  }
+
+  public void testPercentile() {
+    ReplicaSelector.ReplicaStats stats = new ReplicaSelector.ReplicaStats();
+    assertEquals(-1, stats.getPercentile(50));
+    for (int i = 1; i <= 100; i++) {
+      stats.start();
+      stats.end(i, false);
+    }
+    assertEquals(50, stats.getPercentile(50));
+    assertEquals(99, stats.getPercentile(99));
+    assertEquals(100, stats.getPercentile(100));
+    // only the recent latencies are kept
+    for (int i = 0; i < ReplicaSelector.WINDOW; i++) {
+      stats.start();
+      stats.end(1000, false);
+    }
+    assertEquals(1000, stats.getPercentile(1));
+    assertEquals(0, stats.getOutstanding());
+  }
+
+  private static void record(ReplicaSelector selector, String url, long latency) {
+    ReplicaSelector.ReplicaStats stats = selector.getStats(url);
+    stats.start();
+    stats.end(latency, false);
+  }
+}
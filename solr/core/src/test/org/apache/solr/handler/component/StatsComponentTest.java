@@ -24,6 +24,7 @@ import java.util.TimeZone;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.MapSolrParams;
 import org.apache.solr.common.params.StatsParams;
@@ -290,6 +291,91 @@ public class StatsComponentTest extends AbstractSolrTestCase {
 	    );
 	  }
 
+  public void testFunctionStatistics() throws Exception {
+    assertU(adoc("id", "1", "price_ti", "10", "qty_ti", "2", "cat_s", "a"));
+    assertU(adoc("id", "2", "price_ti", "20", "qty_ti", "1", "cat_s", "a"));
+    assertU(commit());
+    assertU(adoc("id", "3", "price_ti", "5", "qty_ti", "4", "cat_s", "b"));
+    assertU(adoc("id", "4", "cat_s", "b"));
+    assertU(commit());
+
+    final String pre = "//lst[@name='stats_fields']/lst[@name='revenue']";
+    assertQ("test function statistics", req("q","*:*", "stats","true",
+            "stats.field","{!func key=revenue}product(price_ti,qty_ti)", "f.revenue.stats.facet","cat_s",
+            "stats.field","{!func}price_ti")
+            , pre+"/double[@name='min'][.='0.0']"
+            , pre+"/double[@name='max'][.='20.0']"
+            , pre+"/double[@name='sum'][.='60.0']"
+            , pre+"/long[@name='count'][.='4']"
+            , pre+"/long[@name='missing'][.='0']"
+            , pre+"/double[@name='mean'][.='15.0']"
+            , pre+"/lst[@name='facets']/lst[@name='cat_s']/lst[@name='a']/double[@name='sum'][.='40.0']"
+            , pre+"/lst[@name='facets']/lst[@name='cat_s']/lst[@name='a']/long[@name='count'][.='2']"
+            , pre+"/lst[@name='facets']/lst[@name='cat_s']/lst[@name='b']/double[@name='min'][.='0.0']"
+            , pre+"/lst[@name='facets']/lst[@name='cat_s']/lst[@name='b']/double[@name='sum'][.='20.0']"
+            // documents without a value of the field are missing
+            , "//lst[@name='price_ti']/double[@name='sum'][.='35.0']"
+            , "//lst[@name='price_ti']/long[@name='count'][.='3']"
+            , "//lst[@name='price_ti']/long[@name='missing'][.='1']"
+            , "//lst[@name='price_ti']/double[@name='min'][.='5.0']"
+    );
+
+    assertQEx("a stats.field local param must be a function",
+              req("q","*:*", "stats","true", "stats.field","{!lucene}price_ti"),
+              SolrException.ErrorCode.BAD_REQUEST);
+  }
+
+  public void testFacetStatisticsManyValues() throws Exception {
+	    for (int i = 0; i < 300; i++) {
+	      if (i % 10 == 9) {
+	        assertU(adoc("id", Integer.toString(i), "cat_s", "c" + (i % 37)));
+	      } else {
+	        assertU(adoc("id", Integer.toString(i), "stats_i", Integer.toString(i), "cat_s", "c" + (i % 37)));
+	      }
+	    }
+	    assertU(commit());
+
+	    // c5 has 5, 42, 79, 116, 153, 190, 227, 264 and 79 misses stats_i
+	    final String pre = "//lst[@name='stats_fields']/lst[@name='stats_i']/lst[@name='facets']/lst[@name='cat_s']";
+	    assertQ("test value for cat_s=c5", req("q","*:*", "stats","true", "stats.field","stats_i", "stats.facet","cat_s")
+	            , "*[count(" + pre + "/lst)=37]"
+	            , pre+"/lst[@name='c5']/double[@name='min'][.='5.0']"
+	            , pre+"/lst[@name='c5']/double[@name='max'][.='264.0']"
+	            , pre+"/lst[@name='c5']/double[@name='sum'][.='997.0']"
+	            , pre+"/lst[@name='c5']/long[@name='count'][.='7']"
+	            , pre+"/lst[@name='c5']/long[@name='missing'][.='1']"
+	    );
+	  }
+
+  public void testFacetStatisticsMultiValued() throws Exception {
+    assertU(adoc("id", "1", "vals_ii", "1", "vals_ii", "2", "tags_ss", "a", "tags_ss", "b", "active_s", "x"));
+    assertU(adoc("id", "2", "vals_ii", "2", "vals_ii", "3", "tags_ss", "b", "tags_ss", "c", "active_s", "x"));
+    assertU(adoc("id", "3", "vals_ii", "5", "tags_ss", "c", "active_s", "y"));
+    assertU(adoc("id", "4", "active_s", "y"));
+    assertU(commit());
+
+    String pre = "//lst[@name='stats_fields']/lst[@name='vals_ii']/lst[@name='facets']/lst[@name='active_s']";
+    assertQ("test numeric values", req("q","*:*", "stats","true", "stats.field","vals_ii", "stats.facet","active_s")
+            , pre+"/lst[@name='x']/double[@name='min'][.='1.0']"
+            , pre+"/lst[@name='x']/double[@name='max'][.='3.0']"
+            , pre+"/lst[@name='x']/double[@name='sum'][.='8.0']"
+            , pre+"/lst[@name='x']/long[@name='count'][.='4']"
+            , pre+"/lst[@name='y']/double[@name='sum'][.='5.0']"
+            , pre+"/lst[@name='y']/long[@name='count'][.='1']"
+            , pre+"/lst[@name='y']/long[@name='missing'][.='1']"
+    );
+
+    pre = "//lst[@name='stats_fields']/lst[@name='tags_ss']/lst[@name='facets']/lst[@name='active_s']";
+    assertQ("test string values", req("q","*:*", "stats","true", "stats.field","tags_ss", "stats.facet","active_s")
+            , pre+"/lst[@name='x']/str[@name='min'][.='a']"
+            , pre+"/lst[@name='x']/str[@name='max'][.='c']"
+            , pre+"/lst[@name='x']/long[@name='count'][.='4']"
+            , pre+"/lst[@name='y']/str[@name='min'][.='c']"
+            , pre+"/lst[@name='y']/long[@name='count'][.='1']"
+            , pre+"/lst[@name='y']/long[@name='missing'][.='1']"
+    );
+  }
+
   public void testFieldStatisticsResultsNumericFieldAlwaysMissing() throws Exception {
     SolrCore core = h.getCore();
     assertU(adoc("id", "1"));
@@ -21,6 +21,7 @@ import org.apache.noggit.ObjectBuilder;
 import org.apache.solr.SolrTestCaseJ4;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.util.TimeZoneUtils;
 import org.junit.BeforeClass;
@@ -319,6 +320,40 @@ public class SimpleFacetsTest extends SolrTestCaseJ4 {
   }
 
 
+  @Test
+  public void testConcurrentFacets() throws Exception {
+    String[] facets = {"q", "id:[42 TO 47]", "facet", "true",
+        "facet.field", "trait_s", "facet.field", "{!key=foo ex=t}foo_s", "facet.field", "{!terms=Tool,Pig}trait_s",
+        "facet.query", "trait_s:Obnoxious", "facet.query", "{!key=zapp}name:Zapp*",
+        "facet.range", "range_facet_f", "facet.range.start", "0", "facet.range.end", "50", "facet.range.gap", "10",
+        "facet.date", "bday", "facet.date.start", "1976-07-01T00:00:00.000Z",
+        "facet.date.end", "1976-07-31T00:00:00.000Z", "facet.date.gap", "+1DAY"};
+    for (String threads : new String[] {"1", "3", "-1"}) {
+      assertSameFacetCounts(params(facets), "facet.threads", threads);
+    }
+  }
+
+  /**
+   * Makes sure a request gets the same facet counts, in the same order, with
+   * some of its params set to other values, such as another facet method
+   */
+  static void assertSameFacetCounts(SolrParams params, String... otherParams) throws Exception {
+    ModifiableSolrParams other = new ModifiableSolrParams(params);
+    for (int i=0; i<otherParams.length; i+=2) {
+      other.set(otherParams[i], otherParams[i+1]);
+    }
+    assertEquals(other.toString(), getFacetCounts(params).toString(), getFacetCounts(other).toString());
+  }
+
+  private static Object getFacetCounts(SolrParams params) throws Exception {
+    SolrQueryRequest req = req(params);
+    try {
+      return h.queryAndResponse(null, req).getValues().get("facet_counts");
+    } finally {
+      req.close();
+    }
+  }
+
   @Test
   public void testSimpleFacetCounts() {
  
@@ -1472,6 +1507,38 @@ public class SimpleFacetsTest extends SolrTestCaseJ4 {
   }
 
 
+  @Test
+  public void testRangeFacetMethodFc() throws Exception {
+    String[][] ranges = {
+        {"id", "35", "50", "5"},
+        {"range_facet_l", "10", "50", "3"},
+        {"range_facet_f", "10", "50", "7.5"},
+        {"range_facet_d", "-10", "50", "2.5"},
+        {"bday", "1976-07-01T00:00:00.000Z", "1976-07-31T00:00:00.000Z", "+5DAYS"}};
+    String[][] includes = {{}, {"lower"}, {"upper"}, {"edge"}, {"outer"}, {"lower", "upper"}, {"all"}};
+    for (String[] range : ranges) {
+      for (String[] include : includes) {
+        for (String type : new String[] {"range", "date"}) {
+          if (type.equals("date") && !range[0].equals("bday")) continue;
+          String p = "facet." + type;
+          ModifiableSolrParams params = new ModifiableSolrParams();
+          params.set("q", "*:*");
+          params.set("rows", "0");
+          params.set("facet", "true");
+          params.set(p, range[0]);
+          params.set(p + ".start", range[1]);
+          params.set(p + ".end", range[2]);
+          params.set(p + ".gap", range[3]);
+          params.set(p + ".other", "all");
+          params.set(p + ".hardend", random().nextBoolean());
+          params.set("facet.mincount", random().nextInt(2));
+          if (include.length > 0) params.set(p + ".include", include);
+          assertSameFacetCounts(params, "facet.range.method", "fc");
+        }
+      }
+    }
+  }
+
   @Test
   public void testNumericRangeFacetsOverflowTrieLong() {
     helpTestNumericRangeFacetsLongOverflow("range_facet_l");
@@ -30,6 +30,8 @@ import org.apache.solr.util.AbstractSolrTestCase;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
 import java.util.Locale;
 import java.util.UUID;
 
@@ -74,6 +76,52 @@ public class TestBinaryResponseWriter extends AbstractSolrTestCase {
     req.close();
   }
 
+  private SolrDocumentList query(String... params) throws Exception {
+    LocalSolrQueryRequest req = lrf.makeRequest(params);
+    SolrQueryResponse rsp = h.queryAndResponse(req.getParams().get(CommonParams.QT), req);
+    BinaryQueryResponseWriter writer = (BinaryQueryResponseWriter) h.getCore().getQueryResponseWriter("javabin");
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    writer.write(baos, req, rsp);
+    req.close();
+    NamedList res = (NamedList) new JavaBinCodec().unmarshal(new ByteArrayInputStream(baos.toByteArray()));
+    return (SolrDocumentList) res.get("response");
+  }
+
+  public void testColumnar() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      if (i % 5 == 4) {
+        // a document with missing values
+        assertU(adoc("id", Integer.toString(i)));
+        continue;
+      }
+      assertU(adoc("id", Integer.toString(i), "val_i", Integer.toString(i * 7 - 50),
+          "val_l", Long.toString(i * 1000000000000L), "val_f", i + ".5", "val_d", Double.toString(-i / 3.0),
+          "val_dt", "2012-10-0" + (i % 9 + 1) + "T00:00:00Z", "cat_s", "cat" + (i % 3), "val_is", Integer.toString(i),
+          "val_is", Integer.toString(i + 1)));
+    }
+    assertU(commit());
+
+    String[] params = {"q", "*:*", "rows", "15", "start", "2", "sort", "id asc", "fl", "*,score"};
+    SolrDocumentList rows = query(params);
+    String[] columnarParams = Arrays.copyOf(params, params.length + 2);
+    columnarParams[params.length] = CommonParams.JAVABIN_COLUMNAR;
+    columnarParams[params.length + 1] = "true";
+    SolrDocumentList columns = query(columnarParams);
+
+    assertEquals(20, columns.getNumFound());
+    assertEquals(2, columns.getStart());
+    assertEquals(rows.getMaxScore(), columns.getMaxScore());
+    assertEquals(15, columns.size());
+    for (int i = 0; i < rows.size(); i++) {
+      SolrDocument row = rows.get(i);
+      SolrDocument column = columns.get(i);
+      assertEquals(row.getFieldNames(), column.getFieldNames());
+      for (String name : row.getFieldNames()) {
+        assertEquals(name, row.getFieldValue(name), column.getFieldValue(name));
+      }
+    }
+  }
+
   public void testResolverSolrDocumentPartialFields() throws Exception {
     LocalSolrQueryRequest req = lrf.makeRequest("q", "*:*",
                                                 "fl", "id,xxx,ddd_s"); 
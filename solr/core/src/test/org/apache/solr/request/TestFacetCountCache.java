@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestFacetCountCache extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml","schema.xml");
+  }
+
+  private static long getStat(String name) {
+    RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try {
+      SolrCache cache = searcher.get().getCache(FacetCountCache.NAME);
+      NamedList stats = cache.getStatistics();
+      return ((Number) stats.get(name)).longValue();
+    } finally {
+      searcher.decref();
+    }
+  }
+
+  @Test
+  public void testCarryOver() throws Exception {
+    assertU(adoc("id", "1", "s_s1", "a", "t_s", "x"));
+    assertU(adoc("id", "2", "s_s1", "b", "t_s", "x"));
+    assertU(commit());
+    assertU(adoc("id", "3", "s_s1", "a", "t_s", "y"));
+    assertU(commit());
+
+    String[] request = {"q", "*:*", "fq", "{!tag=t}t_s:x", "facet", "true", "facet.method", "fcs",
+        "facet.field", "s_s1", "facet.field", "{!ex=t key=all}s_s1", "facet.mincount", "1"};
+    String[] tests = {
+        "//lst[@name='s_s1']/int[@name='a'][.='1']",
+        "//lst[@name='s_s1']/int[@name='b'][.='1']",
+        "//lst[@name='all']/int[@name='a'][.='2']",
+        "//lst[@name='all']/int[@name='b'][.='1']"};
+    assertQ(req(request), tests);
+    // the counts of both facets over every segment
+    long size = getStat("size");
+    assertTrue(size >= 2);
+    assertEquals(0, getStat("hits"));
+    assertQ(req(request), tests);
+    assertEquals(size, getStat("hits"));
+
+    // the counts of the segment with a deletion are recomputed
+    assertU(adoc("id", "4", "s_s1", "b", "t_s", "x"));
+    assertU(delI("3"));
+    assertU(commit());
+    // only the segments which are left unchanged are carried over
+    size = getStat("size");
+    assertEquals(0, getStat("hits"));
+    assertQ(req(request),
+        "//lst[@name='s_s1']/int[@name='a'][.='1']",
+        "//lst[@name='s_s1']/int[@name='b'][.='2']",
+        "//lst[@name='all']/int[@name='a'][.='1']",
+        "//lst[@name='all']/int[@name='b'][.='2']");
+    assertEquals(size, getStat("hits"));
+
+    // with a prefix, the counts of all the terms are looked up
+    long inserts = getStat("inserts");
+    assertQ(req("q", "*:*", "fq", "t_s:x", "facet", "true", "facet.method", "fcs",
+        "facet.field", "s_s1", "facet.prefix", "b"),
+        "count(//lst[@name='s_s1']/int)=1",
+        "//lst[@name='s_s1']/int[@name='b'][.='2']");
+    assertEquals(inserts, getStat("inserts"));
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.util.LongCountTable;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestNumericFacets extends SolrTestCaseJ4 {
+
+  private static final String[] FIELDS = {"v_i", "v_ti1", "v_tl1", "v_tf1", "v_td1", "v_tdt1"};
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml","schema.xml");
+    for (int i = 0; i < 300; i++) {
+      // a few distinct values, with negative ones and missing values
+      int v = random().nextInt(40) - 10;
+      if (v % 7 == 0) {
+        assertU(adoc("id", Integer.toString(i)));
+      } else {
+        assertU(adoc("id", Integer.toString(i), "v_i", Integer.toString(v), "v_ti1", Integer.toString(v),
+            "v_tl1", Long.toString(v * 10000000000L), "v_tf1", Float.toString(v / 4f), "v_td1", Double.toString(v / 3d),
+            "v_tdt1", (1990 + v + 10) + "-01-01T00:00:00Z"));
+      }
+      if (random().nextInt(50) == 0) assertU(commit());
+    }
+    // values which only deleted documents have
+    assertU(adoc("id", "1000", "v_i", "1000", "v_ti1", "1000", "v_tl1", "1000", "v_tf1", "1000", "v_td1", "1000",
+        "v_tdt1", "2100-01-01T00:00:00Z"));
+    assertU(commit());
+    assertU(delI("1000"));
+    assertU(commit());
+  }
+
+  @Test
+  public void testSameAsOtherMethods() throws Exception {
+    for (String field : FIELDS) {
+      for (String sort : new String[] {"count", "index"}) {
+        for (int mincount : new int[] {0, 1, 8}) {
+          ModifiableSolrParams params = new ModifiableSolrParams();
+          params.set("q", random().nextBoolean() ? "*:*" : "id:[10 TO 200]");
+          params.set("rows", "0");
+          params.set("facet", "true");
+          params.set("facet.field", field);
+          params.set("facet.sort", sort);
+          params.set("facet.mincount", mincount);
+          params.set("facet.offset", random().nextInt(5));
+          params.set("facet.limit", random().nextBoolean() ? -1 : random().nextInt(20) + 1);
+          params.set("facet.missing", random().nextBoolean());
+          SimpleFacetsTest.assertSameFacetCounts(params, "facet.method", "fcs");
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCountTable() {
+    LongCountTable table = new LongCountTable();
+    for (int i = 0; i < 1000; i++) {
+      for (int j = 0; j <= i % 3; j++) {
+        table.add(i * 1000003L - 500);
+      }
+    }
+    assertEquals(1000, table.size());
+    assertEquals(1000, table.keys().length);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i % 3 + 1, table.get(i * 1000003L - 500));
+    }
+    assertEquals(0, table.get(42));
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.Arrays;
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestTimeBudget extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml","schema.xml");
+    for (int i = 0; i < 20; i++) {
+      assertU(adoc("id", Integer.toString(i), "cat_s", "c" + (i % 3), "val_i", Integer.toString(i)));
+    }
+    assertU(commit());
+  }
+
+  @Test
+  public void testWithinBudget() throws Exception {
+    assertQ(req("q", "*:*", "facet", "true", "facet.field", "cat_s", "timeAllowed", "100000"),
+        "not(//lst[@name='responseHeader']/arr[@name='truncated'])",
+        "//lst[@name='facet_fields']/lst[@name='cat_s']/int[@name='c0'][.='7']");
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    SolrQueryRequest req = req("q", "*:*", "facet", "true", "facet.field", "cat_s",
+        "facet.query", "val_i:[0 TO 5]", "stats", "true", "stats.field", "val_i", "timeAllowed", "1");
+    // the budget starts with the request
+    Thread.sleep(20);
+    assertQ(req,
+        "//lst[@name='responseHeader']/bool[@name='partialResults'][.='true']",
+        "//lst[@name='responseHeader']/arr[@name='truncated']/str[.='facet_fields']",
+        "//lst[@name='responseHeader']/arr[@name='truncated']/str[.='facet_queries']",
+        "//lst[@name='responseHeader']/arr[@name='truncated']/str[.='stats']",
+        "count(//lst[@name='facet_fields']/lst)=0");
+  }
+
+  public void testBudget() throws Exception {
+    TimeBudget budget = new TimeBudget(System.currentTimeMillis() + 100000);
+    assertFalse(budget.isSpent("a"));
+    assertTrue(budget.getTruncated().isEmpty());
+
+    budget = new TimeBudget(System.currentTimeMillis() - 1);
+    assertTrue(budget.isSpent("a"));
+    assertTrue(budget.isSpent("b"));
+    assertTrue(budget.isSpent("a"));
+    assertEquals(Arrays.asList("a", "b"), budget.getTruncated());
+
+    // the loops only read the clock every 4096 documents
+    budget = new TimeBudget(System.currentTimeMillis() - 1);
+    assertFalse(budget.isSpent("c", 4095));
+    assertTrue(budget.isSpent("c", 4096));
+    assertEquals(Arrays.asList("c"), budget.getTruncated());
+  }
+}
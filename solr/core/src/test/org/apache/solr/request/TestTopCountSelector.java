@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestTopCountSelector extends LuceneTestCase {
+
+  public void testSelect() {
+    for (int iter = 0; iter < 100; iter++) {
+      int numOrds = random().nextInt(2000);
+      int[] counts = new int[numOrds];
+      for (int i = 0; i < numOrds; i++) {
+        counts[i] = random().nextInt(1 + random().nextInt(50));
+      }
+      int offset = random().nextInt(20);
+      int limit = random().nextInt(10) == 0 ? -1 : random().nextInt(100);
+      int mincount = random().nextInt(5);
+
+      // the expected page: by decreasing count, then by ordinal
+      List<long[]> expected = new ArrayList<long[]>();
+      for (int i = 0; i < numOrds; i++) {
+        if (counts[i] >= mincount) expected.add(new long[] {-counts[i], i});
+      }
+      Collections.sort(expected, new java.util.Comparator<long[]>() {
+        public int compare(long[] a, long[] b) {
+          return a[0] != b[0] ? (a[0] < b[0] ? -1 : 1) : (a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1));
+        }
+      });
+      int end = limit < 0 ? expected.size() : Math.min(expected.size(), offset + limit);
+      expected = expected.subList(Math.min(offset, end), end);
+
+      TopCountSelector selector = new TopCountSelector(offset, limit, mincount, numOrds);
+      int[] ordOfSlot = new int[numOrds];
+      for (int i = 0; i < numOrds; i++) {
+        int slot = selector.collect(i, counts[i]);
+        if (slot >= 0) ordOfSlot[slot] = i;
+      }
+      selector.select(offset);
+      assertEquals(expected.size(), selector.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(-expected.get(i)[0], selector.getCount(i));
+        assertEquals(expected.get(i)[1], selector.getOrd(i));
+        assertEquals(selector.getOrd(i), ordOfSlot[selector.getSlot(i)]);
+      }
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.search;
+
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestDocSetSampler extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml","schema12.xml");
+    for (int i = 0; i < 1000; i++) {
+      assertU(adoc("id", Integer.toString(i), "cat_s", i % 4 == 0 ? "a" : "b", "val_i", Integer.toString(i % 10)));
+      if (i % 300 == 0) assertU(commit());
+    }
+    assertU(commit());
+  }
+
+  @Test
+  public void testSample() throws Exception {
+    SolrQueryRequest req = req();
+    try {
+      SolrIndexSearcher searcher = req.getSearcher();
+      DocSet all = searcher.getDocSet(new MatchAllDocsQuery());
+      assertSame(all, DocSetSampler.sample(searcher, all, 1, DocSetSampler.DEFAULT_SEED));
+
+      DocSet sample = DocSetSampler.sample(searcher, all, 0.1, DocSetSampler.DEFAULT_SEED);
+      assertTrue("sampled " + sample.size(), sample.size() > 50 && sample.size() < 150);
+      assertEquals(sample, DocSetSampler.sample(searcher, all, 0.1, DocSetSampler.DEFAULT_SEED));
+      // a larger rate keeps the same documents and more
+      DocSet larger = DocSetSampler.sample(searcher, all, 0.3, DocSetSampler.DEFAULT_SEED);
+      assertEquals(sample.size(), sample.intersectionSize(larger));
+      assertFalse(sample.equals(DocSetSampler.sample(searcher, all, 0.1, 42)));
+    } finally {
+      req.close();
+    }
+  }
+
+  @Test
+  public void testScaledFacetsAndStats() throws Exception {
+    SolrQueryRequest req = req("q", "*:*", "rows", "0", "sample", "0.5",
+        "facet", "true", "facet.field", "cat_s", "stats", "true", "stats.field", "val_i");
+    try {
+      SolrQueryResponse rsp = h.queryAndResponse(null, req);
+      NamedList values = rsp.getValues();
+      NamedList cats = (NamedList) ((NamedList) ((NamedList) values.get("facet_counts"))
+          .get("facet_fields")).get("cat_s");
+      int a = (Integer) cats.get("a");
+      int b = (Integer) cats.get("b");
+      assertTrue("a=" + a, a > 150 && a < 350);
+      assertTrue("b=" + b, b > 600 && b < 900);
+
+      NamedList stats = (NamedList) ((NamedList) ((NamedList) values.get("stats"))
+          .get("stats_fields")).get("val_i");
+      long count = (Long) stats.get("count");
+      assertTrue("count=" + count, count > 800 && count < 1200);
+
+      NamedList sampling = (NamedList) values.get("sampling");
+      assertEquals(0.5, sampling.get("rate"));
+      NamedList margins = (NamedList) ((NamedList) ((NamedList) sampling.get("facet_counts"))
+          .get("facet_fields")).get("cat_s");
+      assertTrue((Double) margins.get("a") > 0);
+      assertNotNull(((NamedList) sampling.get("stats_fields")).get("val_i"));
+    } finally {
+      req.close();
+    }
+  }
+
+  private NamedList facetField(String key, String... params) throws Exception {
+    SolrQueryRequest req = req(params);
+    try {
+      NamedList values = h.queryAndResponse(null, req).getValues();
+      return (NamedList) ((NamedList) ((NamedList) values.get("facet_counts"))
+          .get("facet_fields")).get(key);
+    } finally {
+      req.close();
+    }
+  }
+
+  @Test
+  public void testExcludedFilters() throws Exception {
+    NamedList all = facetField("cat_s", "q", "*:*", "rows", "0", "sample", "0.5",
+        "facet", "true", "facet.field", "cat_s");
+    // the base of the facet excluding the filter is sampled and scaled like the main one
+    NamedList excluded = facetField("cat_s", "q", "*:*", "rows", "0", "sample", "0.5",
+        "fq", "{!tag=t}cat_s:a", "facet", "true", "facet.field", "{!ex=t}cat_s");
+    assertEquals(all, excluded);
+    int b = (Integer) excluded.get("b");
+    assertTrue("b=" + b, b > 600 && b < 900);
+  }
+
+  @Test
+  public void testBadRate() throws Exception {
+    assertQEx("sample must be in (0, 1]", req("q", "*:*", "sample", "1.5", "facet", "true", "facet.field", "cat_s"),
+        SolrException.ErrorCode.BAD_REQUEST);
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search.function;
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestCachedValueSource extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml","schema.xml");
+  }
+
+  private static long getStat(String name) {
+    RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try {
+      SolrCache cache = searcher.get().getCache(ValueSourceCache.NAME);
+      NamedList stats = cache.getStatistics();
+      return ((Number) stats.get(name)).longValue();
+    } finally {
+      searcher.decref();
+    }
+  }
+
+  private static int numSegments() {
+    RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try {
+      return searcher.get().getTopReaderContext().leaves().size();
+    } finally {
+      searcher.decref();
+    }
+  }
+
+  @Test
+  public void testScale() throws Exception {
+    assertU(delQ("*:*"));
+    assertU(adoc("id", "1", "foo_i1", "10"));
+    assertU(adoc("id", "2", "foo_i1", "20"));
+    assertU(commit());
+    assertU(adoc("id", "3", "foo_i1", "30"));
+    assertU(commit());
+
+    String[] tests = {
+        "//result/doc[1]/int[@name='id'][.='3']",
+        "//result/doc[1]/float[@name='score'][.='1.0']",
+        "//result/doc[2]/float[@name='score'][.='0.5']",
+        "//result/doc[3]/float[@name='score'][.='0.0']"};
+    long inserts = getStat("inserts");
+    assertQ(req("q", "{!func}scale(foo_i1,0,1)", "fl", "id,score"), tests);
+    // the values of every segment
+    assertEquals(inserts + numSegments(), getStat("inserts"));
+    // another sort, which is not in the query result cache
+    long hits = getStat("hits");
+    assertQ(req("q", "{!func}scale(foo_i1,0,1)", "fl", "id,score", "sort", "score desc,id desc"), tests);
+    assertEquals(hits + numSegments(), getStat("hits"));
+
+    // the values of every segment are computed again by autowarming
+    assertU(adoc("id", "4", "foo_i1", "50"));
+    assertU(commit());
+    hits = getStat("hits");
+    inserts = getStat("inserts");
+    assertQ(req("q", "{!func}scale(foo_i1,0,1)", "fl", "id,score", "sort", "score desc,id asc"),
+        "//result/doc[1]/int[@name='id'][.='4']",
+        "//result/doc[2]/float[@name='score'][.='0.5']",
+        "//result/doc[3]/float[@name='score'][.='0.25']");
+    assertEquals(hits + numSegments(), getStat("hits"));
+    assertEquals(inserts, getStat("inserts"));
+  }
+
+  @Test
+  public void testQuery() throws Exception {
+    assertU(delQ("*:*"));
+    assertU(adoc("id", "1", "foo_i1", "10"));
+    assertU(adoc("id", "2", "foo_i1", "20"));
+    assertU(commit());
+
+    // documents which do not match the query have no value
+    String[] request = {"q", "*:*", "fl", "id,v:query($qq)", "qq", "foo_i1:20", "sort", "id asc"};
+    String[] tests = {
+        "count(//result/doc[1]/float[@name='v'])=0",
+        "count(//result/doc[2]/float[@name='v'])=1"};
+    assertQ(req(request), tests);
+    long inserts = getStat("inserts");
+    assertTrue(inserts >= 1);
+    assertQ(req(request), tests);
+    assertEquals(inserts, getStat("inserts"));
+
+    assertQ(req("q", "{!frange l=0.5}query($qq,0)", "qq", "foo_i1:20"),
+        "//*[@numFound='1']",
+        "//result/doc[1]/int[@name='id'][.='2']");
+  }
+}
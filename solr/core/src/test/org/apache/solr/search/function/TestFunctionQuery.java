@@ -25,7 +25,10 @@ import org.apache.lucene.search.similarities.DefaultSimilarity;
 import org.apache.lucene.search.similarities.TFIDFSimilarity;
 import org.apache.solr.SolrTestCaseJ4;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ContentStreamBase;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.LocalSolrQueryRequest;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.Ignore;
@@ -34,7 +37,10 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 /**
@@ -308,6 +314,97 @@ public class TestFunctionQuery extends SolrTestCaseJ4 {
     singleTest(extField,"\0",991,543210,992,-8,993,250);
   }
 
+  /** posts key=value lines to the binary external file of a field */
+  void updateBinaryFile(String field, String contents) throws Exception {
+    LocalSolrQueryRequest req = (LocalSolrQueryRequest) req("field", field);
+    req.setContentStreams(Collections.<ContentStream>singletonList(new ContentStreamBase.StringStream(contents)));
+    String response = h.query("/reloadCache", req);
+    assertNull(response, h.validateXPath(response, "//long[@name='generation']"));
+  }
+
+  @Test
+  public void testBinaryExternalFile() throws Exception {
+    String field = "bin_extf";
+    clearIndex();
+    float[] ids = {100,-4,0,10,25,5,77,23,55,-78};
+    createIndex(null,ids);
+
+    updateBinaryFile(field, "100=1000\n0=-999\n25=250\n12345=5");
+    singleTest(field, "\0", 100,1000, 0,-999, 25,250, -4,1, 10,1);
+    Object orig = FileFloatSource.onlyForTesting;
+    assertTrue(orig instanceof BinaryExternalFile);
+
+    // a new segment is resolved against the same generation
+    assertU(adoc("id", "12345"));
+    assertU(commit());
+    singleTest(field, "\0", 12345,5, 100,1000, 0,-999, 10,1);
+    assertTrue(orig == FileFloatSource.onlyForTesting);
+
+    // only the changed keys are applied to the values of the existing segments
+    updateBinaryFile(field, "25=-25\n12345=6\n10=11");
+    singleTest(field, "\0", 25,-25, 12345,6, 10,11, 100,1000, 0,-999, -4,1);
+    assertTrue(orig != FileFloatSource.onlyForTesting);
+
+    Map<Float,Float> expected = new HashMap<Float,Float>();
+    for (float id : ids) expected.put(id, 1f);
+    expected.put(100f, 1000f);
+    expected.put(0f, -999f);
+    expected.put(25f, -25f);
+    expected.put(10f, 11f);
+    expected.put(12345f, 6f);
+
+    Random r = random();
+    for (int i=0; i<10; i++) {
+      if (r.nextBoolean()) {
+        float id = 1000 + i;
+        assertU(adoc("id", Float.toString(id)));
+        assertU(commit());
+        expected.put(id, 1f);
+      }
+      StringBuilder sb = new StringBuilder();
+      List<Float> keys = new ArrayList<Float>(expected.keySet());
+      int len = r.nextInt(keys.size()+1);
+      for (int j=0; j<len; j++) {
+        float key = keys.get(r.nextInt(keys.size()));
+        float val = r.nextInt(200)-100;
+        sb.append(key).append('=').append(val).append('\n');
+        expected.put(key, val);
+      }
+      updateBinaryFile(field, sb.toString());
+
+      float[] answers = new float[expected.size()*2];
+      int j = 0;
+      for (Map.Entry<Float,Float> e : expected.entrySet()) {
+        answers[j++] = e.getKey();
+        answers[j++] = e.getValue();
+      }
+      singleTest(field, "\0", answers);
+    }
+
+    FieldCache.DEFAULT.purgeAllCaches();   // avoid FC insanity
+  }
+
+  @Test
+  public void testConvertExternalFile() throws Exception {
+    String field = "conv_extf";
+    clearIndex();
+    float[] ids = {100,-4,0,10,25};
+    createIndex(null,ids);
+
+    // unsorted, and the last value of a key wins
+    makeExternalFile(field, "25=250\n100=1000\n0=-999\n25=-25","UTF-8");
+    String response = h.query("/reloadCache", req("field", field, "convert", "true"));
+    assertNull(response, h.validateXPath(response, "//long[@name='generation']"));
+    singleTest(field, "\0", 100,1000, 0,-999, 25,-25, -4,1, 10,1);
+    assertTrue(FileFloatSource.onlyForTesting instanceof BinaryExternalFile);
+
+    // the converted file is then updated incrementally
+    updateBinaryFile(field, "10=11\n100=1");
+    singleTest(field, "\0", 100,1, 0,-999, 25,-25, -4,1, 10,11);
+
+    FieldCache.DEFAULT.purgeAllCaches();   // avoid FC insanity
+  }
+
   @Test
   public void testGeneral() throws Exception {
     clearIndex();
@@ -169,11 +169,39 @@ public class PeerSyncTest extends BaseDistributedSearchTestCase {
 
     assertSync(client1, numVersions, true, shardsArr[0]);
     client0.commit(); client1.commit(); queryAndCompare(params("q", "*:*", "sort","_version_ desc"), client0, client1);
+
+    //
+    // Test that a long run of missed updates is requested as ranges of versions and fetched in batches,
+    // with a delete by query in the middle that must not delete the newer documents
+    //
+    v=4000;
+    for (int i=0; i<5; i++) {
+      add(client0, seenLeader, sdoc("id",Long.toString(++v),"_version_",v));
+      add(client1, seenLeader, sdoc("id",Long.toString(v),"_version_",v));
+    }
+    for (int i=0; i<20; i++) {
+      add(client0, seenLeader, sdoc("id",Long.toString(++v),"_version_",v));
+    }
+    delQ(client0, params(DISTRIB_UPDATE_PARAM,FROM_LEADER,"_version_",Long.toString(-++v)), "id:[4001 TO 4010]");
+    for (int i=0; i<20; i++) {
+      add(client0, seenLeader, sdoc("id",Long.toString(++v),"_version_",v));
+    }
+    for (int i=0; i<5; i++) {
+      add(client0, seenLeader, sdoc("id",Long.toString(++v),"_version_",v));
+      add(client1, seenLeader, sdoc("id",Long.toString(v),"_version_",v));
+    }
+
+    assertSync(client1, numVersions, true, 7, shardsArr[0]);
+    client0.commit(); client1.commit(); queryAndCompare(params("q", "*:*", "sort","_version_ desc"), client0, client1);
   }
 
 
   void assertSync(SolrServer server, int numVersions, boolean expectedResult, String... syncWith) throws IOException, SolrServerException {
-    QueryRequest qr = new QueryRequest(params("qt","/get", "getVersions",Integer.toString(numVersions), "sync", StrUtils.join(Arrays.asList(syncWith), ',')));
+    assertSync(server, numVersions, expectedResult, PeerSync.DEFAULT_UPDATES_PER_REQUEST, syncWith);
+  }
+
+  void assertSync(SolrServer server, int numVersions, boolean expectedResult, int updatesPerRequest, String... syncWith) throws IOException, SolrServerException {
+    QueryRequest qr = new QueryRequest(params("qt","/get", "getVersions",Integer.toString(numVersions), "sync", StrUtils.join(Arrays.asList(syncWith), ','), "updatesPerRequest", Integer.toString(updatesPerRequest)));
     NamedList rsp = server.request(qr);
     assertEquals(expectedResult, (Boolean) rsp.get("sync"));
   }
@@ -22,10 +22,16 @@ import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 
 import org.apache.http.client.HttpClient;
@@ -33,8 +39,10 @@ import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.request.IsUpdateRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.cloud.ClusterState;
 import org.apache.solr.common.cloud.Slice;
 import org.apache.solr.common.cloud.ZkCoreNodeProps;
@@ -43,7 +51,10 @@ import org.apache.solr.common.cloud.ZkStateReader;
 import org.apache.solr.common.cloud.ZooKeeperException;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.Hash;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SolrjNamedThreadFactory;
 import org.apache.solr.common.util.StrUtils;
 import org.apache.zookeeper.KeeperException;
 
@@ -52,6 +63,11 @@ import org.apache.zookeeper.KeeperException;
  * Instances of this class communicate with Zookeeper to discover
  * Solr endpoints for SolrCloud collections, and then use the 
  * {@link LBHttpSolrServer} to issue requests.
+ * <p>
+ * When updates are sent to leaders, the documents and deletes by id of an
+ * {@link UpdateRequest} are hashed on their uniqueKey, the same way the
+ * servers do, and sent in parallel straight to the leader of the shard which
+ * owns them instead of being forwarded once more by a random leader.
  */
 public class CloudSolrServer extends SolrServer {
   private volatile ZkStateReader zkStateReader;
@@ -69,10 +85,16 @@ public class CloudSolrServer extends SolrServer {
   private volatile List<String> leaderUrlList;
   private volatile List<String> replicasList;
   
-  private volatile int lastClusterStateHashCode;
+  // the collections and cluster state the url lists were built for
+  private volatile String urlListKey;
+  private volatile String leaderUrlListKey;
   
   private final boolean updatesToLeaders;
 
+  private volatile String idField = "id";
+
+  private final ExecutorService threadPool = Executors
+      .newCachedThreadPool(new SolrjNamedThreadFactory("CloudSolrServer"));
   
   /**
    * @param zkHost The client endpoint of the zookeeper quorum containing the cloud state,
@@ -127,6 +149,18 @@ public class CloudSolrServer extends SolrServer {
     this.zkClientTimeout = zkClientTimeout;
   }
 
+  /**
+   * Sets the name of the uniqueKey field of the collections, used to route
+   * updates to the shard leaders - defaults to "id"
+   */
+  public void setIdField(String idField) {
+    this.idField = idField;
+  }
+
+  public String getIdField() {
+    return idField;
+  }
+
   /**
    * Connect to the zookeeper ensemble.
    * This is an optional method that may be used to force a connect before any other requests are sent.
@@ -164,8 +198,6 @@ public class CloudSolrServer extends SolrServer {
   public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
     connect();
 
-    // TODO: if you can hash here, you could favor the shard leader
-    
     ClusterState clusterState = zkStateReader.getClusterState();
     boolean sendToLeaders = false;
     List<String> replicas = null;
@@ -187,6 +219,20 @@ public class CloudSolrServer extends SolrServer {
     
     // Extract each comma separated collection name and store in a List.
     List<String> collectionList = StrUtils.splitSmart(collection, ",", true);
+
+    NamedList<Object> routedResponse = null;
+    if (request instanceof UpdateRequest && updatesToLeaders && collectionList.size() == 1) {
+      UpdateRequest updateRequest = (UpdateRequest) request;
+      Map<String,UpdateRequest> routes = routeUpdates(updateRequest, clusterState, collection);
+      if (routes != null) {
+        routedResponse = sendToShards(routes, clusterState, collection);
+        // whatever has to reach every shard goes through a leader, after the routed updates
+        request = getUnroutedRequest(updateRequest);
+        if (request == null) {
+          return routedResponse;
+        }
+      }
+    }
     
     // TODO: not a big deal because of the caching, but we could avoid looking at every shard
     // when getting leaders if we tweaked some things
@@ -201,7 +247,8 @@ public class CloudSolrServer extends SolrServer {
 
     Set<String> liveNodes = clusterState.getLiveNodes();
 
-    if (sendToLeaders && leaderUrlList == null || !sendToLeaders && urlList == null || clusterState.hashCode() != this.lastClusterStateHashCode) {
+    String listKey = collection + ":" + clusterState.hashCode();
+    if (sendToLeaders && !listKey.equals(leaderUrlListKey) || !sendToLeaders && !listKey.equals(urlListKey)) {
     
       // build a map of unique nodes
       // TODO: allow filtering by group, role, etc
@@ -227,10 +274,11 @@ public class CloudSolrServer extends SolrServer {
       if (sendToLeaders) {
         this.leaderUrlList = urlList; 
         this.replicasList = replicas;
+        this.leaderUrlListKey = listKey;
       } else {
         this.urlList = urlList;
+        this.urlListKey = listKey;
       }
-      this.lastClusterStateHashCode = clusterState.hashCode();
     }
     
     List<String> theUrlList;
@@ -255,11 +303,207 @@ public class CloudSolrServer extends SolrServer {
  
     LBHttpSolrServer.Req req = new LBHttpSolrServer.Req(request, theUrlList);
     LBHttpSolrServer.Rsp rsp = lbServer.request(req);
+    if (routedResponse != null) {
+      mergeResponse(routedResponse, rsp.getResponse());
+      return routedResponse;
+    }
     return rsp.getResponse();
   }
 
+  /**
+   * Splits the documents and deletes by id of an update request by the shard
+   * which owns them, hashing the uniqueKey like DistributedUpdateProcessor.
+   * 
+   * @return the request for each shard, or null if the request can not be routed
+   */
+  Map<String,UpdateRequest> routeUpdates(UpdateRequest request,
+      ClusterState clusterState, String collection) {
+    List<SolrInputDocument> docs = request.getDocuments();
+    List<String> deleteById = request.getDeleteById();
+    if (request.getDocIterator() != null
+        || (docs == null || docs.isEmpty()) && (deleteById == null || deleteById.isEmpty())
+        || clusterState.getSlices(collection) == null) {
+      return null;
+    }
+
+    // commits and optimizes are sent once, with the unrouted part of the request
+    ModifiableSolrParams params = new ModifiableSolrParams(request.getParams());
+    params.remove(UpdateParams.COMMIT);
+    params.remove(UpdateParams.OPTIMIZE);
+
+    Map<String,UpdateRequest> routes = new LinkedHashMap<String,UpdateRequest>();
+    if (docs != null) {
+      for (SolrInputDocument doc : docs) {
+        Object id = doc.getFieldValue(idField);
+        if (id == null) {
+          // let the server complain about it
+          return null;
+        }
+        getRoute(routes, request, params, clusterState, collection, id.toString()).add(doc);
+      }
+    }
+    if (deleteById != null) {
+      for (String id : deleteById) {
+        getRoute(routes, request, params, clusterState, collection, id).deleteById(id);
+      }
+    }
+    return routes;
+  }
+
+  private static UpdateRequest getRoute(Map<String,UpdateRequest> routes,
+      UpdateRequest request, ModifiableSolrParams params,
+      ClusterState clusterState, String collection, String id) {
+    int hash = Hash.murmurhash3_x86_32(id, 0, id.length(), 0);
+    String shard = clusterState.getShard(hash, collection);
+    UpdateRequest route = routes.get(shard);
+    if (route == null) {
+      route = new UpdateRequest(request.getPath());
+      route.setParams(new ModifiableSolrParams(params));
+      route.setCommitWithin(request.getCommitWithin());
+      route.setResponseParser(request.getResponseParser());
+      routes.put(shard, route);
+    }
+    return route;
+  }
+
+  /**
+   * @return the deletes by query, commit and optimize of an update request
+   *         whose other updates were routed, null if it has none
+   */
+  static UpdateRequest getUnroutedRequest(UpdateRequest request) {
+    List<String> deleteQuery = request.getDeleteQuery();
+    boolean hasDeleteQuery = deleteQuery != null && !deleteQuery.isEmpty();
+    // a commit or optimize may be set as a plain parameter, without an action
+    SolrParams params = request.getParams();
+    boolean hasCommit = params != null
+        && (params.getBool(UpdateParams.COMMIT, false) || params.getBool(UpdateParams.OPTIMIZE, false));
+    if (!hasDeleteQuery && !hasCommit && request.getAction() == null) {
+      return null;
+    }
+    UpdateRequest unrouted = new UpdateRequest(request.getPath());
+    unrouted.setParams(new ModifiableSolrParams(request.getParams()));
+    unrouted.setCommitWithin(request.getCommitWithin());
+    unrouted.setResponseParser(request.getResponseParser());
+    if (hasDeleteQuery) {
+      for (String q : deleteQuery) {
+        unrouted.deleteByQuery(q);
+      }
+    }
+    return unrouted;
+  }
+
+  /**
+   * Sends each request to its shard leader, falling back on the other active
+   * replicas of the shard, and merges the responses.
+   */
+  private NamedList<Object> sendToShards(Map<String,UpdateRequest> routes,
+      ClusterState clusterState, String collection) throws SolrServerException, IOException {
+    Set<String> liveNodes = clusterState.getLiveNodes();
+    List<LBHttpSolrServer.Req> reqs = new ArrayList<LBHttpSolrServer.Req>(routes.size());
+    for (Map.Entry<String,UpdateRequest> route : routes.entrySet()) {
+      Slice slice = clusterState.getSlice(collection, route.getKey());
+      ZkNodeProps leader = clusterState.getLeader(collection, route.getKey());
+      List<String> urls = new ArrayList<String>();
+      if (leader != null) {
+        urls.add(new ZkCoreNodeProps(leader).getCoreUrl());
+      }
+      List<String> replicas = new ArrayList<String>();
+      for (ZkNodeProps nodeProps : slice.getReplicasMap().values()) {
+        ZkCoreNodeProps coreNodeProps = new ZkCoreNodeProps(nodeProps);
+        if (coreNodeProps.isLeader() || !liveNodes.contains(coreNodeProps.getNodeName())
+            || !coreNodeProps.getState().equals(ZkStateReader.ACTIVE)) continue;
+        replicas.add(coreNodeProps.getCoreUrl());
+      }
+      Collections.shuffle(replicas, rand);
+      urls.addAll(replicas);
+      if (urls.isEmpty()) {
+        throw new SolrServerException("No live SolrServers available to handle this request for shard " + route.getKey());
+      }
+      reqs.add(new LBHttpSolrServer.Req(route.getValue(), urls));
+    }
+
+    NamedList<Object> response = new NamedList<Object>();
+    if (reqs.size() == 1) {
+      mergeResponse(response, lbServer.request(reqs.get(0)).getResponse());
+      return response;
+    }
+
+    List<Future<NamedList<Object>>> futures = new ArrayList<Future<NamedList<Object>>>(reqs.size());
+    for (final LBHttpSolrServer.Req req : reqs) {
+      futures.add(threadPool.submit(new Callable<NamedList<Object>>() {
+        @Override
+        public NamedList<Object> call() throws Exception {
+          return lbServer.request(req).getResponse();
+        }
+      }));
+    }
+    // wait for every shard before reporting the first failure
+    Throwable failure = null;
+    for (Future<NamedList<Object>> future : futures) {
+      try {
+        NamedList<Object> rsp = future.get();
+        if (failure == null) {
+          mergeResponse(response, rsp);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SolrServerException(e);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause();
+        }
+      }
+    }
+    if (failure instanceof SolrServerException) {
+      throw (SolrServerException) failure;
+    } else if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure != null) {
+      throw new SolrServerException(failure);
+    }
+    return response;
+  }
+
+  /**
+   * Adds a shard response to the merged one: the worst status and the longest
+   * QTime are kept and the lists of the other entries, such as the versions of
+   * the adds, are concatenated.
+   */
+  @SuppressWarnings("unchecked")
+  private static void mergeResponse(NamedList<Object> merged, NamedList<Object> rsp) {
+    for (int i = 0; i < rsp.size(); i++) {
+      String name = rsp.getName(i);
+      Object val = rsp.getVal(i);
+      int idx = merged.indexOf(name, 0);
+      if (idx < 0) {
+        merged.add(name, val instanceof NamedList ? ((NamedList<Object>) val).clone() : val);
+        continue;
+      }
+      Object existing = merged.getVal(idx);
+      if (!(existing instanceof NamedList) || !(val instanceof NamedList)) continue;
+      NamedList<Object> existingList = (NamedList<Object>) existing;
+      NamedList<Object> list = (NamedList<Object>) val;
+      if ("responseHeader".equals(name)) {
+        for (String key : new String[] {"status", "QTime"}) {
+          Object a = existingList.get(key);
+          Object b = list.get(key);
+          if (a instanceof Number && b instanceof Number
+              && ((Number) b).intValue() > ((Number) a).intValue()) {
+            existingList.setVal(existingList.indexOf(key, 0), b);
+          }
+        }
+      } else {
+        existingList.addAll(list);
+      }
+    }
+  }
+
   @Override
   public void shutdown() {
+    threadPool.shutdownNow();
+
     if (zkStateReader != null) {
       synchronized(this) {
         if (zkStateReader!= null)
@@ -17,9 +17,12 @@
 
 package org.apache.solr.client.solrj.impl;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
@@ -27,7 +30,10 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -37,6 +43,7 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentProducer;
 import org.apache.http.entity.EntityTemplate;
+import org.apache.http.util.EntityUtils;
 import org.apache.solr.client.solrj.ResponseParser;
 import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServer;
@@ -49,6 +56,7 @@ import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.params.UpdateParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.common.util.SolrjNamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,6 +73,12 @@ import org.slf4j.LoggerFactory;
  * only recommended to use ConcurrentUpdateSolrServer with /update
  * requests. The class {@link HttpSolrServer} is better suited for the
  * query interface.
+ * <p>
+ * In the adaptive mode, see {@link #setAdaptive(boolean)}, the requests are
+ * serialized by the calling thread and sent in batches, one HTTP request per
+ * batch over keep-alive connections: the size of the batches follows the
+ * latency of the server, the runners wait for more requests for a while before
+ * they stop, and the calling thread blocks once too many bytes are buffered.
  */
 public class ConcurrentUpdateSolrServer extends SolrServer {
   private static final long serialVersionUID = 1L;
@@ -78,6 +92,29 @@ public class ConcurrentUpdateSolrServer extends SolrServer {
   volatile CountDownLatch lock = null; // used to block everything
   final int threadCount;
 
+  // the adaptive mode
+  private boolean adaptive = false;
+  final BlockingQueue<BufferedRequest> bufferedQueue;
+  private int maxBatchBytes = 4 * 1024 * 1024;
+  private int minBatchBytes = 16 * 1024;
+  private int targetLatency = 500;
+  private int keepAlive = 10000;
+  private int maxBufferedBytes = 64 * 1024 * 1024;
+  private Semaphore bufferedBytes = new Semaphore(maxBufferedBytes);
+  // the bytes which are buffered but not sent yet
+  private final AtomicLong queuedBytes = new AtomicLong();
+  // the size of the next batches, adapted to the latency of the server
+  volatile int batchBytes = 256 * 1024;
+
+  // statistics
+  private final AtomicLong docsSent = new AtomicLong();
+  private final AtomicLong batchesSent = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private volatile double latency = -1;  // ewma of the server latency, in ms
+  private volatile long started = -1;
+
   /**
    * Uses an internal ThreadSafeClientConnManager to manage http
    * connections.
@@ -104,6 +141,7 @@ public class ConcurrentUpdateSolrServer extends SolrServer {
     this.server = new HttpSolrServer(solrServerUrl, client);
     this.server.setFollowRedirects(false);
     queue = new LinkedBlockingQueue<UpdateRequest>(queueSize);
+    bufferedQueue = new LinkedBlockingQueue<BufferedRequest>(queueSize);
     this.threadCount = threadCount;
     runners = new LinkedList<Runner>();
   }
@@ -150,24 +188,9 @@ public class ConcurrentUpdateSolrServer extends SolrServer {
                     }
                     
                     server.requestWriter.write(req, out);
+                    if (req.getDocuments() != null) docsSent.addAndGet(req.getDocuments().size());
                     if (isXml) {
-                      // check for commit or optimize
-                      SolrParams params = req.getParams();
-                      if (params != null) {
-                        String fmt = null;
-                        if (params.getBool(UpdateParams.OPTIMIZE, false)) {
-                          fmt = "<optimize waitSearcher=\"%s\" />";
-                        } else if (params.getBool(UpdateParams.COMMIT, false)) {
-                          fmt = "<commit waitSearcher=\"%s\" />";
-                        }
-                        if (fmt != null) {
-                          byte[] content = String.format(Locale.ROOT,
-                              fmt,
-                              params.getBool(UpdateParams.WAIT_SEARCHER, false)
-                                  + "").getBytes("UTF-8");
-                          out.write(content);
-                        }
-                      }
+                      writeCommit(req.getParams(), out);
                     }
                     out.flush();
                     req = queue.poll(250, TimeUnit.MILLISECONDS);
@@ -243,6 +266,223 @@ public class ConcurrentUpdateSolrServer extends SolrServer {
     }
   }
 
+  /**
+   * check for commit or optimize, which the xml stream must contain
+   */
+  static void writeCommit(SolrParams params, OutputStream out) throws IOException {
+    if (params != null) {
+      String fmt = null;
+      if (params.getBool(UpdateParams.OPTIMIZE, false)) {
+        fmt = "<optimize waitSearcher=\"%s\" />";
+      } else if (params.getBool(UpdateParams.COMMIT, false)) {
+        fmt = "<commit waitSearcher=\"%s\" />";
+      }
+      if (fmt != null) {
+        byte[] content = String.format(Locale.ROOT,
+            fmt,
+            params.getBool(UpdateParams.WAIT_SEARCHER, false)
+                + "").getBytes("UTF-8");
+        out.write(content);
+      }
+    }
+  }
+
+  /**
+   * An update request of the adaptive mode, serialized when it is added
+   */
+  class BufferedRequest {
+    final ModifiableSolrParams params;
+    final String paramsString;
+    final String contentType;
+    final byte[] bytes;
+    final int docs;
+    // the permits taken from bufferedBytes
+    final int permits;
+
+    BufferedRequest(UpdateRequest req) throws IOException {
+      params = new ModifiableSolrParams(req.getParams());
+      paramsString = params.toString();
+      contentType = server.requestWriter.getUpdateContentType();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      server.requestWriter.write(req, out);
+      if (ClientUtils.TEXT_XML.equals(contentType)) {
+        writeCommit(req.getParams(), out);
+      }
+      bytes = out.toByteArray();
+      docs = req.getDocuments() == null ? 0 : req.getDocuments().size();
+      permits = Math.min(bytes.length, maxBufferedBytes);
+    }
+
+    /** whether both requests can be sent in the same batch */
+    boolean canBatchWith(BufferedRequest other) {
+      return contentType.equals(other.contentType) && paramsString.equals(other.paramsString);
+    }
+  }
+
+  /**
+   * Sends the requests of the adaptive mode in batches, one HTTP request per
+   * batch, and waits for more requests for keepAlive ms before it stops.
+   */
+  class BatchRunner extends Runner {
+    // a request with other params, it starts the next batch
+    private BufferedRequest next;
+
+    @Override
+    public void run() {
+      runnerLock.lock();
+
+      log.info("starting batch runner: {}", this);
+      boolean removed = false;
+      try {
+        for (;;) {
+          BufferedRequest first = next != null ? next : poll();
+          next = null;
+          if (first == null) {
+            synchronized (runners) {
+              // a request may have been added before we stop
+              if (bufferedQueue.isEmpty()) {
+                runners.remove(this);
+                removed = true;
+                break;
+              }
+            }
+            continue;
+          }
+
+          List<BufferedRequest> batch = new ArrayList<BufferedRequest>();
+          batch.add(first);
+          int bytes = first.bytes.length;
+          int maxBytes = batchBytes;
+          while (bytes < maxBytes) {
+            // the batch is sent as soon as the queue is empty, waiting would only add latency
+            BufferedRequest req = bufferedQueue.poll();
+            if (req == null) break;
+            queuedBytes.addAndGet(-req.bytes.length);
+            if (!req.canBatchWith(first)) {
+              next = req;
+              break;
+            }
+            batch.add(req);
+            bytes += req.bytes.length;
+          }
+          send(batch, bytes, bytes >= maxBytes);
+        }
+      } catch (Throwable e) {
+        handleError(e);
+      } finally {
+        if (!removed) {
+          synchronized (runners) {
+            runners.remove(this);
+          }
+          if (next != null) {
+            bufferedBytes.release(next.permits);
+          }
+        }
+        log.info("finished: {}", this);
+        runnerLock.unlock();
+      }
+    }
+
+    private BufferedRequest poll() throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(keepAlive);
+      for (;;) {
+        BufferedRequest req = bufferedQueue.poll(250, TimeUnit.MILLISECONDS);
+        if (req != null) {
+          queuedBytes.addAndGet(-req.bytes.length);
+          return req;
+        }
+        if (scheduler.isShutdown() || System.nanoTime() >= deadline) return null;
+      }
+    }
+
+    private void send(final List<BufferedRequest> batch, int bytes, boolean full) {
+      final boolean isXml = ClientUtils.TEXT_XML.equals(batch.get(0).contentType);
+      EntityTemplate template = new EntityTemplate(new ContentProducer() {
+        public void writeTo(OutputStream out) throws IOException {
+          if (isXml) {
+            out.write("<stream>".getBytes("UTF-8")); // can be anything
+          }
+          for (BufferedRequest req : batch) {
+            out.write(req.bytes);
+          }
+          if (isXml) {
+            out.write("</stream>".getBytes("UTF-8"));
+          }
+        }
+      });
+
+      // The parser 'wt=' and 'version=' params are used instead of the
+      // original params
+      ModifiableSolrParams requestParams = new ModifiableSolrParams(batch.get(0).params);
+      requestParams.set(CommonParams.WT, server.parser.getWriterType());
+      requestParams.set(CommonParams.VERSION, server.parser.getVersion());
+
+      HttpPost method = new HttpPost(server.getBaseURL() + "/update"
+          + ClientUtils.toQueryString(requestParams, false));
+      method.setEntity(template);
+      method.addHeader("User-Agent", HttpSolrServer.AGENT);
+      method.addHeader("Content-Type", batch.get(0).contentType);
+
+      inFlight.incrementAndGet();
+      long start = System.nanoTime();
+      HttpResponse response = null;
+      try {
+        response = server.getHttpClient().execute(method);
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode != HttpStatus.SC_OK) {
+          errors.incrementAndGet();
+          StringBuilder msg = new StringBuilder();
+          msg.append(response.getStatusLine().getReasonPhrase());
+          msg.append("\n\n");
+          msg.append("request: ").append(method.getURI());
+          handleError(new Exception(msg.toString()));
+        } else {
+          int docs = 0;
+          for (BufferedRequest req : batch) {
+            docs += req.docs;
+          }
+          docsSent.addAndGet(docs);
+          batchesSent.incrementAndGet();
+          bytesSent.addAndGet(bytes);
+        }
+        // read the whole response, so that the connection is kept alive
+        EntityUtils.consume(response.getEntity());
+      } catch (Exception e) {
+        errors.incrementAndGet();
+        method.abort();
+        handleError(e);
+      } finally {
+        adapt(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), full);
+        int permits = 0;
+        for (BufferedRequest req : batch) {
+          permits += req.permits;
+        }
+        bufferedBytes.release(permits);
+        inFlight.decrementAndGet();
+        synchronized (idle) {
+          idle.notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Halves the size of the batches when the server takes longer than the target
+   * latency, increases it when full batches take less than half of it.
+   */
+  private void adapt(long ms, boolean full) {
+    double l = latency;
+    latency = l < 0 ? ms : l + 0.2 * (ms - l);
+    int size = batchBytes;
+    if (ms > targetLatency) {
+      batchBytes = Math.max(minBatchBytes, size / 2);
+    } else if (full && ms < targetLatency / 2) {
+      batchBytes = Math.min(maxBatchBytes, size + size / 2);
+    }
+  }
+
+  private final Object idle = new Object();
+
   public NamedList<Object> request(final SolrRequest request)
       throws SolrServerException, IOException {
     if (!(request instanceof UpdateRequest)) {
@@ -266,6 +506,11 @@ public class ConcurrentUpdateSolrServer extends SolrServer {
       }
     }
 
+    if (started == -1) started = System.nanoTime();
+    if (adaptive) {
+      return requestBuffered(req);
+    }
+
     try {
       CountDownLatch tmpLock = lock;
       if (tmpLock != null) {
@@ -330,9 +575,74 @@ public class ConcurrentUpdateSolrServer extends SolrServer {
     return dummy;
   }
 
+  private NamedList<Object> requestBuffered(UpdateRequest req)
+      throws IOException {
+    BufferedRequest buffered = new BufferedRequest(req);
+    boolean acquired = false;
+    boolean success = false;
+    try {
+      CountDownLatch tmpLock = lock;
+      if (tmpLock != null) {
+        tmpLock.await();
+      }
+
+      // blocks the caller while too many bytes are queued or being sent
+      bufferedBytes.acquire(buffered.permits);
+      acquired = true;
+      // counted before it is queued, so that a runner never takes it below 0
+      queuedBytes.addAndGet(buffered.bytes.length);
+      success = bufferedQueue.offer(buffered);
+
+      for (;;) {
+        synchronized (runners) {
+          // start a runner if there is none, or if more than one batch is waiting
+          if (runners.isEmpty() || (runners.size() < threadCount
+              && queuedBytes.get() > batchBytes)) {
+            Runner r = new BatchRunner();
+            runners.add(r);
+            scheduler.execute(r);
+          } else if (success) {
+            break;
+          }
+        }
+        if (!success) {
+          success = bufferedQueue.offer(buffered, 100, TimeUnit.MILLISECONDS);
+        }
+      }
+    } catch (InterruptedException e) {
+      log.error("interrupted", e);
+      throw new IOException(e.getLocalizedMessage());
+    } finally {
+      if (acquired && !success) {
+        // not queued, nobody else will release its permits
+        queuedBytes.addAndGet(-buffered.bytes.length);
+        bufferedBytes.release(buffered.permits);
+      }
+    }
+
+    // RETURN A DUMMY result
+    NamedList<Object> dummy = new NamedList<Object>();
+    dummy.add("NOTE", "the request is processed in a background stream");
+    return dummy;
+  }
+
   public synchronized void blockUntilFinished() {
     lock = new CountDownLatch(1);
     try {
+      // the batch runners stay alive after the queue is empty, wait until
+      // everything is sent instead
+      synchronized (idle) {
+        while (bufferedBytes.availablePermits() < maxBufferedBytes) {
+          try {
+            idle.wait(100);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+      }
+      if (adaptive) return;
+
       // Wait until no runners are running
       for (;;) {
         Runner runner;
@@ -389,4 +699,77 @@ public class ConcurrentUpdateSolrServer extends SolrServer {
   public void setRequestWriter(RequestWriter requestWriter) {
     server.setRequestWriter(requestWriter);
   }
+
+  /**
+   * Enables the adaptive mode: the requests are serialized by the calling
+   * thread and sent in batches sized by the latency of the server.  Must be
+   * set before the first request.
+   */
+  public void setAdaptive(boolean adaptive) {
+    this.adaptive = adaptive;
+  }
+
+  public boolean isAdaptive() {
+    return adaptive;
+  }
+
+  /**
+   * The latency the batches of the adaptive mode aim for, in ms, 500 by default
+   */
+  public void setTargetLatency(int targetLatency) {
+    this.targetLatency = targetLatency;
+  }
+
+  /**
+   * The size limits of the batches of the adaptive mode, 16KB and 4MB by default
+   */
+  public void setBatchBytes(int minBatchBytes, int maxBatchBytes) {
+    this.minBatchBytes = minBatchBytes;
+    this.maxBatchBytes = maxBatchBytes;
+    batchBytes = Math.max(minBatchBytes, Math.min(maxBatchBytes, batchBytes));
+  }
+
+  /**
+   * How long the runners of the adaptive mode wait for more requests before
+   * they stop, in ms, 10s by default
+   */
+  public void setKeepAlive(int keepAlive) {
+    this.keepAlive = keepAlive;
+  }
+
+  /**
+   * The bytes the adaptive mode buffers or sends at most, the calling threads
+   * block until the previous requests are sent past this limit, 64MB by default.
+   * Must be set before the first request.
+   */
+  public void setMaxBufferedBytes(int maxBufferedBytes) {
+    this.maxBufferedBytes = maxBufferedBytes;
+    bufferedBytes = new Semaphore(maxBufferedBytes);
+  }
+
+  /**
+   * @return the number of queued requests, the documents sent per second since the
+   * first request, and the latency of the server as well as the current batch size
+   * for the adaptive mode
+   */
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new SimpleOrderedMap<Object>();
+    stats.add("queueSize", queue.size() + bufferedQueue.size());
+    synchronized (runners) {
+      stats.add("runners", runners.size());
+    }
+    stats.add("docs", docsSent.get());
+    long elapsed = started == -1 ? 0 : System.nanoTime() - started;
+    stats.add("docsPerSecond", elapsed == 0 ? 0d : docsSent.get() * 1e9 / elapsed);
+    if (adaptive) {
+      stats.add("bufferedBytes", maxBufferedBytes - bufferedBytes.availablePermits());
+      stats.add("inFlight", inFlight.get());
+      stats.add("batches", batchesSent.get());
+      stats.add("bytes", bytesSent.get());
+      stats.add("errors", errors.get());
+      stats.add("latencyMs", latency);
+      stats.add("batchBytes", batchBytes);
+    }
+    return stats;
+  }
 }
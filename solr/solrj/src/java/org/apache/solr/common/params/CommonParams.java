@@ -149,6 +149,9 @@ public interface CommonParams {
   /** include header in the response */
   public static final String OMIT_HEADER = "omitHeader";
 
+  /** write the documents of javabin responses column by column */
+  public static final String JAVABIN_COLUMNAR = "javabin.columnar";
+
   /** valid values for: <code>echoParams</code> */
   public enum EchoParamStyle {
     EXPLICIT,
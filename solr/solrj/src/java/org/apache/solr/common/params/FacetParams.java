@@ -47,9 +47,18 @@ public interface FacetParams {
   public static final String FACET_METHOD_fc = "fc";
 
   /** Value for FACET_METHOD param, like FACET_METHOD_fc but counts per-segment.
+   * Single valued trie fields are counted from their field cache values in a hash table.
    */
   public static final String FACET_METHOD_fcs = "fcs";
 
+  /**
+   * The maximum number of facet commands (facet.field, facet.query, facet.date,
+   * facet.range and facet.percentile.field) of a request which are computed
+   * concurrently. 0, the default, computes them one after another in the
+   * thread of the request, a negative value does not limit the concurrency.
+   */
+  public static final String FACET_THREADS = FACET + ".threads";
+
   /**
    * Any lucene formated queries the user would like to use for
    * Facet Constraint Counts (multi-value)
@@ -260,6 +269,21 @@ public interface FacetParams {
    */
   public static final String FACET_RANGE_INCLUDE = FACET_RANGE + ".include";
 
+  /**
+   * How the documents in the ranges of a facet.range or a facet.date are
+   * counted: "filter", the default, runs one range query per range, "fc"
+   * iterates over the values of the field in the field cache once, which only
+   * works on single valued trie fields.
+   * Can be overriden on a per field basis.
+   */
+  public static final String FACET_RANGE_METHOD = FACET_RANGE + ".method";
+
+  /** Value for FACET_RANGE_METHOD to run one range query per range */
+  public static final String FACET_RANGE_METHOD_filter = "filter";
+
+  /** Value for FACET_RANGE_METHOD to count all the ranges in one pass over the field cache */
+  public static final String FACET_RANGE_METHOD_fc = "fc";
+
 
   public static final String PERCENTILE = "percentiles";
   public static final String PERCENTILE_FIELD = PERCENTILE + ".field";
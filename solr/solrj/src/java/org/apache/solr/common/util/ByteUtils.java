@@ -17,6 +17,8 @@
 
 package org.apache.solr.common.util;
 
+import java.io.IOException;
+
 import org.apache.noggit.CharArr;
 
 public class ByteUtils {
@@ -121,6 +123,65 @@ public class ByteUtils {
     return upto - resultOffset;
   }
 
+  /** Returns the number of bytes {@link #UTF16toUTF8(CharSequence, int, int, byte[], int)} writes for the chars. */
+  public static int calcUTF16toUTF8Length(CharSequence s, int offset, int len) {
+    final int end = offset + len;
 
+    int res = 0;
+    for (int i = offset; i < end; i++) {
+      final int code = (int) s.charAt(i);
 
+      if (code < 0x80)
+        res++;
+      else if (code < 0x800) {
+        res += 2;
+      } else if (code < 0xD800 || code > 0xDFFF) {
+        res += 3;
+      } else {
+        // surrogate pair
+        if (code < 0xDC00 && (i < end - 1)) {
+          int utf32 = (int) s.charAt(i + 1);
+          if (utf32 >= 0xDC00 && utf32 <= 0xDFFF) {
+            i++;
+            res += 4;
+            continue;
+          }
+        }
+        // unpaired surrogate is replaced with the 3 bytes of the substitution character
+        res += 3;
+      }
+    }
+
+    return res;
+  }
+
+  /**
+   * Writes UTF8 straight into the buffer of the output stream, flushing it as needed,
+   * rather than into an intermediate array of the worst-case size.
+   * @return the number of bytes written
+   */
+  public static int writeUTF16toUTF8(CharSequence s, int offset, int len, FastOutputStream fos) throws IOException {
+    final int end = offset + len;
+    // any char takes at most 3 bytes, a surrogate pair takes 4
+    final int maxChunk = fos.buf.length / 3;
+    if (maxChunk < 2) {
+      byte[] bytes = new byte[len * 3];
+      int sz = UTF16toUTF8(s, offset, len, bytes, 0);
+      fos.write(bytes, 0, sz);
+      return sz;
+    }
+
+    int written = 0;
+    while (offset < end) {
+      int chunk = Math.min(end - offset, maxChunk);
+      // never split a surrogate pair
+      if (offset + chunk < end && Character.isHighSurrogate(s.charAt(offset + chunk - 1))) chunk--;
+      fos.reserve(chunk * 3);
+      int sz = UTF16toUTF8(s, offset, chunk, fos.buf, fos.pos);
+      fos.pos += sz;
+      written += sz;
+      offset += chunk;
+    }
+    return written;
+  }
 }
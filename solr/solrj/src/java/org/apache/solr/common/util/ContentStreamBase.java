@@ -83,6 +83,7 @@ public abstract class ContentStreamBase implements ContentStream
     public VFSStream(String vfsUri) {
       this.vfsUri = vfsUri;
       sourceInfo = "vfs";
+      name = vfsUri;
     }
     
     FileObject fileObject = null;
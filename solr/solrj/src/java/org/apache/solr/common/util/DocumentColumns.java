@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.common.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * The field values of a list of documents, stored column by column: the values
+ * of the fields which only have Integer, Long, Float, Double or Date values are
+ * kept in primitive arrays and the String values in a dictionary.  The other
+ * fields, and the fields with several values per document, keep the values as
+ * objects.
+ *
+ * @see JavaBinCodec#writeDocumentColumns(long, long, Float, DocumentColumns)
+ */
+public class DocumentColumns {
+
+  /** The types of column */
+  public static final byte
+          OBJECT = 0,
+          INT = 1,
+          LONG = 2,
+          FLOAT = 3,
+          DOUBLE = 4,
+          DATE = 5,
+          STR = 6;
+
+  private int numDocs;
+
+  private final Map<String, Column> columns = new LinkedHashMap<String, Column>();
+
+  /** Adds a document, the values added next belong to it */
+  public void startDocument() {
+    numDocs++;
+  }
+
+  /**
+   * Adds a value of the last document, a Collection holds the values of a
+   * multiValued field.
+   */
+  public void add(String name, Object value) {
+    if (numDocs == 0) throw new IllegalStateException("No document was started");
+    if (value == null) return;
+    Column column = columns.get(name);
+    if (column == null) {
+      column = new Column(name, typeOf(value));
+      columns.put(name, column);
+    }
+    column.add(numDocs - 1, value);
+  }
+
+  /** Adds all the fields of the document as a new document */
+  public void add(SolrDocument doc) {
+    startDocument();
+    for (Map.Entry<String, Object> field : doc) {
+      add(field.getKey(), field.getValue());
+    }
+  }
+
+  public int getNumDocs() {
+    return numDocs;
+  }
+
+  public Collection<Column> getColumns() {
+    return columns.values();
+  }
+
+  public Column getColumn(String name) {
+    return columns.get(name);
+  }
+
+  public DocumentColumns() {
+  }
+
+  /** The columns of documents read from a stream */
+  DocumentColumns(int numDocs) {
+    this.numDocs = numDocs;
+  }
+
+  void addColumn(Column column) {
+    columns.put(column.name, column);
+  }
+
+  /** Creates the documents, with their fields in column order */
+  public void toDocuments(List<SolrDocument> docs) {
+    Column[] cols = columns.values().toArray(new Column[columns.size()]);
+    for (int doc = 0; doc < numDocs; doc++) {
+      SolrDocument sdoc = new SolrDocument();
+      for (Column col : cols) {
+        if (col.exists(doc)) sdoc.setField(col.name, col.get(doc));
+      }
+      docs.add(sdoc);
+    }
+  }
+
+  public SolrDocumentList toDocuments() {
+    SolrDocumentList docs = new SolrDocumentList();
+    docs.ensureCapacity(numDocs);
+    toDocuments(docs);
+    return docs;
+  }
+
+  static byte typeOf(Object value) {
+    if (value instanceof String) return STR;
+    if (value instanceof Integer) return INT;
+    if (value instanceof Long) return LONG;
+    if (value instanceof Float) return FLOAT;
+    if (value instanceof Double) return DOUBLE;
+    if (value instanceof Date) return DATE;
+    return OBJECT;
+  }
+
+  /**
+   * The values of a field.  Depending on the type, the values of the documents
+   * are in the longs (INT, LONG and DATE), doubles (FLOAT and DOUBLE), ords (STR)
+   * or objects (OBJECT) array; the entries of the documents without a value are
+   * undefined.
+   */
+  public static class Column {
+    final String name;
+    byte type;
+    final BitSet exists = new BitSet();
+    // the number of documents the arrays are filled for
+    int size;
+    long[] longs;
+    double[] doubles;
+    int[] ords;
+    List<String> dictionary;
+    private Map<String, Integer> ordsByValue;
+    Object[] objects;
+
+    Column(String name, byte type) {
+      this.name = name;
+      this.type = type;
+      switch (type) {
+        case INT:
+        case LONG:
+        case DATE:
+          longs = new long[16];
+          break;
+        case FLOAT:
+        case DOUBLE:
+          doubles = new double[16];
+          break;
+        case STR:
+          ords = new int[16];
+          dictionary = new ArrayList<String>();
+          ordsByValue = new HashMap<String, Integer>();
+          break;
+        default:
+          objects = new Object[16];
+      }
+    }
+
+    /** A column read from a stream, the arrays hold the values of all the documents */
+    Column(String name, byte type, int numDocs) {
+      this.name = name;
+      this.type = type;
+      this.size = numDocs;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public byte getType() {
+      return type;
+    }
+
+    public boolean exists(int doc) {
+      return exists.get(doc);
+    }
+
+    /** The number of documents which have a value */
+    public int getCount() {
+      return exists.cardinality();
+    }
+
+    public long getLong(int doc) {
+      return longs[doc];
+    }
+
+    public double getDouble(int doc) {
+      return doubles[doc];
+    }
+
+    public int getOrd(int doc) {
+      return ords[doc];
+    }
+
+    public List<String> getDictionary() {
+      return dictionary;
+    }
+
+    /** The value of the document, null if it has none */
+    public Object get(int doc) {
+      if (!exists.get(doc)) return null;
+      switch (type) {
+        case INT: return (int) longs[doc];
+        case LONG: return longs[doc];
+        case FLOAT: return (float) doubles[doc];
+        case DOUBLE: return doubles[doc];
+        case DATE: return new Date(longs[doc]);
+        case STR: return dictionary.get(ords[doc]);
+        default: return objects[doc];
+      }
+    }
+
+    void add(int doc, Object value) {
+      if (exists.get(doc)) {
+        // a field added several times
+        Object previous = get(doc);
+        List<Object> values;
+        if (type == OBJECT && previous instanceof List) {
+          // only the lists built here hold several values of a field
+          @SuppressWarnings("unchecked") List<Object> list = (List<Object>) previous;
+          values = list;
+        } else {
+          values = new ArrayList<Object>(2);
+          values.add(previous);
+        }
+        values.add(value);
+        value = values;
+      }
+      if (type != OBJECT && typeOf(value) != type) toObjects();
+
+      grow(doc + 1);
+      exists.set(doc);
+      switch (type) {
+        case INT: longs[doc] = (Integer) value; break;
+        case LONG: longs[doc] = (Long) value; break;
+        case FLOAT: doubles[doc] = (Float) value; break;
+        case DOUBLE: doubles[doc] = (Double) value; break;
+        case DATE: longs[doc] = ((Date) value).getTime(); break;
+        case STR:
+          Integer ord = ordsByValue.get(value);
+          if (ord == null) {
+            ord = dictionary.size();
+            dictionary.add((String) value);
+            ordsByValue.put((String) value, ord);
+          }
+          ords[doc] = ord;
+          break;
+        default: objects[doc] = value;
+      }
+    }
+
+    private void grow(int numDocs) {
+      if (numDocs <= size) return;
+      size = numDocs;
+      int len = longs != null ? longs.length : doubles != null ? doubles.length
+          : ords != null ? ords.length : objects.length;
+      if (numDocs <= len) return;
+      len = Math.max(numDocs, len + (len >> 1));
+      if (longs != null) longs = Arrays.copyOf(longs, len);
+      if (doubles != null) doubles = Arrays.copyOf(doubles, len);
+      if (ords != null) ords = Arrays.copyOf(ords, len);
+      if (objects != null) objects = Arrays.copyOf(objects, len);
+    }
+
+    /** Switches to a column of objects, once values of several types are added */
+    private void toObjects() {
+      Object[] values = new Object[Math.max(16, size + (size >> 1))];
+      for (int doc = 0; doc < size; doc++) {
+        values[doc] = get(doc);
+      }
+      type = OBJECT;
+      longs = null;
+      doubles = null;
+      ords = null;
+      dictionary = null;
+      ordsByValue = null;
+      objects = values;
+    }
+  }
+}
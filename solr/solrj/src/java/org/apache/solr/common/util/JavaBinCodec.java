@@ -63,6 +63,8 @@ public class JavaBinCodec {
 
           SOLRINPUTDOC = 16,
 
+          SOLRDOCCOLS = 17,
+
           // types that combine tag + length (or other info) in a single byte
           TAG_AND_LEN = (byte) (1 << 5),
           STR = (byte) (1 << 5),
@@ -112,6 +114,22 @@ public class JavaBinCodec {
     return readVal(dis);
   }
 
+  private DocumentHandler handler;
+
+  /**
+   * Reads the response, passing the documents to the handler one field value at a
+   * time as they are read: the documents are not kept, and the document lists of the
+   * returned response are empty.
+   */
+  public Object unmarshal(InputStream is, DocumentHandler handler) throws IOException {
+    this.handler = handler;
+    try {
+      return unmarshal(is);
+    } finally {
+      this.handler = null;
+    }
+  }
+
 
   public SimpleOrderedMap<Object> readOrderedMap(FastInputStream dis) throws IOException {
     int sz = readSize(dis);
@@ -166,7 +184,13 @@ public class JavaBinCodec {
 
   public Object readVal(FastInputStream dis) throws IOException {
     tagByte = dis.readByte();
+    return readObject(dis);
+  }
 
+  /**
+   * Reads the value of the tag which was just read into {@link #tagByte}
+   */
+  protected Object readObject(FastInputStream dis) throws IOException {
     // if ((tagByte & 0xe0) == 0) {
     // if top 3 bits are clear, this is a normal tag
 
@@ -223,6 +247,8 @@ public class JavaBinCodec {
         return END_OBJ;
       case SOLRINPUTDOC:
         return readSolrInputDocument(dis);
+      case SOLRDOCCOLS:
+        return readDocumentColumns(dis);
     }
 
     throw new RuntimeException("Unknown type " + tagByte);
@@ -322,26 +348,73 @@ public class JavaBinCodec {
   }
 
   public SolrDocument readSolrDocument(FastInputStream dis) throws IOException {
-    NamedList nl = (NamedList) readVal(dis);
+    tagByte = dis.readByte();
+    if (tagByte >>> 5 != ORDERED_MAP >>> 5 && tagByte >>> 5 != NAMED_LST >>> 5) {
+      throw new RuntimeException("SolrDocument must be a map, found " + tagByte);
+    }
+    int sz = readSize(dis);
+    if (handler != null) {
+      streamSolrDocument(dis, sz);
+      return null;
+    }
+    // read the fields straight into the document
     SolrDocument doc = new SolrDocument();
-    for (int i = 0; i < nl.size(); i++) {
-      String name = nl.getName(i);
-      Object val = nl.getVal(i);
+    for (int i = 0; i < sz; i++) {
+      String name = (String) readVal(dis);
+      Object val = readVal(dis);
       doc.setField(name, val);
     }
     return doc;
   }
 
+  private void streamSolrDocument(FastInputStream dis, int sz) throws IOException {
+    handler.startDocument();
+    for (int i = 0; i < sz; i++) {
+      String name = (String) readVal(dis);
+      tagByte = dis.readByte();
+      if (tagByte >>> 5 == ARR >>> 5) {
+        // the values of a multiValued field
+        int vals = readSize(dis);
+        for (int j = 0; j < vals; j++) {
+          tagByte = dis.readByte();
+          handler.field(name, readFieldValue(dis));
+        }
+      } else {
+        handler.field(name, readFieldValue(dis));
+      }
+    }
+    handler.endDocument();
+  }
+
+  private Object readFieldValue(FastInputStream dis) throws IOException {
+    if (handler.reuseStrings && tagByte >>> 5 == STR >>> 5) {
+      readStr(dis, arr);
+      return arr;
+    }
+    return readObject(dis);
+  }
+
   public SolrDocumentList readSolrDocumentList(FastInputStream dis) throws IOException {
     SolrDocumentList solrDocs = new SolrDocumentList();
     List list = (List) readVal(dis);
     solrDocs.setNumFound((Long) list.get(0));
     solrDocs.setStart((Long) list.get(1));
     solrDocs.setMaxScore((Float) list.get(2));
+    if (handler != null) {
+      handler.startDocumentList(solrDocs.getNumFound(), solrDocs.getStart(), solrDocs.getMaxScore());
+    }
 
-    @SuppressWarnings("unchecked")
-    List<SolrDocument> l = (List<SolrDocument>) readVal(dis);
-    solrDocs.addAll(l);
+    // read the documents straight into the list, or stream them
+    tagByte = dis.readByte();
+    if (tagByte >>> 5 != ARR >>> 5) {
+      throw new RuntimeException("SolrDocumentList must have an array, found " + tagByte);
+    }
+    int sz = readSize(dis);
+    if (handler == null) solrDocs.ensureCapacity(sz);
+    for (int i = 0; i < sz; i++) {
+      SolrDocument doc = (SolrDocument) readVal(dis);
+      if (doc != null) solrDocs.add(doc);
+    }
     return solrDocs;
   }
 
@@ -356,6 +429,162 @@ public class JavaBinCodec {
     writeArray(docs);
   }
 
+  /**
+   * Writes a document list column by column, it is read back as a {@link SolrDocumentList}.
+   * The documents without a value in a column are marked by a bitmap.  The
+   * values are written without tags: INT, LONG and DATE columns as the zigzag
+   * encoded vlong delta from the previous value, FLOAT and DOUBLE columns as raw
+   * floats and doubles, STR columns as a dictionary of the distinct values followed
+   * by the vint ordinal of every value.
+   */
+  public void writeDocumentColumns(long numFound, long start, Float maxScore, DocumentColumns columns)
+          throws IOException {
+    writeTag(SOLRDOCCOLS);
+    List<Object> l = new ArrayList<Object>(3);
+    l.add(numFound);
+    l.add(start);
+    l.add(maxScore);
+    writeArray(l);
+
+    int numDocs = columns.getNumDocs();
+    writeVInt(numDocs, daos);
+    writeVInt(columns.getColumns().size(), daos);
+    for (DocumentColumns.Column col : columns.getColumns()) {
+      writeExternString(col.name);
+      daos.writeByte(col.type);
+      BitSet exists = col.exists;
+      if (exists.cardinality() == numDocs) {
+        daos.writeByte(1);
+      } else {
+        daos.writeByte(0);
+        for (int i = 0; i < numDocs; i += 8) {
+          int b = 0;
+          for (int bit = 0; bit < 8; bit++) {
+            if (exists.get(i + bit)) b |= 1 << bit;
+          }
+          daos.writeByte(b);
+        }
+      }
+
+      switch (col.type) {
+        case DocumentColumns.INT:
+        case DocumentColumns.LONG:
+        case DocumentColumns.DATE:
+          long prev = 0;
+          for (int doc = exists.nextSetBit(0); doc >= 0; doc = exists.nextSetBit(doc + 1)) {
+            long delta = col.longs[doc] - prev;
+            writeVLong((delta << 1) ^ (delta >> 63), daos);
+            prev = col.longs[doc];
+          }
+          break;
+        case DocumentColumns.FLOAT:
+          for (int doc = exists.nextSetBit(0); doc >= 0; doc = exists.nextSetBit(doc + 1)) {
+            daos.writeFloat((float) col.doubles[doc]);
+          }
+          break;
+        case DocumentColumns.DOUBLE:
+          for (int doc = exists.nextSetBit(0); doc >= 0; doc = exists.nextSetBit(doc + 1)) {
+            daos.writeDouble(col.doubles[doc]);
+          }
+          break;
+        case DocumentColumns.STR:
+          writeVInt(col.dictionary.size(), daos);
+          for (String s : col.dictionary) {
+            writeStr(s);
+          }
+          for (int doc = exists.nextSetBit(0); doc >= 0; doc = exists.nextSetBit(doc + 1)) {
+            writeVInt(col.ords[doc], daos);
+          }
+          break;
+        default:
+          for (int doc = exists.nextSetBit(0); doc >= 0; doc = exists.nextSetBit(doc + 1)) {
+            writeVal(col.objects[doc]);
+          }
+      }
+    }
+  }
+
+  public SolrDocumentList readDocumentColumns(FastInputStream dis) throws IOException {
+    List list = (List) readVal(dis);
+    DocumentColumns columns = readColumns(dis);
+    SolrDocumentList solrDocs;
+    if (handler != null) {
+      solrDocs = new SolrDocumentList();
+      handler.documentColumns((Long) list.get(0), (Long) list.get(1), (Float) list.get(2), columns);
+    } else {
+      solrDocs = columns.toDocuments();
+    }
+    solrDocs.setNumFound((Long) list.get(0));
+    solrDocs.setStart((Long) list.get(1));
+    solrDocs.setMaxScore((Float) list.get(2));
+    return solrDocs;
+  }
+
+  private DocumentColumns readColumns(FastInputStream dis) throws IOException {
+    int numDocs = readVInt(dis);
+    int numColumns = readVInt(dis);
+    DocumentColumns columns = new DocumentColumns(numDocs);
+    for (int i = 0; i < numColumns; i++) {
+      String name = (String) readVal(dis);
+      DocumentColumns.Column col = new DocumentColumns.Column(name, dis.readByte(), numDocs);
+      BitSet exists = col.exists;
+      if (dis.readByte() == 1) {
+        exists.set(0, numDocs);
+      } else {
+        for (int doc = 0; doc < numDocs; doc += 8) {
+          int b = dis.readUnsignedByte();
+          for (int bit = 0; b != 0; bit++, b >>>= 1) {
+            if ((b & 1) != 0) exists.set(doc + bit);
+          }
+        }
+      }
+
+      switch (col.type) {
+        case DocumentColumns.INT:
+        case DocumentColumns.LONG:
+        case DocumentColumns.DATE:
+          col.longs = new long[numDocs];
+          long prev = 0;
+          for (int doc = exists.nextSetBit(0); doc >= 0; doc = exists.nextSetBit(doc + 1)) {
+            long v = readVLong(dis);
+            prev += (v >>> 1) ^ -(v & 1);
+            col.longs[doc] = prev;
+          }
+          break;
+        case DocumentColumns.FLOAT:
+          col.doubles = new double[numDocs];
+          for (int doc = exists.nextSetBit(0); doc >= 0; doc = exists.nextSetBit(doc + 1)) {
+            col.doubles[doc] = dis.readFloat();
+          }
+          break;
+        case DocumentColumns.DOUBLE:
+          col.doubles = new double[numDocs];
+          for (int doc = exists.nextSetBit(0); doc >= 0; doc = exists.nextSetBit(doc + 1)) {
+            col.doubles[doc] = dis.readDouble();
+          }
+          break;
+        case DocumentColumns.STR:
+          int sz = readVInt(dis);
+          col.dictionary = new ArrayList<String>(sz);
+          for (int j = 0; j < sz; j++) {
+            col.dictionary.add((String) readVal(dis));
+          }
+          col.ords = new int[numDocs];
+          for (int doc = exists.nextSetBit(0); doc >= 0; doc = exists.nextSetBit(doc + 1)) {
+            col.ords[doc] = readVInt(dis);
+          }
+          break;
+        default:
+          col.objects = new Object[numDocs];
+          for (int doc = exists.nextSetBit(0); doc >= 0; doc = exists.nextSetBit(doc + 1)) {
+            col.objects[doc] = readVal(dis);
+          }
+      }
+      columns.addColumn(col);
+    }
+    return columns;
+  }
+
   public SolrInputDocument readSolrInputDocument(FastInputStream dis) throws IOException {
     int sz = readVInt(dis);
     float docBoost = (Float)readVal(dis);
@@ -462,25 +691,39 @@ public class JavaBinCodec {
       return;
     }
     int end = s.length();
-    int maxSize = end * 4;
-    if (bytes == null || bytes.length < maxSize) bytes = new byte[maxSize];
-    int sz = ByteUtils.UTF16toUTF8(s, 0, end, bytes, 0);
+    // encode straight into the output buffer rather than into a scratch array of the worst-case size
+    writeTag(STR, ByteUtils.calcUTF16toUTF8Length(s, 0, end));
+    ByteUtils.writeUTF16toUTF8(s, 0, end, daos);
+  }
 
-    writeTag(STR, sz);
-    daos.write(bytes, 0, sz);
+  /**
+   * write a string which is already encoded as UTF-8, with no conversion
+   */
+  public void writeUTF8Str(byte[] utf8, int offset, int len) throws IOException {
+    writeTag(STR, len);
+    daos.write(utf8, offset, len);
   }
 
+
   byte[] bytes;
   CharArr arr = new CharArr();
 
   public String readStr(FastInputStream dis) throws IOException {
+    readStr(dis, arr);
+    return arr.toString();
+  }
+
+  /**
+   * Decodes a string into a reused buffer, which avoids creating a String when the
+   * chars are consumed right away.
+   */
+  public void readStr(FastInputStream dis, CharArr chars) throws IOException {
     int sz = readSize(dis);
     if (bytes == null || bytes.length < sz) bytes = new byte[sz];
     dis.readFully(bytes, 0, sz);
 
-    arr.reset();
-    ByteUtils.UTF8toUTF16(bytes, 0, sz, arr);
-    return arr.toString();
+    chars.reset();
+    ByteUtils.UTF8toUTF16(bytes, 0, sz, chars);
   }
 
   public void writeInt(int val) throws IOException {
@@ -700,5 +943,64 @@ public class JavaBinCodec {
     public Object resolve(Object o, JavaBinCodec codec) throws IOException;
   }
 
+  /**
+   * Receives the documents of a response as they are read.
+   *
+   * @see JavaBinCodec#unmarshal(InputStream, DocumentHandler)
+   */
+  public static abstract class DocumentHandler {
+    final boolean reuseStrings;
+
+    protected DocumentHandler() {
+      this(false);
+    }
+
+    /**
+     * @param reuseStrings if true, string values are passed as a {@link CharSequence}
+     *                     whose buffer is reused for the next value, rather than as a new String
+     */
+    protected DocumentHandler(boolean reuseStrings) {
+      this.reuseStrings = reuseStrings;
+    }
+
+    /** Called before the documents of every document list */
+    public void startDocumentList(long numFound, long start, Float maxScore) {
+    }
+
+    /**
+     * Called for the document lists which were written column by column, passes
+     * every document to the other methods by default.
+     */
+    public void documentColumns(long numFound, long start, Float maxScore, DocumentColumns columns) {
+      startDocumentList(numFound, start, maxScore);
+      Collection<DocumentColumns.Column> cols = columns.getColumns();
+      for (int doc = 0; doc < columns.getNumDocs(); doc++) {
+        startDocument();
+        for (DocumentColumns.Column col : cols) {
+          if (!col.exists(doc)) continue;
+          Object value = col.get(doc);
+          if (value instanceof Collection) {
+            for (Object v : (Collection) value) {
+              field(col.getName(), v);
+            }
+          } else {
+            field(col.getName(), value);
+          }
+        }
+        endDocument();
+      }
+    }
+
+    public void startDocument() {
+    }
 
+    /**
+     * Called for every value of the document, the values of a multiValued field
+     * are passed one by one.
+     */
+    public abstract void field(String name, Object value);
+
+    public void endDocument() {
+    }
+  }
 }
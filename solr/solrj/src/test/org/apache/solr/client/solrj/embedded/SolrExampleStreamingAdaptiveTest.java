@@ -0,0 +1,65 @@
+package org.apache.solr.client.solrj.embedded;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.util.LuceneTestCase.Slow;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.ConcurrentUpdateSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+
+@Slow
+public class SolrExampleStreamingAdaptiveTest extends SolrExampleStreamingBinaryTest {
+
+  @Override
+  public SolrServer createNewSolrServer() {
+    ConcurrentUpdateSolrServer s = (ConcurrentUpdateSolrServer)super.createNewSolrServer();
+    s.setAdaptive(true);
+    // small batches and buffers hit the limits more often
+    s.setBatchBytes(1024, 16 * 1024);
+    s.setMaxBufferedBytes(64 * 1024);
+    s.setKeepAlive(1000);
+    return s;
+  }
+
+  public void testStatistics() throws Exception {
+    ConcurrentUpdateSolrServer server = (ConcurrentUpdateSolrServer) getSolrServer();
+    server.deleteByQuery("*:*");
+    int numDocs = 500 + random().nextInt(500);
+    for (int i = 0; i < numDocs; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("id", "adaptive" + i);
+      doc.addField("name", "document number " + i);
+      server.add(doc);
+    }
+    server.commit();
+    assertNull(handledException);
+    assertEquals(numDocs, server.query(new SolrQuery("*:*")).getResults().getNumFound());
+
+    NamedList<Object> stats = server.getStatistics();
+    assertEquals(0, stats.get("queueSize"));
+    assertEquals(0, stats.get("bufferedBytes"));
+    assertEquals(0, stats.get("inFlight"));
+    assertTrue(stats.toString(), (Long) stats.get("docs") >= numDocs);
+    // the documents were sent in fewer requests
+    assertTrue(stats.toString(), (Long) stats.get("batches") < numDocs);
+    int batchBytes = (Integer) stats.get("batchBytes");
+    assertTrue(stats.toString(), batchBytes >= 1024 && batchBytes <= 16 * 1024);
+  }
+}
@@ -0,0 +1,137 @@
+package org.apache.solr.client.solrj.impl;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.Hash;
+
+public class CloudSolrServerRoutingTest extends LuceneTestCase {
+
+  private ClusterState clusterState(int numShards) {
+    Map<String,Slice> slices = new HashMap<String,Slice>();
+    for (int i = 1; i <= numShards; i++) {
+      Map<String,Object> props = new HashMap<String,Object>();
+      props.put(ZkStateReader.NODE_NAME_PROP, "node" + i);
+      props.put(ZkStateReader.BASE_URL_PROP, "http://node" + i + "/solr");
+      props.put(ZkStateReader.CORE_NAME_PROP, "collection1");
+      props.put(ZkStateReader.STATE_PROP, ZkStateReader.ACTIVE);
+      props.put(ZkStateReader.LEADER_PROP, "true");
+      Map<String,Replica> replicas = new HashMap<String,Replica>();
+      replicas.put("node" + i + "_collection1", new Replica("node" + i + "_collection1", props));
+      slices.put("shard" + i, new Slice("shard" + i, replicas, null));
+    }
+    Map<String,Map<String,Slice>> collections = new HashMap<String,Map<String,Slice>>();
+    collections.put("collection1", slices);
+    return new ClusterState(Collections.singleton("node1"), collections);
+  }
+
+  public void testRouteUpdates() throws Exception {
+    CloudSolrServer server = new CloudSolrServer("localhost:0");
+    try {
+      ClusterState clusterState = clusterState(3);
+      UpdateRequest request = new UpdateRequest();
+      request.setCommitWithin(1000);
+      request.setAction(AbstractUpdateRequest.ACTION.COMMIT, false, true);
+      for (int i = 0; i < 100; i++) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", Integer.toString(i));
+        request.add(doc);
+      }
+      request.deleteById("1000");
+      request.deleteByQuery("*:*");
+
+      Map<String,UpdateRequest> routes = server.routeUpdates(request, clusterState, "collection1");
+      assertEquals(3, routes.size());
+      int docs = 0;
+      for (Map.Entry<String,UpdateRequest> route : routes.entrySet()) {
+        UpdateRequest shardRequest = route.getValue();
+        for (SolrInputDocument doc : shardRequest.getDocuments()) {
+          assertEquals(route.getKey(), shardOf(clusterState, (String) doc.getFieldValue("id")));
+          docs++;
+        }
+        if (shardRequest.getDeleteById() != null) {
+          assertEquals(Collections.singletonList("1000"), shardRequest.getDeleteById());
+          assertEquals(route.getKey(), shardOf(clusterState, "1000"));
+        }
+        // deletes by query and commits are not routed
+        assertNull(shardRequest.getDeleteQuery());
+        assertNull(shardRequest.getAction());
+        assertEquals(1000, shardRequest.getCommitWithin());
+      }
+      assertEquals(100, docs);
+
+      // documents without a uniqueKey are left to the server
+      server.setIdField("key");
+      assertNull(server.routeUpdates(request, clusterState, "collection1"));
+      assertNull(server.routeUpdates(new UpdateRequest().deleteByQuery("*:*"), clusterState, "collection1"));
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  public void testCommitParams() throws Exception {
+    CloudSolrServer server = new CloudSolrServer("localhost:0");
+    try {
+      ClusterState clusterState = clusterState(2);
+      for (String param : new String[] {UpdateParams.COMMIT, UpdateParams.OPTIMIZE}) {
+        UpdateRequest request = new UpdateRequest();
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(param, "true");
+        request.setParams(params);
+        for (int i = 0; i < 10; i++) {
+          SolrInputDocument doc = new SolrInputDocument();
+          doc.addField("id", Integer.toString(i));
+          request.add(doc);
+        }
+
+        Map<String,UpdateRequest> routes = server.routeUpdates(request, clusterState, "collection1");
+        for (UpdateRequest shardRequest : routes.values()) {
+          assertNull(shardRequest.getParams().get(param));
+        }
+        // the commit or optimize is sent once, after the routed updates
+        UpdateRequest unrouted = CloudSolrServer.getUnroutedRequest(request);
+        assertNotNull(param, unrouted);
+        assertEquals("true", unrouted.getParams().get(param));
+        assertNull(unrouted.getDocuments());
+      }
+
+      UpdateRequest request = new UpdateRequest();
+      request.add(new SolrInputDocument());
+      assertNull(CloudSolrServer.getUnroutedRequest(request));
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  private static String shardOf(ClusterState clusterState, String id) {
+    return clusterState.getShard(Hash.murmurhash3_x86_32(id, 0, id.length(), 0), "collection1");
+  }
+}
@@ -0,0 +1,51 @@
+package org.apache.solr.client.solrj.impl;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+
+public class ConcurrentUpdateSolrServerTest extends LuceneTestCase {
+
+  private UpdateRequest request(String... values) {
+    UpdateRequest req = new UpdateRequest();
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.add("tag", values);
+    req.setParams(params);
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("id", "1");
+    req.add(doc);
+    return req;
+  }
+
+  public void testCanBatchWith() throws Exception {
+    ConcurrentUpdateSolrServer server = new ConcurrentUpdateSolrServer(
+        "http://127.0.0.1:8983/solr", 10, 1);
+    try {
+      ConcurrentUpdateSolrServer.BufferedRequest first = server.new BufferedRequest(request("a", "b"));
+      // equal multi-valued params, in other arrays
+      assertTrue(first.canBatchWith(server.new BufferedRequest(request("a", "b"))));
+      assertFalse(first.canBatchWith(server.new BufferedRequest(request("a", "c"))));
+      assertFalse(first.canBatchWith(server.new BufferedRequest(request("a"))));
+    } finally {
+      server.shutdownNow();
+    }
+  }
+}
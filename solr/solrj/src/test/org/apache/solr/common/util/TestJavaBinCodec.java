@@ -19,9 +19,15 @@ package org.apache.solr.common.util;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
 
 import org.apache.lucene.util.LuceneTestCase;
 import org.apache.lucene.util._TestUtil;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
 
 public class TestJavaBinCodec extends LuceneTestCase {
   
@@ -36,4 +42,179 @@ public class TestJavaBinCodec extends LuceneTestCase {
       assertEquals(s, o);
     }
   }
+
+  public void testLongStrings() throws Exception {
+    for (int i = 0; i < 100*RANDOM_MULTIPLIER; i++) {
+      // longer than the output buffer, with surrogate pairs at random chunk boundaries
+      String s = _TestUtil.randomRealisticUnicodeString(random(), 3000, 20000);
+      byte[] utf8 = new byte[s.length() * 3];
+      int len = ByteUtils.UTF16toUTF8(s, 0, s.length(), utf8, 0);
+      assertEquals(len, ByteUtils.calcUTF16toUTF8Length(s, 0, s.length()));
+
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      new JavaBinCodec().marshal(s, os);
+      assertEquals(s, new JavaBinCodec().unmarshal(new ByteArrayInputStream(os.toByteArray())));
+    }
+    // an unpaired surrogate is replaced
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new JavaBinCodec().marshal("a\uD800b", os);
+    assertEquals("a\uFFFDb", new JavaBinCodec().unmarshal(new ByteArrayInputStream(os.toByteArray())));
+
+    os = new ByteArrayOutputStream();
+    JavaBinCodec codec = new JavaBinCodec();
+    codec.init(FastOutputStream.wrap(os));
+    byte[] utf8 = "xhéllo".getBytes("UTF-8");
+    codec.writeUTF8Str(utf8, 1, utf8.length - 1);
+    codec.daos.flushBuffer();
+    assertEquals("héllo", new JavaBinCodec().readVal(FastInputStream.wrap(new ByteArrayInputStream(os.toByteArray()))));
+  }
+
+  private static byte[] marshalDocs() throws Exception {
+    SolrDocumentList docs = new SolrDocumentList();
+    docs.setNumFound(10);
+    docs.setStart(2);
+    for (int i = 0; i < 3; i++) {
+      SolrDocument doc = new SolrDocument();
+      doc.setField("id", "doc" + i);
+      doc.setField("val_i", i);
+      doc.setField("cat", Arrays.asList("a" + i, "b" + i));
+      docs.add(doc);
+    }
+    NamedList<Object> response = new NamedList<Object>();
+    response.add("response", docs);
+    response.add("other", "value");
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    new JavaBinCodec().marshal(response, os);
+    return os.toByteArray();
+  }
+
+  public void testDocumentList() throws Exception {
+    NamedList response = (NamedList) new JavaBinCodec().unmarshal(new ByteArrayInputStream(marshalDocs()));
+    SolrDocumentList docs = (SolrDocumentList) response.get("response");
+    assertEquals(10, docs.getNumFound());
+    assertEquals(2, docs.getStart());
+    assertEquals(3, docs.size());
+    assertEquals("doc1", docs.get(1).getFieldValue("id"));
+    assertEquals(1, docs.get(1).getFieldValue("val_i"));
+    assertEquals(Arrays.asList("a1", "b1"), docs.get(1).getFieldValues("cat"));
+    assertEquals("value", response.get("other"));
+  }
+
+  public void testStreamDocuments() throws Exception {
+    for (final boolean reuseStrings : new boolean[] {false, true}) {
+      final List<String> events = new ArrayList<String>();
+      JavaBinCodec.DocumentHandler handler = new JavaBinCodec.DocumentHandler(reuseStrings) {
+        Object last;
+
+        @Override
+        public void startDocumentList(long numFound, long start, Float maxScore) {
+          events.add("list " + numFound + " " + start);
+        }
+
+        @Override
+        public void startDocument() {
+          events.add("start");
+        }
+
+        @Override
+        public void field(String name, Object value) {
+          if (value instanceof CharSequence) {
+            assertEquals(!reuseStrings, value instanceof String);
+            if (reuseStrings && last != null) assertSame(last, value);
+            last = value;
+          }
+          events.add(name + "=" + value);
+        }
+
+        @Override
+        public void endDocument() {
+          events.add("end");
+        }
+      };
+      NamedList response = (NamedList) new JavaBinCodec().unmarshal(new ByteArrayInputStream(marshalDocs()), handler);
+      SolrDocumentList docs = (SolrDocumentList) response.get("response");
+      assertEquals(10, docs.getNumFound());
+      assertTrue(docs.isEmpty());
+      assertEquals("value", response.get("other"));
+      assertEquals(Arrays.asList("list 10 2",
+          "start", "id=doc0", "val_i=0", "cat=a0", "cat=b0", "end",
+          "start", "id=doc1", "val_i=1", "cat=a1", "cat=b1", "end",
+          "start", "id=doc2", "val_i=2", "cat=a2", "cat=b2", "end"), events);
+    }
+  }
+
+  public void testDocumentColumns() throws Exception {
+    DocumentColumns columns = new DocumentColumns();
+    int numDocs = atLeast(100);
+    for (int i = 0; i < numDocs; i++) {
+      columns.startDocument();
+      columns.add("id", "doc" + i);
+      columns.add("long", random().nextLong());
+      if (i % 3 == 0) columns.add("int", i - 50);
+      columns.add("double", random().nextDouble());
+      columns.add("float", (float) i);
+      columns.add("date", new Date(i * 1000L));
+      columns.add("cat", "cat" + (i % 4));
+      if (i == numDocs / 2) columns.add("mixed", "string");
+      else if (i % 2 == 0) columns.add("mixed", i);
+      columns.add("multi", Arrays.asList(i, i + 1));
+      if (i % 10 == 0) {
+        columns.add("added", "a");
+        columns.add("added", "b");
+      }
+    }
+    assertEquals(DocumentColumns.STR, columns.getColumn("cat").getType());
+    assertEquals(4, columns.getColumn("cat").getDictionary().size());
+    assertEquals(DocumentColumns.LONG, columns.getColumn("long").getType());
+    assertEquals(DocumentColumns.OBJECT, columns.getColumn("mixed").getType());
+    assertEquals(DocumentColumns.OBJECT, columns.getColumn("added").getType());
+    SolrDocumentList expected = columns.toDocuments();
+    assertEquals(Arrays.asList("a", "b"), expected.get(0).getFieldValue("added"));
+    assertEquals(-50, expected.get(0).getFieldValue("int"));
+    assertNull(expected.get(1).getFieldValue("int"));
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    JavaBinCodec codec = new JavaBinCodec();
+    codec.init(FastOutputStream.wrap(os));
+    codec.writeDocumentColumns(1000, 10, 1.5f, columns);
+    codec.daos.flushBuffer();
+    byte[] bytes = os.toByteArray();
+
+    SolrDocumentList docs = (SolrDocumentList) new JavaBinCodec().readVal(FastInputStream.wrap(new ByteArrayInputStream(bytes)));
+    assertEquals(1000, docs.getNumFound());
+    assertEquals(10, docs.getStart());
+    assertEquals(1.5f, docs.getMaxScore(), 0f);
+    assertEquals(expected.size(), docs.size());
+    for (int i = 0; i < docs.size(); i++) {
+      assertEquals(expected.get(i).getFieldNames(), docs.get(i).getFieldNames());
+      for (String name : expected.get(i).getFieldNames()) {
+        assertEquals(name, expected.get(i).getFieldValue(name), docs.get(i).getFieldValue(name));
+      }
+    }
+
+    // the columns can be read without creating the documents
+    final DocumentColumns[] read = new DocumentColumns[1];
+    JavaBinCodec reader = new JavaBinCodec();
+    reader.unmarshal(new ByteArrayInputStream(concat(new byte[] {2}, bytes)), new JavaBinCodec.DocumentHandler() {
+      @Override
+      public void documentColumns(long numFound, long start, Float maxScore, DocumentColumns columns) {
+        read[0] = columns;
+      }
+
+      @Override
+      public void field(String name, Object value) {
+        fail();
+      }
+    });
+    DocumentColumns.Column col = read[0].getColumn("long");
+    for (int i = 0; i < numDocs; i++) {
+      assertEquals(columns.getColumn("long").getLong(i), col.getLong(i));
+    }
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] c = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, c, a.length, b.length);
+    return c;
+  }
 }